@@ -95,6 +95,17 @@ public interface CodebookAutomationService
             Object caller)
         throws ApiException;
 
+    /**
+     * Predicts the tags of all documents in the project. The documents are sent to the automation
+     * API in batches and several batches are in flight at the same time. The texts of a batch are
+     * only read when the batch is sent and the predicted tags are persisted as soon as the result
+     * of a batch arrives. The method returns immediately.
+     *
+     * @return {@code false} if the automation API is not reachable or a prediction for the
+     *         codebook is already in progress.
+     */
+    boolean predictTagsInBatches(Codebook cb, Project proj, String modelVersion, Object caller);
+
     ModelMetadata getModelMetadata(Codebook cb) throws ApiException;
 
     ModelMetadata getModelMetadata(Codebook cb, String modelVersion) throws ApiException;
@@ -26,14 +26,22 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
 
@@ -50,6 +58,7 @@ import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
 import de.uhh.lt.codeanno.api.CodebookConstants;
 import de.uhh.lt.codeanno.api.adapter.CodebookCasAdapter;
 import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.automation.generated.apiclient.ApiClient;
 import de.uhh.lt.codeanno.automation.generated.apiclient.ApiException;
 import de.uhh.lt.codeanno.automation.generated.apiclient.api.GeneralApi;
 import de.uhh.lt.codeanno.automation.generated.apiclient.api.MappingApi;
@@ -67,7 +76,7 @@ import de.uhh.lt.codeanno.model.CodebookFeature;
 
 @Component(CodebookAutomationService.SERVICE_NAME)
 public class CodebookAutomationServiceImpl
-    implements CodebookAutomationService
+    implements CodebookAutomationService, DisposableBean
 {
     private final static Logger logger = LoggerFactory
             .getLogger(CodebookAutomationServiceImpl.class);
@@ -76,13 +85,17 @@ public class CodebookAutomationServiceImpl
     private static final Integer API_CALL_TIMEOUT_S = 60 * 1000;
     private static final String CBA_API_HOST_ENV_VAR = "CBA_API_HOST";
     private static final String CBA_API_PORT_ENV_VAR = "CBA_API_PORT";
+    private static final int DOCUMENT_LOCK_STRIPES = 64;
     private final PredictionApi predictionApi;
     private final ModelApi modelApi;
     private final GeneralApi generalApi;
     private final MappingApi mappingApi;
     // CodebookName -> Caller (AutomationSettingsPanel only for now)
     private final ConcurrentHashMap<String, Object> predictionInProgress;
-    private final Object lock;
+    // Correction CASes are written under a per-document lock. The locks are striped so that
+    // documents in different stripes can be written concurrently.
+    private final Object[] documentLocks;
+    private final ExecutorService batchScheduler;
     private final Map<Codebook, Boolean> availabilityCache;
     private final DocumentService documentService;
     private final ProjectService projectService;
@@ -92,6 +105,9 @@ public class CodebookAutomationServiceImpl
     private final ApplicationEventPublisher eventPublisher;
     private boolean heartbeat;
 
+    private @Value("${automation.prediction.batch-size:50}") int batchSize;
+    private @Value("${automation.prediction.max-batches-in-flight:4}") int maxBatchesInFlight;
+
     @Autowired
     public CodebookAutomationServiceImpl(DocumentService documentService,
             ProjectService projectService, CodebookSchemaService codebookService,
@@ -99,32 +115,31 @@ public class CodebookAutomationServiceImpl
             ApplicationEventPublisher eventPublisher)
         throws MalformedURLException
     {
-        String baseUrl = this.getApiBaseURL().toString();
-        logger.info("Using CBA API base URL: " + baseUrl);
-
-        predictionApi = new PredictionApi();
-        predictionApi.getApiClient().setBasePath(baseUrl);
-        predictionApi.getApiClient().setConnectTimeout(API_CALL_TIMEOUT_S);
-        predictionApi.getApiClient().setReadTimeout(API_CALL_TIMEOUT_S);
-        predictionApi.getApiClient().setWriteTimeout(API_CALL_TIMEOUT_S);
-
-        modelApi = new ModelApi();
-        modelApi.getApiClient().setBasePath(baseUrl);
-        modelApi.getApiClient().setConnectTimeout(API_CALL_TIMEOUT_S);
-        modelApi.getApiClient().setReadTimeout(API_CALL_TIMEOUT_S);
-        modelApi.getApiClient().setWriteTimeout(API_CALL_TIMEOUT_S);
-
-        generalApi = new GeneralApi();
-        generalApi.getApiClient().setBasePath(baseUrl);
-        generalApi.getApiClient().setConnectTimeout(API_CALL_TIMEOUT_S);
-        generalApi.getApiClient().setReadTimeout(API_CALL_TIMEOUT_S);
-        generalApi.getApiClient().setWriteTimeout(API_CALL_TIMEOUT_S);
-
-        mappingApi = new MappingApi();
-        mappingApi.getApiClient().setBasePath(baseUrl);
-        mappingApi.getApiClient().setConnectTimeout(API_CALL_TIMEOUT_S);
-        mappingApi.getApiClient().setReadTimeout(API_CALL_TIMEOUT_S);
-        mappingApi.getApiClient().setWriteTimeout(API_CALL_TIMEOUT_S);
+        this(createApiClient(), documentService, projectService, codebookService,
+                correctionDocumentService, userService, eventPublisher);
+    }
+
+    private CodebookAutomationServiceImpl(ApiClient apiClient, DocumentService documentService,
+            ProjectService projectService, CodebookSchemaService codebookService,
+            CorrectionDocumentService correctionDocumentService, UserDao userService,
+            ApplicationEventPublisher eventPublisher)
+    {
+        this(new PredictionApi(apiClient), new ModelApi(apiClient), new GeneralApi(apiClient),
+                new MappingApi(apiClient), documentService, projectService, codebookService,
+                correctionDocumentService, userService, eventPublisher);
+        logger.info("Using CBA API base URL: " + apiClient.getBasePath());
+    }
+
+    CodebookAutomationServiceImpl(PredictionApi predictionApi, ModelApi modelApi,
+            GeneralApi generalApi, MappingApi mappingApi, DocumentService documentService,
+            ProjectService projectService, CodebookSchemaService codebookService,
+            CorrectionDocumentService correctionDocumentService, UserDao userService,
+            ApplicationEventPublisher eventPublisher)
+    {
+        this.predictionApi = predictionApi;
+        this.modelApi = modelApi;
+        this.generalApi = generalApi;
+        this.mappingApi = mappingApi;
 
         this.availabilityCache = new HashMap<>();
         this.predictionInProgress = new ConcurrentHashMap<>();
@@ -138,10 +153,30 @@ public class CodebookAutomationServiceImpl
         this.userService = userService;
         this.eventPublisher = eventPublisher;
 
-        this.lock = new Object();
+        this.documentLocks = new Object[DOCUMENT_LOCK_STRIPES];
+        for (int i = 0; i < documentLocks.length; i++)
+            this.documentLocks[i] = new Object();
+        this.batchScheduler = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+                .namingPattern("codebook-automation-%d").daemon(true).build());
+    }
+
+    @Override
+    public void destroy()
+    {
+        batchScheduler.shutdownNow();
+    }
+
+    private static ApiClient createApiClient() throws MalformedURLException
+    {
+        ApiClient apiClient = new ApiClient();
+        apiClient.setBasePath(getApiBaseURL().toString());
+        apiClient.setConnectTimeout(API_CALL_TIMEOUT_S);
+        apiClient.setReadTimeout(API_CALL_TIMEOUT_S);
+        apiClient.setWriteTimeout(API_CALL_TIMEOUT_S);
+        return apiClient;
     }
 
-    private URL getApiBaseURL() throws MalformedURLException
+    private static URL getApiBaseURL() throws MalformedURLException
     {
         String host = System.getenv(CBA_API_HOST_ENV_VAR);
         int port = Integer.parseInt(System.getenv(CBA_API_PORT_ENV_VAR));
@@ -362,6 +397,188 @@ public class CodebookAutomationServiceImpl
                 new PersistMultiPredResultToCasCallback(this));
     }
 
+    @Override
+    public boolean predictTagsInBatches(Codebook cb, Project proj, String modelVersion,
+            Object caller)
+    {
+        if (!this.performHeartbeatCheck())
+            return false;
+
+        if (this.predictionInProgress.putIfAbsent(cb.getUiName(), caller) != null)
+            return false;
+
+        // Until the batches are scheduled, nothing else releases the codebook again
+        boolean scheduled = false;
+        try {
+            List<SourceDocument> sdocs = documentService.listSourceDocuments(proj);
+            batchScheduler
+                    .execute(() -> this.runPredictionBatches(cb, proj, sdocs, modelVersion));
+            scheduled = true;
+            return true;
+        }
+        finally {
+            if (!scheduled)
+                this.predictionInProgress.remove(cb.getUiName());
+        }
+    }
+
+    private void runPredictionBatches(Codebook cb, Project proj, List<SourceDocument> sdocs,
+            String modelVersion)
+    {
+        int size = Math.max(1, batchSize);
+        int inFlightLimit = Math.max(1, maxBatchesInFlight);
+        logger.info("Starting Codebook Tag prediction for " + cb.getName() + " for "
+                + sdocs.size() + " Documents in batches of " + size);
+
+        // Each batch holds a permit from the moment it is sent until its results are persisted
+        Semaphore inFlight = new Semaphore(inFlightLimit);
+        AtomicInteger failedBatches = new AtomicInteger();
+        boolean failed = false;
+        try {
+            TagLabelMapping mapping = this.loadTagLabelMapping(cb, modelVersion);
+            for (int start = 0; start < sdocs.size(); start += size) {
+                List<SourceDocument> batch = sdocs.subList(start,
+                        Math.min(start + size, sdocs.size()));
+
+                inFlight.acquire();
+                try {
+                    // only the texts of the batches in flight are held in memory
+                    MultiDocumentPredictionRequest req = new MultiDocumentPredictionRequest()
+                            .cbName(cb.getUiName())
+                            .docs(batch.stream().map(sdoc -> this.buildDocumentModel(proj, sdoc))
+                                    .collect(Collectors.toList()))
+                            .mapping(mapping).modelVersion(modelVersion);
+                    predictionApi.predictMultiPredictionMultiplePostAsync(req,
+                            new PersistBatchPredResultToCasCallback(cb, batch, inFlight,
+                                    failedBatches));
+                }
+                catch (ApiException | RuntimeException e) {
+                    failedBatches.incrementAndGet();
+                    inFlight.release();
+                    logger.error("Could not start Codebook Tag prediction of Codebook <"
+                            + cb.getName() + "> for a batch of " + batch.size() + " Documents",
+                            e);
+                }
+            }
+
+            // wait until the results of all batches have been persisted
+            inFlight.acquire(inFlightLimit);
+        }
+        catch (InterruptedException e) {
+            failed = true;
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            failed = true;
+            logger.error("Codebook Tag prediction of Codebook <" + cb.getName() + "> FAILED!", e);
+        }
+        finally {
+            if (failedBatches.get() > 0) {
+                failed = true;
+                logger.warn(failedBatches.get() + " batches of the Codebook Tag prediction of "
+                        + "Codebook <" + cb.getName() + "> FAILED!");
+            }
+            this.predictionInProgress.remove(cb.getUiName());
+            eventPublisher
+                    .publishEvent(new PredictionFinishedEvent(this, cb.getUiName(), failed));
+        }
+    }
+
+    /**
+     * @return whether the predicted tags of all documents in the batch have been persisted.
+     */
+    private boolean writeBatchTagsToCorrectionCas(Codebook cb, List<SourceDocument> sdocs,
+            MultiDocumentPredictionResult result)
+    {
+        Map<Long, SourceDocument> docsById = sdocs.stream()
+                .collect(Collectors.toMap(SourceDocument::getId, Function.identity()));
+
+        boolean persisted = true;
+        for (Map.Entry<String, String> predTag : result.getPredictedTags().entrySet()) {
+            SourceDocument sdoc = docsById.get(Long.parseLong(predTag.getKey()));
+            if (sdoc == null) {
+                logger.warn("Received predicted tag for unknown Document ID=<"
+                        + predTag.getKey() + ">");
+                continue;
+            }
+
+            try {
+                this.writeCodebookTagToCorrectionCas(sdoc, cb, predTag.getValue());
+            }
+            catch (IOException | UIMAException | AnnotationException e) {
+                persisted = false;
+                logger.error("Could not persist predicted tag of Codebook <" + cb.getName()
+                        + "> to CAS", e);
+            }
+        }
+        return persisted;
+    }
+
+    /**
+     * Persists the results of a single batch and then frees its slot in the pipeline.
+     */
+    private class PersistBatchPredResultToCasCallback
+        extends PersistResultToCasCallback<MultiDocumentPredictionResult>
+    {
+        private final Codebook cb;
+        private final List<SourceDocument> sdocs;
+        private final Semaphore inFlight;
+        private final AtomicInteger failedBatches;
+
+        PersistBatchPredResultToCasCallback(Codebook cb, List<SourceDocument> sdocs,
+                Semaphore inFlight, AtomicInteger failedBatches)
+        {
+            super(CodebookAutomationServiceImpl.this);
+            this.cb = cb;
+            this.sdocs = sdocs;
+            this.inFlight = inFlight;
+            this.failedBatches = failedBatches;
+        }
+
+        @Override
+        public void onFailure(ApiException e, int statusCode,
+                Map<String, List<String>> responseHeaders)
+        {
+            logger.warn("Codebook Tag prediction of a batch FAILED! Reason: " + statusCode + " "
+                    + e.getResponseBody(), e);
+            failedBatches.incrementAndGet();
+            inFlight.release();
+        }
+
+        @Override
+        public void onSuccess(MultiDocumentPredictionResult result, int statusCode,
+                Map<String, List<String>> responseHeaders)
+        {
+            boolean persisted = false;
+            try {
+                logger.info("Successfully received Codebook Automation Results for <"
+                        + result.getCodebookName() + "> Codebook and a batch of "
+                        + result.getPredictedTags().size() + " Documents!");
+
+                this.initCasStorageSession();
+                persisted = writeBatchTagsToCorrectionCas(cb, sdocs, result);
+            }
+            finally {
+                if (!persisted)
+                    failedBatches.incrementAndGet();
+                this.closeCasStorageSession();
+                inFlight.release();
+            }
+        }
+
+        @Override
+        public void onUploadProgress(long bytesWritten, long contentLength, boolean done)
+        {
+
+        }
+
+        @Override
+        public void onDownloadProgress(long bytesRead, long contentLength, boolean done)
+        {
+
+        }
+    }
+
     @Override
     public ModelMetadata getModelMetadata(Codebook cb) throws ApiException
     {
@@ -468,7 +685,7 @@ public class CodebookAutomationServiceImpl
     private void writeCodebookTagToCorrectionCas(SourceDocument sdoc, Codebook cb, String tagValue)
         throws IOException, UIMAException, AnnotationException
     {
-        synchronized (lock) {
+        synchronized (this.getDocumentLock(sdoc)) {
             CAS correctionCas = this.readOrCreateCorrectionCas(sdoc, true);
 
             // FIXME we really need to get rid of the cb features to increase code
@@ -490,6 +707,11 @@ public class CodebookAutomationServiceImpl
         }
     }
 
+    private Object getDocumentLock(SourceDocument sdoc)
+    {
+        return documentLocks[Math.floorMod(sdoc.getId(), DOCUMENT_LOCK_STRIPES)];
+    }
+
     @Override
     public void writePredictedTagToCorrectionCas(PredictionResult result)
         throws IOException, UIMAException, AnnotationException
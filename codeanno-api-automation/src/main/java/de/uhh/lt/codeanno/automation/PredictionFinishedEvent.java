@@ -25,15 +25,30 @@ public class PredictionFinishedEvent
 
     private static final long serialVersionUID = -4924287447631696926L;
     private final String codebookUiName;
+    private final boolean failed;
 
     public PredictionFinishedEvent(Object source, String cbUiName)
+    {
+        this(source, cbUiName, false);
+    }
+
+    public PredictionFinishedEvent(Object source, String cbUiName, boolean failed)
     {
         super(source);
         this.codebookUiName = cbUiName;
+        this.failed = failed;
     }
 
     public String getCodebookUiName()
     {
         return codebookUiName;
     }
+
+    /**
+     * @return whether the tags of some documents could not be predicted or persisted.
+     */
+    public boolean isFailed()
+    {
+        return failed;
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.automation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.springframework.context.ApplicationEventPublisher;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CorrectionDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.automation.generated.apiclient.ApiCallback;
+import de.uhh.lt.codeanno.automation.generated.apiclient.ApiException;
+import de.uhh.lt.codeanno.automation.generated.apiclient.api.GeneralApi;
+import de.uhh.lt.codeanno.automation.generated.apiclient.api.MappingApi;
+import de.uhh.lt.codeanno.automation.generated.apiclient.api.ModelApi;
+import de.uhh.lt.codeanno.automation.generated.apiclient.api.PredictionApi;
+import de.uhh.lt.codeanno.automation.generated.apiclient.model.BooleanResponse;
+import de.uhh.lt.codeanno.automation.generated.apiclient.model.MultiDocumentPredictionRequest;
+import de.uhh.lt.codeanno.automation.generated.apiclient.model.MultiDocumentPredictionResult;
+import de.uhh.lt.codeanno.model.Codebook;
+
+public class CodebookAutomationServiceImplTest
+{
+    public @Rule TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private @Mock PredictionApi predictionApi;
+    private @Mock ModelApi modelApi;
+    private @Mock GeneralApi generalApi;
+    private @Mock MappingApi mappingApi;
+    private @Mock DocumentService documentService;
+    private @Mock ProjectService projectService;
+    private @Mock CodebookSchemaService codebookService;
+    private @Mock CorrectionDocumentService correctionDocumentService;
+    private @Mock UserDao userService;
+    private @Mock ApplicationEventPublisher eventPublisher;
+
+    private Project project;
+    private Codebook codebook;
+    private CodebookAutomationServiceImpl sut;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        codebook = new Codebook("codebook.Topic", "Topic", project, false);
+
+        SourceDocument document = new SourceDocument("document", project, "text");
+        document.setId(1l);
+        File file = tempFolder.newFile();
+        Files.write(file.toPath(), "text".getBytes(UTF_8));
+        when(documentService.listSourceDocuments(project)).thenReturn(asList(document));
+        when(documentService.getSourceDocumentFile(document)).thenReturn(file);
+
+        when(generalApi.heartbeatHeartbeatGet()).thenReturn(new BooleanResponse().value(true));
+
+        sut = new CodebookAutomationServiceImpl(predictionApi, modelApi, generalApi, mappingApi,
+                documentService, projectService, codebookService, correctionDocumentService,
+                userService, eventPublisher);
+    }
+
+    @After
+    public void tearDown()
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatConcurrentPredictionIsRejected() throws Exception
+    {
+        CountDownLatch sent = new CountDownLatch(1);
+        AtomicReference<ApiCallback<MultiDocumentPredictionResult>> pending =
+                new AtomicReference<>();
+        doAnswer(invocation -> {
+            pending.set(invocation.getArgument(1));
+            sent.countDown();
+            return null;
+        }).when(predictionApi).predictMultiPredictionMultiplePostAsync(
+                any(MultiDocumentPredictionRequest.class), any());
+
+        assertThat(sut.predictTagsInBatches(codebook, project, "default", this)).isTrue();
+        assertThat(sent.await(10, SECONDS)).isTrue();
+
+        assertThat(sut.predictTagsInBatches(codebook, project, "default", this)).isFalse();
+        assertThat(sut.isPredictionInProgress(codebook, this)).isTrue();
+
+        pending.get().onFailure(new ApiException(500, "failed"), 500, null);
+
+        awaitFinished();
+        assertThat(sut.isPredictionInProgress(codebook, this)).isFalse();
+    }
+
+    @Test
+    public void thatFailedBatchesAreReported() throws Exception
+    {
+        doAnswer(invocation -> {
+            ApiCallback<MultiDocumentPredictionResult> callback = invocation.getArgument(1);
+            callback.onFailure(new ApiException(500, "failed"), 500, null);
+            return null;
+        }).when(predictionApi).predictMultiPredictionMultiplePostAsync(
+                any(MultiDocumentPredictionRequest.class), any());
+
+        assertThat(sut.predictTagsInBatches(codebook, project, "default", this)).isTrue();
+
+        PredictionFinishedEvent event = awaitFinished();
+        assertThat(event.getCodebookUiName()).isEqualTo("Topic");
+        assertThat(event.isFailed()).isTrue();
+        assertThat(sut.isPredictionInProgress(codebook, this)).isFalse();
+    }
+
+    @Test
+    public void thatCodebookIsReleasedWhenPredictionCannotBeStarted() throws Exception
+    {
+        when(documentService.listSourceDocuments(project))
+                .thenThrow(new IllegalStateException("failed"));
+
+        assertThatThrownBy(() -> sut.predictTagsInBatches(codebook, project, "default", this))
+                .isInstanceOf(IllegalStateException.class);
+
+        assertThat(sut.isPredictionInProgress(codebook, this)).isFalse();
+    }
+
+    private PredictionFinishedEvent awaitFinished()
+    {
+        ArgumentCaptor<PredictionFinishedEvent> captor = ArgumentCaptor
+                .forClass(PredictionFinishedEvent.class);
+        verify(eventPublisher, timeout(10_000)).publishEvent(captor.capture());
+        return captor.getValue();
+    }
+}
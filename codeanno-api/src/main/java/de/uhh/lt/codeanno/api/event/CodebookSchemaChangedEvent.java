@@ -0,0 +1,46 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.api.event;
+
+import org.springframework.context.ApplicationEvent;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Published by the codebook schema service whenever a codebook or codebook feature is created,
+ * updated or removed. Unlike the {@link CodebookConfigurationChangedEvent}, which the UI publishes
+ * once the user is done editing, this is published for every single change, so listeners should
+ * only do cheap work such as invalidating caches.
+ */
+public class CodebookSchemaChangedEvent
+    extends ApplicationEvent
+{
+    private static final long serialVersionUID = 2630553129876581322L;
+
+    private final Project project;
+
+    public CodebookSchemaChangedEvent(Object aSource, Project aProject)
+    {
+        super(aSource);
+        project = aProject;
+    }
+
+    public Project getProject()
+    {
+        return project;
+    }
+}
@@ -20,10 +20,12 @@ package de.uhh.lt.codeanno.api.export;
 import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
 import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
@@ -31,13 +33,32 @@ import org.apache.commons.io.FileUtils;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.impl.CASCompleteSerializer;
 import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.util.CasIOUtils;
+import org.apache.uima.util.CasLoadMode;
 
 public final class CasPersistenceUtils
 {
+    // First two bytes of any Java serialization stream (ObjectStreamConstants.STREAM_MAGIC)
+    private static final byte MAGIC_0 = (byte) 0xAC;
+    private static final byte MAGIC_1 = (byte) 0xED;
+
     private CasPersistenceUtils()
     {
         // No instances
     }
+
+    /**
+     * @param aHeader
+     *            the first bytes of a persisted CAS.
+     * @param aLength
+     *            the number of valid bytes in the header.
+     * @return whether the CAS is stored as a Java-serialized {@link CASCompleteSerializer} as
+     *         written by {@link #writeSerializedCas}.
+     */
+    public static boolean isJavaSerialized(byte[] aHeader, int aLength)
+    {
+        return aLength >= 2 && aHeader[0] == MAGIC_0 && aHeader[1] == MAGIC_1;
+    }
     
     public static void writeSerializedCas(CAS aCas, File aFile)
         throws IOException
@@ -50,11 +71,27 @@ public final class CasPersistenceUtils
         }
     }
 
+    /**
+     * Reads a CAS file from the CAS storage. Besides the Java-serialized format written by
+     * {@link #writeSerializedCas}, this also accepts the UIMA binary formats which the CAS storage
+     * may be configured to use.
+     */
     public static void readSerializedCas(CAS aCas, File aFile)
         throws IOException
     {
-        try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(aFile))) {
-            CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(aFile))) {
+            byte[] header = new byte[2];
+            is.mark(header.length);
+            int len = is.readNBytes(header, 0, header.length);
+            is.reset();
+
+            if (!isJavaSerialized(header, len)) {
+                CasIOUtils.load(is, null, aCas, CasLoadMode.REINIT);
+                return;
+            }
+
+            ObjectInputStream ois = new ObjectInputStream(is);
+            CASCompleteSerializer serializer = (CASCompleteSerializer) ois.readObject();
             deserializeCASComplete(serializer, (CASImpl) aCas);
         }
         catch (ClassNotFoundException e) {
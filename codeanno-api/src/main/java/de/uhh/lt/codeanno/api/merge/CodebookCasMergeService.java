@@ -61,6 +61,36 @@ public interface CodebookCasMergeService
             String aTargetUsername, CAS aTargetCas, Map<String, CAS> aCases)
         throws AnnotationException, UIMAException;
 
+    /**
+     * Same as {@link #reMergeCas(CasDiff.DiffResult, SourceDocument, String, CAS, Map)} but based
+     * on the result of {@link CodebookDiff#doFastCodebookDiff}.
+     *
+     * @param aDiff
+     *            the codebook &times; user tag matrix
+     * @param aCases
+     *            a map of {@code CAS}s for each users and the random merge
+     */
+    void reMergeCas(CodebookDiffResult aDiff, SourceDocument aTargetDocument,
+            String aTargetUsername, CAS aTargetCas, Map<String, CAS> aCases)
+        throws AnnotationException, UIMAException;
+
+    /**
+     * Merges the codebooks on which the users of the diff agree into the target CAS. Codebooks
+     * which are already annotated in the target CAS are left untouched, so the decisions of a
+     * curator are never overwritten.
+     *
+     * @param aDiff
+     *            the codebook &times; user tag matrix
+     * @param aType2code
+     *            the codebooks of the project by their type name
+     * @param aMergeIncompleteAnnotations
+     *            whether to merge codebooks which not all users annotated
+     * @return the number of merged codebooks.
+     */
+    int mergeAgreeingCodebooks(CodebookDiffResult aDiff, Map<String, Codebook> aType2code,
+            SourceDocument aTargetDocument, String aTargetUsername, CAS aTargetCas,
+            boolean aMergeIncompleteAnnotations);
+
     boolean isMergeIncompleteAnnotations();
 
     void setMergeIncompleteAnnotations(boolean aMergeIncompleteAnnotations);
@@ -71,6 +101,15 @@ public interface CodebookCasMergeService
             boolean aForceRecreateCas)
         throws IOException, UIMAException, ClassNotFoundException, AnnotationException;
 
+    /**
+     * Upgrades the CAS of the given user to the current project type system and writes it back.
+     * CASes that are already compatible with the project type system are not written.
+     *
+     * @param aDocument
+     *            the source document.
+     * @param aUsername
+     *            the user owning the annotation document.
+     */
     void upgradeCasAndSave(SourceDocument aDocument, String aUsername);
 
     /**
@@ -91,6 +130,20 @@ public interface CodebookCasMergeService
             Map<String, CAS> aCasses, boolean aMergeIncompleteAnnotations)
         throws IOException, UIMAException, AnnotationException;
 
+    /**
+     * Creates a CAS which can be used to initialize the curation CAS of a document. It is a copy of
+     * the given annotation document which keeps the type system, the text, the sentences and the
+     * tokens but no annotations.
+     *
+     * @param aAnnotationDocument
+     *            an annotation document of the document.
+     * @return the CAS.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    CAS createEmptyCurationCas(AnnotationDocument aAnnotationDocument)
+        throws IOException, UIMAException;
+
     /**
      * Fetches the CAS that the user will be able to edit. In AUTOMATION/CORRECTION mode, this is
      * the CAS for the CORRECTION_USER and in CURATION mode it is the CAS for the CURATION user.
@@ -117,5 +170,13 @@ public interface CodebookCasMergeService
     Map<String, CAS> listCASesForCuration(List<AnnotationDocument> annotationDocuments)
             throws IOException;
 
+    /**
+     * Loads the CASes of all users who finished the given document. The CASes are opened with
+     * shared read-only access and are upgraded in memory only, so they must not be modified.
+     *
+     * @param doc
+     *            the source document.
+     * @return the CASes by user name.
+     */
     Map<String, CAS> getUserCASes(SourceDocument doc);
 }
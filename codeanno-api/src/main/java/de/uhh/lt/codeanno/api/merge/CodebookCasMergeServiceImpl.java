@@ -66,6 +66,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.BulkAnnotationEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.exception.AnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.RequestTimings;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.Position;
@@ -331,6 +332,85 @@ public class CodebookCasMergeServiceImpl
 
     }
 
+    @Override
+    public void reMergeCas(CodebookDiffResult aDiff, SourceDocument aTargetDocument,
+            String aTargetUsername, CAS aTargetCas, Map<String, CAS> aCases)
+        throws AnnotationException, UIMAException
+    {
+        // Remove any annotations from the target CAS - keep type system, sentences and tokens
+        clearAnnotations(aTargetCas);
+
+        // If there is nothing to merge, bail out
+        if (aCases.isEmpty()) {
+            return;
+        }
+
+        Map<String, Codebook> type2code = codebookSchemaService
+                .listCodebook(aTargetDocument.getProject()).stream()
+                .collect(Collectors.toMap(Codebook::getName, Function.identity()));
+
+        mergeAgreeingCodebooks(aDiff, type2code, aTargetDocument, aTargetUsername, aTargetCas,
+                isMergeIncompleteAnnotations());
+
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(
+                    new BulkAnnotationEvent(this, aTargetDocument, aTargetUsername, null));
+        }
+    }
+
+    @Override
+    public int mergeAgreeingCodebooks(CodebookDiffResult aDiff, Map<String, Codebook> aType2code,
+            SourceDocument aTargetDocument, String aTargetUsername, CAS aTargetCas,
+            boolean aMergeIncompleteAnnotations)
+    {
+        int merged = 0;
+        for (int c = 0; c < aDiff.getCodebooks().size(); c++) {
+            String codeName = aDiff.getCodebooks().get(c);
+            if (!aDiff.isAnnotated(c)) {
+                continue;
+            }
+
+            log.trace("Processing codebook {}", codeName);
+            if (aDiff.isStacked(c)) {
+                log.trace(" `-> Not merging stacked annotation");
+                continue;
+            }
+
+            if (!aDiff.isComplete(c) && !aMergeIncompleteAnnotations) {
+                log.trace(" `-> Not merging incomplete annotation");
+                continue;
+            }
+
+            if (!aDiff.isAgreement(c)) {
+                log.trace(" `-> Not merging annotation with disagreement");
+                continue;
+            }
+
+            Codebook codebook = aType2code.get(codeName);
+            Type targetType = aTargetCas.getTypeSystem().getType(codeName);
+            if (codebook == null || targetType == null) {
+                log.trace(" `-> Not merging unknown codebook");
+                continue;
+            }
+
+            if (!selectAt(aTargetCas, targetType, 0, 0).isEmpty()) {
+                log.trace(" `-> Not merging already curated annotation");
+                continue;
+            }
+
+            try {
+                mergeCodebookAnnotation(aTargetDocument, aTargetUsername, codebook, aTargetCas,
+                        aDiff.getRepresentative(c), false);
+                merged++;
+                log.trace(" `-> merged annotation with agreement");
+            }
+            catch (AnnotationException e) {
+                log.trace(" `-> not merged annotation: {}", e.getMessage());
+            }
+        }
+        return merged;
+    }
+
     private void copyFeatures(SourceDocument aDocument, String aUsername,
             CodebookCasAdapter aAdapter, Codebook aCodebook, FeatureStructure aTargetFS,
             FeatureStructure aSourceFs)
@@ -464,13 +544,9 @@ public class CodebookCasMergeServiceImpl
 
         AnnotationDocument randomAnnotationDocument = finishedAnnotationDocuments.get(0);
 
-        // upgrade CASes for each user
-        // TODO what if new type is added once the user finished
-        // annotation
-        for (AnnotationDocument ad : finishedAnnotationDocuments) {
-            upgradeCasAndSave(ad.getDocument(), ad.getUser());
-        }
-
+        // The annotator CASes are only read during the merge. They are loaded as shared read-only
+        // CASes which are upgraded in memory if required, so there is no need to upgrade and
+        // rewrite them on disk first.
         Map<String, CAS> curationCASes = listCASesForCuration(finishedAnnotationDocuments);
 
         createMergeCas(state, curationCASes, randomAnnotationDocument, true, aForceRecreateCas,
@@ -486,8 +562,10 @@ public class CodebookCasMergeServiceImpl
                     user);
             try {
                 CAS cas = documentService.readAnnotationCas(annotationDocument);
-                annotationSchemaService.upgradeCas(cas, annotationDocument);
-                documentService.writeAnnotationCas(cas, annotationDocument, false);
+                // only write back CASes whose type system did not yet match the project
+                if (annotationSchemaService.upgradeCasIfRequired(cas, annotationDocument)) {
+                    documentService.writeAnnotationCas(cas, annotationDocument, false);
+                }
             }
             catch (Exception e) {
                 // no need to catch, it is acceptable that no curation document
@@ -506,16 +584,19 @@ public class CodebookCasMergeServiceImpl
         Validate.notNull(aRandomAnnotationDocument, "Annotation document must be specified");
 
         // We need a modifiable copy of some annotation document which we can use to initialize
-        // the curation CAS. This is an exceptional case where BYPASS is the correct choice
-        CAS mergeCas = documentService.readAnnotationCas(aRandomAnnotationDocument,
-                UNMANAGED_ACCESS);
-        CasDiff.DiffResult diff;
+        // the curation CAS. This is an exceptional case where BYPASS is the correct choice. The
+        // annotator CASes are upgraded to the current type system when read for the diff, so the
+        // merge target has to be upgraded as well.
+        CAS mergeCas = documentService.readAnnotationCas(aRandomAnnotationDocument.getDocument(),
+                aRandomAnnotationDocument.getUser(), AUTO_CAS_UPGRADE, UNMANAGED_ACCESS);
+        CodebookDiffResult diff;
         try (StopWatch watch = new StopWatch(log, "CasDiff (codebook curation)")) {
             // codebook cas diff
-            diff = CodebookDiff.doCodebookDiff(codebookSchemaService, aState.getProject(), null,
-                    aCasses, 0, 0);
+            diff = CodebookDiff.doFastCodebookDiff(codebookSchemaService, aState.getProject(),
+                    aCasses);
         }
-        try (StopWatch watch = new StopWatch(log, "CasMerge (codebook curation)")) {
+        try (StopWatch watch = new StopWatch(log, "CasMerge (codebook curation)");
+                RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.MERGE)) {
             // cas merge
             setMergeIncompleteAnnotations(aMergeIncompleteAnnotations);
             reMergeCas(diff, aState.getDocument(), aState.getUser().getUsername(), mergeCas,
@@ -528,6 +609,17 @@ public class CodebookCasMergeServiceImpl
         return mergeCas;
     }
 
+    @Override
+    public CAS createEmptyCurationCas(AnnotationDocument aAnnotationDocument)
+        throws IOException, UIMAException
+    {
+        // This is an exceptional case where BYPASS is the correct choice, see createCurationCas
+        CAS cas = documentService.readAnnotationCas(aAnnotationDocument.getDocument(),
+                aAnnotationDocument.getUser(), AUTO_CAS_UPGRADE, UNMANAGED_ACCESS);
+        clearAnnotations(cas);
+        return cas;
+    }
+
     @Override
     public Map<String, CAS> listCASesForCuration(List<AnnotationDocument> annotationDocuments)
         throws IOException
@@ -550,6 +642,7 @@ public class CodebookCasMergeServiceImpl
     /**
      * @return a map of all users and their corresponding CASes for the given document )
      */
+    @Override
     public Map<String, CAS> getUserCASes(SourceDocument doc)
     {
         Map<String, CAS> curationCASes = new HashMap<>();
@@ -560,9 +653,11 @@ public class CodebookCasMergeServiceImpl
         for (AnnotationDocument annotationDocument : annotationDocuments) {
             String username = annotationDocument.getUser();
             if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
-                CAS cas;
                 try {
-                    cas = documentService.readAnnotationCas(annotationDocument);
+                    // shared read-only CASes are upgraded in memory only if required and are
+                    // never written back
+                    CAS cas = documentService.readAnnotationCas(annotationDocument.getDocument(),
+                            username, AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS);
                     curationCASes.put(username, cas);
                 }
                 catch (IOException e) {
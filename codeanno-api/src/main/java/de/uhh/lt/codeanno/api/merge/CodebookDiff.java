@@ -26,10 +26,15 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.fit.util.FSUtil;
 
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.RequestTimings;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
@@ -40,6 +45,7 @@ import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.Position;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
 import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
 
 public class CodebookDiff
 {
@@ -64,7 +70,87 @@ public class CodebookDiff
         for (Entry<String, CAS> e : aCasMap.entrySet()) {
             casMap.put(e.getKey(), asList(e.getValue()));
         }
-        return CasDiff.doDiff(adapters, aLinkCompareBehavior, casMap, aBegin, aEnd).toResult();
+        try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.DIFF)) {
+            return CasDiff.doDiff(adapters, aLinkCompareBehavior, casMap, aBegin, aEnd)
+                    .toResult();
+        }
+    }
+
+    /**
+     * Compares the codebook annotations of the given CASes without going through the generic
+     * {@link CasDiff}. Codebook annotations are document-level annotations at (0, 0) with a
+     * single tag, so a single pass over the codebook types of each CAS is sufficient and no
+     * positions or configuration sets have to be built.
+     *
+     * @param aService
+     *            the codebook schema service.
+     * @param aProject
+     *            the project.
+     * @param aCasMap
+     *            the CAS of each user.
+     * @return the codebook &times; user tag matrix.
+     */
+    public static CodebookDiffResult doFastCodebookDiff(CodebookSchemaService aService,
+            Project aProject, Map<String, CAS> aCasMap)
+    {
+        List<String> codebooks = new ArrayList<>();
+        List<String> features = new ArrayList<>();
+        for (Codebook codebook : aService.listCodebook(aProject)) {
+            // there is only 1 dummy feature at the moment!
+            List<CodebookFeature> codebookFeatures = aService.listCodebookFeature(codebook);
+            codebooks.add(codebook.getName());
+            features.add(codebookFeatures.isEmpty() ? null : codebookFeatures.get(0).getName());
+        }
+
+        return doFastCodebookDiff(codebooks, features, aCasMap);
+    }
+
+    /**
+     * Same as {@link #doFastCodebookDiff(CodebookSchemaService, Project, Map)} but with the
+     * codebooks already resolved. This allows sharing the lookup across many documents of the
+     * same project.
+     *
+     * @param aCodebooks
+     *            the names of the codebook types.
+     * @param aFeatures
+     *            the name of the tag feature of each codebook or {@code null} if it has none.
+     * @param aCasMap
+     *            the CAS of each user.
+     * @return the codebook &times; user tag matrix.
+     */
+    public static CodebookDiffResult doFastCodebookDiff(List<String> aCodebooks,
+            List<String> aFeatures, Map<String, CAS> aCasMap)
+    {
+        List<String> users = new ArrayList<>(aCasMap.keySet());
+        CodebookDiffResult result = new CodebookDiffResult(aCodebooks, users);
+
+        try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.DIFF)) {
+            for (int u = 0; u < users.size(); u++) {
+                CAS cas = aCasMap.get(users.get(u));
+                if (cas == null) {
+                    continue;
+                }
+
+                TypeSystem ts = cas.getTypeSystem();
+                for (int c = 0; c < aCodebooks.size(); c++) {
+                    Type type = ts.getType(aCodebooks.get(c));
+                    // the CAS may not have been upgraded since the codebook was created
+                    if (type == null) {
+                        continue;
+                    }
+
+                    Feature feature = aFeatures.get(c) != null
+                            ? type.getFeatureByBaseName(aFeatures.get(c))
+                            : null;
+                    for (AnnotationFS fs : CasUtil.selectCovered(cas, type, 0, 0)) {
+                        result.add(c, u, fs,
+                                feature != null ? fs.getFeatureValueAsString(feature) : null);
+                    }
+                }
+            }
+        }
+
+        return result;
     }
 
     public static class CodebookDiffAdapter
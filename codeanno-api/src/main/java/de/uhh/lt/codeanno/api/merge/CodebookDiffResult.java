@@ -0,0 +1,175 @@
+/*
+ * Copyright 2021 Language Technology Group (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.api.merge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * The result of {@link CodebookDiff#doFastCodebookDiff}. Codebook annotations are document-level
+ * annotations with a single tag, so the result is a dense codebook &times; user matrix instead of
+ * a set of positions and configurations.
+ */
+public class CodebookDiffResult
+{
+    private final List<String> codebooks;
+    private final List<String> users;
+
+    // [codebook][user]
+    private final String[][] tags;
+    private final AnnotationFS[][] annotations;
+    private final int[][] counts;
+
+    CodebookDiffResult(List<String> aCodebooks, List<String> aUsers)
+    {
+        codebooks = new ArrayList<>(aCodebooks);
+        users = new ArrayList<>(aUsers);
+        tags = new String[codebooks.size()][users.size()];
+        annotations = new AnnotationFS[codebooks.size()][users.size()];
+        counts = new int[codebooks.size()][users.size()];
+    }
+
+    void add(int aCodebook, int aUser, AnnotationFS aAnnotation, String aTag)
+    {
+        if (counts[aCodebook][aUser]++ == 0) {
+            annotations[aCodebook][aUser] = aAnnotation;
+            tags[aCodebook][aUser] = aTag;
+        }
+    }
+
+    /**
+     * @return the names of the codebook types in the order of the matrix rows.
+     */
+    public List<String> getCodebooks()
+    {
+        return Collections.unmodifiableList(codebooks);
+    }
+
+    /**
+     * @return the users in the order of the matrix columns.
+     */
+    public List<String> getUsers()
+    {
+        return Collections.unmodifiableList(users);
+    }
+
+    public int indexOfCodebook(String aCodebook)
+    {
+        return codebooks.indexOf(aCodebook);
+    }
+
+    /**
+     * @return the tag the user assigned with the codebook or {@code null} if the user did not
+     *         annotate the codebook or the annotation has no tag.
+     */
+    public String getTag(int aCodebook, int aUser)
+    {
+        return tags[aCodebook][aUser];
+    }
+
+    /**
+     * @return the annotation of the user for the codebook or {@code null} if there is none. If
+     *         the annotations are stacked, the first one is returned.
+     */
+    public AnnotationFS getAnnotation(int aCodebook, int aUser)
+    {
+        return annotations[aCodebook][aUser];
+    }
+
+    /**
+     * @return whether any user annotated the codebook. This corresponds to the codebook having a
+     *         position in a {@code DiffResult}.
+     */
+    public boolean isAnnotated(int aCodebook)
+    {
+        for (int count : counts[aCodebook]) {
+            if (count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether all users annotated the codebook.
+     */
+    public boolean isComplete(int aCodebook)
+    {
+        for (int count : counts[aCodebook]) {
+            if (count == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether any user has more than one annotation of the codebook.
+     */
+    public boolean isStacked(int aCodebook)
+    {
+        for (int count : counts[aCodebook]) {
+            if (count > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether all users who annotated the codebook assigned the same tag. Whether all
+     *         users annotated the codebook at all is checked by {@link #isComplete(int)}.
+     */
+    public boolean isAgreement(int aCodebook)
+    {
+        boolean first = true;
+        String tag = null;
+        for (int u = 0; u < users.size(); u++) {
+            if (counts[aCodebook][u] == 0) {
+                continue;
+            }
+            if (counts[aCodebook][u] > 1) {
+                return false;
+            }
+            if (first) {
+                tag = tags[aCodebook][u];
+                first = false;
+            }
+            else if (!Objects.equals(tag, tags[aCodebook][u])) {
+                return false;
+            }
+        }
+        return !first;
+    }
+
+    /**
+     * @return an annotation of the codebook which can be merged if the users agree, or
+     *         {@code null} if no user annotated the codebook.
+     */
+    public AnnotationFS getRepresentative(int aCodebook)
+    {
+        for (AnnotationFS annotation : annotations[aCodebook]) {
+            if (annotation != null) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+}
@@ -35,11 +35,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.support.logging.Logging;
+import de.uhh.lt.codeanno.api.event.CodebookSchemaChangedEvent;
 import de.uhh.lt.codeanno.model.Codebook;
 import de.uhh.lt.codeanno.model.CodebookFeature;
 import de.uhh.lt.codeanno.model.CodebookTag;
@@ -54,6 +56,7 @@ public class CodebookSchemaServiceImpl
     // private @Lazy @Autowired(required = false) List<ProjectInitializer>
     // initializerProxy;
     private @Autowired CodebookFeatureSupportRegistry featureSupportRegistry;
+    private @Autowired(required = false) ApplicationEventPublisher applicationEventPublisher;
 
     public CodebookSchemaServiceImpl()
     {
@@ -74,6 +77,8 @@ public class CodebookSchemaServiceImpl
             createOrUpdate = "Updated";
         }
 
+        publishSchemaChanged(codebook.getProject());
+
         try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                 String.valueOf(codebook.getProject().getId()))) {
             Project project = codebook.getProject();
@@ -92,6 +97,8 @@ public class CodebookSchemaServiceImpl
         else {
             entityManager.merge(aFeature);
         }
+
+        publishSchemaChanged(aFeature.getProject());
     }
 
     @Override
@@ -279,6 +286,8 @@ public class CodebookSchemaServiceImpl
 
         entityManager.remove(
                 entityManager.contains(aCodebook) ? aCodebook : entityManager.merge(aCodebook));
+
+        publishSchemaChanged(aCodebook.getProject());
     }
 
     public void generateFeatures(TypeSystemDescription aTSD, TypeDescription aTD,
@@ -297,6 +306,18 @@ public class CodebookSchemaServiceImpl
         entityManager.remove(
                 entityManager.contains(aFeature) ? aFeature : entityManager.merge(aFeature));
 
+        publishSchemaChanged(aFeature.getProject());
+    }
+
+    /**
+     * The codebooks and their features make up part of the project type system. The tags do not,
+     * so changing them does not need to be announced.
+     */
+    private void publishSchemaChanged(Project aProject)
+    {
+        if (applicationEventPublisher != null) {
+            applicationEventPublisher.publishEvent(new CodebookSchemaChangedEvent(this, aProject));
+        }
     }
 
     @Override
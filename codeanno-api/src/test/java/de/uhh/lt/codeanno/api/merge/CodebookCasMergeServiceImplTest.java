@@ -0,0 +1,219 @@
+/*
+ * Copyright 2021 Language Technology Group (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.api.merge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+public class CodebookCasMergeServiceImplTest
+{
+    private static final String FEATURE = "code";
+
+    private @Mock CodebookSchemaService codebookSchemaService;
+    private @Mock DocumentService documentService;
+    private @Mock CurationDocumentService curationDocumentService;
+    private @Mock UserDao userRepository;
+    private @Mock AnnotationSchemaService annotationSchemaService;
+
+    private Project project;
+    private SourceDocument document;
+    private List<Codebook> codebooks;
+    private TypeSystemDescription tsd;
+    private CodebookCasMergeServiceImpl sut;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        document = new SourceDocument("document", project, "text");
+        document.setId(1l);
+
+        tsd = createTypeSystemDescription();
+        codebooks = asList(codebook("codebook.Agree"), codebook("codebook.Disagree"),
+                codebook("codebook.Incomplete"), codebook("codebook.Curated"));
+
+        when(codebookSchemaService.listCodebook(project)).thenReturn(codebooks);
+
+        sut = new CodebookCasMergeServiceImpl(codebookSchemaService, documentService,
+                curationDocumentService, userRepository, annotationSchemaService, null);
+    }
+
+    @Test
+    public void thatOnlyCodebooksWithAgreementAreMerged() throws Exception
+    {
+        Map<String, CAS> casses = new LinkedHashMap<>();
+        casses.put("user1", createCas());
+        casses.put("user2", createCas());
+        annotate(casses.get("user1"), "codebook.Agree", "yes");
+        annotate(casses.get("user2"), "codebook.Agree", "yes");
+        annotate(casses.get("user1"), "codebook.Disagree", "yes");
+        annotate(casses.get("user2"), "codebook.Disagree", "no");
+        annotate(casses.get("user1"), "codebook.Incomplete", "yes");
+        annotate(casses.get("user1"), "codebook.Curated", "yes");
+        annotate(casses.get("user2"), "codebook.Curated", "yes");
+
+        CAS target = createCas();
+        annotate(target, "codebook.Curated", "no");
+
+        CodebookDiffResult diff = CodebookDiff.doFastCodebookDiff(codebookSchemaService, project,
+                casses);
+        int merged = sut.mergeAgreeingCodebooks(diff, type2code(), document, "curator", target,
+                false);
+
+        assertThat(merged).isEqualTo(1);
+        assertThat(tags(target, "codebook.Agree")).containsExactly("yes");
+        assertThat(tags(target, "codebook.Disagree")).isEmpty();
+        assertThat(tags(target, "codebook.Incomplete")).isEmpty();
+        // A decision the curator already made is never overwritten
+        assertThat(tags(target, "codebook.Curated")).containsExactly("no");
+    }
+
+    @Test
+    public void thatIncompleteCodebooksAreMergedIfRequested() throws Exception
+    {
+        Map<String, CAS> casses = new LinkedHashMap<>();
+        casses.put("user1", createCas());
+        casses.put("user2", createCas());
+        annotate(casses.get("user1"), "codebook.Incomplete", "yes");
+
+        CAS target = createCas();
+
+        CodebookDiffResult diff = CodebookDiff.doFastCodebookDiff(codebookSchemaService, project,
+                casses);
+        int merged = sut.mergeAgreeingCodebooks(diff, type2code(), document, "curator", target,
+                true);
+
+        assertThat(merged).isEqualTo(1);
+        assertThat(tags(target, "codebook.Incomplete")).containsExactly("yes");
+    }
+
+    @Test
+    public void thatStackedCodebooksAreNotMerged() throws Exception
+    {
+        Map<String, CAS> casses = new LinkedHashMap<>();
+        casses.put("user1", createCas());
+        casses.put("user2", createCas());
+        annotate(casses.get("user1"), "codebook.Agree", "yes");
+        annotate(casses.get("user1"), "codebook.Agree", "yes");
+        annotate(casses.get("user2"), "codebook.Agree", "yes");
+
+        CAS target = createCas();
+
+        CodebookDiffResult diff = CodebookDiff.doFastCodebookDiff(codebookSchemaService, project,
+                casses);
+        int merged = sut.mergeAgreeingCodebooks(diff, type2code(), document, "curator", target,
+                false);
+
+        assertThat(merged).isEqualTo(0);
+        assertThat(tags(target, "codebook.Agree")).isEmpty();
+    }
+
+    @Test
+    public void thatEmptyCurationCasIsReadWithUpgrade() throws Exception
+    {
+        AnnotationDocument annotationDocument = new AnnotationDocument("document", project,
+                "user1", document);
+        CAS cas = createCas();
+        annotate(cas, "codebook.Agree", "yes");
+        when(documentService.readAnnotationCas(document, "user1", AUTO_CAS_UPGRADE,
+                UNMANAGED_ACCESS)).thenReturn(cas);
+
+        CAS curationCas = sut.createEmptyCurationCas(annotationDocument);
+
+        assertThat(curationCas.getDocumentText()).isEqualTo("This is a test .");
+        assertThat(tags(curationCas, "codebook.Agree")).isEmpty();
+    }
+
+    private Codebook codebook(String aName)
+    {
+        Codebook codebook = new Codebook(aName, aName, project, false);
+        CodebookFeature feature = new CodebookFeature(project, codebook, FEATURE, FEATURE,
+                CAS.TYPE_NAME_STRING);
+        when(codebookSchemaService.listCodebookFeature(codebook)).thenReturn(asList(feature));
+
+        TypeDescription td = tsd.addType(aName, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(FEATURE, "", CAS.TYPE_NAME_STRING);
+        return codebook;
+    }
+
+    private Map<String, Codebook> type2code()
+    {
+        return codebooks.stream()
+                .collect(Collectors.toMap(Codebook::getName, Function.identity()));
+    }
+
+    private CAS createCas() throws Exception
+    {
+        CAS cas = CasFactory.createCas(tsd);
+        cas.setDocumentText("This is a test .");
+        return cas;
+    }
+
+    private static void annotate(CAS aCas, String aCodebook, String aTag)
+    {
+        Type type = getType(aCas, aCodebook);
+        AnnotationFS fs = aCas.createAnnotation(type, 0, 0);
+        fs.setFeatureValueFromString(type.getFeatureByBaseName(FEATURE), aTag);
+        aCas.addFsToIndexes(fs);
+    }
+
+    private static List<String> tags(CAS aCas, String aCodebook)
+    {
+        Type type = getType(aCas, aCodebook);
+        return selectCovered(aCas, type, 0, 0).stream()
+                .map(fs -> fs.getFeatureValueAsString(type.getFeatureByBaseName(FEATURE)))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2021 Language Technology Group (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.api.merge;
+
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.Configuration;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.ConfigurationSet;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+public class CodebookDiffTest
+{
+    private static final String FEATURE = "code";
+
+    private static final String AGREE = "codebook.Agree";
+    private static final String DISAGREE = "codebook.Disagree";
+    private static final String PARTIAL = "codebook.Partial";
+    private static final String NULL_AGREE = "codebook.NullAgree";
+    private static final String NULL_DISAGREE = "codebook.NullDisagree";
+    private static final String NONE = "codebook.None";
+    private static final String ABSENT = "codebook.Absent";
+
+    private @Mock CodebookSchemaService codebookSchemaService;
+
+    private Project project;
+    private TypeSystemDescription tsd;
+    // Same as tsd but without the ABSENT codebook, i.e. a CAS not upgraded since its creation
+    private TypeSystemDescription oldTsd;
+    private List<Codebook> codebooks;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        tsd = createTypeSystemDescription();
+        oldTsd = createTypeSystemDescription();
+        codebooks = new ArrayList<>();
+        for (String name : asList(AGREE, DISAGREE, PARTIAL, NULL_AGREE, NULL_DISAGREE, NONE,
+                ABSENT)) {
+            codebooks.add(codebook(name));
+        }
+
+        when(codebookSchemaService.listCodebook(project)).thenReturn(codebooks);
+    }
+
+    @Test
+    public void thatFastDiffMatchesCasDiff() throws Exception
+    {
+        Map<String, CAS> casses = new LinkedHashMap<>();
+        casses.put("user1", createCas(tsd));
+        casses.put("user2", createCas(tsd));
+        casses.put("user3", createCas(oldTsd));
+
+        for (String user : casses.keySet()) {
+            annotate(casses.get(user), AGREE, "x");
+            annotate(casses.get(user), NULL_AGREE, null);
+        }
+
+        annotate(casses.get("user1"), DISAGREE, "x");
+        annotate(casses.get("user2"), DISAGREE, "y");
+        annotate(casses.get("user3"), DISAGREE, "x");
+
+        annotate(casses.get("user1"), PARTIAL, "x");
+
+        annotate(casses.get("user1"), NULL_DISAGREE, null);
+        annotate(casses.get("user2"), NULL_DISAGREE, "x");
+        annotate(casses.get("user3"), NULL_DISAGREE, null);
+
+        annotate(casses.get("user1"), ABSENT, "x");
+        annotate(casses.get("user2"), ABSENT, "x");
+
+        CodebookDiffResult fast = CodebookDiff.doFastCodebookDiff(codebookSchemaService, project,
+                casses);
+        DiffResult casDiff = CodebookDiff.doCodebookDiff(codebookSchemaService, project, null,
+                casses, 0, 0);
+
+        assertSameResult(fast, casDiff, casses);
+
+        assertThat(fast.getCodebooks())
+                .containsExactlyElementsOf(codebooks.stream().map(Codebook::getName)
+                        .collect(Collectors.toList()));
+        assertThat(fast.getUsers()).containsExactly("user1", "user2", "user3");
+
+        assertAgreement(fast, AGREE, true, true);
+        assertAgreement(fast, DISAGREE, false, true);
+        assertAgreement(fast, PARTIAL, true, false);
+        assertAgreement(fast, NULL_AGREE, true, true);
+        assertAgreement(fast, NULL_DISAGREE, false, true);
+        assertAgreement(fast, ABSENT, true, false);
+        assertThat(fast.isAnnotated(fast.indexOfCodebook(NONE))).isFalse();
+        assertThat(fast.getTag(fast.indexOfCodebook(NULL_AGREE), 0)).isNull();
+        assertThat(fast.getTag(fast.indexOfCodebook(ABSENT), 2)).isNull();
+        assertThat(fast.getAnnotation(fast.indexOfCodebook(ABSENT), 2)).isNull();
+    }
+
+    @Test
+    public void thatUsersWithoutCasMatchCasDiff() throws Exception
+    {
+        Map<String, CAS> casses = new LinkedHashMap<>();
+        casses.put("user1", createCas(tsd));
+        casses.put("user2", createCas(tsd));
+        casses.put("user3", null);
+
+        annotate(casses.get("user1"), AGREE, "x");
+        annotate(casses.get("user2"), AGREE, "x");
+        annotate(casses.get("user1"), DISAGREE, "x");
+        annotate(casses.get("user2"), DISAGREE, null);
+
+        CodebookDiffResult fast = CodebookDiff.doFastCodebookDiff(codebookSchemaService, project,
+                casses);
+        DiffResult casDiff = CodebookDiff.doCodebookDiff(codebookSchemaService, project, null,
+                casses, 0, 0);
+
+        assertSameResult(fast, casDiff, casses);
+
+        assertAgreement(fast, AGREE, true, false);
+        assertAgreement(fast, DISAGREE, false, false);
+    }
+
+    private static void assertSameResult(CodebookDiffResult aFast, DiffResult aCasDiff,
+            Map<String, CAS> aCasses)
+    {
+        for (int c = 0; c < aFast.getCodebooks().size(); c++) {
+            String codebook = aFast.getCodebooks().get(c);
+            List<ConfigurationSet> sets = aCasDiff.getConfigurationSets().stream()
+                    .filter(set -> set.getPosition().getType().equals(codebook))
+                    .collect(Collectors.toList());
+            assertThat(sets).as("positions of %s", codebook).hasSizeLessThanOrEqualTo(1);
+
+            assertThat(aFast.isAnnotated(c)).as("%s annotated", codebook)
+                    .isEqualTo(!sets.isEmpty());
+            if (sets.isEmpty()) {
+                continue;
+            }
+
+            ConfigurationSet set = sets.get(0);
+            assertThat(aFast.isComplete(c)).as("%s complete", codebook)
+                    .isEqualTo(aCasDiff.isComplete(set));
+            assertThat(aFast.isAgreement(c)).as("%s agreement", codebook)
+                    .isEqualTo(aCasDiff.isAgreement(set));
+            assertThat(aFast.isStacked(c)).as("%s stacked", codebook).isFalse();
+
+            for (int u = 0; u < aFast.getUsers().size(); u++) {
+                String user = aFast.getUsers().get(u);
+                List<Configuration> configurations = set.getConfigurations(user);
+                if (configurations.isEmpty()) {
+                    assertThat(aFast.getAnnotation(c, u)).as("%s of %s", codebook, user)
+                            .isNull();
+                    assertThat(aFast.getTag(c, u)).as("%s tag of %s", codebook, user).isNull();
+                    continue;
+                }
+
+                assertThat(configurations).hasSize(1);
+                FeatureStructure fs = configurations.get(0).getFs(user, aCasses);
+                assertThat(aFast.getAnnotation(c, u)).as("%s of %s", codebook, user)
+                        .isSameAs(fs);
+                assertThat(aFast.getTag(c, u)).as("%s tag of %s", codebook, user).isEqualTo(
+                        fs.getFeatureValueAsString(fs.getType().getFeatureByBaseName(FEATURE)));
+            }
+        }
+    }
+
+    private static void assertAgreement(CodebookDiffResult aResult, String aCodebook,
+            boolean aAgreement, boolean aComplete)
+    {
+        int c = aResult.indexOfCodebook(aCodebook);
+        assertThat(aResult.isAnnotated(c)).as("%s annotated", aCodebook).isTrue();
+        assertThat(aResult.isAgreement(c)).as("%s agreement", aCodebook).isEqualTo(aAgreement);
+        assertThat(aResult.isComplete(c)).as("%s complete", aCodebook).isEqualTo(aComplete);
+    }
+
+    private Codebook codebook(String aName)
+    {
+        Codebook codebook = new Codebook(aName, aName, project, false);
+        CodebookFeature feature = new CodebookFeature(project, codebook, FEATURE, FEATURE,
+                CAS.TYPE_NAME_STRING);
+        when(codebookSchemaService.listCodebookFeature(codebook)).thenReturn(asList(feature));
+
+        addCodebookType(tsd, aName);
+        if (!ABSENT.equals(aName)) {
+            addCodebookType(oldTsd, aName);
+        }
+        return codebook;
+    }
+
+    private static void addCodebookType(TypeSystemDescription aTsd, String aName)
+    {
+        TypeDescription td = aTsd.addType(aName, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(FEATURE, "", CAS.TYPE_NAME_STRING);
+    }
+
+    private static CAS createCas(TypeSystemDescription aTsd) throws Exception
+    {
+        CAS cas = CasFactory.createCas(aTsd);
+        cas.setDocumentText("This is a test .");
+        return cas;
+    }
+
+    private static void annotate(CAS aCas, String aCodebook, String aTag)
+    {
+        Type type = getType(aCas, aCodebook);
+        AnnotationFS fs = aCas.createAnnotation(type, 0, 0);
+        if (aTag != null) {
+            fs.setFeatureValueFromString(type.getFeatureByBaseName(FEATURE), aTag);
+        }
+        aCas.addFsToIndexes(fs);
+    }
+}
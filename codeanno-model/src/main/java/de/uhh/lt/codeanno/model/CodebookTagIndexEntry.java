@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.model;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.ConstraintMode;
+import javax.persistence.Entity;
+import javax.persistence.ForeignKey;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * An entry of the codebook tag index, i.e. the tag a user has assigned with a codebook to a
+ * document. The index mirrors the codebook annotations in the annotation CASes so that tag
+ * distributions can be computed without loading the CASes. Documents on which a user did not
+ * assign a tag with a codebook have no entry.
+ */
+@Entity
+@Table(name = "codebook_tag_index", uniqueConstraints = {
+        @UniqueConstraint(columnNames = { "document", "user", "codebook" }) })
+public class CodebookTagIndexEntry
+    implements Serializable
+{
+    private static final long serialVersionUID = -2905476359315126452L;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "project", foreignKey =
+        @ForeignKey(name = "none", value = ConstraintMode.NO_CONSTRAINT))
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Project project;
+
+    @ManyToOne
+    @JoinColumn(name = "document", foreignKey =
+        @ForeignKey(name = "none", value = ConstraintMode.NO_CONSTRAINT))
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private SourceDocument document;
+
+    @Column(name = "user", nullable = false)
+    private String user;
+
+    @ManyToOne
+    @JoinColumn(name = "codebook", foreignKey =
+        @ForeignKey(name = "none", value = ConstraintMode.NO_CONSTRAINT))
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Codebook codebook;
+
+    @Column(name = "tag", nullable = false)
+    private String tag;
+
+    public CodebookTagIndexEntry()
+    {
+        // Required
+    }
+
+    public CodebookTagIndexEntry(SourceDocument aDocument, String aUser, Codebook aCodebook,
+            String aTag)
+    {
+        project = aDocument.getProject();
+        document = aDocument;
+        user = aUser;
+        codebook = aCodebook;
+        tag = aTag;
+    }
+
+    public Long getId()
+    {
+        return id;
+    }
+
+    public void setId(Long aId)
+    {
+        id = aId;
+    }
+
+    public Project getProject()
+    {
+        return project;
+    }
+
+    public void setProject(Project aProject)
+    {
+        project = aProject;
+    }
+
+    public SourceDocument getDocument()
+    {
+        return document;
+    }
+
+    public void setDocument(SourceDocument aDocument)
+    {
+        document = aDocument;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    public void setUser(String aUser)
+    {
+        user = aUser;
+    }
+
+    public Codebook getCodebook()
+    {
+        return codebook;
+    }
+
+    public void setCodebook(Codebook aCodebook)
+    {
+        codebook = aCodebook;
+    }
+
+    /**
+     * @return the name of the tag as it is stored in the CAS.
+     */
+    public String getTag()
+    {
+        return tag;
+    }
+
+    public void setTag(String aTag)
+    {
+        tag = aTag;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[" + document + "][" + user + "][" + codebook + "] -> " + tag;
+    }
+}
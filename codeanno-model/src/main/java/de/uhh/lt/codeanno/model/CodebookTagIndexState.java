@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.ConstraintMode;
+import javax.persistence.Entity;
+import javax.persistence.ForeignKey;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Marks a project whose existing annotations have been fully added to the codebook tag index.
+ * Projects without such a marker still need to be backfilled and cannot be served from the index.
+ */
+@Entity
+@Table(name = "codebook_tag_index_state", uniqueConstraints = {
+        @UniqueConstraint(columnNames = { "project" }) })
+public class CodebookTagIndexState
+    implements Serializable
+{
+    private static final long serialVersionUID = 4413385620743128829L;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "project", foreignKey =
+        @ForeignKey(name = "none", value = ConstraintMode.NO_CONSTRAINT))
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Project project;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "indexed", nullable = false)
+    private Date indexed;
+
+    public CodebookTagIndexState()
+    {
+        // Required
+    }
+
+    public CodebookTagIndexState(Project aProject)
+    {
+        project = aProject;
+        indexed = new Date();
+    }
+
+    public Long getId()
+    {
+        return id;
+    }
+
+    public void setId(Long aId)
+    {
+        id = aId;
+    }
+
+    public Project getProject()
+    {
+        return project;
+    }
+
+    public void setProject(Project aProject)
+    {
+        project = aProject;
+    }
+
+    public Date getIndexed()
+    {
+        return indexed;
+    }
+
+    public void setIndexed(Date aIndexed)
+    {
+        indexed = aIndexed;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The codebook tags of all annotators on all documents of a project in a compact, columnar form.
+ * For each codebook there is one column holding a tag ID per (user, document) cell. The tags
+ * themselves are stored only once in a dictionary.
+ * <p>
+ * Unlike the annotator CASes, this structure is small enough to be kept in the page state.
+ */
+public class CodebookAgreementData
+    implements Serializable
+{
+    private static final long serialVersionUID = 4260325384151730541L;
+
+    /**
+     * The document of the user is not considered, e.g. because it is not finished yet.
+     */
+    public static final int EXCLUDED = -1;
+
+    /**
+     * The user has not annotated the codebook on the document.
+     */
+    public static final int NO_TAG = 0;
+
+    /**
+     * The user has annotated the codebook on the document but has not assigned a tag.
+     */
+    public static final int NULL_TAG = -2;
+
+    private final String projectName;
+    private final List<String> users;
+    private final List<String> documentNames;
+    private final Map<String, int[]> columns;
+    private final List<String> tags = new ArrayList<>();
+    private final Map<String, Integer> tagIds = new HashMap<>();
+    private final List<String> errors = new ArrayList<>();
+
+    public CodebookAgreementData(String aProjectName, List<String> aUsers,
+            List<String> aDocumentNames, List<String> aCodebooks)
+    {
+        projectName = aProjectName;
+        users = new ArrayList<>(aUsers);
+        documentNames = new ArrayList<>(aDocumentNames);
+        columns = new LinkedHashMap<>();
+        for (String codebook : aCodebooks) {
+            columns.put(codebook, new int[users.size() * documentNames.size()]);
+        }
+    }
+
+    public String getProjectName()
+    {
+        return projectName;
+    }
+
+    public List<String> getUsers()
+    {
+        return Collections.unmodifiableList(users);
+    }
+
+    public List<String> getDocumentNames()
+    {
+        return Collections.unmodifiableList(documentNames);
+    }
+
+    public boolean hasCodebook(String aCodebook)
+    {
+        return columns.containsKey(aCodebook);
+    }
+
+    /**
+     * Marks the document of the user as excluded for all codebooks.
+     */
+    public void exclude(int aUser, int aDocument)
+    {
+        for (int[] column : columns.values()) {
+            column[cell(aUser, aDocument)] = EXCLUDED;
+        }
+    }
+
+    public boolean isExcluded(int aUser, int aDocument)
+    {
+        return !columns.isEmpty()
+                && columns.values().iterator().next()[cell(aUser, aDocument)] == EXCLUDED;
+    }
+
+    /**
+     * Records that the user has annotated the codebook on the document.
+     * 
+     * @param aTag
+     *            the tag of the annotation, may be {@code null} if the annotation has no tag.
+     */
+    public void setTag(String aCodebook, int aUser, int aDocument, String aTag)
+    {
+        int tagId = NULL_TAG;
+        if (aTag != null) {
+            tagId = tagIds.computeIfAbsent(aTag, t -> {
+                tags.add(t);
+                return tags.size();
+            });
+        }
+        columns.get(aCodebook)[cell(aUser, aDocument)] = tagId;
+    }
+
+    /**
+     * @return whether the user has annotated the codebook on the document, with or without a tag.
+     */
+    public boolean isAnnotated(String aCodebook, int aUser, int aDocument)
+    {
+        int tagId = columns.get(aCodebook)[cell(aUser, aDocument)];
+        return tagId > NO_TAG || tagId == NULL_TAG;
+    }
+
+    /**
+     * @return the tag of the codebook which the user assigned to the document or {@code null} if
+     *         there is none, the annotation has no tag or the document is excluded.
+     */
+    public String getTag(String aCodebook, int aUser, int aDocument)
+    {
+        int tagId = columns.get(aCodebook)[cell(aUser, aDocument)];
+        return tagId > NO_TAG ? tags.get(tagId - 1) : null;
+    }
+
+    public void addError(String aMessage)
+    {
+        errors.add(aMessage);
+    }
+
+    public List<String> getErrors()
+    {
+        return Collections.unmodifiableList(errors);
+    }
+
+    private int cell(int aUser, int aDocument)
+    {
+        return aUser * documentNames.size() + aDocument;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.util.CasCreationUtils.mergeTypeSystems;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.util.CasUtil;
+import org.apache.uima.fit.util.FSUtil;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.uhh.lt.codeanno.api.CodebookConstants;
+import de.uhh.lt.codeanno.api.adapter.CodebookCasAdapter;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+/**
+ * Provides the data for the codebook agreement. The annotator CASes are streamed one at a time
+ * and only the codebook tags are kept in a {@link CodebookAgreementData}.
+ */
+@Component
+public class CodebookAgreementDataProvider
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CodebookAgreementDataProvider.class);
+
+    private final DocumentService documentService;
+    private final ProjectService projectService;
+    private final CodebookSchemaService codebookService;
+
+    @Autowired
+    public CodebookAgreementDataProvider(DocumentService aDocumentService,
+            ProjectService aProjectService, CodebookSchemaService aCodebookService)
+    {
+        documentService = aDocumentService;
+        projectService = aProjectService;
+        codebookService = aCodebookService;
+    }
+
+    /**
+     * Extracts the codebook tags of all annotators on all documents of the project.
+     * 
+     * @param aProject
+     *            the project.
+     * @param aLimitToFinishedDocuments
+     *            whether documents which are not finished by an annotator are excluded.
+     * @return the codebook tags.
+     */
+    public CodebookAgreementData load(Project aProject, boolean aLimitToFinishedDocuments)
+    {
+        List<User> users = projectService.listProjectUsersWithPermissions(aProject, ANNOTATOR);
+        List<SourceDocument> documents = documentService.listSourceDocuments(aProject);
+
+        // there is only 1 dummy feature per codebook at the moment!
+        Map<Codebook, CodebookFeature> codebooks = new LinkedHashMap<>();
+        for (Codebook codebook : codebookService.listCodebook(aProject)) {
+            List<CodebookFeature> features = codebookService.listCodebookFeature(codebook);
+            if (!features.isEmpty()) {
+                codebooks.put(codebook, features.get(0));
+            }
+        }
+
+        CodebookAgreementData data = new CodebookAgreementData(aProject.getName(),
+                users.stream().map(User::getUsername).collect(Collectors.toList()),
+                documents.stream().map(SourceDocument::getName).collect(Collectors.toList()),
+                codebooks.keySet().stream().map(Codebook::getName).collect(Collectors.toList()));
+
+        for (int u = 0; u < users.size(); u++) {
+            // Bulk-fetch the annotation documents of the user which is faster than fetching them
+            // individually
+            Map<SourceDocument, AnnotationDocument> annDocs = documentService
+                    .listAnnotationDocuments(aProject, users.get(u)).stream()
+                    .collect(Collectors.toMap(AnnotationDocument::getDocument,
+                            Function.identity(), (a, b) -> a));
+
+            for (int d = 0; d < documents.size(); d++) {
+                AnnotationDocument annDoc = annDocs.get(documents.get(d));
+
+                if (annDoc == null) {
+                    // Without an annotation document, the user would get the initial CAS which
+                    // does not contain any codebook tags
+                    if (aLimitToFinishedDocuments) {
+                        data.exclude(u, d);
+                    }
+                    continue;
+                }
+
+                if (aLimitToFinishedDocuments && !FINISHED.equals(annDoc.getState())) {
+                    data.exclude(u, d);
+                    continue;
+                }
+
+                // Use a session per document so that each CAS can be released as soon as its
+                // tags have been extracted
+                try (CasStorageSession session = CasStorageSession.openNested()) {
+                    if (!documentService.existsAnnotationCas(annDoc)) {
+                        continue;
+                    }
+
+                    CAS cas = documentService.readAnnotationCas(annDoc, SHARED_READ_ONLY_ACCESS);
+                    for (Map.Entry<Codebook, CodebookFeature> e : codebooks.entrySet()) {
+                        extractTag(cas, e.getKey(), e.getValue(), data, u, d);
+                    }
+                }
+                catch (IOException e) {
+                    LOG.error("Unable to load data", e);
+                    data.addError("Unable to load data: " + ExceptionUtils.getRootCauseMessage(e));
+                    data.exclude(u, d);
+                }
+            }
+        }
+
+        return data;
+    }
+
+    private void extractTag(CAS aCas, Codebook aCodebook, CodebookFeature aFeature,
+            CodebookAgreementData aData, int aUser, int aDocument)
+    {
+        // The codebook type is missing if the CAS has not been upgraded since the codebook was
+        // created
+        if (aCas.getTypeSystem().getType(aCodebook.getName()) == null) {
+            return;
+        }
+
+        CodebookCasAdapter adapter = new CodebookCasAdapter(aCodebook);
+        if (adapter.getExistingFs(aCas) == null) {
+            return;
+        }
+
+        // An annotation without a tag is kept as such (null label) for the agreement
+        aData.setTag(aCodebook.getName(), aUser, aDocument,
+                (String) adapter.getExistingCodeValue(aCas, aFeature));
+    }
+
+    /**
+     * Creates minimal CASes which contain only the annotation of the given codebook, so that the
+     * agreement measures can run on them. Excluded documents are represented by {@code null}
+     * entries just like missing CASes.
+     * 
+     * @param aProject
+     *            the project.
+     * @param aData
+     *            the codebook tags.
+     * @param aCodebook
+     *            the name of the codebook.
+     * @return the CASes of each user in the order of the documents.
+     */
+    public Map<String, List<CAS>> createCasMap(Project aProject, CodebookAgreementData aData,
+            String aCodebook)
+        throws ResourceInitializationException
+    {
+        List<Integer> users = new ArrayList<>();
+        for (int u = 0; u < aData.getUsers().size(); u++) {
+            users.add(u);
+        }
+        return createCasMap(createTypeSystem(aProject), aData, aCodebook, users);
+    }
+
+    /**
+     * @return the type system for the CASes created by
+     *         {@link #createCasMap(TypeSystem, CodebookAgreementData, String, List)}. It is
+     *         committed once and can then be shared by any number of CASes and threads.
+     */
+    public TypeSystem createTypeSystem(Project aProject) throws ResourceInitializationException
+    {
+        TypeSystemDescription tsd = mergeTypeSystems(asList(createTypeSystemDescription(),
+                codebookService.getCodebookTypeSystemForExport(aProject)));
+        return CasCreationUtils.createCas(tsd, null, null).getTypeSystem();
+    }
+
+    /**
+     * Creates minimal CASes for the given users only.
+     * 
+     * @param aTypeSystem
+     *            the type system created by {@link #createTypeSystem(Project)}.
+     * @param aData
+     *            the codebook tags.
+     * @param aCodebook
+     *            the name of the codebook.
+     * @param aUsers
+     *            the indexes of the users in {@link CodebookAgreementData#getUsers()}.
+     * @return the CASes of each user in the order of the documents.
+     */
+    public Map<String, List<CAS>> createCasMap(TypeSystem aTypeSystem,
+            CodebookAgreementData aData, String aCodebook, List<Integer> aUsers)
+        throws ResourceInitializationException
+    {
+        Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+        List<String> documents = aData.getDocumentNames();
+        for (int u : aUsers) {
+            List<CAS> cases = new ArrayList<>();
+            for (int d = 0; d < documents.size(); d++) {
+                if (aData.isExcluded(u, d)) {
+                    cases.add(null);
+                    continue;
+                }
+
+                CAS cas = CasCreationUtils.createCas(aTypeSystem, null, null, null);
+                cas.setDocumentText("");
+
+                // Set the CAS name in the DocumentMetaData so that we can pick it up in the Diff
+                // position for the purpose of debugging / transparency.
+                DocumentMetaData dmd = DocumentMetaData.create(cas);
+                dmd.setDocumentId(documents.get(d));
+                dmd.setCollectionId(aData.getProjectName());
+
+                // Codebook annotations always span the position (0, 0)
+                if (aData.isAnnotated(aCodebook, u, d)) {
+                    AnnotationFS fs = cas.createAnnotation(CasUtil.getType(cas, aCodebook), 0, 0);
+                    String tag = aData.getTag(aCodebook, u, d);
+                    if (tag != null) {
+                        FSUtil.setFeature(fs, CodebookConstants.CODEBOOK_FEATURE_NAME, tag);
+                    }
+                    cas.addFsToIndexes(fs);
+                }
+
+                cases.add(cas);
+            }
+            casMap.put(aData.getUsers().get(u), cases);
+        }
+
+        return casMap;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import static java.util.Arrays.asList;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupport;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Computes the pairwise agreement matrix of a codebook in parallel. The agreement of each annotator
+ * pair is computed by a separate task on a bounded pool. The CASes of each annotator are created
+ * once by the first task which needs them and are then shared read-only by all pairs of the
+ * annotator.
+ */
+@Component
+public class CodebookAgreementEngine
+    implements DisposableBean
+{
+    private final CodebookAgreementDataProvider dataProvider;
+    private final ForkJoinPool pool;
+
+    @Autowired
+    public CodebookAgreementEngine(CodebookAgreementDataProvider aDataProvider)
+    {
+        dataProvider = aDataProvider;
+
+        // Leave a core for the request threads. The workers create CASes, so they need the
+        // application class loader to find the JCas classes.
+        ClassLoader classLoader = getClass().getClassLoader();
+        pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                p -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                            .newThread(p);
+                    thread.setName("codebook-agreement-" + thread.getPoolIndex());
+                    thread.setContextClassLoader(classLoader);
+                    return thread;
+                }, null, false);
+    }
+
+    @Override
+    public void destroy()
+    {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Starts computing the agreement of all annotator pairs.
+     * 
+     * @param aProject
+     *            the project.
+     * @param aData
+     *            the codebook tags of all annotators.
+     * @param aCodebook
+     *            the name of the codebook.
+     * @param aSupport
+     *            the support of the measure. It must produce a {@link PairwiseAnnotationResult}.
+     * @param aFeature
+     *            the wrapper feature of the codebook.
+     * @param aTraits
+     *            the traits of the measure.
+     * @return the running job.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public PairwiseAgreementJob start(Project aProject, CodebookAgreementData aData,
+            String aCodebook, AgreementMeasureSupport aSupport, AnnotationFeature aFeature,
+            DefaultAgreementTraits aTraits)
+        throws ResourceInitializationException
+    {
+        TypeSystem typeSystem = dataProvider.createTypeSystem(aProject);
+        List<String> users = aData.getUsers();
+
+        PairwiseAgreementJob job = new PairwiseAgreementJob(
+                new PairwiseAnnotationResult(aFeature, aTraits),
+                users.size() * (users.size() - 1) / 2);
+
+        // The CASes of each user by the index of the user
+        Map<Integer, List<CAS>> userCases = new ConcurrentHashMap<>();
+
+        List<CompletableFuture<Void>> pairs = new ArrayList<>();
+        for (int m = 0; m < users.size(); m++) {
+            // Triangle matrix mirrored
+            for (int n = 0; n < m; n++) {
+                int user1 = m;
+                int user2 = n;
+                pairs.add(CompletableFuture.runAsync(() -> {
+                    Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+                    for (int user : asList(user1, user2)) {
+                        casMap.put(users.get(user), userCases.computeIfAbsent(user,
+                                u -> createCases(typeSystem, aData, aCodebook, u)));
+                    }
+
+                    // Measures are not meant to be shared, so each task creates its own
+                    AgreementMeasure measure = aSupport.createMeasure(aFeature, aTraits);
+                    PairwiseAnnotationResult result = (PairwiseAnnotationResult) measure
+                            .getAgreement(casMap);
+                    job.add(users.get(user1), users.get(user2),
+                            result.getStudy(users.get(user1), users.get(user2)));
+                }, pool));
+            }
+        }
+        job.setPairs(pairs);
+
+        return job;
+    }
+
+    private List<CAS> createCases(TypeSystem aTypeSystem, CodebookAgreementData aData,
+            String aCodebook, int aUser)
+    {
+        try {
+            return dataProvider.createCasMap(aTypeSystem, aData, aCodebook, asList(aUser))
+                    .get(aData.getUsers().get(aUser));
+        }
+        catch (ResourceInitializationException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -18,14 +18,12 @@
 package de.uhh.lt.codeanno.ui.agreement;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PAGE_PARAM_PROJECT_ID;
-import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
-import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.enabledWhen;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -37,10 +35,10 @@ import javax.persistence.NoResultException;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.FeatureStructure;
-import org.apache.uima.fit.util.FSUtil;
 import org.apache.wicket.Component;
+import org.apache.wicket.ajax.AbstractAjaxTimerBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.feedback.IFeedback;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.ChoiceRenderer;
@@ -61,18 +59,12 @@ import org.slf4j.LoggerFactory;
 import org.wicketstuff.annotation.mount.MountPath;
 
 import de.agilecoders.wicket.extensions.markup.html.bootstrap.form.select.BootstrapSelect;
-import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupport;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupportRegistry;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
-import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
-import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
-import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
-import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
-import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaAjaxButton;
@@ -92,13 +84,14 @@ public class CodebookAgreementPage
     private static final String MID_TRAITS_CONTAINER = "traitsContainer";
     private static final String MID_TRAITS = "traits";
     private static final String MID_RESULTS = "results";
+    private static final Duration PROGRESS_POLL_INTERVAL = Duration.ofSeconds(1);
     /* package private by intention */ CodebookAgreementForm agreementForm;
-    private @SpringBean DocumentService documentService;
     private @SpringBean ProjectService projectService;
-    private @SpringBean AnnotationSchemaService annotationService;
     private @SpringBean CodebookSchemaService codebookService;
     private @SpringBean UserDao userRepository;
     private @SpringBean AgreementMeasureSupportRegistry agreementRegistry;
+    private @SpringBean CodebookAgreementDataProvider agreementDataProvider;
+    private @SpringBean CodebookAgreementEngine agreementEngine;
     private ProjectSelectionForm projectSelectionForm;
     Model<Project> projectModel = new Model<Project>()
     {
@@ -113,13 +106,15 @@ public class CodebookAgreementPage
     private WebMarkupContainer resultsContainer;
     private WebMarkupContainer cbName;
     private AgreementCodebookTreePanel agreementCodebookTreePanel;
-    // The CASes cannot be serialized, so we make them transient here. However, it does not matter
-    // as we do not access the field directly but via getCases() which will re-load them if
-    // necessary, e.g. if the transient field is empty after a session is restored from a
-    // persisted state.
-    private transient Map<String, List<CAS>> cachedCASes;
-    private transient Project cachedProject;
-    private transient boolean cachedLimitToFinishedDocuments;
+    // Only the compact codebook tags are kept in the page state. The CASes for the agreement
+    // measures are created from them on demand via getCasMap().
+    private CodebookAgreementData agreementData;
+    private Long agreementDataProjectId;
+    private boolean agreementDataLimitToFinishedDocuments;
+    // The running computation cannot be serialized. If it is lost, the calculation has to be
+    // started again.
+    private transient PairwiseAgreementJob agreementJob;
+    private AbstractAjaxTimerBehavior agreementPoller;
 
     public CodebookAgreementPage()
     {
@@ -181,103 +176,57 @@ public class CodebookAgreementPage
     }
 
     /**
-     * Get the finished CASes used to compute agreement.
+     * Get the CASes used to compute agreement. They are created from the extracted codebook tags
+     * and contain only the annotations of the selected codebook.
      */
     private Map<String, List<CAS>> getCasMap()
     {
-        if (agreementForm.getModelObject().feature == null) {
+        AnnotationFeature feature = agreementForm.getModelObject().feature;
+        if (feature == null) {
             return Collections.emptyMap();
         }
 
         Project project = projectSelectionForm.getModelObject().project;
-
-        DefaultAgreementTraits traits = (DefaultAgreementTraits) agreementForm.traitsContainer
-                .get(MID_TRAITS).getDefaultModelObject();
-
-        // Avoid reloading the CASes when switching features within the same project
-        if (cachedCASes != null && project.equals(cachedProject)
-                && cachedLimitToFinishedDocuments == traits.isLimitToFinishedDocuments()) {
-            return cachedCASes;
+        CodebookAgreementData data = getAgreementData();
+        // the layer of the wrapper feature is named after the codebook
+        String codebook = feature.getLayer().getName();
+        if (!data.hasCodebook(codebook)) {
+            return Collections.emptyMap();
         }
 
-        List<User> users = projectService.listProjectUsersWithPermissions(project, ANNOTATOR);
-
-        List<SourceDocument> sourceDocuments = documentService.listSourceDocuments(project);
-
-        cachedCASes = new LinkedHashMap<>();
-        for (User user : users) {
-            List<CAS> cases = new ArrayList<>();
-
-            // Bulk-fetch all source documents for which there is already an annotation document for
-            // the user which is faster then checking for their existence individually
-            List<SourceDocument> docsForUser = documentService
-                    .listAnnotationDocuments(project, user).stream()
-                    .map(AnnotationDocument::getDocument).distinct().collect(Collectors.toList());
-
-            nextDocument: for (SourceDocument document : sourceDocuments) {
-                CAS cas = null;
-
-                try {
-                    if (docsForUser.contains(document)) {
-                        AnnotationDocument annotationDocument = documentService
-                                .getAnnotationDocument(document, user);
-
-                        if (traits.isLimitToFinishedDocuments()
-                                && !annotationDocument.getState().equals(FINISHED)) {
-                            // Add a skip marker for the current CAS to the CAS list - this is
-                            // necessary because we expect the CAS lists for all users to have the
-                            // same size
-                            cases.add(null);
-                            continue nextDocument;
-                        }
-
-                        cas = documentService.readAnnotationCas(annotationDocument);
-                    }
-                    else if (!traits.isLimitToFinishedDocuments()) {
-                        // ... if we are not limited to finished documents and if there is no
-                        // annotation document, then we use the initial CAS for that user.
-                        cas = documentService.createOrReadInitialCas(document);
-                    }
-                }
-                catch (Exception e) {
-                    LOG.error("Unable to load data", e);
-                    error("Unable to load data: " + ExceptionUtils.getRootCauseMessage(e));
-                }
-
-                if (cas != null) {
-                    // Set the CAS name in the DocumentMetaData so that we can pick it
-                    // up in the Diff position for the purpose of debugging / transparency.
-                    FeatureStructure dmd = WebAnnoCasUtil.getDocumentMetadata(cas);
-                    FSUtil.setFeature(dmd, "documentId", document.getName());
-                    FSUtil.setFeature(dmd, "collectionId", document.getProject().getName());
-
-                }
+        try {
+            return agreementDataProvider.createCasMap(project, data, codebook);
+        }
+        catch (Exception e) {
+            LOG.error("Unable to create CASes", e);
+            error("Unable to create CASes: " + ExceptionUtils.getRootCauseMessage(e));
+            return Collections.emptyMap();
+        }
+    }
 
-                // The next line can enter null values into the list if a user didn't work on this
-                // source document yet.
-                cases.add(cas);
-            }
+    /**
+     * Get the codebook tags of all annotators. They are only extracted again if the project or the
+     * traits change.
+     */
+    private CodebookAgreementData getAgreementData()
+    {
+        Project project = projectSelectionForm.getModelObject().project;
 
-            // Bulk-upgrade CASes - this is faster than upgrading them individually since the
-            // bulk upgrade only loads the project type system once.
-            try {
-                annotationService.upgradeCasIfRequired(cases, project);
-                // REC: I think there is no need to write the CASes here. We would not
-                // want to interfere with currently active annotator users
-            }
-            catch (Exception e) {
-                LOG.error("Unable to upgrade CAS", e);
-                error("Unable to upgrade CAS: " + ExceptionUtils.getRootCauseMessage(e));
-                continue;
-            }
+        DefaultAgreementTraits traits = (DefaultAgreementTraits) agreementForm.traitsContainer
+                .get(MID_TRAITS).getDefaultModelObject();
 
-            cachedCASes.put(user.getUsername(), cases);
+        // Avoid reloading the data when switching codebooks within the same project
+        if (agreementData != null && project.getId().equals(agreementDataProjectId)
+                && agreementDataLimitToFinishedDocuments == traits.isLimitToFinishedDocuments()) {
+            return agreementData;
         }
 
-        cachedProject = project;
-        cachedLimitToFinishedDocuments = traits.isLimitToFinishedDocuments();
+        agreementData = agreementDataProvider.load(project, traits.isLimitToFinishedDocuments());
+        agreementData.getErrors().forEach(this::error);
+        agreementDataProjectId = project.getId();
+        agreementDataLimitToFinishedDocuments = traits.isLimitToFinishedDocuments();
 
-        return cachedCASes;
+        return agreementData;
     }
 
     private Optional<Project> getProjectFromParameters(StringValue projectParam)
@@ -445,18 +394,75 @@ public class CodebookAgreementPage
             AgreementMeasureSupport ams = agreementRegistry
                     .getAgreementMeasureSupport(measureHandle.getKey());
 
-            AgreementMeasure measure = ams.createMeasure(feature,
-                    (DefaultAgreementTraits) traitsContainer.get(MID_TRAITS)
-                            .getDefaultModelObject());
+            DefaultAgreementTraits traits = (DefaultAgreementTraits) traitsContainer
+                    .get(MID_TRAITS).getDefaultModelObject();
+
+            if (agreementJob != null) {
+                agreementJob.cancel();
+            }
+            if (agreementPoller != null) {
+                resultsContainer.remove(agreementPoller);
+                agreementPoller = null;
+            }
+
+            // The pairs are computed in the background while the page polls the progress
+            try {
+                agreementJob = agreementEngine.start(projectModel.getObject(),
+                        getAgreementData(), feature.getLayer().getName(), ams, feature, traits);
+            }
+            catch (Exception e) {
+                LOG.error("Unable to compute agreement", e);
+                error("Unable to compute agreement: " + ExceptionUtils.getRootCauseMessage(e));
+                aTarget.addChildren(getPage(), IFeedback.class);
+                return;
+            }
 
-            Serializable result = measure.getAgreement(getCasMap());
+            resultsContainer.addOrReplace(new Label(MID_RESULTS, LoadableDetachableModel
+                    .of(() -> agreementJob == null ? ""
+                            : String.format(getString("progress"), agreementJob.getCompleted(),
+                                    agreementJob.getTotal()))));
+            agreementPoller = new AbstractAjaxTimerBehavior(PROGRESS_POLL_INTERVAL)
+            {
+                private static final long serialVersionUID = 6409371224591932582L;
 
-            resultsContainer.addOrReplace(ams.createResultsPanel(MID_RESULTS, Model.of(result),
-                    CodebookAgreementPage.this::getCasMap));
+                @Override
+                protected void onTimer(AjaxRequestTarget aTimerTarget)
+                {
+                    if (agreementJob == null) {
+                        // the job was lost when the page was serialized
+                        stop(aTimerTarget);
+                        resultsContainer.addOrReplace(new EmptyPanel(MID_RESULTS));
+                    }
+                    else if (agreementJob.isDone()) {
+                        stop(aTimerTarget);
+                        showResults(measureHandle.getKey(), agreementJob);
+                        aTimerTarget.addChildren(getPage(), IFeedback.class);
+                    }
+                    aTimerTarget.add(resultsContainer);
+                }
+            };
+            resultsContainer.add(agreementPoller);
 
             aTarget.add(resultsContainer);
         }
 
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        private void showResults(String aMeasureId, PairwiseAgreementJob aJob)
+        {
+            if (aJob.getFailure() != null) {
+                LOG.error("Unable to compute agreement", aJob.getFailure());
+                error("Unable to compute agreement: "
+                        + ExceptionUtils.getRootCauseMessage(aJob.getFailure()));
+                resultsContainer.addOrReplace(new EmptyPanel(MID_RESULTS));
+                return;
+            }
+
+            AgreementMeasureSupport ams = agreementRegistry.getAgreementMeasureSupport(aMeasureId);
+            Serializable result = aJob.getResult();
+            resultsContainer.addOrReplace(ams.createResultsPanel(MID_RESULTS,
+                    Model.of(result), CodebookAgreementPage.this::getCasMap));
+        }
+
         private List<Pair<String, String>> listMeasures()
         {
             if (this.getModelObject().feature == null) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+
+/**
+ * A pairwise agreement computation started by {@link CodebookAgreementEngine}. The result fills up
+ * while the annotator pairs are being computed.
+ */
+public class PairwiseAgreementJob
+{
+    @SuppressWarnings("rawtypes")
+    private final PairwiseAnnotationResult result;
+    private final int total;
+    private final AtomicInteger completed = new AtomicInteger();
+    private List<CompletableFuture<Void>> pairs;
+    private CompletableFuture<Void> all;
+
+    @SuppressWarnings("rawtypes")
+    PairwiseAgreementJob(PairwiseAnnotationResult aResult, int aTotal)
+    {
+        result = aResult;
+        total = aTotal;
+    }
+
+    void setPairs(List<CompletableFuture<Void>> aPairs)
+    {
+        pairs = aPairs;
+        all = CompletableFuture.allOf(aPairs.toArray(new CompletableFuture[aPairs.size()]));
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    void add(String aUser1, String aUser2, AgreementResult aResult)
+    {
+        synchronized (result) {
+            result.add(aUser1, aUser2, aResult);
+        }
+        completed.incrementAndGet();
+    }
+
+    /**
+     * @return the number of annotator pairs which have been computed so far.
+     */
+    public int getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of annotator pairs.
+     */
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public boolean isDone()
+    {
+        return all.isDone();
+    }
+
+    /**
+     * @return the exception if the computation of any pair failed, otherwise {@code null}.
+     */
+    public Throwable getFailure()
+    {
+        if (!all.isCompletedExceptionally()) {
+            return null;
+        }
+        return all.handle((v, e) -> e).join();
+    }
+
+    /**
+     * @return the result containing all annotator pairs. Blocks until the job is done.
+     */
+    @SuppressWarnings("rawtypes")
+    public PairwiseAnnotationResult getResult()
+    {
+        all.join();
+        return result;
+    }
+
+    public void cancel()
+    {
+        pairs.forEach(pair -> pair.cancel(false));
+    }
+}
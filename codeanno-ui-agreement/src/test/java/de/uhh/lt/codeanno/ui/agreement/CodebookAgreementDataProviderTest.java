@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.IN_PROGRESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
+import static de.uhh.lt.codeanno.api.CodebookConstants.CODEBOOK_FEATURE_NAME;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.apache.uima.util.CasCreationUtils.mergeTypeSystems;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+public class CodebookAgreementDataProviderTest
+{
+    private static final String CODEBOOK = "codebook.Topic";
+
+    private @Mock DocumentService documentService;
+    private @Mock ProjectService projectService;
+    private @Mock CodebookSchemaService codebookService;
+
+    private Project project;
+    private SourceDocument doc1;
+    private SourceDocument doc2;
+    private User user1;
+    private User user2;
+    private User user3;
+    private TypeSystemDescription codebookTsd;
+    private CodebookAgreementDataProvider sut;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        doc1 = new SourceDocument("doc1", project, "text");
+        doc1.setId(1l);
+        doc2 = new SourceDocument("doc2", project, "text");
+        doc2.setId(2l);
+
+        user1 = new User("user1");
+        user2 = new User("user2");
+        user3 = new User("user3");
+
+        Codebook codebook = new Codebook(CODEBOOK, "Topic", project, false);
+        CodebookFeature feature = new CodebookFeature(project, codebook, CODEBOOK_FEATURE_NAME,
+                CODEBOOK_FEATURE_NAME, CAS.TYPE_NAME_STRING);
+        codebookTsd = new TypeSystemDescription_impl();
+        TypeDescription td = codebookTsd.addType(CODEBOOK, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(CODEBOOK_FEATURE_NAME, "", CAS.TYPE_NAME_STRING);
+
+        when(projectService.listProjectUsersWithPermissions(project, ANNOTATOR))
+                .thenReturn(asList(user1, user2, user3));
+        when(documentService.listSourceDocuments(project)).thenReturn(asList(doc1, doc2));
+        when(codebookService.listCodebook(project)).thenReturn(asList(codebook));
+        when(codebookService.listCodebookFeature(codebook)).thenReturn(asList(feature));
+        when(codebookService.getCodebookTypeSystemForExport(project)).thenReturn(codebookTsd);
+        when(documentService.existsAnnotationCas(any())).thenReturn(true);
+
+        // user1 tagged doc1 and annotated doc2 without a tag
+        annotationDocuments(user1, annotationDocument(user1, doc1, FINISHED, "x"),
+                annotationDocument(user1, doc2, FINISHED, (String) null));
+        // user2 did not annotate the codebook on doc1 and is still working on doc2
+        annotationDocuments(user2, annotationDocument(user2, doc1, FINISHED),
+                annotationDocument(user2, doc2, IN_PROGRESS, "y"));
+        // user3 never opened any document
+        annotationDocuments(user3);
+
+        sut = new CodebookAgreementDataProvider(documentService, projectService,
+                codebookService);
+    }
+
+    @Test
+    public void thatTagsAreExtracted()
+    {
+        CodebookAgreementData data = sut.load(project, false);
+
+        assertThat(data.getProjectName()).isEqualTo("project");
+        assertThat(data.getUsers()).containsExactly("user1", "user2", "user3");
+        assertThat(data.getDocumentNames()).containsExactly("doc1", "doc2");
+        assertThat(data.hasCodebook(CODEBOOK)).isTrue();
+        assertThat(data.getErrors()).isEmpty();
+
+        assertTag(data, 0, 0, true, "x");
+        // An annotation without a tag is kept as a null tag, not as an empty string
+        assertTag(data, 0, 1, true, null);
+        assertTag(data, 1, 0, false, null);
+        assertTag(data, 1, 1, true, "y");
+        assertTag(data, 2, 0, false, null);
+        assertTag(data, 2, 1, false, null);
+
+        for (int u = 0; u < 3; u++) {
+            for (int d = 0; d < 2; d++) {
+                assertThat(data.isExcluded(u, d)).isFalse();
+            }
+        }
+
+        // Users without annotation documents never have their initial CAS read
+        verify(documentService, never()).createOrReadInitialCas(any());
+    }
+
+    @Test
+    public void thatUnfinishedDocumentsAreExcluded()
+    {
+        CodebookAgreementData data = sut.load(project, true);
+
+        assertTag(data, 0, 0, true, "x");
+        assertTag(data, 0, 1, true, null);
+        assertTag(data, 1, 0, false, null);
+        assertThat(data.isExcluded(1, 0)).isFalse();
+        assertThat(data.isExcluded(1, 1)).isTrue();
+        assertThat(data.isAnnotated(CODEBOOK, 1, 1)).isFalse();
+        assertThat(data.isExcluded(2, 0)).isTrue();
+        assertThat(data.isExcluded(2, 1)).isTrue();
+    }
+
+    @Test
+    public void thatCasMapMatchesExtractedTags() throws Exception
+    {
+        CodebookAgreementData data = sut.load(project, true);
+
+        Map<String, List<CAS>> casMap = sut.createCasMap(project, data, CODEBOOK);
+
+        assertThat(casMap).containsOnlyKeys("user1", "user2", "user3");
+        assertThat(tags(casMap.get("user1").get(0))).containsExactly("x");
+        assertThat(tags(casMap.get("user1").get(1))).containsExactly((String) null);
+        assertThat(tags(casMap.get("user2").get(0))).isEmpty();
+        assertThat(casMap.get("user2").get(1)).isNull();
+        assertThat(casMap.get("user3")).containsExactly(null, null);
+    }
+
+    @Test
+    public void thatDataIsSerializable()
+    {
+        CodebookAgreementData data = sut.load(project, false);
+
+        CodebookAgreementData copy = SerializationUtils.clone(data);
+
+        for (int u = 0; u < 3; u++) {
+            for (int d = 0; d < 2; d++) {
+                assertThat(copy.isAnnotated(CODEBOOK, u, d))
+                        .isEqualTo(data.isAnnotated(CODEBOOK, u, d));
+                assertThat(copy.getTag(CODEBOOK, u, d)).isEqualTo(data.getTag(CODEBOOK, u, d));
+            }
+        }
+    }
+
+    private void annotationDocuments(User aUser, AnnotationDocument... aDocuments)
+    {
+        when(documentService.listAnnotationDocuments(project, aUser))
+                .thenReturn(asList(aDocuments));
+    }
+
+    private AnnotationDocument annotationDocument(User aUser, SourceDocument aDocument,
+            AnnotationDocumentState aState, String... aTags)
+        throws Exception
+    {
+        AnnotationDocument annDoc = new AnnotationDocument(aDocument.getName(), project,
+                aUser.getUsername(), aDocument);
+        annDoc.setState(aState);
+
+        CAS cas = CasFactory.createCas(
+                mergeTypeSystems(asList(createTypeSystemDescription(), codebookTsd)));
+        cas.setDocumentText("text");
+        Type type = getType(cas, CODEBOOK);
+        for (String tag : aTags) {
+            AnnotationFS fs = cas.createAnnotation(type, 0, 0);
+            if (tag != null) {
+                fs.setFeatureValueFromString(type.getFeatureByBaseName(CODEBOOK_FEATURE_NAME),
+                        tag);
+            }
+            cas.addFsToIndexes(fs);
+        }
+        when(documentService.readAnnotationCas(annDoc, SHARED_READ_ONLY_ACCESS)).thenReturn(cas);
+
+        return annDoc;
+    }
+
+    private static void assertTag(CodebookAgreementData aData, int aUser, int aDocument,
+            boolean aAnnotated, String aTag)
+    {
+        assertThat(aData.isAnnotated(CODEBOOK, aUser, aDocument))
+                .as("user %d document %d annotated", aUser, aDocument).isEqualTo(aAnnotated);
+        assertThat(aData.getTag(CODEBOOK, aUser, aDocument))
+                .as("user %d document %d tag", aUser, aDocument).isEqualTo(aTag);
+    }
+
+    private static List<String> tags(CAS aCas)
+    {
+        Type type = getType(aCas, CODEBOOK);
+        List<String> tags = new ArrayList<>();
+        for (AnnotationFS fs : selectCovered(aCas, type, 0, 0)) {
+            tags.add(fs.getFeatureValueAsString(type.getFeatureByBaseName(CODEBOOK_FEATURE_NAME)));
+        }
+        return tags;
+    }
+}
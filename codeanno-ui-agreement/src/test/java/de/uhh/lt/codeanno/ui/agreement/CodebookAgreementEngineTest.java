@@ -0,0 +1,279 @@
+/*
+ * Copyright 2021
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.agreement;
+
+import static de.uhh.lt.codeanno.api.CodebookConstants.CODEBOOK_FEATURE_NAME;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupport;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+
+public class CodebookAgreementEngineTest
+{
+    private static final String CODEBOOK = "codebook.Topic";
+
+    private @Mock CodebookSchemaService codebookService;
+    @SuppressWarnings("rawtypes")
+    private @Mock AgreementMeasureSupport measureSupport;
+    @SuppressWarnings("rawtypes")
+    private @Mock AgreementMeasure measure;
+
+    private Project project;
+    private AnnotationFeature feature;
+    private DefaultAgreementTraits traits;
+    private CodebookAgreementDataProvider dataProvider;
+    private CodebookAgreementEngine sut;
+
+    // The value of each study created by the measure
+    private Map<AgreementResult, Double> agreements;
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        feature = new AnnotationFeature();
+        feature.setName(CODEBOOK_FEATURE_NAME);
+        traits = new DefaultAgreementTraits();
+
+        TypeSystemDescription codebookTsd = new TypeSystemDescription_impl();
+        TypeDescription td = codebookTsd.addType(CODEBOOK, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(CODEBOOK_FEATURE_NAME, "", CAS.TYPE_NAME_STRING);
+        when(codebookService.getCodebookTypeSystemForExport(project)).thenReturn(codebookTsd);
+
+        agreements = new ConcurrentHashMap<>();
+        when(measureSupport.createMeasure(feature, traits)).thenReturn(measure);
+
+        dataProvider = new CodebookAgreementDataProvider(null, null, codebookService);
+        sut = new CodebookAgreementEngine(dataProvider);
+    }
+
+    @After
+    public void tearDown()
+    {
+        sut.destroy();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void thatParallelMatrixMatchesSerialMatrix() throws Exception
+    {
+        when(measure.getAgreement(any())).thenAnswer(
+                invocation -> computeAgreement(invocation.getArgument(0)));
+
+        CodebookAgreementData data = createData(6, 8);
+
+        PairwiseAgreementJob job = sut.start(project, data, CODEBOOK,
+                measureSupport, feature, traits);
+        PairwiseAnnotationResult parallel = job.getResult();
+
+        assertThat(job.isDone()).isTrue();
+        assertThat(job.getFailure()).isNull();
+        assertThat(job.getTotal()).isEqualTo(15);
+        assertThat(job.getCompleted()).isEqualTo(15);
+
+        // The serial matrix as computed on the CASes of all annotators at once
+        PairwiseAnnotationResult serial = computeAgreement(
+                dataProvider.createCasMap(project, data, CODEBOOK));
+
+        List<String> users = data.getUsers();
+        for (int m = 0; m < users.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                AgreementResult expected = (AgreementResult) serial.getStudy(users.get(m),
+                        users.get(n));
+                AgreementResult actual = (AgreementResult) parallel.getStudy(users.get(m),
+                        users.get(n));
+                assertThat(actual).as("%s / %s", users.get(m), users.get(n)).isNotNull();
+                assertThat(agreements.get(actual)).as("%s / %s", users.get(m), users.get(n))
+                        .isEqualTo(agreements.get(expected));
+            }
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void thatCancelledJobDoesNotStartPendingPairs() throws Exception
+    {
+        // Every worker of the pool blocks in its first pair, so there are pending pairs
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int userCount = 2;
+        while (userCount * (userCount - 1) / 2 <= parallelism) {
+            userCount++;
+        }
+
+        AtomicInteger started = new AtomicInteger();
+        CountDownLatch allStarted = new CountDownLatch(parallelism);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(parallelism);
+        when(measure.getAgreement(any())).thenAnswer(invocation -> {
+            started.incrementAndGet();
+            allStarted.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+                return computeAgreement(invocation.getArgument(0));
+            }
+            finally {
+                finished.countDown();
+            }
+        });
+
+        PairwiseAgreementJob job = sut.start(project, createData(userCount, 2), CODEBOOK,
+                measureSupport, feature, traits);
+
+        // Once all workers are blocked, none of them can have picked up a pending pair
+        assertThat(allStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(job.isDone()).isFalse();
+
+        job.cancel();
+        release.countDown();
+
+        assertThat(job.isDone()).isTrue();
+        assertThat(ExceptionUtils.getRootCause(job.getFailure()))
+                .isInstanceOf(CancellationException.class);
+
+        // The pending pairs have been cancelled before any worker was free to start them, so
+        // only the blocked pairs ever reach the measure
+        assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(started.get()).isEqualTo(parallelism);
+        assertThat(started.get()).isLessThan(job.getTotal());
+    }
+
+    /**
+     * Mirrors the pairwise loop of the WebAnno measures. The value of a study is the fraction of
+     * documents on which both annotators agree, so it depends on the CASes of the pair.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private PairwiseAnnotationResult computeAgreement(Map<String, List<CAS>> aCasMap)
+    {
+        PairwiseAnnotationResult result = new PairwiseAnnotationResult(feature, traits);
+        List<String> users = new ArrayList<>(aCasMap.keySet());
+        for (int m = 0; m < users.size(); m++) {
+            // Triangle matrix mirrored
+            for (int n = 0; n < m; n++) {
+                AgreementResult study = mock(AgreementResult.class);
+                agreements.put(study, observedAgreement(aCasMap.get(users.get(m)),
+                        aCasMap.get(users.get(n))));
+                result.add(users.get(m), users.get(n), study);
+            }
+        }
+        return result;
+    }
+
+    private static double observedAgreement(List<CAS> aCases1, List<CAS> aCases2)
+    {
+        int compared = 0;
+        int agreed = 0;
+        for (int d = 0; d < aCases1.size(); d++) {
+            if (aCases1.get(d) == null || aCases2.get(d) == null) {
+                continue;
+            }
+            compared++;
+            if (label(aCases1.get(d)).equals(label(aCases2.get(d)))) {
+                agreed++;
+            }
+        }
+        return compared == 0 ? -1 : (double) agreed / compared;
+    }
+
+    private static String label(CAS aCas)
+    {
+        Type type = getType(aCas, CODEBOOK);
+        List<AnnotationFS> annotations = selectCovered(aCas, type, 0, 0);
+        if (annotations.isEmpty()) {
+            return "<none>";
+        }
+        String tag = annotations.get(0)
+                .getFeatureValueAsString(type.getFeatureByBaseName(CODEBOOK_FEATURE_NAME));
+        return tag != null ? tag : "<null>";
+    }
+
+    private static CodebookAgreementData createData(int aUsers, int aDocuments)
+    {
+        List<String> users = new ArrayList<>();
+        for (int u = 0; u < aUsers; u++) {
+            users.add("user" + u);
+        }
+        List<String> documents = new ArrayList<>();
+        for (int d = 0; d < aDocuments; d++) {
+            documents.add("doc" + d);
+        }
+
+        CodebookAgreementData data = new CodebookAgreementData("project", users, documents,
+                asList(CODEBOOK));
+        Random rnd = new Random(42);
+        for (int u = 0; u < aUsers; u++) {
+            for (int d = 0; d < aDocuments; d++) {
+                switch (rnd.nextInt(6)) {
+                case 0:
+                    data.exclude(u, d);
+                    break;
+                case 1:
+                    // not annotated
+                    break;
+                case 2:
+                    data.setTag(CODEBOOK, u, d, null);
+                    break;
+                default:
+                    data.setTag(CODEBOOK, u, d, "tag" + rnd.nextInt(2));
+                    break;
+                }
+            }
+        }
+        return data;
+    }
+}
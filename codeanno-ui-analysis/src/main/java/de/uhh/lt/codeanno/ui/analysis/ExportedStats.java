@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -54,7 +55,8 @@ public class ExportedStats
     public void setNGrams(NGramStatsFactory.NGramStats... nGramStats)
     {
         this.nGrams = new HashMap<>();
-        Arrays.stream(nGramStats).forEach(stats -> {
+        // stats which are still being computed are not exported
+        Arrays.stream(nGramStats).filter(Objects::nonNull).forEach(stats -> {
             stats.getSortedFrequencies().forEach((n, pairs) -> {
                 String nGrams = (n + 1) + "-Grams";
                 this.nGrams.put(nGrams, pairs);
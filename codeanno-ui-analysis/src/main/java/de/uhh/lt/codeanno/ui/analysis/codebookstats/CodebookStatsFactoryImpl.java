@@ -17,20 +17,36 @@
  */
 package de.uhh.lt.codeanno.ui.analysis.codebookstats;
 
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
@@ -41,29 +57,57 @@ import de.uhh.lt.codeanno.model.Codebook;
 import de.uhh.lt.codeanno.model.CodebookFeature;
 import de.uhh.lt.codeanno.model.CodebookTag;
 
+/**
+ * Computes the codebook statistics from the {@link CodebookTagIndexService codebook tag index}.
+ * As long as a project has not been indexed, the statistics are computed by visiting the
+ * annotation CASes one document at a time. The documents are then processed in parallel by a
+ * bounded pool of workers, each of which only holds the CASes of the document it is currently
+ * processing.
+ */
 @Component
 public class CodebookStatsFactoryImpl
-    implements CodebookStatsFactory
+    implements CodebookStatsFactory, DisposableBean
 {
+    private static final int MAX_WORKERS = 4;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final CodebookSchemaService codebookSchemaService;
     private final DocumentService documentService;
     private final UserDao userRepository;
     private final ProjectService projectService;
+    private final CodebookTagIndexService tagIndexService;
+    private final ExecutorService workers;
 
     @Autowired
     public CodebookStatsFactoryImpl(CodebookSchemaService codebookSchemaService,
-            DocumentService documentService, UserDao userRepository, ProjectService projectService)
+            DocumentService documentService, UserDao userRepository, ProjectService projectService,
+            CodebookTagIndexService tagIndexService)
     {
         this.codebookSchemaService = codebookSchemaService;
         this.documentService = documentService;
         this.userRepository = userRepository;
         this.projectService = projectService;
+        this.tagIndexService = tagIndexService;
+
+        workers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors())),
+                new BasicThreadFactory.Builder().namingPattern("codebook-stats-%d").daemon(true)
+                        .build());
+    }
+
+    @Override
+    public void destroy()
+    {
+        workers.shutdownNow();
     }
 
     @Override
     public CodebookStats create(Project project, boolean annotators, boolean curators)
     {
+        if (tagIndexService.isIndexed(project)) {
+            return this.createFromIndex(project, null, annotators, curators);
+        }
         return this.create(documentService.listSourceDocuments(project), annotators, curators);
     }
 
@@ -77,37 +121,154 @@ public class CodebookStatsFactoryImpl
             assert doc.getProject().equals(project);
         });
 
-        // get all cases (of all users) of all SourceDocuments
-        List<CAS> CASes = this.loadCASes(docs, annotators, curators);
+        if (tagIndexService.isIndexed(project)) {
+            return this.createFromIndex(project, docs, annotators, curators);
+        }
+        tagIndexService.scheduleIndexing(project);
 
-        // get all codebooks
-        List<Codebook> codebooks = codebookSchemaService.listCodebook(project);
+        // resolve everything which requires the database up front so that the workers only have
+        // to deal with the CASes
+        List<CodebookLookup> lookups = codebookSchemaService.listCodebook(project).stream()
+                .map(CodebookLookup::new).collect(Collectors.toList());
+        Map<Long, List<AnnotationDocument>> annDocsByDoc = listAnnotationDocuments(
+                project, docs, annotators, curators);
 
         // get the annotated Tags for each of the codebooks
+        List<Future<Map<Codebook, Map<CodebookTag, Integer>>>> partials = new ArrayList<>();
+        for (List<AnnotationDocument> annDocs : annDocsByDoc.values()) {
+            partials.add(workers.submit(() -> count(annDocs, lookups)));
+        }
+
         Map<Codebook, Map<CodebookTag, Integer>> suggestions = new HashMap<>();
-        for (Codebook codebook : codebooks) {
-            for (CAS cas : CASes) {
-                CodebookCasAdapter adapter = new CodebookCasAdapter(codebook);
-
-                // there is only 1 dummy feature at the moment!
-                CodebookFeature feature = codebookSchemaService.listCodebookFeature(codebook)
-                        .get(0);
-
-                String tagName = (String) adapter.getExistingCodeValue(cas, feature);
-                CodebookTag tag = null;
-                if (tagName != null && !tagName.isEmpty()
-                        && codebookSchemaService.existsCodebookTag(tagName, codebook))
-                    tag = codebookSchemaService.getCodebookTag(tagName, codebook);
-
-                suggestions.putIfAbsent(codebook, new HashMap<>());
-                suggestions.get(codebook).computeIfPresent(tag, (t, cnt) -> ++cnt);
-                suggestions.get(codebook).putIfAbsent(tag, 1);
+        try {
+            for (Future<Map<Codebook, Map<CodebookTag, Integer>>> partial : partials) {
+                partial.get().forEach((codebook, tagCounts) -> {
+                    Map<CodebookTag, Integer> counts = suggestions.computeIfAbsent(codebook,
+                            cb -> new HashMap<>());
+                    tagCounts.forEach((tag, cnt) -> counts.merge(tag, cnt, Integer::sum));
+                });
+            }
+        }
+        catch (InterruptedException e) {
+            partials.forEach(partial -> partial.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing codebook statistics", e);
+        }
+        catch (ExecutionException e) {
+            partials.forEach(partial -> partial.cancel(true));
+            throw new IllegalStateException("Unable to compute codebook statistics", e.getCause());
+        }
+
+        return new CodebookStats(this.sort(suggestions));
+    }
+
+    /**
+     * Computes the statistics from the tag index. Annotation documents without an index entry for
+     * a codebook are counted as not tagged, just like when visiting the CASes.
+     *
+     * @param aDocs
+     *            the documents to consider or {@code null} for all documents of the project.
+     */
+    private CodebookStats createFromIndex(Project aProject, List<SourceDocument> aDocs,
+            boolean aAnnotators, boolean aCurators)
+    {
+        Map<Long, List<AnnotationDocument>> annDocsByDoc = listAnnotationDocuments(aProject,
+                aDocs, aAnnotators, aCurators);
+        int annDocCount = 0;
+        Set<String> users = new HashSet<>();
+        for (List<AnnotationDocument> annDocs : annDocsByDoc.values()) {
+            annDocCount += annDocs.size();
+            annDocs.forEach(annDoc -> users.add(annDoc.getUser()));
+        }
+
+        Map<Codebook, Map<CodebookTag, Integer>> suggestions = new HashMap<>();
+        if (annDocCount == 0) {
+            return new CodebookStats(this.sort(suggestions));
+        }
+
+        Map<Codebook, Map<String, Integer>> tagCounts = tagIndexService.countTags(aProject, aDocs,
+                users);
+        for (Codebook codebook : codebookSchemaService.listCodebook(aProject)) {
+            Map<String, CodebookTag> tags = new HashMap<>();
+            codebookSchemaService.listTags(codebook).forEach(tag -> tags.put(tag.getName(), tag));
+
+            Map<CodebookTag, Integer> counts = new HashMap<>();
+            int tagged = 0;
+            for (Map.Entry<String, Integer> e : tagCounts
+                    .getOrDefault(codebook, Collections.emptyMap()).entrySet()) {
+                CodebookTag tag = tags.get(e.getKey());
+                // tags which no longer exist are counted as not tagged
+                if (tag != null) {
+                    counts.merge(tag, e.getValue(), Integer::sum);
+                    tagged += e.getValue();
+                }
+            }
+            if (annDocCount > tagged) {
+                counts.put(null, annDocCount - tagged);
             }
+            suggestions.put(codebook, counts);
         }
 
         return new CodebookStats(this.sort(suggestions));
     }
 
+    /**
+     * Counts the tags of all codebooks in the CASes of a single document. The CASes are only held
+     * in the session of this method and can be dropped from memory as soon as it returns.
+     */
+    private Map<Codebook, Map<CodebookTag, Integer>> count(List<AnnotationDocument> aAnnDocs,
+            List<CodebookLookup> aLookups)
+    {
+        Map<Codebook, Map<CodebookTag, Integer>> counts = new HashMap<>();
+        try (CasStorageSession session = CasStorageSession.open()) {
+            for (AnnotationDocument annDoc : aAnnDocs) {
+                CAS cas;
+                try {
+                    cas = documentService.readAnnotationCas(annDoc, SHARED_READ_ONLY_ACCESS);
+                }
+                catch (IOException e) {
+                    log.error("Unable to load annotations of user [{}] on document [{}]({})",
+                            annDoc.getUser(), annDoc.getName(), annDoc.getDocument().getId(), e);
+                    continue;
+                }
+
+                for (CodebookLookup lookup : aLookups) {
+                    counts.computeIfAbsent(lookup.codebook, cb -> new HashMap<>())
+                            .merge(lookup.getTag(cas), 1, Integer::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private Map<Long, List<AnnotationDocument>> listAnnotationDocuments(Project aProject,
+            List<SourceDocument> aDocs, boolean aAnnotators, boolean aCurators)
+    {
+        Set<Long> docIds = aDocs != null
+                ? aDocs.stream().map(SourceDocument::getId).collect(Collectors.toSet())
+                : null;
+        Map<String, Boolean> userIncluded = new HashMap<>();
+
+        Map<Long, List<AnnotationDocument>> annDocsByDoc = new LinkedHashMap<>();
+        for (AnnotationDocument annDoc : documentService.listAnnotationDocuments(aProject)) {
+            if (docIds != null && !docIds.contains(annDoc.getDocument().getId())) {
+                continue;
+            }
+
+            boolean included = userIncluded.computeIfAbsent(annDoc.getUser(), username -> {
+                User user = userRepository.get(username);
+                return (aCurators && projectService.isCurator(aProject, user))
+                        || (aAnnotators && projectService.isAnnotator(aProject, user));
+            });
+
+            if (included) {
+                annDocsByDoc.computeIfAbsent(annDoc.getDocument().getId(), id -> new ArrayList<>())
+                        .add(annDoc);
+            }
+        }
+        return annDocsByDoc;
+    }
+
     private Map<Codebook, List<Pair<CodebookTag, Integer>>> sort(
             Map<Codebook, Map<CodebookTag, Integer>> suggestions)
     {
@@ -122,27 +283,32 @@ public class CodebookStatsFactoryImpl
         return sorted;
     }
 
-    private List<CAS> loadCASes(List<SourceDocument> docs, boolean annotators, boolean curators)
+    /**
+     * Everything needed to look up the tag of a codebook in a CAS without hitting the database.
+     */
+    private class CodebookLookup
     {
-        List<CAS> CASes = new ArrayList<>();
-        for (SourceDocument doc : docs)
-            // get all annotation documents of all users of the current doc
-            documentService.listAnnotationDocuments(doc).forEach(annotationDocument -> {
-                try {
-                    User user = userRepository.get(annotationDocument.getUser());
-                    Project project = annotationDocument.getProject();
-                    boolean isCurator = projectService.isCurator(project, user);
-                    boolean isAnnotator = projectService.isAnnotator(project, user);
+        private final Codebook codebook;
+        private final CodebookCasAdapter adapter;
+        private final CodebookFeature feature;
+        private final Map<String, CodebookTag> tags = new HashMap<>();
 
-                    if ((curators && isCurator) || (annotators && isAnnotator))
-                        CASes.add(documentService.readAnnotationCas(annotationDocument));
-                }
-                catch (IOException e) {
-                    // TODO what to do?!
-                    e.printStackTrace();
-                }
-            });
+        public CodebookLookup(Codebook aCodebook)
+        {
+            codebook = aCodebook;
+            adapter = new CodebookCasAdapter(aCodebook);
+            // there is only 1 dummy feature at the moment!
+            feature = codebookSchemaService.listCodebookFeature(aCodebook).get(0);
+            codebookSchemaService.listTags(aCodebook).forEach(tag -> tags.put(tag.getName(), tag));
+        }
 
-        return CASes;
+        public CodebookTag getTag(CAS aCas)
+        {
+            String tagName = (String) adapter.getExistingCodeValue(aCas, feature);
+            if (tagName == null || tagName.isEmpty()) {
+                return null;
+            }
+            return tags.get(tagName);
+        }
     }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.codebookstats;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.model.Codebook;
+
+/**
+ * Maintains a persistent index of the tags which the users have assigned with the codebooks of a
+ * project, so that tag distributions can be computed without loading the annotation CASes.
+ */
+public interface CodebookTagIndexService
+{
+    String SERVICE_NAME = "codebookTagIndexService";
+
+    /**
+     * Replaces the index entries of the given annotation document with the codebook tags contained
+     * in the given CAS.
+     */
+    void index(AnnotationDocument aAnnotationDocument, CAS aCas);
+
+    /**
+     * @return whether the existing annotations of the project have been fully indexed, i.e.
+     *         whether {@link #countTags} can be used instead of visiting the CASes.
+     */
+    boolean isIndexed(Project aProject);
+
+    /**
+     * Schedules the project to be (re-)indexed in the background. Until this is done,
+     * {@link #isIndexed} returns {@code false} for the project.
+     */
+    void scheduleIndexing(Project aProject);
+
+    /**
+     * Counts how often each tag has been assigned with each codebook of the project.
+     *
+     * @param aProject
+     *            the project.
+     * @param aDocuments
+     *            the documents to consider or {@code null} to consider all documents of the
+     *            project.
+     * @param aUsers
+     *            the users whose annotations are considered.
+     * @return the number of documents per codebook and tag name. Documents without a tag are not
+     *         counted.
+     */
+    Map<Codebook, Map<String, Integer>> countTags(Project aProject,
+            Collection<SourceDocument> aDocuments, Collection<String> aUsers);
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2020
+ * Ubiquitous Knowledge Processing (UKP) Lab Technische Universität Darmstadt
+ * and  Language Technology Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.codebookstats;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterDocumentResetEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.api.adapter.CodebookCasAdapter;
+import de.uhh.lt.codeanno.api.event.CodebookConfigurationChangedEvent;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+import de.uhh.lt.codeanno.model.CodebookTagIndexEntry;
+import de.uhh.lt.codeanno.model.CodebookTagIndexState;
+
+/**
+ * Keeps the codebook tag index in sync with the annotation CASes. Every CAS written by the
+ * {@link DocumentService} replaces the entries of its annotation document. Projects which have
+ * not been indexed yet (e.g. because they were created before the index existed) or whose
+ * codebooks have changed are (re-)indexed by a single background worker.
+ */
+@Component(CodebookTagIndexService.SERVICE_NAME)
+public class CodebookTagIndexServiceImpl
+    implements CodebookTagIndexService, DisposableBean
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private @PersistenceContext EntityManager entityManager;
+
+    private final CodebookSchemaService codebookSchemaService;
+    private final DocumentService documentService;
+    private final ProjectService projectService;
+    private final TransactionTemplate transactionTemplate;
+    private final ExecutorService indexer;
+    private final Set<Long> scheduledProjects = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public CodebookTagIndexServiceImpl(CodebookSchemaService aCodebookSchemaService,
+            DocumentService aDocumentService, ProjectService aProjectService,
+            PlatformTransactionManager aTransactionManager)
+    {
+        codebookSchemaService = aCodebookSchemaService;
+        documentService = aDocumentService;
+        projectService = aProjectService;
+        // The index is written independently of the transaction which triggered the update
+        transactionTemplate = new TransactionTemplate(aTransactionManager);
+        transactionTemplate
+                .setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        indexer = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("codebook-tag-index-%d").daemon(true).build());
+    }
+
+    @Override
+    public void destroy()
+    {
+        indexer.shutdownNow();
+    }
+
+    @EventListener
+    public void onContextRefreshedEvent(ContextRefreshedEvent aEvent)
+    {
+        for (Project project : projectService.listProjects()) {
+            if (!isIndexed(project)) {
+                scheduleIndexing(project);
+            }
+        }
+    }
+
+    @EventListener
+    public void onAfterCasWritten(AfterCasWrittenEvent aEvent)
+    {
+        index(aEvent.getDocument(), aEvent.getCas());
+    }
+
+    @EventListener
+    public void onAfterDocumentReset(AfterDocumentResetEvent aEvent)
+    {
+        index(aEvent.getDocument(), aEvent.getCas());
+    }
+
+    @EventListener
+    public void onCodebookConfigurationChanged(CodebookConfigurationChangedEvent aEvent)
+    {
+        // Changing the codebooks may upgrade the CASes without going through the document
+        // service, so we cannot tell which entries are still valid
+        transactionTemplate.execute(status -> {
+            removeState(aEvent.getProject());
+            return null;
+        });
+        scheduleIndexing(aEvent.getProject());
+    }
+
+    @Override
+    public void index(AnnotationDocument aAnnotationDocument, CAS aCas)
+    {
+        List<Codebook> codebooks = codebookSchemaService
+                .listCodebook(aAnnotationDocument.getProject());
+        if (codebooks.isEmpty()) {
+            return;
+        }
+
+        // Pick up the tags right away - the CAS may be changed further by the caller
+        Map<Codebook, String> tags = getTags(codebooks, aCas);
+
+        // If the CAS is written as part of a transaction, only update the index once the
+        // transaction went through so we do not wait on the rows locked by it
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronization()
+                    {
+                        @Override
+                        public void afterCommit()
+                        {
+                            storeEntries(aAnnotationDocument, tags);
+                        }
+                    });
+        }
+        else {
+            storeEntries(aAnnotationDocument, tags);
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean isIndexed(Project aProject)
+    {
+        return !entityManager
+                .createQuery("FROM CodebookTagIndexState WHERE project = :project",
+                        CodebookTagIndexState.class)
+                .setParameter("project", aProject).getResultList().isEmpty();
+    }
+
+    @Override
+    public void scheduleIndexing(Project aProject)
+    {
+        if (scheduledProjects.add(aProject.getId())) {
+            indexer.submit(() -> indexProject(aProject));
+        }
+    }
+
+    @Override
+    @Transactional
+    public Map<Codebook, Map<String, Integer>> countTags(Project aProject,
+            Collection<SourceDocument> aDocuments, Collection<String> aUsers)
+    {
+        Map<Codebook, Map<String, Integer>> counts = new HashMap<>();
+        if (aUsers.isEmpty() || (aDocuments != null && aDocuments.isEmpty())) {
+            return counts;
+        }
+
+        String query = String.join("\n", //
+                "SELECT e.codebook.id, e.tag, COUNT(e)", //
+                "FROM CodebookTagIndexEntry e", //
+                "WHERE e.project = :project AND e.user IN (:users)", //
+                aDocuments != null ? "AND e.document IN (:documents)" : "", //
+                "GROUP BY e.codebook.id, e.tag");
+
+        Query q = entityManager.createQuery(query)
+                .setParameter("project", aProject).setParameter("users", aUsers);
+        if (aDocuments != null) {
+            q.setParameter("documents", aDocuments);
+        }
+
+        Map<Long, Codebook> codebooks = new HashMap<>();
+        codebookSchemaService.listCodebook(aProject)
+                .forEach(codebook -> codebooks.put(codebook.getId(), codebook));
+
+        for (Object row : q.getResultList()) {
+            Object[] columns = (Object[]) row;
+            Codebook codebook = codebooks.get((Long) columns[0]);
+            if (codebook != null) {
+                counts.computeIfAbsent(codebook, cb -> new HashMap<>()).put((String) columns[1],
+                        ((Number) columns[2]).intValue());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Indexes all annotation documents of the project, one CAS at a time, and then marks the
+     * project as indexed. Annotation documents whose CAS is written while the project is being
+     * indexed are left to the {@link AfterCasWrittenEvent} which is published for the write.
+     */
+    private void indexProject(Project aProject)
+    {
+        // Allow the project to be scheduled again while we are working on it, e.g. if the
+        // codebooks change in the meantime
+        scheduledProjects.remove(aProject.getId());
+
+        long start = System.currentTimeMillis();
+        try {
+            List<Codebook> codebooks = codebookSchemaService.listCodebook(aProject);
+            if (!codebooks.isEmpty()) {
+                for (AnnotationDocument annDoc : documentService
+                        .listAnnotationDocuments(aProject)) {
+                    indexAnnotationDocument(annDoc, codebooks, start);
+                }
+            }
+
+            transactionTemplate.execute(status -> {
+                removeState(aProject);
+                entityManager.persist(new CodebookTagIndexState(aProject));
+                return null;
+            });
+
+            log.info("Indexed codebook tags of project [{}]({}) in {}ms", aProject.getName(),
+                    aProject.getId(), System.currentTimeMillis() - start);
+        }
+        catch (Exception e) {
+            log.error("Unable to index codebook tags of project [{}]({})", aProject.getName(),
+                    aProject.getId(), e);
+        }
+    }
+
+    private void indexAnnotationDocument(AnnotationDocument aAnnDoc, List<Codebook> aCodebooks,
+            long aSnapshot)
+    {
+        // The entries of a CAS written since the indexing started have already been stored by
+        // the event listener and are more recent than anything we could store here
+        if (isWrittenSince(aAnnDoc, aSnapshot)) {
+            return;
+        }
+
+        Map<Codebook, String> tags;
+        try (CasStorageSession session = CasStorageSession.open()) {
+            if (!documentService.existsAnnotationCas(aAnnDoc)) {
+                tags = new HashMap<>();
+            }
+            else {
+                CAS cas = documentService.readAnnotationCas(aAnnDoc, SHARED_READ_ONLY_ACCESS);
+                tags = getTags(aCodebooks, cas);
+            }
+        }
+        catch (IOException e) {
+            log.error("Unable to load annotations of user [{}] on document [{}]({})",
+                    aAnnDoc.getUser(), aAnnDoc.getName(), aAnnDoc.getDocument().getId(), e);
+            return;
+        }
+
+        storeEntries(aAnnDoc, tags, aSnapshot);
+    }
+
+    private Map<Codebook, String> getTags(List<Codebook> aCodebooks, CAS aCas)
+    {
+        Map<Codebook, String> tags = new HashMap<>();
+        for (Codebook codebook : aCodebooks) {
+            // there is only 1 dummy feature at the moment!
+            List<CodebookFeature> features = codebookSchemaService.listCodebookFeature(codebook);
+            if (features.isEmpty()) {
+                continue;
+            }
+
+            String tag = (String) new CodebookCasAdapter(codebook).getExistingCodeValue(aCas,
+                    features.get(0));
+            if (tag != null && !tag.isEmpty()) {
+                tags.put(codebook, tag);
+            }
+        }
+        return tags;
+    }
+
+    private void storeEntries(AnnotationDocument aAnnDoc, Map<Codebook, String> aTags)
+    {
+        storeEntries(aAnnDoc, aTags, -1);
+    }
+
+    /**
+     * @param aSnapshot
+     *            if not negative, the entries are only stored if the CAS has not been written
+     *            since this time, i.e. if they cannot be older than the entries stored for a
+     *            concurrent write.
+     */
+    private void storeEntries(AnnotationDocument aAnnDoc, Map<Codebook, String> aTags,
+            long aSnapshot)
+    {
+        try {
+            transactionTemplate.execute(status -> {
+                replaceEntries(aAnnDoc, aTags);
+                // Check again after the rows are locked: the entries of a write which happens
+                // from now on are stored after our transaction, so they cannot be overwritten
+                if (aSnapshot >= 0 && isWrittenSince(aAnnDoc, aSnapshot)) {
+                    status.setRollbackOnly();
+                }
+                return null;
+            });
+        }
+        catch (Exception e) {
+            log.error("Unable to index codebook tags of user [{}] on document [{}]({})",
+                    aAnnDoc.getUser(), aAnnDoc.getName(), aAnnDoc.getDocument().getId(), e);
+            // Bring the entries of the project back in sync
+            scheduleIndexing(aAnnDoc.getProject());
+        }
+    }
+
+    private void replaceEntries(AnnotationDocument aAnnDoc, Map<Codebook, String> aTags)
+    {
+        entityManager
+                .createQuery("DELETE FROM CodebookTagIndexEntry "
+                        + "WHERE document = :document AND user = :user")
+                .setParameter("document", aAnnDoc.getDocument())
+                .setParameter("user", aAnnDoc.getUser()).executeUpdate();
+
+        aTags.forEach((codebook, tag) -> entityManager.persist(
+                new CodebookTagIndexEntry(aAnnDoc.getDocument(), aAnnDoc.getUser(), codebook,
+                        tag)));
+    }
+
+    private boolean isWrittenSince(AnnotationDocument aAnnDoc, long aSnapshot)
+    {
+        try {
+            Optional<Long> timestamp = documentService
+                    .getAnnotationCasTimestamp(aAnnDoc.getDocument(), aAnnDoc.getUser());
+            return timestamp.isPresent() && timestamp.get() > aSnapshot;
+        }
+        catch (IOException e) {
+            // Rather keep the entries we have than overwrite them with possibly stale ones
+            log.error("Unable to check annotations of user [{}] on document [{}]({})",
+                    aAnnDoc.getUser(), aAnnDoc.getName(), aAnnDoc.getDocument().getId(), e);
+            return true;
+        }
+    }
+
+    private void removeState(Project aProject)
+    {
+        entityManager.createQuery("DELETE FROM CodebookTagIndexState WHERE project = :project")
+                .setParameter("project", aProject).executeUpdate();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+/**
+ * An open-addressing hash map from {@code long} keys to {@code int} counts which does not box its
+ * entries. The key {@code 0} is reserved to mark empty slots and must not be used.
+ */
+class LongIntHashMap
+{
+    private static final int MIN_CAPACITY = 16;
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private int[] values;
+    private int shift;
+    private int size;
+    private int resizeAt;
+
+    LongIntHashMap()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    LongIntHashMap(int aExpectedSize)
+    {
+        allocate(capacityFor(aExpectedSize));
+    }
+
+    /**
+     * Adds the given delta to the value of the key. Keys which are not yet in the map start at
+     * {@code 0}.
+     */
+    void add(long aKey, int aDelta)
+    {
+        int mask = keys.length - 1;
+        int slot = slot(aKey);
+        while (true) {
+            long key = keys[slot];
+            if (key == aKey) {
+                values[slot] += aDelta;
+                return;
+            }
+            if (key == 0) {
+                keys[slot] = aKey;
+                values[slot] = aDelta;
+                if (++size > resizeAt) {
+                    rehash(keys.length << 1);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    void increment(long aKey)
+    {
+        add(aKey, 1);
+    }
+
+    /**
+     * @return the value of the key or {@code 0} if the key is not in the map.
+     */
+    int get(long aKey)
+    {
+        int mask = keys.length - 1;
+        int slot = slot(aKey);
+        while (true) {
+            long key = keys[slot];
+            if (key == aKey) {
+                return values[slot];
+            }
+            if (key == 0) {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the number of slots. Slots are addressed by {@link #keyAt} and {@link #valueAt}.
+     */
+    int capacity()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return the key in the given slot or {@code 0} if the slot is empty.
+     */
+    long keyAt(int aSlot)
+    {
+        return keys[aSlot];
+    }
+
+    int valueAt(int aSlot)
+    {
+        return values[aSlot];
+    }
+
+    private int slot(long aKey)
+    {
+        return (int) ((aKey * PHI) >>> shift);
+    }
+
+    private void rehash(int aCapacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(aCapacity);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int slot = slot(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int aCapacity)
+    {
+        keys = new long[aCapacity];
+        values = new int[aCapacity];
+        shift = Long.numberOfLeadingZeros(aCapacity - 1);
+        // keep the load factor at 0.5 - probe sequences stay short and the arrays are cheap
+        resizeAt = aCapacity >>> 1;
+    }
+
+    private static int capacityFor(int aExpectedSize)
+    {
+        int capacity = MIN_CAPACITY;
+        while ((capacity >>> 1) < aExpectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
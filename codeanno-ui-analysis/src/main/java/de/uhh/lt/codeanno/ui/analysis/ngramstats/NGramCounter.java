@@ -0,0 +1,366 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Counts the n-grams of token sequences without allocating objects per position. Tokens are
+ * interned to int IDs, each n-gram is packed into a single {@code long} key and the keys are
+ * counted in primitive open-addressing maps, one per n-gram length. {@link NGram} objects are only
+ * created for the n-grams which are actually reported.
+ * <p>
+ * Only the first {@link #MAX_PACKED_ID} distinct tokens get IDs which fit into a packed key. The
+ * n-grams containing any later token are counted in a plain hash map instead. Tokens seen that
+ * late are mostly rare, so this map stays small compared to the packed one.
+ */
+public class NGramCounter
+{
+    /**
+     * The bits available for a token ID in a packed key. Three IDs fit into the 63 bits of a
+     * positive {@code long}.
+     */
+    private static final int BITS_PER_TOKEN = 21;
+
+    /**
+     * The largest token ID which can be packed into a key. IDs start at 1 so that no packed key is
+     * {@code 0}.
+     */
+    public static final int MAX_PACKED_ID = (1 << BITS_PER_TOKEN) - 1;
+
+    /**
+     * The maximum n-gram length which can be packed into a key.
+     */
+    public static final int MAX_LENGTH = Long.SIZE / BITS_PER_TOKEN;
+
+    private final int maxPackedId;
+    private final Map<String, Integer> tokenIds = new HashMap<>();
+    private final List<String> tokens = new ArrayList<>();
+    private final LongIntHashMap[] counts;
+    private final List<Map<NGram, Integer>> overflowCounts;
+
+    /**
+     * @param aMaxLength
+     *            the maximum length of the counted n-grams.
+     */
+    public NGramCounter(int aMaxLength)
+    {
+        this(aMaxLength, MAX_PACKED_ID);
+    }
+
+    /**
+     * @param aMaxPackedId
+     *            the largest token ID to pack into a key. Only lowered by tests so that they do
+     *            not need millions of distinct tokens to reach the hash map.
+     */
+    NGramCounter(int aMaxLength, int aMaxPackedId)
+    {
+        Validate.inclusiveBetween(1, MAX_LENGTH, aMaxLength,
+                "N-gram length must be between 1 and " + MAX_LENGTH);
+        Validate.inclusiveBetween(1, MAX_PACKED_ID, aMaxPackedId,
+                "Largest packed token ID must be between 1 and " + MAX_PACKED_ID);
+
+        maxPackedId = aMaxPackedId;
+        counts = new LongIntHashMap[aMaxLength];
+        overflowCounts = new ArrayList<>(aMaxLength);
+        for (int n = 0; n < aMaxLength; n++) {
+            counts[n] = new LongIntHashMap();
+            overflowCounts.add(new HashMap<>());
+        }
+    }
+
+    public int getMaxLength()
+    {
+        return counts.length;
+    }
+
+    /**
+     * Counts all n-grams up to the maximum length in the given token sequence.
+     */
+    public void count(List<String> aTokens)
+    {
+        int[] ids = new int[aTokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = intern(aTokens.get(i));
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            long key = 0;
+            boolean packed = true;
+            for (int n = 0; n < counts.length && i + n < ids.length; n++) {
+                // Once an n-gram contains an unpackable token, so do all longer ones
+                packed = packed && ids[i + n] <= maxPackedId;
+                if (packed) {
+                    key = (key << BITS_PER_TOKEN) | ids[i + n];
+                    counts[n].increment(key);
+                }
+                else {
+                    NGram ngram = new NGram(new ArrayList<>(aTokens.subList(i, i + n + 1)));
+                    overflowCounts.get(n).merge(ngram, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the given count to a single n-gram, e.g. to merge counts which have been computed
+     * before.
+     */
+    public void add(NGram aNGram, int aCount)
+    {
+        Validate.isTrue(aNGram.getN() <= counts.length, "N-gram [%s] is longer than %d", aNGram,
+                counts.length);
+
+        long key = 0;
+        for (String token : aNGram.getAll()) {
+            int id = intern(token);
+            if (id > maxPackedId) {
+                overflowCounts.get(aNGram.getN() - 1).merge(aNGram, aCount, Integer::sum);
+                return;
+            }
+            key = (key << BITS_PER_TOKEN) | id;
+        }
+        counts[aNGram.getN() - 1].add(key, aCount);
+    }
+
+    /**
+     * Adds all counts of another counter to this one. The n-grams are transferred as packed keys,
+     * only the token IDs of the other counter are translated to the IDs of this one. N-grams whose
+     * tokens cannot be packed in either counter are transferred as {@link NGram} objects.
+     */
+    public void addAll(NGramCounter aOther)
+    {
+        Validate.isTrue(aOther.counts.length <= counts.length,
+                "Cannot add %d-grams to a counter of up to %d-grams", aOther.counts.length,
+                counts.length);
+
+        int[] idMap = new int[aOther.tokens.size() + 1];
+        for (int i = 0; i < aOther.tokens.size(); i++) {
+            idMap[i + 1] = intern(aOther.tokens.get(i));
+        }
+
+        for (int n = 0; n < aOther.counts.length; n++) {
+            LongIntHashMap source = aOther.counts[n];
+            LongIntHashMap target = counts[n];
+            for (int slot = 0; slot < source.capacity(); slot++) {
+                long key = source.keyAt(slot);
+                if (key == 0) {
+                    continue;
+                }
+
+                long mappedKey = 0;
+                for (int shift = n * BITS_PER_TOKEN; shift >= 0; shift -= BITS_PER_TOKEN) {
+                    int id = idMap[(int) ((key >>> shift) & MAX_PACKED_ID)];
+                    if (id > maxPackedId) {
+                        mappedKey = -1;
+                        break;
+                    }
+                    mappedKey = (mappedKey << BITS_PER_TOKEN) | id;
+                }
+
+                if (mappedKey == -1) {
+                    add(aOther.decode(key, n + 1), source.valueAt(slot));
+                }
+                else {
+                    target.add(mappedKey, source.valueAt(slot));
+                }
+            }
+
+            aOther.overflowCounts.get(n).forEach(this::add);
+        }
+    }
+
+    /**
+     * @return the number of distinct tokens seen by this counter.
+     */
+    public int getTokenCount()
+    {
+        return tokens.size();
+    }
+
+    /**
+     * @return how often the n-gram has been counted.
+     */
+    public int getCount(NGram aNGram)
+    {
+        if (aNGram.getN() > counts.length) {
+            return 0;
+        }
+
+        long key = 0;
+        for (String token : aNGram.getAll()) {
+            Integer id = tokenIds.get(token);
+            if (id == null) {
+                return 0;
+            }
+            if (id > maxPackedId) {
+                return overflowCounts.get(aNGram.getN() - 1).getOrDefault(aNGram, 0);
+            }
+            key = (key << BITS_PER_TOKEN) | id;
+        }
+        return counts[aNGram.getN() - 1].get(key);
+    }
+
+    /**
+     * @return the number of distinct n-grams of the given length.
+     */
+    public int getDistinct(int aLength)
+    {
+        return counts[aLength - 1].size() + overflowCounts.get(aLength - 1).size();
+    }
+
+    /**
+     * @return all n-grams of the given length, sorted by descending frequency.
+     */
+    public List<Pair<NGram, Integer>> getSortedFrequencies(int aLength)
+    {
+        return getTopK(aLength, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the {@code aK} most frequent n-grams of the given length, sorted by descending
+     *         frequency. Only a heap of {@code aK} entries is maintained while selecting them, so
+     *         this is cheaper than sorting all n-grams if {@code aK} is small.
+     */
+    public List<Pair<NGram, Integer>> getTopK(int aLength, int aK)
+    {
+        LongIntHashMap map = counts[aLength - 1];
+
+        // Each candidate is encoded as (count << 32 | slot) so that comparing the encoded values
+        // compares the counts
+        long[] selected;
+        int selectedSize;
+        if (aK >= map.size()) {
+            selected = new long[map.size()];
+            selectedSize = 0;
+            for (int slot = 0; slot < map.capacity(); slot++) {
+                if (map.keyAt(slot) != 0) {
+                    selected[selectedSize++] = encode(map.valueAt(slot), slot);
+                }
+            }
+        }
+        else {
+            // min-heap holding the K largest candidates seen so far
+            selected = new long[Math.max(aK, 0)];
+            selectedSize = 0;
+            for (int slot = 0; slot < map.capacity() && aK > 0; slot++) {
+                if (map.keyAt(slot) == 0) {
+                    continue;
+                }
+                long candidate = encode(map.valueAt(slot), slot);
+                if (selectedSize < aK) {
+                    selected[selectedSize] = candidate;
+                    siftUp(selected, selectedSize++);
+                }
+                else if (candidate > selected[0]) {
+                    selected[0] = candidate;
+                    siftDown(selected, 0, selectedSize);
+                }
+            }
+        }
+
+        Arrays.sort(selected, 0, selectedSize);
+
+        List<Pair<NGram, Integer>> result = new ArrayList<>(selectedSize);
+        for (int i = selectedSize - 1; i >= 0; i--) {
+            int slot = (int) selected[i];
+            result.add(Pair.of(decode(map.keyAt(slot), aLength), map.valueAt(slot)));
+        }
+
+        Map<NGram, Integer> overflow = overflowCounts.get(aLength - 1);
+        if (overflow.isEmpty() || aK <= 0) {
+            return result;
+        }
+
+        // The top K of both maps together are among the top K of the packed map and the n-grams
+        // in the overflow map
+        overflow.forEach((ngram, count) -> result.add(Pair.of(ngram, count)));
+        result.sort(Comparator.comparing(Pair<NGram, Integer>::getValue).reversed());
+        return result.size() > aK ? new ArrayList<>(result.subList(0, aK)) : result;
+    }
+
+    private int intern(String aToken)
+    {
+        Integer id = tokenIds.get(aToken);
+        if (id == null) {
+            tokens.add(aToken);
+            id = tokens.size();
+            tokenIds.put(aToken, id);
+        }
+        return id;
+    }
+
+    private NGram decode(long aKey, int aLength)
+    {
+        String[] ngram = new String[aLength];
+        long key = aKey;
+        for (int i = aLength - 1; i >= 0; i--) {
+            ngram[i] = tokens.get((int) (key & MAX_PACKED_ID) - 1);
+            key >>>= BITS_PER_TOKEN;
+        }
+        return new NGram(ngram);
+    }
+
+    private static long encode(int aCount, int aSlot)
+    {
+        return ((long) aCount << Integer.SIZE) | aSlot;
+    }
+
+    private static void siftUp(long[] aHeap, int aIndex)
+    {
+        int i = aIndex;
+        long value = aHeap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (aHeap[parent] <= value) {
+                break;
+            }
+            aHeap[i] = aHeap[parent];
+            i = parent;
+        }
+        aHeap[i] = value;
+    }
+
+    private static void siftDown(long[] aHeap, int aIndex, int aSize)
+    {
+        int i = aIndex;
+        long value = aHeap[i];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= aSize) {
+                break;
+            }
+            if (child + 1 < aSize && aHeap[child + 1] < aHeap[child]) {
+                child++;
+            }
+            if (aHeap[child] >= value) {
+                break;
+            }
+            aHeap[i] = aHeap[child];
+            i = child;
+        }
+        aHeap[i] = value;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * The n-grams of one length as read from a {@link NGramStatsFile}. The entries are kept in their
+ * encoded form - the token indices of each n-gram followed by its count - and are only decoded
+ * when they are accessed. Loading stats thus does not create an object per n-gram, and views on a
+ * range of counts do not decode anything at all.
+ */
+class NGramFrequencyList
+    extends AbstractList<Pair<NGram, Integer>>
+    implements RandomAccess, Serializable
+{
+    private static final long serialVersionUID = 5066429346171736151L;
+
+    private final String[] tokens;
+    private final int[] entries;
+    private final int n;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param aTokens
+     *            the token dictionary.
+     * @param aEntries
+     *            the encoded entries sorted by descending count.
+     * @param aN
+     *            the number of tokens per n-gram.
+     */
+    NGramFrequencyList(String[] aTokens, int[] aEntries, int aN)
+    {
+        this(aTokens, aEntries, aN, 0, aEntries.length / (aN + 1));
+    }
+
+    private NGramFrequencyList(String[] aTokens, int[] aEntries, int aN, int aFrom, int aTo)
+    {
+        tokens = aTokens;
+        entries = aEntries;
+        n = aN;
+        from = aFrom;
+        to = aTo;
+    }
+
+    @Override
+    public Pair<NGram, Integer> get(int aIndex)
+    {
+        Objects.checkIndex(aIndex, size());
+        int offset = (from + aIndex) * (n + 1);
+        String[] ngram = new String[n];
+        for (int i = 0; i < n; i++) {
+            ngram[i] = tokens[entries[offset + i]];
+        }
+        return Pair.of(new NGram(ngram), entries[offset + n]);
+    }
+
+    public int getCount(int aIndex)
+    {
+        Objects.checkIndex(aIndex, size());
+        return entries[(from + aIndex) * (n + 1) + n];
+    }
+
+    @Override
+    public int size()
+    {
+        return to - from;
+    }
+
+    public int getTotal()
+    {
+        int total = 0;
+        for (int i = 0; i < size(); i++) {
+            total += getCount(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return a view on the entries with a count between the given bounds (inclusive). Since the
+     *         entries are sorted by descending count, these form a single range.
+     */
+    public NGramFrequencyList subListOfCounts(int aMin, int aMax)
+    {
+        // first entry with a count not above the maximum
+        int begin = firstIndexWhere(count -> count <= aMax);
+        // first entry with a count below the minimum
+        int end = Math.max(begin, firstIndexWhere(count -> count < aMin));
+        return subList(begin, end);
+    }
+
+    @Override
+    public NGramFrequencyList subList(int aFrom, int aTo)
+    {
+        Objects.checkFromToIndex(aFrom, aTo, size());
+        return new NGramFrequencyList(tokens, entries, n, from + aFrom, from + aTo);
+    }
+
+    /**
+     * Binary search for the first entry whose count satisfies the condition. The condition must
+     * be monotonic with respect to the descending counts, i.e. once it holds it keeps holding.
+     */
+    private int firstIndexWhere(IntPredicate aCondition)
+    {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (aCondition.test(getCount(mid))) {
+                high = mid;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}
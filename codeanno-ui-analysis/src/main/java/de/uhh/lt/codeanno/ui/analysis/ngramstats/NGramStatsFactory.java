@@ -16,6 +16,8 @@
  */
 package de.uhh.lt.codeanno.ui.analysis.ngramstats;
 
+import static org.apache.commons.lang3.StringUtils.isNotEmpty;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
@@ -26,6 +28,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import de.uhh.lt.codeanno.ui.analysis.Stats;
@@ -37,7 +40,12 @@ public interface NGramStatsFactory
     Integer TSV_RECORD_SIZE = 2;
     Character TSV_DELIMITER = '\t';
     String NGRAM_STATS_PARENT_DIR = "stats";
+    /**
+     * The TSV stats written by earlier versions. They are converted to
+     * {@link #NGRAM_STATS_BINARY_FILE} when they are loaded for the first time.
+     */
     String NGRAM_STATS_FILE = "ngrams.tsv";
+    String NGRAM_STATS_BINARY_FILE = "ngrams.bin";
 
     NGramStats create(Collection<Token> tokens);
 
@@ -49,16 +57,118 @@ public interface NGramStatsFactory
 
     NGramStats createOrLoad(SourceDocument document) throws IOException, CASException;
 
+    /**
+     * @return the merged stats of all documents in the project. The merged stats are cached as
+     *         long as the stats of the documents do not change.
+     */
+    NGramStats createOrLoad(Project project) throws IOException, CASException;
+
     NGramStats merge(List<NGramStats> stats);
 
+    /**
+     * Queues the computation of the stats of the given document unless they are already
+     * available or queued. The stats are computed in the background.
+     */
+    void scheduleComputation(SourceDocument document);
+
+    /**
+     * Queues the computation of the stats of all documents in the project whose stats are not
+     * available yet.
+     */
+    void scheduleComputation(Project project);
+
+    /**
+     * @return the status of the stats of the given document.
+     */
+    Status getStatus(SourceDocument document);
+
+    /**
+     * @return {@link Status#AVAILABLE} if the stats of all documents in the project are available
+     *         or could not be computed, otherwise the least advanced status of the documents whose
+     *         stats are still pending.
+     */
+    Status getStatus(Project project);
+
+    enum Status
+    {
+        /** The stats have not been computed and are not queued. */
+        MISSING,
+        /** The stats are waiting in the computation queue. */
+        QUEUED,
+        /** The stats are being computed. */
+        RUNNING,
+        /** The stats have been computed and can be loaded without delay. */
+        AVAILABLE,
+        /** The last attempt to compute the stats failed. */
+        FAILED
+    }
+
     class NGramStats
         extends Stats<Integer, NGram>
     {
         private static final long serialVersionUID = -2851283249817671545L;
 
+        private final long version;
+
         public NGramStats(Map<Integer, List<Pair<NGram, Integer>>> sortedFrequencies)
+        {
+            this(sortedFrequencies, 0);
+        }
+
+        public NGramStats(Map<Integer, List<Pair<NGram, Integer>>> sortedFrequencies,
+                long version)
         {
             super(sortedFrequencies);
+            this.version = version;
+        }
+
+        /**
+         * @return the version of the persisted stats of a document, i.e. the time at which they
+         *         have been computed, or {@code 0} if the stats have not been persisted.
+         */
+        public long getVersion()
+        {
+            return version;
+        }
+
+        // Stats read from a file keep their n-grams encoded. The following methods only look at
+        // the counts in that case, so that the n-grams do not need to be decoded.
+
+        @Override
+        public Integer getMax(Integer of)
+        {
+            List<Pair<NGram, Integer>> freqs = sortedFrequencies.get(of);
+            if (freqs instanceof NGramFrequencyList)
+                return ((NGramFrequencyList) freqs).getCount(0);
+            return super.getMax(of);
+        }
+
+        @Override
+        public Integer getTotal(Integer of)
+        {
+            List<Pair<NGram, Integer>> freqs = sortedFrequencies.get(of);
+            if (freqs instanceof NGramFrequencyList)
+                return ((NGramFrequencyList) freqs).getTotal();
+            return super.getTotal(of);
+        }
+
+        @Override
+        public List<Pair<NGram, Integer>> getFilteredFrequencies(Integer of, Integer min,
+                Integer max, String startsWith, String contains)
+        {
+            List<Pair<NGram, Integer>> freqs = sortedFrequencies.get(of);
+            if (!(freqs instanceof NGramFrequencyList) || isNotEmpty(startsWith)
+                    || isNotEmpty(contains))
+                return super.getFilteredFrequencies(of, min, max, startsWith, contains);
+
+            // Same bounds as in the superclass
+            if (max == null)
+                max = getMax(of);
+            if (min == null)
+                min = 0;
+            int finalMax = max < 0 ? getMax(of) : max;
+            int finalMin = (min < 0 || min > max) ? 0 : min;
+            return ((NGramFrequencyList) freqs).subListOfCounts(finalMin, finalMax);
         }
     }
 }
@@ -19,112 +19,120 @@ package de.uhh.lt.codeanno.ui.analysis.ngramstats;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 import org.apache.uima.fit.util.JCasUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.DocumentOpenedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterDocumentCreatedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 
 @Component
 public class NGramStatsFactoryImpl
-    implements NGramStatsFactory
+    implements NGramStatsFactory, DisposableBean
 {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Maximum number of documents waiting for their stats to be computed. Documents which do not
+     * fit into the queue are computed when they are scheduled again, e.g. when they are opened.
+     */
+    private static final int COMPUTATION_QUEUE_CAPACITY = 10_000;
 
     private final DocumentService documentService;
+    private final ForkJoinPool mergePool;
+    private final ThreadPoolExecutor computationExecutor;
+
+    /**
+     * Status of the documents which are queued, being computed or failed, keyed by document ID.
+     * A document is only queued once as long as it has an entry here.
+     */
+    private final Map<Long, Status> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Merged project stats keyed by the project ID and the versions of the stats of its documents.
+     * If any document stats change, the key changes too and the old entry ages out of the cache.
+     */
+    private final Cache<Pair<Long, Map<Long, Long>>, NGramStats> projectStats;
 
     @Autowired
     public NGramStatsFactoryImpl(DocumentService documentService)
     {
         this.documentService = documentService;
-    }
-
-    private NGramStats create(List<String> tokens)
-    {
-        Map<Integer, Map<NGram, Integer>> nGramFrequencies = this
-                .createFrequencyMapsFromTokens(tokens);
 
-        Map<Integer, List<Pair<NGram, Integer>>> sortedNGramFreqs = createSortedList(
-                nGramFrequencies);
-
-        return new NGramStats(sortedNGramFreqs);
+        int processors = Runtime.getRuntime().availableProcessors();
+        mergePool = new ForkJoinPool(processors);
+        // Leave most of the cores to the annotators, the stats are not urgent
+        int computationThreads = Math.max(1, processors / 4);
+        computationExecutor = new ThreadPoolExecutor(computationThreads, computationThreads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(COMPUTATION_QUEUE_CAPACITY),
+                new BasicThreadFactory.Builder().namingPattern("ngram-stats-%d").daemon(true)
+                        .build());
+        projectStats = Caffeine.newBuilder() //
+                .maximumSize(16) //
+                .expireAfterAccess(Duration.ofMinutes(30)) //
+                .softValues() //
+                .build();
     }
 
-    private Map<Integer, Map<NGram, Integer>> createFrequencyMapsFromTokens(List<String> tokens)
+    @Override
+    public void destroy()
     {
-        Map<Integer, Map<NGram, Integer>> nGramFrequencies = new HashMap<>();
-        // init one map per nGram
-        for (int n = 0; n < MAX_N_GRAM; n++)
-            nGramFrequencies.put(n, new HashMap<>());
-
-        for (int i = 0; i < tokens.size(); i++) {
-            for (int n = 0; n < MAX_N_GRAM; n++) {
-                if (i + n < tokens.size()) {
-                    NGram nGram = new NGram(
-                            // wrap in ArrayList to avoid SerializationException
-                            new ArrayList<>(tokens.subList(i, i + n + 1)));
-                    nGramFrequencies.get(n).computeIfPresent(nGram, (s, count) -> ++count);
-                    nGramFrequencies.get(n).putIfAbsent(nGram, 1);
-                }
-            }
-        }
-        return nGramFrequencies;
+        mergePool.shutdownNow();
+        computationExecutor.shutdownNow();
     }
 
-    private Map<Integer, Map<NGram, Integer>> createFrequencyMapsFromSortedNGramFrequencies(
-            Map<Integer, List<Pair<NGram, Integer>>> sortedFreqs)
+    private NGramStats create(List<String> tokens)
     {
-        Map<Integer, Map<NGram, Integer>> nGramFrequencies = new HashMap<>();
-        // init one map per nGram
-        for (int n = 0; n < MAX_N_GRAM; n++)
-            nGramFrequencies.put(n, new HashMap<>());
-
-        for (int i = 0; i < sortedFreqs.size(); i++) {
-            for (Pair<NGram, Integer> nGram : sortedFreqs.get(i)) {
-                Map<NGram, Integer> nGramMap = nGramFrequencies.get(i);
-                nGramMap.computeIfPresent(nGram.getLeft(), (ng, num) -> num += nGram.getRight());
-                nGramMap.putIfAbsent(nGram.getLeft(), nGram.getRight());
-            }
-        }
-
-        return nGramFrequencies;
+        NGramCounter counter = new NGramCounter(MAX_N_GRAM);
+        counter.count(tokens);
+        return createStats(counter);
     }
 
-    private Map<Integer, List<Pair<NGram, Integer>>> createSortedList(
-            Map<Integer, Map<NGram, Integer>> nGramFrequencies)
+    private NGramStats createStats(NGramCounter counter)
     {
         // sort the nGrams by frequency and convert them to a single list
         Map<Integer, List<Pair<NGram, Integer>>> sortedNGramFreqs = new HashMap<>();
-        for (int n = 0; n < MAX_N_GRAM; n++) {
-            sortedNGramFreqs.put(n,
-                    nGramFrequencies.get(n).entrySet().stream()
-                            .map(e -> Pair.of(e.getKey(), e.getValue()))
-                            .sorted((o1, o2) -> o2.getRight().compareTo(o1.getRight()))
-                            .collect(Collectors.toList()));
-        }
-        return sortedNGramFreqs;
+        for (int n = 0; n < MAX_N_GRAM; n++)
+            sortedNGramFreqs.put(n, counter.getSortedFrequencies(n + 1));
+        return new NGramStats(sortedNGramFreqs);
     }
 
     @Override
@@ -148,28 +156,155 @@ public class NGramStatsFactoryImpl
     @Override
     public NGramStats createOrLoad(SourceDocument document) throws IOException, CASException
     {
-        File docRoot = documentService.getDocumentFolder(document).getParentFile();
-        File statsRoot = new File(docRoot, NGRAM_STATS_PARENT_DIR);
+        File statsRoot = getStatsFolder(document);
         FileUtils.forceMkdir(statsRoot);
-        File statsFile = new File(statsRoot, NGRAM_STATS_FILE);
-
-        if (statsFile.exists())
-            return load(statsFile);
-        else {
-            NGramStats stats = this.create(document);
-            // persist stats
-            try (FileWriter writer = new FileWriter(statsFile);
-                    CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
-                            .withDelimiter(TSV_DELIMITER).withSkipHeaderRecord())) {
-
-                for (int n = 0; n < MAX_N_GRAM; n++)
-                    for (Pair<NGram, Integer> tokenFreq : stats.getSortedFrequencies(n))
-                        csvPrinter.printRecord(tokenFreq.getKey().toString(), tokenFreq.getValue());
-                csvPrinter.flush();
+        File statsFile = new File(statsRoot, NGRAM_STATS_BINARY_FILE);
+
+        if (statsFile.exists()) {
+            try {
+                return NGramStatsFile.read(statsFile);
+            }
+            catch (IOException e) {
+                log.warn("Unable to load n-gram stats of document [{}]({}) - recomputing them",
+                        document.getName(), document.getId(), e);
+            }
+        }
+
+        // convert stats persisted by earlier versions instead of recomputing them
+        File legacyStatsFile = new File(statsRoot, NGRAM_STATS_FILE);
+        NGramStats stats = legacyStatsFile.exists() ? load(legacyStatsFile) : create(document);
+        stats = new NGramStats(stats.getSortedFrequencies(), System.currentTimeMillis());
+
+        NGramStatsFile.write(stats, statsFile);
+        FileUtils.deleteQuietly(legacyStatsFile);
+
+        return stats;
+    }
+
+    @Override
+    public NGramStats createOrLoad(Project project) throws IOException, CASException
+    {
+        // Only the headers of the stats files are read to check if the cached stats are current.
+        // Stats which had to be created or converted here are kept for the merge below.
+        List<SourceDocument> docs = new ArrayList<>();
+        Map<Long, Long> versions = new HashMap<>();
+        Map<Long, NGramStats> loaded = new HashMap<>();
+        for (SourceDocument doc : documentService.listSourceDocuments(project)) {
+            try {
+                File statsFile = new File(getStatsFolder(doc), NGRAM_STATS_BINARY_FILE);
+                long version = statsFile.exists() ? NGramStatsFile.readVersion(statsFile) : -1;
+                if (version <= 0) {
+                    NGramStats docStats = createOrLoad(doc);
+                    loaded.put(doc.getId(), docStats);
+                    version = docStats.getVersion();
+                }
+                versions.put(doc.getId(), version);
+                docs.add(doc);
             }
+            catch (IOException | CASException e) {
+                log.error("Unable to create n-gram stats of document [{}]({}) - skipping it",
+                        doc.getName(), doc.getId(), e);
+            }
+        }
+
+        Pair<Long, Map<Long, Long>> key = Pair.of(project.getId(), versions);
+        NGramStats stats = projectStats.getIfPresent(key);
+        if (stats == null) {
+            stats = merge(docs, doc -> {
+                NGramStats docStats = loaded.get(doc.getId());
+                return toCounter(docStats != null ? docStats : createOrLoad(doc));
+            });
+            projectStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public void scheduleComputation(SourceDocument document)
+    {
+        if (isStatsFileAvailable(document))
+            return;
+
+        // Only queue the document if it is not queued or running already. Failed documents are
+        // retried.
+        AtomicBoolean queued = new AtomicBoolean();
+        pending.compute(document.getId(), (id, status) -> {
+            if (status != null && status != Status.FAILED)
+                return status;
+            queued.set(true);
+            return Status.QUEUED;
+        });
+        if (!queued.get())
+            return;
+
+        try {
+            computationExecutor.execute(() -> compute(document));
+        }
+        catch (RejectedExecutionException e) {
+            pending.remove(document.getId());
+            log.warn("N-gram stats queue is full - not computing stats of document [{}]({})",
+                    document.getName(), document.getId());
+        }
+    }
+
+    @Override
+    public void scheduleComputation(Project project)
+    {
+        for (SourceDocument doc : documentService.listSourceDocuments(project))
+            scheduleComputation(doc);
+    }
+
+    private void compute(SourceDocument document)
+    {
+        pending.put(document.getId(), Status.RUNNING);
+        // The computation runs in a background thread which has no CAS storage session yet
+        try (CasStorageSession session = CasStorageSession.open()) {
+            createOrLoad(document);
+            pending.remove(document.getId());
+        }
+        catch (Exception e) {
+            pending.put(document.getId(), Status.FAILED);
+            log.error("Unable to create n-gram stats of document [{}]({})", document.getName(),
+                    document.getId(), e);
+        }
+    }
+
+    @Override
+    public Status getStatus(SourceDocument document)
+    {
+        Status status = pending.get(document.getId());
+        if (status != null)
+            return status;
+        return isStatsFileAvailable(document) ? Status.AVAILABLE : Status.MISSING;
+    }
 
-            return stats;
+    @Override
+    public Status getStatus(Project project)
+    {
+        Status result = Status.AVAILABLE;
+        for (SourceDocument doc : documentService.listSourceDocuments(project)) {
+            Status status = getStatus(doc);
+            // Failed documents are skipped when the project stats are merged
+            if (status != Status.FAILED && status.compareTo(result) < 0)
+                result = status;
         }
+        return result;
+    }
+
+    private boolean isStatsFileAvailable(SourceDocument document)
+    {
+        try {
+            return new File(getStatsFolder(document), NGRAM_STATS_BINARY_FILE).exists();
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private File getStatsFolder(SourceDocument document) throws IOException
+    {
+        File docRoot = documentService.getDocumentFolder(document).getParentFile();
+        return new File(docRoot, NGRAM_STATS_PARENT_DIR);
     }
 
     @Override
@@ -178,47 +313,63 @@ public class NGramStatsFactoryImpl
         if (toMerge.size() == 1)
             return toMerge.get(0);
 
-        Map<Integer, Map<NGram, Integer>> mergedFrequencies = new HashMap<>();
-        for (int n = 0; n < MAX_N_GRAM; n++)
-            mergedFrequencies.put(n, new HashMap<>());
-
-        // merge all input NGramStats
-        for (NGramStats ngStats : toMerge) {
-            // create the freq maps per input
-            Map<Integer, Map<NGram, Integer>> nGramFreqs = this
-                    .createFrequencyMapsFromSortedNGramFrequencies(ngStats.getSortedFrequencies());
-
-            // join the maps with the mergedFrequencies
-            for (int i = 0; i < MAX_N_GRAM; i++) {
-                int finalI = i;
-                nGramFreqs.get(i).forEach((nG, cnt) -> {
-                    mergedFrequencies.get(finalI).computeIfPresent(nG, (nGram, c) -> c += cnt);
-                    mergedFrequencies.get(finalI).putIfAbsent(nG, cnt);
-                });
-            }
+        try {
+            return merge(toMerge, NGramStatsFactoryImpl::toCounter);
+        }
+        catch (IOException | CASException e) {
+            // Converting stats which are already in memory does not do any I/O
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Merges the stats of the given sources. The sources are converted to counters and the
+     * counters are then merged pairwise in parallel.
+     */
+    private <T> NGramStats merge(List<T> sources, CounterSource<T> toCounter)
+        throws IOException, CASException
+    {
+        if (sources.isEmpty())
+            return createStats(new NGramCounter(MAX_N_GRAM));
+
+        try {
+            return createStats(mergePool.invoke(new MergeTask<>(sources, toCounter)));
+        }
+        catch (MergeException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw (CASException) e.getCause();
         }
+    }
 
-        return new NGramStats(createSortedList(mergedFrequencies));
+    private static NGramCounter toCounter(NGramStats stats)
+    {
+        NGramCounter counter = new NGramCounter(MAX_N_GRAM);
+        for (List<Pair<NGram, Integer>> freqs : stats.getSortedFrequencies().values())
+            for (Pair<NGram, Integer> nGram : freqs)
+                counter.add(nGram.getLeft(), nGram.getRight());
+        return counter;
     }
 
     @Override
     public NGramStats load(File csvFile) throws IOException
     {
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(csvFile));
-        Iterable<CSVRecord> records = CSVFormat.DEFAULT.withDelimiter(TSV_DELIMITER)
-                .withIgnoreEmptyLines().withSkipHeaderRecord()
-                .parse(new InputStreamReader(bis, StandardCharsets.UTF_8));
-
         Map<Integer, List<Pair<NGram, Integer>>> sortedNGramFreqs = new HashMap<>();
         for (int n = 0; n < MAX_N_GRAM; n++)
             sortedNGramFreqs.put(n, new ArrayList<>());
 
-        for (CSVRecord nGramFreq : records) {
-            if (nGramFreq.size() != TSV_RECORD_SIZE)
-                throw new IOException("Cannot parse ");
-            String[] tokens = nGramFreq.get(0).split(" ");
-            sortedNGramFreqs.get(tokens.length - 1)
-                    .add(Pair.of(new NGram(tokens), Integer.parseInt(nGramFreq.get(1))));
+        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(csvFile))) {
+            Iterable<CSVRecord> records = CSVFormat.DEFAULT.withDelimiter(TSV_DELIMITER)
+                    .withIgnoreEmptyLines().withSkipHeaderRecord()
+                    .parse(new InputStreamReader(bis, StandardCharsets.UTF_8));
+
+            for (CSVRecord nGramFreq : records) {
+                if (nGramFreq.size() != TSV_RECORD_SIZE)
+                    throw new IOException("Cannot parse ");
+                String[] tokens = nGramFreq.get(0).split(" ");
+                sortedNGramFreqs.get(tokens.length - 1)
+                        .add(Pair.of(new NGram(tokens), Integer.parseInt(nGramFreq.get(1))));
+            }
         }
 
         return new NGramStats(sortedNGramFreqs);
@@ -227,24 +378,76 @@ public class NGramStatsFactoryImpl
     @EventListener
     public void onAfterDocumentCreatedEvent(AfterDocumentCreatedEvent event)
     {
-        try {
-            this.createOrLoad(event.getDocument());
-        }
-        catch (IOException | CASException e) {
-            // TODO what to throw or do?!
-            e.printStackTrace();
-        }
+        scheduleComputation(event.getDocument());
     }
 
     @EventListener
     public void onDocumentOpenedEvent(DocumentOpenedEvent event)
     {
-        try {
-            this.createOrLoad(event.getDocument());
+        scheduleComputation(event.getDocument());
+    }
+
+    @FunctionalInterface
+    private interface CounterSource<T>
+    {
+        NGramCounter toCounter(T source) throws IOException, CASException;
+    }
+
+    private static class MergeException
+        extends RuntimeException
+    {
+        private static final long serialVersionUID = 3528815932452741802L;
+
+        public MergeException(Exception cause)
+        {
+            super(cause);
         }
-        catch (IOException | CASException e) {
-            // TODO what to throw or do?!
-            e.printStackTrace();
+    }
+
+    /**
+     * Splits the sources in halves until single sources are left, converts these to counters and
+     * merges the counters of both halves on the way back up.
+     */
+    private static class MergeTask<T>
+        extends RecursiveTask<NGramCounter>
+    {
+        private static final long serialVersionUID = -2069412707431707036L;
+
+        private final List<T> sources;
+        private final CounterSource<T> toCounter;
+
+        public MergeTask(List<T> sources, CounterSource<T> toCounter)
+        {
+            this.sources = sources;
+            this.toCounter = toCounter;
+        }
+
+        @Override
+        protected NGramCounter compute()
+        {
+            if (sources.size() == 1) {
+                try {
+                    return toCounter.toCounter(sources.get(0));
+                }
+                catch (IOException | CASException e) {
+                    throw new MergeException(e);
+                }
+            }
+
+            int mid = sources.size() / 2;
+            MergeTask<T> left = new MergeTask<>(sources.subList(0, mid), toCounter);
+            MergeTask<T> right = new MergeTask<>(sources.subList(mid, sources.size()), toCounter);
+            left.fork();
+            NGramCounter rightCounter = right.compute();
+            NGramCounter leftCounter = left.join();
+
+            // add the smaller counter to the larger one
+            if (leftCounter.getDistinct(1) < rightCounter.getDistinct(1)) {
+                rightCounter.addAll(leftCounter);
+                return rightCounter;
+            }
+            leftCounter.addAll(rightCounter);
+            return leftCounter;
         }
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.NGramStats;
+
+/**
+ * Reads and writes n-gram statistics in a compact binary format:
+ *
+ * <pre>
+ * int    magic
+ * int    format version
+ * long   stats version
+ * int    maximum n-gram length N
+ * int    number of tokens T
+ * T x    (int byte length, UTF-8 bytes) - the token dictionary
+ * N x    (int number of n-grams E,
+ *         E x (n x int token index, int count)) - n-grams sorted by descending count
+ * </pre>
+ *
+ * Files are written to a temporary file which is then moved into place, so readers never see a
+ * partially written file. Files are read into a heap buffer in one go and the n-grams are only
+ * decoded when they are accessed, see {@link NGramFrequencyList}.
+ */
+public final class NGramStatsFile
+{
+    private static final int MAGIC = 0x4E47524D; // "NGRM"
+    public static final int FORMAT_VERSION = 1;
+
+    private NGramStatsFile()
+    {
+        // No instances
+    }
+
+    public static void write(NGramStats aStats, File aFile) throws IOException
+    {
+        FileUtils.forceMkdir(aFile.getParentFile());
+
+        // Build the token dictionary
+        Map<String, Integer> tokenIndex = new HashMap<>();
+        List<String> tokens = new ArrayList<>();
+        for (List<Pair<NGram, Integer>> freqs : aStats.getSortedFrequencies().values()) {
+            for (Pair<NGram, Integer> freq : freqs) {
+                for (String token : freq.getKey().getAll()) {
+                    if (!tokenIndex.containsKey(token)) {
+                        tokenIndex.put(token, tokens.size());
+                        tokens.add(token);
+                    }
+                }
+            }
+        }
+
+        File tempFile = File.createTempFile(aFile.getName(), ".tmp", aFile.getParentFile());
+        try {
+            writeTo(aStats, tempFile, tokens, tokenIndex);
+            move(tempFile.toPath(), aFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private static void writeTo(NGramStats aStats, File aFile, List<String> aTokens,
+            Map<String, Integer> aTokenIndex)
+        throws IOException
+    {
+        int maxN = aStats.getSortedFrequencies().size();
+        try (DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(aFile)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(FORMAT_VERSION);
+            os.writeLong(aStats.getVersion());
+            os.writeInt(maxN);
+
+            os.writeInt(aTokens.size());
+            for (String token : aTokens) {
+                byte[] bytes = token.getBytes(UTF_8);
+                os.writeInt(bytes.length);
+                os.write(bytes);
+            }
+
+            for (int n = 0; n < maxN; n++) {
+                List<Pair<NGram, Integer>> freqs = aStats.getSortedFrequencies(n);
+                os.writeInt(freqs.size());
+                for (Pair<NGram, Integer> freq : freqs) {
+                    if (freq.getKey().getN() != n + 1) {
+                        throw new IOException("N-gram [" + freq.getKey() + "] is not a "
+                                + (n + 1) + "-gram");
+                    }
+                    for (String token : freq.getKey().getAll()) {
+                        os.writeInt(aTokenIndex.get(token));
+                    }
+                    os.writeInt(freq.getValue());
+                }
+            }
+        }
+    }
+
+    public static NGramStats read(File aFile) throws IOException
+    {
+        // The entries are copied out of the buffer anyway, so a mapping which is only released
+        // once it is garbage collected would not gain anything over a heap buffer
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("N-gram stats file [" + aFile + "] is too large");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until the buffer is full or the file ends
+            }
+            buffer.flip();
+        }
+
+        try {
+            return read(buffer);
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("N-gram stats file [" + aFile + "] is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * @return the stats version stored in the file or {@code -1} if the file is not a valid stats
+     *         file of the current format version.
+     */
+    public static long readVersion(File aFile) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < header.capacity() || header.getInt() != MAGIC
+                    || header.getInt() != FORMAT_VERSION) {
+                return -1;
+            }
+            return header.getLong();
+        }
+    }
+
+    private static NGramStats read(ByteBuffer aBuffer) throws IOException
+    {
+        if (aBuffer.getInt() != MAGIC) {
+            throw new IOException("Not an n-gram stats file");
+        }
+        int formatVersion = aBuffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported n-gram stats format version [" + formatVersion
+                    + "] - expected [" + FORMAT_VERSION + "]");
+        }
+        long version = aBuffer.getLong();
+        int maxN = aBuffer.getInt();
+
+        int tokenCount = aBuffer.getInt();
+        if (tokenCount < 0 || tokenCount > aBuffer.remaining() / Integer.BYTES) {
+            throw new IOException("Invalid number of tokens [" + tokenCount + "]");
+        }
+        String[] tokens = new String[tokenCount];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < tokens.length; i++) {
+            int length = aBuffer.getInt();
+            if (length < 0 || length > aBuffer.remaining()) {
+                throw new IOException("Invalid token length [" + length + "]");
+            }
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            aBuffer.get(bytes, 0, length);
+            tokens[i] = new String(bytes, 0, length, UTF_8);
+        }
+
+        // The n-grams are copied in bulk into one int array per length and only decoded when
+        // they are accessed
+        Map<Integer, List<Pair<NGram, Integer>>> sortedFrequencies = new HashMap<>();
+        for (int n = 0; n < maxN; n++) {
+            int count = aBuffer.getInt();
+            int entryLength = n + 2;
+            if (count < 0 || count > aBuffer.remaining() / Integer.BYTES / entryLength) {
+                throw new IOException("Invalid number of " + (n + 1) + "-grams [" + count + "]");
+            }
+            int[] entries = new int[count * entryLength];
+            aBuffer.asIntBuffer().get(entries);
+            aBuffer.position(aBuffer.position() + entries.length * Integer.BYTES);
+
+            for (int i = 0; i < entries.length; i++) {
+                int value = entries[i];
+                boolean isCount = i % entryLength == entryLength - 1;
+                if (value < 0 || (!isCount && value >= tokens.length)) {
+                    throw new IOException("Invalid " + (isCount ? "count" : "token index") + " ["
+                            + value + "] in " + (n + 1) + "-grams");
+                }
+            }
+
+            sortedFrequencies.put(n, new NGramFrequencyList(tokens, entries, n + 1));
+        }
+
+        return new NGramStats(sortedFrequencies, version);
+    }
+}
@@ -18,32 +18,47 @@
 package de.uhh.lt.codeanno.ui.analysis.ngramstats;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.uima.cas.CASException;
+import org.apache.wicket.ajax.AbstractAjaxTimerBehavior;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.core.request.handler.IPartialPageRequestHandler;
 import org.apache.wicket.extensions.ajax.markup.html.tabs.AjaxTabbedPanel;
 import org.apache.wicket.extensions.markup.html.tabs.AbstractTab;
 import org.apache.wicket.extensions.markup.html.tabs.ITab;
+import org.apache.wicket.feedback.IFeedback;
 import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.panel.Fragment;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.spring.injection.annot.SpringBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.support.bootstrap.BootstrapAjaxTabbedPanel;
 import de.uhh.lt.codeanno.ui.analysis.StatsPanel;
+import de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.Status;
 
 public class NGramTabsPanel<T>
     extends StatsPanel<T>
 {
     private static final long serialVersionUID = 7406558747437511453L;
 
-    private @SpringBean DocumentService documentService;
+    private static final Logger LOG = LoggerFactory.getLogger(NGramTabsPanel.class);
+
+    private static final Duration STATUS_POLL_INTERVAL = Duration.ofSeconds(3);
+
     private @SpringBean NGramStatsFactory nGramStatsFactory;
 
+    private AbstractAjaxTimerBehavior statusPoller;
+
     public NGramTabsPanel(String id, T analysisTarget)
     {
         super(id, analysisTarget);
@@ -61,6 +76,40 @@ public class NGramTabsPanel<T>
 
     private void createTabPanel()
     {
+        if (statusPoller != null) {
+            this.remove(statusPoller);
+            statusPoller = null;
+        }
+
+        // The stats are computed in the background - show a placeholder and poll until they are
+        // available instead of blocking the request
+        Status status = getStatus();
+        if (status == Status.FAILED) {
+            this.addOrReplace(new Fragment("tabPanel", "failedFragment", this));
+            return;
+        }
+        if (status != Status.AVAILABLE) {
+            scheduleComputation();
+            this.addOrReplace(new Fragment("tabPanel", "pendingFragment", this));
+            statusPoller = new AbstractAjaxTimerBehavior(STATUS_POLL_INTERVAL)
+            {
+                private static final long serialVersionUID = -3491186426493466530L;
+
+                @Override
+                protected void onTimer(AjaxRequestTarget target)
+                {
+                    Status current = getStatus();
+                    if (current == Status.AVAILABLE || current == Status.FAILED) {
+                        stop(target);
+                        createTabPanel();
+                        target.add(NGramTabsPanel.this);
+                    }
+                }
+            };
+            this.add(statusPoller);
+            return;
+        }
+
         AjaxTabbedPanel<ITab> nGramTabPanel = new BootstrapAjaxTabbedPanel<>("tabPanel",
                 makeTabs());
         nGramTabPanel.setOutputMarkupPlaceholderTag(true);
@@ -84,6 +133,9 @@ public class NGramTabsPanel<T>
                 public WebMarkupContainer getPanel(String panelId)
                 {
                     NGramStatsFactory.NGramStats stats = createStats();
+                    if (stats == null) {
+                        return new Fragment(panelId, "failedFragment", NGramTabsPanel.this);
+                    }
                     return new NGramStatsPanel(panelId, Model.of(stats), finalN);
                 }
             });
@@ -92,40 +144,58 @@ public class NGramTabsPanel<T>
         return tabs;
     }
 
+    private Status getStatus()
+    {
+        if (this.analysisTarget instanceof Project)
+            return nGramStatsFactory.getStatus((Project) this.analysisTarget);
+        else if (this.analysisTarget instanceof SourceDocument)
+            return nGramStatsFactory.getStatus((SourceDocument) this.analysisTarget);
+        else
+            return Status.AVAILABLE;
+    }
+
+    private void scheduleComputation()
+    {
+        if (this.analysisTarget instanceof Project)
+            nGramStatsFactory.scheduleComputation((Project) this.analysisTarget);
+        else if (this.analysisTarget instanceof SourceDocument)
+            nGramStatsFactory.scheduleComputation((SourceDocument) this.analysisTarget);
+    }
+
     @Override
     public NGramStatsFactory.NGramStats createStats()
     {
-        if (this.analysisTarget instanceof Project) {
-            // get stats from all docs in the project an merge them
-            // TODO do we want to persist this!?
-            List<NGramStatsFactory.NGramStats> stats = new ArrayList<>();
-            documentService.listSourceDocuments((Project) analysisTarget).forEach(doc -> {
-                try {
-                    stats.add(nGramStatsFactory.createOrLoad(doc));
-                }
-                catch (IOException | CASException e) {
-                    e.printStackTrace();
-                }
-            });
-            this.cachedStats.put(this.analysisTarget, nGramStatsFactory.merge(stats));
-        }
-        else if (this.analysisTarget instanceof SourceDocument) {
-            try {
-                this.cachedStats.put(this.analysisTarget,
-                        nGramStatsFactory.createOrLoad((SourceDocument) this.analysisTarget));
+        NGramStatsFactory.NGramStats stats;
+        try {
+            if (this.analysisTarget instanceof Project) {
+                // get stats from all docs in the project merged into one
+                stats = nGramStatsFactory.createOrLoad((Project) this.analysisTarget);
+            }
+            else if (this.analysisTarget instanceof SourceDocument) {
+                stats = nGramStatsFactory.createOrLoad((SourceDocument) this.analysisTarget);
             }
-            catch (IOException | CASException e) {
-                // TODO throw Exception!
-                e.printStackTrace();
+            else {
+                // nothing selected which could be analysed
+                return null;
             }
         }
-        else {
-            return null; // TODO throw Exception!
+        catch (IOException | CASException e) {
+            LOG.error("Unable to create n-gram stats of [{}]", this.analysisTarget, e);
+            error("Unable to create n-gram statistics: " + ExceptionUtils.getRootCauseMessage(e));
+            RequestCycle.get().find(IPartialPageRequestHandler.class)
+                    .ifPresent(handler -> handler.addChildren(getPage(), IFeedback.class));
+            this.cachedStats.remove(this.analysisTarget);
+            return null;
         }
 
-        return (NGramStatsFactory.NGramStats) this.cachedStats.get(this.analysisTarget);
+        this.cachedStats.put(this.analysisTarget, stats);
+        return stats;
     }
 
+    /**
+     * @return the stats which are currently shown or {@code null} if they are still being
+     *         computed.
+     */
     public NGramStatsFactory.NGramStats getCurrentStats()
     {
         return (NGramStatsFactory.NGramStats) this.cachedStats.get(this.analysisTarget);
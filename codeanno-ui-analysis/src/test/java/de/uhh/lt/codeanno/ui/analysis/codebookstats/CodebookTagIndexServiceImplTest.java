@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.codebookstats;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.persistence.EntityManager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.liquibase.LiquibaseAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+@RunWith(SpringRunner.class)
+@EnableAutoConfiguration
+@DataJpaTest(excludeAutoConfiguration = LiquibaseAutoConfiguration.class)
+@EntityScan({ "de.tudarmstadt.ukp.clarin.webanno.model", "de.uhh.lt.codeanno.model" })
+@Transactional(propagation = Propagation.NEVER)
+public class CodebookTagIndexServiceImplTest
+{
+    private static final String FEATURE = "code";
+    private static final String CODEBOOK = "codebook.Topic";
+
+    private @Autowired CodebookTagIndexServiceImpl sut;
+    private @Autowired CodebookSchemaService codebookSchemaService;
+    private @Autowired DocumentService documentService;
+    private @Autowired EntityManager entityManager;
+    private @Autowired PlatformTransactionManager transactionManager;
+
+    private Project project;
+    private SourceDocument document;
+    private Codebook codebook;
+    private AnnotationDocument annDoc1;
+    private AnnotationDocument annDoc2;
+
+    @Before
+    public void setup() throws Exception
+    {
+        reset(codebookSchemaService, documentService);
+
+        // The context and with it the database are shared by all tests, so every test works on
+        // a project of its own
+        project = new Project("project-" + System.nanoTime());
+        document = new SourceDocument("document", project, "text");
+        codebook = new Codebook(CODEBOOK, CODEBOOK, project, false);
+        new TransactionTemplate(transactionManager).execute(status -> {
+            entityManager.persist(project);
+            entityManager.persist(document);
+            entityManager.persist(codebook);
+            return null;
+        });
+
+        CodebookFeature feature = new CodebookFeature(project, codebook, FEATURE, FEATURE,
+                CAS.TYPE_NAME_STRING);
+        when(codebookSchemaService.listCodebook(project)).thenReturn(asList(codebook));
+        when(codebookSchemaService.listCodebookFeature(codebook)).thenReturn(asList(feature));
+
+        annDoc1 = new AnnotationDocument("document", project, "user1", document);
+        annDoc2 = new AnnotationDocument("document", project, "user2", document);
+        when(documentService.listAnnotationDocuments(project))
+                .thenReturn(asList(annDoc1, annDoc2));
+        when(documentService.existsAnnotationCas(annDoc1)).thenReturn(true);
+        when(documentService.existsAnnotationCas(annDoc2)).thenReturn(true);
+        when(documentService.getAnnotationCasTimestamp(document, "user1"))
+                .thenReturn(Optional.of(0l));
+        when(documentService.getAnnotationCasTimestamp(document, "user2"))
+                .thenReturn(Optional.of(0l));
+    }
+
+    @Test
+    public void thatWrittenCasReplacesEntries() throws Exception
+    {
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this, annDoc1, createCas("yes")));
+
+        assertThat(countTags("user1")).containsExactly(entry("yes", 1));
+
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this, annDoc1, createCas("no")));
+
+        assertThat(countTags("user1")).containsExactly(entry("no", 1));
+    }
+
+    @Test
+    public void thatBackfillIndexesAllAnnotationDocuments() throws Exception
+    {
+        when(documentService.readAnnotationCas(annDoc1, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("yes"));
+        when(documentService.readAnnotationCas(annDoc2, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("yes"));
+
+        assertThat(sut.isIndexed(project)).isFalse();
+
+        sut.scheduleIndexing(project);
+        awaitIndexed();
+
+        assertThat(countTags("user1", "user2")).containsExactly(entry("yes", 2));
+    }
+
+    @Test
+    public void thatBackfillSkipsCasWrittenSinceStart() throws Exception
+    {
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this, annDoc1, createCas("event")));
+        when(documentService.getAnnotationCasTimestamp(document, "user1"))
+                .thenReturn(Optional.of(currentTimeMillis() + 60 * 60 * 1000));
+        when(documentService.readAnnotationCas(annDoc1, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("stale"));
+        when(documentService.readAnnotationCas(annDoc2, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("yes"));
+
+        sut.scheduleIndexing(project);
+        awaitIndexed();
+
+        verify(documentService, never()).readAnnotationCas(annDoc1, SHARED_READ_ONLY_ACCESS);
+        assertThat(countTags("user1")).containsExactly(entry("event", 1));
+        assertThat(countTags("user2")).containsExactly(entry("yes", 1));
+    }
+
+    @Test
+    public void thatBackfillDoesNotOverwriteCasWrittenWhileReading() throws Exception
+    {
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this, annDoc1, createCas("event")));
+        // The CAS is written after the backfill checked it but before it stored the entries
+        when(documentService.getAnnotationCasTimestamp(document, "user1"))
+                .thenReturn(Optional.of(0l), Optional.of(currentTimeMillis() + 60 * 60 * 1000));
+        when(documentService.readAnnotationCas(annDoc1, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("stale"));
+        when(documentService.readAnnotationCas(annDoc2, SHARED_READ_ONLY_ACCESS))
+                .thenReturn(createCas("yes"));
+
+        sut.scheduleIndexing(project);
+        awaitIndexed();
+
+        assertThat(countTags("user1")).containsExactly(entry("event", 1));
+        assertThat(countTags("user2")).containsExactly(entry("yes", 1));
+    }
+
+    private void awaitIndexed() throws InterruptedException
+    {
+        long deadline = currentTimeMillis() + 10_000;
+        while (!sut.isIndexed(project)) {
+            assertThat(currentTimeMillis()).as("Project indexed in time").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Map<String, Integer> countTags(String... aUsers)
+    {
+        return sut.countTags(project, asList(document), asList(aUsers))
+                .getOrDefault(codebook, new HashMap<>());
+    }
+
+    private static CAS createCas(String aTag) throws Exception
+    {
+        TypeSystemDescription tsd = createTypeSystemDescription();
+        TypeDescription td = tsd.addType(CODEBOOK, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(FEATURE, "", CAS.TYPE_NAME_STRING);
+
+        CAS cas = CasFactory.createCas(tsd);
+        cas.setDocumentText("text");
+        Type type = getType(cas, CODEBOOK);
+        AnnotationFS fs = cas.createAnnotation(type, 0, 0);
+        fs.setFeatureValueFromString(type.getFeatureByBaseName(FEATURE), aTag);
+        cas.addFsToIndexes(fs);
+        return cas;
+    }
+
+    @Configuration
+    public static class TestContext
+    {
+        @Bean
+        public CodebookSchemaService codebookSchemaService()
+        {
+            return mock(CodebookSchemaService.class);
+        }
+
+        @Bean
+        public DocumentService documentService()
+        {
+            return mock(DocumentService.class);
+        }
+
+        @Bean
+        public ProjectService projectService()
+        {
+            return mock(ProjectService.class);
+        }
+
+        @Bean
+        public CodebookTagIndexServiceImpl codebookTagIndexService(
+                PlatformTransactionManager aTransactionManager)
+        {
+            return new CodebookTagIndexServiceImpl(codebookSchemaService(), documentService(),
+                    projectService(), aTransactionManager);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import static de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.MAX_N_GRAM;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link NGramCounter} with the boxed, map-per-position counting which
+ * {@link NGramStatsFactoryImpl} used before. The document is a synthetic token sequence with a
+ * Zipf-like vocabulary. Run it via {@link #main} on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class NGramCounterBenchmark
+{
+    @Param({ "1000000" })
+    public int documentLength;
+
+    @Param({ "20000" })
+    public int vocabularySize;
+
+    private List<String> tokens;
+
+    @Setup
+    public void setup()
+    {
+        Random rnd = new Random(4711);
+        tokens = new ArrayList<>(documentLength);
+        for (int i = 0; i < documentLength; i++) {
+            // Zipf-like: low ranks are much more frequent than high ranks
+            int rank = (int) Math.pow(vocabularySize, rnd.nextDouble());
+            tokens.add("token" + rank);
+        }
+    }
+
+    @Benchmark
+    public Map<Integer, List<Pair<NGram, Integer>>> primitiveCounter()
+    {
+        NGramCounter counter = new NGramCounter(MAX_N_GRAM);
+        counter.count(tokens);
+
+        Map<Integer, List<Pair<NGram, Integer>>> sorted = new HashMap<>();
+        for (int n = 0; n < MAX_N_GRAM; n++) {
+            sorted.put(n, counter.getSortedFrequencies(n + 1));
+        }
+        return sorted;
+    }
+
+    @Benchmark
+    public Map<Integer, List<Pair<NGram, Integer>>> primitiveCounterTop100()
+    {
+        NGramCounter counter = new NGramCounter(MAX_N_GRAM);
+        counter.count(tokens);
+
+        Map<Integer, List<Pair<NGram, Integer>>> top = new HashMap<>();
+        for (int n = 0; n < MAX_N_GRAM; n++) {
+            top.put(n, counter.getTopK(n + 1, 100));
+        }
+        return top;
+    }
+
+    /**
+     * The counting as it was done by {@code NGramStatsFactoryImpl.createFrequencyMapsFromTokens}
+     * and {@code createSortedList}.
+     */
+    @Benchmark
+    public Map<Integer, List<Pair<NGram, Integer>>> boxedMaps()
+    {
+        Map<Integer, Map<NGram, Integer>> nGramFrequencies = new HashMap<>();
+        for (int n = 0; n < MAX_N_GRAM; n++)
+            nGramFrequencies.put(n, new HashMap<>());
+
+        for (int i = 0; i < tokens.size(); i++) {
+            for (int n = 0; n < MAX_N_GRAM; n++) {
+                if (i + n < tokens.size()) {
+                    NGram nGram = new NGram(new ArrayList<>(tokens.subList(i, i + n + 1)));
+                    nGramFrequencies.get(n).computeIfPresent(nGram, (s, count) -> ++count);
+                    nGramFrequencies.get(n).putIfAbsent(nGram, 1);
+                }
+            }
+        }
+
+        Map<Integer, List<Pair<NGram, Integer>>> sortedNGramFreqs = new HashMap<>();
+        for (int n = 0; n < MAX_N_GRAM; n++) {
+            sortedNGramFreqs.put(n,
+                    nGramFrequencies.get(n).entrySet().stream()
+                            .map(e -> Pair.of(e.getKey(), e.getValue()))
+                            .sorted((o1, o2) -> o2.getRight().compareTo(o1.getRight()))
+                            .collect(Collectors.toList()));
+        }
+        return sortedNGramFreqs;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(NGramCounterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
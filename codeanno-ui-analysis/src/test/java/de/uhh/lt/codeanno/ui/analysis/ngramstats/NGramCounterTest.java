@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+public class NGramCounterTest
+{
+    @Test
+    public void thatNGramsAreCounted()
+    {
+        NGramCounter sut = new NGramCounter(3);
+        sut.count(asList("a", "b", "a", "b", "c"));
+
+        assertThat(sut.getSortedFrequencies(1)) //
+                .extracting(p -> p.getKey().toString(), Pair::getValue) //
+                .containsExactlyInAnyOrder(tuple("a", 2), tuple("b", 2), tuple("c", 1));
+        assertThat(sut.getSortedFrequencies(2)) //
+                .extracting(p -> p.getKey().toString(), Pair::getValue) //
+                .containsExactlyInAnyOrder(tuple("a b", 2), tuple("b a", 1), tuple("b c", 1));
+        assertThat(sut.getSortedFrequencies(2).get(0).getKey()).isEqualTo(new NGram("a", "b"));
+        assertThat(sut.getCount(new NGram("a", "b", "c"))).isEqualTo(1);
+        assertThat(sut.getCount(new NGram("c", "a"))).isEqualTo(0);
+        assertThat(sut.getCount(new NGram("x"))).isEqualTo(0);
+        assertThat(sut.getDistinct(3)).isEqualTo(3);
+    }
+
+    @Test
+    public void thatCountsMatchNaiveCounting()
+    {
+        Random rnd = new Random(42);
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            tokens.add("t" + (int) Math.abs(rnd.nextGaussian() * 50));
+        }
+
+        NGramCounter sut = new NGramCounter(3);
+        sut.count(tokens);
+
+        for (int n = 1; n <= 3; n++) {
+            Map<List<String>, Integer> expected = new HashMap<>();
+            for (int i = 0; i + n <= tokens.size(); i++) {
+                expected.merge(new ArrayList<>(tokens.subList(i, i + n)), 1, Integer::sum);
+            }
+
+            List<Pair<NGram, Integer>> sorted = sut.getSortedFrequencies(n);
+            assertThat(sorted).hasSize(expected.size());
+            for (Pair<NGram, Integer> entry : sorted) {
+                assertThat(entry.getValue()).isEqualTo(expected.get(entry.getKey().getAll()));
+            }
+            assertThat(sorted).extracting(Pair::getValue)
+                    .isSortedAccordingTo((a, b) -> b.compareTo(a));
+
+            // The top-K selection must agree with the full sort on the counts
+            List<Pair<NGram, Integer>> top = sut.getTopK(n, 10);
+            assertThat(top).extracting(Pair::getValue)
+                    .containsExactlyElementsOf(sorted.subList(0, 10).stream()
+                            .map(Pair::getValue).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void thatTokensBeyondPackedIdsAreCounted()
+    {
+        Random rnd = new Random(42);
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            tokens.add("t" + (int) Math.abs(rnd.nextGaussian() * 10));
+        }
+
+        // Only the first few distinct tokens can be packed, all other n-grams go to the hash map
+        int maxPackedId = 5;
+        NGramCounter sut = new NGramCounter(3, maxPackedId);
+        sut.count(tokens);
+        assertThat(sut.getTokenCount()).isGreaterThan(maxPackedId);
+
+        NGramCounter merged = new NGramCounter(3, maxPackedId);
+        merged.count(asList("t100", "t101"));
+        merged.addAll(sut);
+        sut.count(asList("t100", "t101"));
+
+        for (int n = 1; n <= 3; n++) {
+            Map<List<String>, Integer> expected = new HashMap<>();
+            for (int i = 0; i + n <= tokens.size(); i++) {
+                expected.merge(new ArrayList<>(tokens.subList(i, i + n)), 1, Integer::sum);
+            }
+            for (int i = 0; i + n <= 2; i++) {
+                expected.merge(asList("t100", "t101").subList(i, i + n), 1, Integer::sum);
+            }
+
+            for (NGramCounter counter : asList(sut, merged)) {
+                List<Pair<NGram, Integer>> sorted = counter.getSortedFrequencies(n);
+                assertThat(sorted).hasSize(expected.size());
+                assertThat(counter.getDistinct(n)).isEqualTo(expected.size());
+                for (Pair<NGram, Integer> entry : sorted) {
+                    assertThat(entry.getValue()).isEqualTo(expected.get(entry.getKey().getAll()));
+                    assertThat(counter.getCount(entry.getKey())).isEqualTo(entry.getValue());
+                }
+                assertThat(sorted).extracting(Pair::getValue)
+                        .isSortedAccordingTo((a, b) -> b.compareTo(a));
+
+                List<Pair<NGram, Integer>> top = counter.getTopK(n, 10);
+                assertThat(top).extracting(Pair::getValue)
+                        .containsExactlyElementsOf(sorted.subList(0, 10).stream()
+                                .map(Pair::getValue).collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void thatAddedCountsAreMerged()
+    {
+        NGramCounter first = new NGramCounter(3);
+        first.count(asList("a", "b", "c"));
+
+        NGramCounter sut = new NGramCounter(3);
+        sut.count(asList("c", "a", "b"));
+        for (int n = 1; n <= 3; n++) {
+            for (Pair<NGram, Integer> entry : first.getSortedFrequencies(n)) {
+                sut.add(entry.getKey(), entry.getValue());
+            }
+        }
+
+        assertThat(sut.getCount(new NGram("a", "b"))).isEqualTo(2);
+        assertThat(sut.getCount(new NGram("c"))).isEqualTo(2);
+        assertThat(sut.getCount(new NGram("a", "b", "c"))).isEqualTo(1);
+        assertThat(sut.getCount(new NGram("c", "a", "b"))).isEqualTo(1);
+    }
+
+    @Test
+    public void thatCountersAreMerged()
+    {
+        NGramCounter other = new NGramCounter(3);
+        other.count(asList("x", "a", "b", "x"));
+
+        NGramCounter sut = new NGramCounter(3);
+        sut.count(asList("a", "b", "c"));
+        sut.addAll(other);
+
+        assertThat(sut.getCount(new NGram("a", "b"))).isEqualTo(2);
+        assertThat(sut.getCount(new NGram("x"))).isEqualTo(2);
+        assertThat(sut.getCount(new NGram("b", "x"))).isEqualTo(1);
+        assertThat(sut.getCount(new NGram("x", "a", "b"))).isEqualTo(1);
+        assertThat(sut.getCount(new NGram("a", "b", "c"))).isEqualTo(1);
+        assertThat(sut.getDistinct(1)).isEqualTo(4);
+        assertThat(sut.getDistinct(2)).isEqualTo(4);
+    }
+}
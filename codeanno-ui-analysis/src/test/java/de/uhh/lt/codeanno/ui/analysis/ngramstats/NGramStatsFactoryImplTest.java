@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.NGramStats;
+import de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.Status;
+
+public class NGramStatsFactoryImplTest
+{
+    public @Rule TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private @Mock DocumentService documentService;
+
+    private SourceDocument document;
+
+    private NGramStatsFactoryImpl sut;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        initMocks(this);
+
+        document = new SourceDocument();
+        document.setId(1l);
+        document.setName("doc.txt");
+
+        when(documentService.getDocumentFolder(document))
+                .thenReturn(new File(tempFolder.getRoot(), "source"));
+        when(documentService.createOrReadInitialCas(document)).then(invocation -> {
+            // Like the real CAS storage, reading the initial CAS requires a session
+            CasStorageSession.get();
+            return createCas("a b a b c");
+        });
+
+        sut = new NGramStatsFactoryImpl(documentService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatStatsAreComputedInBackgroundIfNoStatsFileExists() throws Exception
+    {
+        assertThat(sut.getStatus(document)).isEqualTo(Status.MISSING);
+
+        sut.scheduleComputation(document);
+
+        long deadline = currentTimeMillis() + 10_000;
+        Status status = sut.getStatus(document);
+        while (status != Status.AVAILABLE && status != Status.FAILED
+                && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            status = sut.getStatus(document);
+        }
+
+        assertThat(status).isEqualTo(Status.AVAILABLE);
+        assertThat(new File(tempFolder.getRoot(), NGramStatsFactory.NGRAM_STATS_PARENT_DIR + "/"
+                + NGramStatsFactory.NGRAM_STATS_BINARY_FILE)).exists();
+
+        // Loading the stats from the file written in the background does not need a session
+        NGramStats stats = sut.createOrLoad(document);
+        assertThat(stats.getSortedFrequencies().get(0)) //
+                .extracting(p -> p.getKey().toString(), Pair::getValue) //
+                .containsExactlyInAnyOrder(tuple("a", 2), tuple("b", 2), tuple("c", 1));
+    }
+
+    @Test
+    public void thatLegacyTsvStatsAreConverted() throws Exception
+    {
+        File statsFolder = new File(tempFolder.getRoot(), NGramStatsFactory.NGRAM_STATS_PARENT_DIR);
+        File legacyFile = new File(statsFolder, NGramStatsFactory.NGRAM_STATS_FILE);
+        FileUtils.forceMkdir(statsFolder);
+        FileUtils.writeStringToFile(legacyFile, "x\t3\ny\t1\nx y\t1\n", UTF_8);
+
+        NGramStats stats = sut.createOrLoad(document);
+
+        assertThat(stats.getSortedFrequencies(0)) //
+                .extracting(p -> p.getKey().toString(), Pair::getValue) //
+                .containsExactly(tuple("x", 3), tuple("y", 1));
+        assertThat(stats.getSortedFrequencies(1)) //
+                .extracting(p -> p.getKey().toString(), Pair::getValue) //
+                .containsExactly(tuple("x y", 1));
+        assertThat(stats.getVersion()).isPositive();
+
+        // The legacy file is replaced by the binary file and the document is not re-analyzed
+        File statsFile = new File(statsFolder, NGramStatsFactory.NGRAM_STATS_BINARY_FILE);
+        assertThat(legacyFile).doesNotExist();
+        assertThat(statsFile).exists();
+        assertThat(NGramStatsFile.read(statsFile).getSortedFrequencies(0))
+                .containsExactlyElementsOf(stats.getSortedFrequencies(0));
+        verify(documentService, never()).createOrReadInitialCas(document);
+    }
+
+    private static CAS createCas(String aText) throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(aText);
+        int begin = 0;
+        for (String token : aText.split(" ")) {
+            new Token(jcas, begin, begin + token.length()).addToIndexes();
+            begin += token.length() + 1;
+        }
+        return jcas.getCas();
+    }
+}
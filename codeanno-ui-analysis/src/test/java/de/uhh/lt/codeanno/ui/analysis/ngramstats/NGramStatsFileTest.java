@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.analysis.ngramstats;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uhh.lt.codeanno.ui.analysis.ngramstats.NGramStatsFactory.NGramStats;
+
+public class NGramStatsFileTest
+{
+    public @Rule TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void thatStatsSurviveRoundTrip() throws Exception
+    {
+        NGramStats stats = createStats(42);
+        File file = new File(tempFolder.getRoot(), "ngrams.bin");
+
+        NGramStatsFile.write(stats, file);
+
+        assertThat(NGramStatsFile.readVersion(file)).isEqualTo(42);
+
+        NGramStats read = NGramStatsFile.read(file);
+        assertThat(read.getVersion()).isEqualTo(42);
+        assertThat(read.getSortedFrequencies()).hasSameSizeAs(stats.getSortedFrequencies());
+        for (int n = 0; n < NGramStatsFactory.MAX_N_GRAM; n++) {
+            assertThat(read.getSortedFrequencies(n)).as("%d-grams", n + 1)
+                    .containsExactlyElementsOf(stats.getSortedFrequencies(n));
+            assertThat(read.getTotal(n)).isEqualTo(stats.getTotal(n));
+            assertThat(read.getDistinct(n)).isEqualTo(stats.getDistinct(n));
+            assertThat(read.getMax(n)).isEqualTo(stats.getMax(n));
+        }
+    }
+
+    @Test
+    public void thatFilteringReadStatsMatchesFilteringInMemoryStats() throws Exception
+    {
+        NGramStats stats = createStats(1);
+        File file = new File(tempFolder.getRoot(), "ngrams.bin");
+        NGramStatsFile.write(stats, file);
+        NGramStats read = NGramStatsFile.read(file);
+
+        for (int n = 0; n < NGramStatsFactory.MAX_N_GRAM; n++) {
+            int max = stats.getMax(n);
+            for (Integer[] bounds : asList(new Integer[] { null, null },
+                    new Integer[] { 0, max }, new Integer[] { 2, 5 }, new Integer[] { 3, 3 },
+                    new Integer[] { max + 1, max + 2 }, new Integer[] { -1, -1 },
+                    new Integer[] { 5, 2 })) {
+                assertThat(read.getFilteredFrequencies(n, bounds[0], bounds[1], "", ""))
+                        .as("%d-grams in %s", n + 1, asList(bounds))
+                        .containsExactlyElementsOf(stats.getFilteredFrequencies(n, bounds[0],
+                                bounds[1], "", ""));
+            }
+            assertThat(read.getFilteredFrequencies(n, 0, max, "t1", "2"))
+                    .containsExactlyElementsOf(
+                            stats.getFilteredFrequencies(n, 0, max, "t1", "2"));
+        }
+    }
+
+    @Test
+    public void thatTruncatedFilesAreRejected() throws Exception
+    {
+        File file = new File(tempFolder.getRoot(), "ngrams.bin");
+        NGramStatsFile.write(createStats(1), file);
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        File truncated = new File(tempFolder.getRoot(), "truncated.bin");
+        for (int length = 0; length < data.length; length += 7) {
+            try (RandomAccessFile raf = new RandomAccessFile(truncated, "rw")) {
+                raf.setLength(0);
+                raf.write(data, 0, length);
+            }
+
+            assertThatExceptionOfType(IOException.class).as("length %d", length)
+                    .isThrownBy(() -> NGramStatsFile.read(truncated));
+        }
+    }
+
+    @Test
+    public void thatCorruptFilesAreRejected() throws Exception
+    {
+        File file = new File(tempFolder.getRoot(), "ngrams.bin");
+
+        // Not a stats file at all
+        Files.write(file.toPath(), "a\t1\n".getBytes("UTF-8"));
+        assertThat(NGramStatsFile.readVersion(file)).isEqualTo(-1);
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> NGramStatsFile.read(file));
+
+        // Token index beyond the dictionary
+        writeRaw(file, 1, new String[] { "a" }, new int[] { 1, 5, 1 });
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> NGramStatsFile.read(file))
+                .withMessageContaining("token index");
+
+        // Negative count
+        writeRaw(file, 1, new String[] { "a" }, new int[] { 1, 0, -3 });
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> NGramStatsFile.read(file))
+                .withMessageContaining("count");
+
+        // Number of n-grams larger than the file
+        writeRaw(file, 1, new String[] { "a" }, new int[] { Integer.MAX_VALUE, 0, 1 });
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> NGramStatsFile.read(file))
+                .withMessageContaining("Invalid number");
+
+        // The same data with valid values is accepted
+        writeRaw(file, 1, new String[] { "a" }, new int[] { 1, 0, 3 });
+        assertThat(NGramStatsFile.read(file).getSortedFrequencies(0))
+                .containsExactly(Pair.of(new NGram("a"), 3));
+    }
+
+    private static void writeRaw(File aFile, int aMaxN, String[] aTokens, int[] aNGramData)
+        throws IOException
+    {
+        try (DataOutputStream os = new DataOutputStream(new FileOutputStream(aFile))) {
+            os.writeInt(0x4E47524D);
+            os.writeInt(NGramStatsFile.FORMAT_VERSION);
+            os.writeLong(1);
+            os.writeInt(aMaxN);
+            os.writeInt(aTokens.length);
+            for (String token : aTokens) {
+                byte[] bytes = token.getBytes("UTF-8");
+                os.writeInt(bytes.length);
+                os.write(bytes);
+            }
+            for (int value : aNGramData) {
+                os.writeInt(value);
+            }
+        }
+    }
+
+    private static NGramStats createStats(long aVersion)
+    {
+        Random rnd = new Random(42);
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            tokens.add("t" + (int) Math.abs(rnd.nextGaussian() * 20));
+        }
+
+        NGramCounter counter = new NGramCounter(NGramStatsFactory.MAX_N_GRAM);
+        counter.count(tokens);
+
+        Map<Integer, List<Pair<NGram, Integer>>> sortedFrequencies = new HashMap<>();
+        for (int n = 0; n < NGramStatsFactory.MAX_N_GRAM; n++) {
+            sortedFrequencies.put(n, counter.getSortedFrequencies(n + 1));
+        }
+        return new NGramStats(sortedFrequencies, aVersion);
+    }
+}
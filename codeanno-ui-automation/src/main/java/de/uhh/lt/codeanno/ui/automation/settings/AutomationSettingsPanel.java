@@ -24,6 +24,7 @@ import java.util.stream.Collectors;
 
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.behavior.AttributeAppender;
+import org.apache.wicket.feedback.IFeedback;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.DropDownChoice;
@@ -195,17 +196,18 @@ public class AutomationSettingsPanel
         Project project = this.getModelObject().getProject();
         String modelVersion = this.getModelObject().getModelVersion();
 
-        // start async prediction for all docs in the project
-        try {
-            codebookAutomationService.predictTagsAsync(cb, project, modelVersion, this);
+        // start pipelined batch prediction for all docs in the project
+        if (codebookAutomationService.predictTagsInBatches(cb, project, modelVersion, this)) {
             // disable the buttons
             this.createOrUpdateStartPredictionsButton();
             aTarget.add(this.startPredictionsButton);
         }
-        catch (ApiException exception) {
-            exception.printStackTrace();
+        else {
+            error(getString(codebookAutomationService.isPredictionInProgress(cb, this)
+                    ? "predictions.alreadyRunning"
+                    : "automation.unavailable"));
+            aTarget.addChildren(getPage(), IFeedback.class);
         }
-
     }
 
     private void createOrUpdateModelMetadataPanel()
@@ -17,7 +17,6 @@
  */
 package de.uhh.lt.codeanno.ui.curation;
 
-import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PAGE_PARAM_DOCUMENT_ID;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PAGE_PARAM_FOCUS;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PAGE_PARAM_PROJECT_ID;
@@ -74,7 +73,6 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging.SentenceOrientedP
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.event.SelectionChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.ConstraintsService;
 import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
-import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
@@ -82,11 +80,9 @@ import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.clarin.webanno.support.wicket.DecoratedObject;
 import de.tudarmstadt.ukp.clarin.webanno.support.wicket.WicketUtil;
-import de.uhh.lt.codeanno.api.adapter.CodebookCasAdapter;
 import de.uhh.lt.codeanno.api.merge.CodebookCasMergeService;
 import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
 import de.uhh.lt.codeanno.model.Codebook;
-import de.uhh.lt.codeanno.model.CodebookFeature;
 import de.uhh.lt.codeanno.ui.curation.tree.CodebookCurationTreePanel;
 
 // FIXME we have to make a copy / duplication of some classes because it would result
@@ -110,6 +106,7 @@ public class CodebookCurationPage
     private @SpringBean AnnotationEditorExtensionRegistry extensionRegistry;
     private @SpringBean ConstraintsService constraintsService;
     private @SpringBean CasStorageService casStorageService;
+    private @SpringBean CodebookSuggestionCache suggestionCache;
 
     // Open the dialog window on first load
     private boolean firstLoad = true;
@@ -232,7 +229,6 @@ public class CodebookCurationPage
     private void onDocumentSelected(AjaxRequestTarget aTarget)
     {
         AnnotatorState state = getModelObject();
-        String username = SecurityContextHolder.getContext().getAuthentication().getName();
         /*
          * Changed for #152, getDocument was returning null even after opening a document Also,
          * surrounded following code into if block to avoid error.
@@ -244,7 +240,6 @@ public class CodebookCurationPage
         if (state.getDocument() != null) {
             try {
                 documentService.createSourceDocument(state.getDocument());
-                codebookCasMergeService.upgradeCasAndSave(state.getDocument(), username);
 
                 actionLoadDocument(aTarget);
             }
@@ -320,13 +315,9 @@ public class CodebookCurationPage
             updateDocumentTimestampAfterWrite(state,
                     curationDocumentService.getCurationCasTimestamp(state.getDocument()));
 
-            // upgrade all CASes of all Users
-            // FIXME this is not working as intended
-            List<AnnotationDocument> annotationDocuments = documentService
-                    .listAnnotationDocuments(getModelObject().getDocument());
-            for (AnnotationDocument annotationDocument : annotationDocuments)
-                codebookCasMergeService.upgradeCasAndSave(annotationDocument.getDocument(),
-                        annotationDocument.getUser());
+            // The CASes of the annotators are not upgraded and rewritten here. They are loaded
+            // with shared read-only access and upgraded in memory when needed (see
+            // CodebookCasMergeService.getUserCASes)
 
             currentProjectId = state.getProject().getId();
 
@@ -381,61 +372,19 @@ public class CodebookCurationPage
 
         Map<Codebook, List<CodebookUserSuggestion>> userSuggestions = new HashMap<>();
 
-        Map<String, CAS> curationCASes = codebookCasMergeService
-                .getUserCASes(getModelObject().getDocument());
+        // the tags of the annotators are only re-read if any of their CASes changed
+        CodebookSuggestionMatrix matrix = suggestionCache.getSuggestions(currentDocument);
+        if (matrix.getUsers().isEmpty())
+            return userSuggestions;
 
         // get all codebooks of the current project (this are also all the available
         // codebooks of the current document!)
-        List<Codebook> allCodebooksOfProject = codebookService.listCodebook(currentProject);
-
-        // check what the user suggestions for every codebook and every user
-        for (Codebook codebook : allCodebooksOfProject) {
-            // boolean hasDiff = hasDiff(codebook, allCodebooksOfProject, curationCASes);
-            for (Map.Entry<String, CAS> entry : curationCASes.entrySet()) {
-                String userName = entry.getKey();
-
-                // dont show CURATION_USER suggestions
-                if (userName.equals(CURATION_USER))
-                    continue;
-
-                CodebookFeature feature = codebookService.listCodebookFeature(codebook).get(0);
-                CodebookCasAdapter adapter = new CodebookCasAdapter(codebook);
-                String value = (String) adapter.getExistingCodeValue(entry.getValue(), feature);
-
-                userSuggestions.putIfAbsent(codebook, new ArrayList<>());
-                userSuggestions.get(codebook).add(new CodebookUserSuggestion(userName, codebook,
-                        value, currentDocument, true));
-
-            }
-        }
-
-        // check if there is a difference between the CodebookUserSuggestions
-        for (List<CodebookUserSuggestion> suggestions : userSuggestions.values()) {
-            boolean hasDiff = hasDiff(suggestions);
-            for (CodebookUserSuggestion suggestion : suggestions)
-                suggestion.setDiff(hasDiff);
-        }
+        for (Codebook codebook : codebookService.listCodebook(currentProject))
+            userSuggestions.put(codebook, matrix.getSuggestions(codebook, currentDocument));
 
         return userSuggestions;
     }
 
-    private boolean hasDiff(List<CodebookUserSuggestion> userSuggestions)
-    {
-        String val = userSuggestions.get(0).getValue();
-        boolean flag = false;
-        for (CodebookUserSuggestion suggestion : userSuggestions) {
-            if (val == null && suggestion.getValue() == null) {
-                flag = false;
-            }
-            else if ((val == null && suggestion.getValue() != null)
-                    || (val != null && suggestion.getValue() == null)
-                    || (val != null && !val.equals(suggestion.getValue()))) {
-                flag = true;
-            }
-        }
-        return flag;
-    }
-
     private Project getProjectFromParameters(StringValue projectParam)
     {
         Project project = null;
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AnnotationStateChangeEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.api.event.CodebookConfigurationChangedEvent;
+import de.uhh.lt.codeanno.api.merge.CodebookCasMergeService;
+import de.uhh.lt.codeanno.api.merge.CodebookDiff;
+import de.uhh.lt.codeanno.api.merge.CodebookDiffResult;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+
+/**
+ * Caches the {@link CodebookSuggestionMatrix} of the documents which are being curated. An entry
+ * is only valid as long as the annotation CASes it was built from are unchanged, so it is
+ * validated against their timestamps on every access. Entries are also dropped as soon as an
+ * annotation document of the document changes its state or a CAS of it is written.
+ */
+@Component
+public class CodebookSuggestionCache
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DocumentService documentService;
+    private final CodebookSchemaService codebookService;
+    private final CodebookCasMergeService codebookCasMergeService;
+
+    private final Cache<Long, Entry> suggestions;
+
+    @Autowired
+    public CodebookSuggestionCache(DocumentService aDocumentService,
+            CodebookSchemaService aCodebookService,
+            CodebookCasMergeService aCodebookCasMergeService)
+    {
+        documentService = aDocumentService;
+        codebookService = aCodebookService;
+        codebookCasMergeService = aCodebookCasMergeService;
+
+        suggestions = Caffeine.newBuilder() //
+                .maximumSize(256) //
+                .expireAfterAccess(Duration.ofMinutes(30)) //
+                .build();
+    }
+
+    /**
+     * @return the tags of all annotators who finished the document. The CASes of the annotators
+     *         are only read if any of them changed since the last call.
+     */
+    public CodebookSuggestionMatrix getSuggestions(SourceDocument aDocument)
+    {
+        Map<String, Long> timestamps = getCasTimestamps(aDocument);
+
+        Entry entry = suggestions.getIfPresent(aDocument.getId());
+        if (entry != null && entry.timestamps.equals(timestamps)) {
+            return entry.matrix;
+        }
+
+        CodebookSuggestionMatrix matrix = createMatrix(aDocument);
+        if (timestamps != null) {
+            suggestions.put(aDocument.getId(), new Entry(timestamps, matrix));
+        }
+        return matrix;
+    }
+
+    @EventListener
+    public void onAfterCasWritten(AfterCasWrittenEvent aEvent)
+    {
+        suggestions.invalidate(aEvent.getDocument().getDocument().getId());
+    }
+
+    @EventListener
+    public void onAnnotationStateChange(AnnotationStateChangeEvent aEvent)
+    {
+        suggestions.invalidate(aEvent.getDocument().getId());
+    }
+
+    @EventListener
+    public void onCodebookConfigurationChanged(CodebookConfigurationChangedEvent aEvent)
+    {
+        // the codebooks are the rows of the matrices
+        suggestions.invalidateAll();
+    }
+
+    /**
+     * @return the CAS timestamps of the users who finished the document or {@code null} if they
+     *         could not be determined.
+     */
+    private Map<String, Long> getCasTimestamps(SourceDocument aDocument)
+    {
+        Map<String, Long> timestamps = new HashMap<>();
+        for (AnnotationDocument annotationDocument : documentService
+                .listAnnotationDocuments(aDocument)) {
+            if (!annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
+                continue;
+            }
+
+            String username = annotationDocument.getUser();
+            try {
+                timestamps.put(username, documentService
+                        .getAnnotationCasTimestamp(aDocument, username).orElse(-1L));
+            }
+            catch (IOException e) {
+                log.error("Unable to determine the CAS timestamp of user [{}] for document "
+                        + "[{}]({})", username, aDocument.getName(), aDocument.getId(), e);
+                return null;
+            }
+        }
+        return timestamps;
+    }
+
+    private CodebookSuggestionMatrix createMatrix(SourceDocument aDocument)
+    {
+        Map<String, CAS> userCASes = codebookCasMergeService.getUserCASes(aDocument);
+        // dont show CURATION_USER suggestions
+        userCASes.remove(CURATION_USER);
+
+        CodebookDiffResult diff = CodebookDiff.doFastCodebookDiff(codebookService,
+                aDocument.getProject(), userCASes);
+
+        List<String> codebooks = new ArrayList<>(diff.getCodebooks());
+        List<String> users = new ArrayList<>(diff.getUsers());
+        String[][] tags = new String[codebooks.size()][users.size()];
+        for (int c = 0; c < codebooks.size(); c++) {
+            for (int u = 0; u < users.size(); u++) {
+                tags[c][u] = diff.getTag(c, u);
+            }
+        }
+
+        return new CodebookSuggestionMatrix(codebooks, users, tags);
+    }
+
+    private static class Entry
+    {
+        private final Map<String, Long> timestamps;
+        private final CodebookSuggestionMatrix matrix;
+
+        Entry(Map<String, Long> aTimestamps, CodebookSuggestionMatrix aMatrix)
+        {
+            timestamps = aTimestamps;
+            matrix = aMatrix;
+        }
+    }
+}
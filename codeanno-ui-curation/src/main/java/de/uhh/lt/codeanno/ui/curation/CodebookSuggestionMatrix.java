@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.model.Codebook;
+
+/**
+ * The tags the annotators assigned to the codebooks of a single document. The tags are kept as a
+ * codebook &times; user matrix together with a flag per codebook telling whether the annotators
+ * disagree.
+ */
+public class CodebookSuggestionMatrix
+    implements Serializable
+{
+    private static final long serialVersionUID = -2905162826339431077L;
+
+    private final List<String> codebooks;
+    private final List<String> users;
+
+    // [codebook][user]
+    private final String[][] tags;
+    private final boolean[] diffs;
+
+    CodebookSuggestionMatrix(List<String> aCodebooks, List<String> aUsers, String[][] aTags)
+    {
+        codebooks = new ArrayList<>(aCodebooks);
+        users = new ArrayList<>(aUsers);
+        tags = aTags;
+        diffs = new boolean[codebooks.size()];
+        for (int c = 0; c < codebooks.size(); c++) {
+            for (int u = 1; u < users.size(); u++) {
+                if (!Objects.equals(tags[c][0], tags[c][u])) {
+                    diffs[c] = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the users in the order of the matrix columns.
+     */
+    public List<String> getUsers()
+    {
+        return Collections.unmodifiableList(users);
+    }
+
+    /**
+     * @return the tag the user assigned with the codebook or {@code null} if there is none.
+     */
+    public String getTag(Codebook aCodebook, String aUser)
+    {
+        int c = codebooks.indexOf(aCodebook.getName());
+        int u = users.indexOf(aUser);
+        return c < 0 || u < 0 ? null : tags[c][u];
+    }
+
+    /**
+     * @return whether not all users assigned the same tag with the codebook.
+     */
+    public boolean hasDiff(Codebook aCodebook)
+    {
+        int c = codebooks.indexOf(aCodebook.getName());
+        return c >= 0 && diffs[c];
+    }
+
+    /**
+     * @return the suggestions of all users for the codebook. The list is empty if no annotator has
+     *         finished the document.
+     */
+    public List<CodebookUserSuggestion> getSuggestions(Codebook aCodebook, SourceDocument aDocument)
+    {
+        int c = codebooks.indexOf(aCodebook.getName());
+        List<CodebookUserSuggestion> suggestions = new ArrayList<>();
+        for (int u = 0; u < users.size(); u++) {
+            suggestions.add(new CodebookUserSuggestion(users.get(u), aCodebook,
+                    c < 0 ? null : tags[c][u], aDocument, c >= 0 && diffs[c]));
+        }
+        return suggestions;
+    }
+}
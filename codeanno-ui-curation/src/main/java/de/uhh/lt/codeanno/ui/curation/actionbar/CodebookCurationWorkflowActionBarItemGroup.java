@@ -19,7 +19,11 @@ package de.uhh.lt.codeanno.ui.curation.actionbar;
 import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
 import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransition.CURATION_IN_PROGRESS_TO_CURATION_FINISHED;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.enabledWhen;
+import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.visibleWhen;
 
+import java.time.Duration;
+
+import org.apache.wicket.ajax.AbstractAjaxTimerBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
@@ -37,22 +41,34 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.page.AnnotationPageBase;
 import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.support.dialog.ConfirmationDialog;
 import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaAjaxLink;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogLevel;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
 import de.uhh.lt.codeanno.api.merge.CodebookCasMergeService;
+import de.uhh.lt.codeanno.ui.curation.merge.CodebookBatchMergeMonitor;
+import de.uhh.lt.codeanno.ui.curation.merge.CodebookBatchMergeService;
 
 public class CodebookCurationWorkflowActionBarItemGroup
     extends Panel
 {
     private static final long serialVersionUID = 8596786586955459711L;
+    private static final Duration BATCH_MERGE_POLL_INTERVAL = Duration.ofSeconds(2);
     protected final ConfirmationDialog finishDocumentDialog;
     private final AnnotationPageBase page;
     private final LambdaAjaxLink finishDocumentLink;
     private final MergeDialog resetDocumentDialog;
     private final LambdaAjaxLink resetDocumentLink;
+    private final ConfirmationDialog batchMergeDialog;
+    private final LambdaAjaxLink batchMergeLink;
+    private final Label batchMergeProgress;
+    private AbstractAjaxTimerBehavior batchMergePoller;
     private @SpringBean DocumentService documentService;
     private @SpringBean CurationDocumentService curationDocumentService;
     private @SpringBean CodebookCasMergeService codebookCasMergeService;
+    private @SpringBean CodebookBatchMergeService batchMergeService;
+    private @SpringBean UserDao userRepository;
 
     public CodebookCurationWorkflowActionBarItemGroup(String aId, AnnotationPageBase aPage)
     {
@@ -82,6 +98,106 @@ public class CodebookCurationWorkflowActionBarItemGroup
         add(resetDocumentLink = new LambdaAjaxLink("showResetDocumentDialog",
                 resetDocumentDialog::show));
         resetDocumentLink.add(enabledWhen(this::isEditable));
+
+        add(batchMergeDialog = new ConfirmationDialog("batchMergeDialog",
+                new StringResourceModel("BatchMergeDialog.title", this, null),
+                new StringResourceModel("BatchMergeDialog.text", this, null)));
+        batchMergeDialog.setConfirmAction(this::actionBatchMerge);
+
+        add(batchMergeLink = new LambdaAjaxLink("showBatchMergeDialog", batchMergeDialog::show));
+        batchMergeLink.setOutputMarkupId(true);
+        batchMergeLink.add(enabledWhen(
+                () -> page.getModelObject().getProject() != null && !isBatchMergeRunning()));
+
+        add(batchMergeProgress = new Label("batchMergeProgress",
+                LambdaModel.of(this::getBatchMergeProgress)));
+        batchMergeProgress.setOutputMarkupPlaceholderTag(true);
+        // The poller lives on the progress label, so the label must stay visible until the
+        // poller noticed that the batch merge is done
+        batchMergeProgress.add(visibleWhen(() -> isBatchMergeRunning() || isBatchMergePolling()));
+    }
+
+    private boolean isBatchMergePolling()
+    {
+        return batchMergePoller != null && !batchMergePoller.isStopped();
+    }
+
+    private boolean isBatchMergeRunning()
+    {
+        return getBatchMergeMonitor() != null && !getBatchMergeMonitor().getState().isDone();
+    }
+
+    private CodebookBatchMergeMonitor getBatchMergeMonitor()
+    {
+        AnnotatorState state = page.getModelObject();
+        if (state.getProject() == null) {
+            return null;
+        }
+        return batchMergeService.getBatchMergeMonitor(state.getProject()).orElse(null);
+    }
+
+    private String getBatchMergeProgress()
+    {
+        CodebookBatchMergeMonitor monitor = getBatchMergeMonitor();
+        if (monitor == null) {
+            return "";
+        }
+        return String.format(getString("batchMergeProgress"), monitor.getProcessedDocuments(),
+                monitor.getTotalDocuments());
+    }
+
+    protected void actionBatchMerge(AjaxRequestTarget aTarget)
+    {
+        AnnotatorState state = page.getModelObject();
+        batchMergeService.startBatchMerge(state.getProject(),
+                userRepository.getCurrentUser().getUsername());
+
+        // The documents are merged in the background while the action bar polls the progress
+        if (batchMergePoller == null) {
+            batchMergePoller = new AbstractAjaxTimerBehavior(BATCH_MERGE_POLL_INTERVAL)
+            {
+                private static final long serialVersionUID = -1978231865470925416L;
+
+                @Override
+                protected void onTimer(AjaxRequestTarget aTimerTarget)
+                {
+                    aTimerTarget.add(batchMergeProgress);
+                    if (!isBatchMergeRunning()) {
+                        stop(aTimerTarget);
+                        actionBatchMergeFinished(aTimerTarget);
+                    }
+                }
+            };
+            batchMergeProgress.add(batchMergePoller);
+        }
+        else {
+            batchMergePoller.restart(aTarget);
+        }
+
+        aTarget.add(batchMergeLink, batchMergeProgress);
+    }
+
+    protected void actionBatchMergeFinished(AjaxRequestTarget aTarget)
+    {
+        CodebookBatchMergeMonitor monitor = getBatchMergeMonitor();
+        if (monitor != null) {
+            for (LogMessage message : monitor.getMessages()) {
+                if (LogLevel.ERROR.equals(message.getLevel())) {
+                    error(message.getMessage());
+                }
+                else {
+                    info(message.getMessage());
+                }
+            }
+        }
+
+        // The curation CAS of the open document may have changed
+        if (page.getModelObject().getDocument() != null) {
+            page.actionLoadDocument(aTarget);
+        }
+
+        aTarget.add(batchMergeLink);
+        aTarget.add(page.getFeedbackPanel());
     }
 
     public String getStateClass()
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation.merge;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+
+/**
+ * Tracks the progress of a batch merge of a project. The monitor is updated by the worker threads
+ * and polled by the UI.
+ */
+public class CodebookBatchMergeMonitor
+    implements Serializable
+{
+    private static final long serialVersionUID = -4310233416542960093L;
+
+    public enum State
+    {
+        NOT_STARTED, RUNNING, COMPLETED, CANCELLED, FAILED;
+
+        public boolean isDone()
+        {
+            return this == COMPLETED || this == CANCELLED || this == FAILED;
+        }
+    }
+
+    private final long projectId;
+    private final String username;
+    private final long createTime;
+
+    private volatile State state = State.NOT_STARTED;
+    private volatile int totalDocuments;
+    private final AtomicInteger processedDocuments = new AtomicInteger();
+    private final AtomicInteger mergedDocuments = new AtomicInteger();
+    private final AtomicInteger mergedCodebooks = new AtomicInteger();
+    private final AtomicInteger skippedDocuments = new AtomicInteger();
+    private final Queue<LogMessage> messages = new ConcurrentLinkedQueue<>();
+
+    public CodebookBatchMergeMonitor(long aProjectId, String aUsername)
+    {
+        projectId = aProjectId;
+        username = aUsername;
+        createTime = System.currentTimeMillis();
+    }
+
+    public long getProjectId()
+    {
+        return projectId;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public long getCreateTime()
+    {
+        return createTime;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    public void setState(State aState)
+    {
+        state = aState;
+    }
+
+    public int getTotalDocuments()
+    {
+        return totalDocuments;
+    }
+
+    public void setTotalDocuments(int aTotalDocuments)
+    {
+        totalDocuments = aTotalDocuments;
+    }
+
+    public int getProcessedDocuments()
+    {
+        return processedDocuments.get();
+    }
+
+    /**
+     * @return the number of documents into which at least one codebook was merged.
+     */
+    public int getMergedDocuments()
+    {
+        return mergedDocuments.get();
+    }
+
+    /**
+     * @return the number of codebooks merged over all documents.
+     */
+    public int getMergedCodebooks()
+    {
+        return mergedCodebooks.get();
+    }
+
+    /**
+     * @return the number of documents which were skipped because they already had a curation CAS.
+     */
+    public int getSkippedDocuments()
+    {
+        return skippedDocuments.get();
+    }
+
+    /**
+     * Records that a document has been skipped because it already had a curation CAS.
+     */
+    public void documentSkipped()
+    {
+        skippedDocuments.incrementAndGet();
+        processedDocuments.incrementAndGet();
+    }
+
+    /**
+     * Records that a document has been processed.
+     *
+     * @param aMergedCodebooks
+     *            the number of codebooks that were merged into the curation CAS of the document.
+     */
+    public void documentProcessed(int aMergedCodebooks)
+    {
+        if (aMergedCodebooks > 0) {
+            mergedDocuments.incrementAndGet();
+            mergedCodebooks.addAndGet(aMergedCodebooks);
+        }
+        processedDocuments.incrementAndGet();
+    }
+
+    /**
+     * @return the progress in percent.
+     */
+    public int getProgress()
+    {
+        if (state.isDone()) {
+            return 100;
+        }
+        int total = totalDocuments;
+        return total == 0 ? 0 : processedDocuments.get() * 100 / total;
+    }
+
+    public void addMessage(LogMessage aMessage)
+    {
+        messages.add(aMessage);
+    }
+
+    public List<LogMessage> getMessages()
+    {
+        return new ArrayList<>(messages);
+    }
+}
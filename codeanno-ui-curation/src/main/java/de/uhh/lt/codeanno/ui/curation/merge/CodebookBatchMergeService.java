@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation.merge;
+
+import java.util.Optional;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Merges the codebooks on which all finished annotators agree into new curation CASes for all
+ * curatable documents of a project which are not being curated yet. The merge runs in the
+ * background.
+ */
+public interface CodebookBatchMergeService
+{
+    String SERVICE_NAME = "codebookBatchMergeService";
+
+    /**
+     * Starts a batch merge of the given project. If a batch merge of the project is already
+     * running, no new one is started.
+     *
+     * @param aProject
+     *            the project.
+     * @param aUsername
+     *            the user who started the merge.
+     * @return the monitor of the batch merge of the project.
+     */
+    CodebookBatchMergeMonitor startBatchMerge(Project aProject, String aUsername);
+
+    /**
+     * @return the monitor of the running or last batch merge of the given project. Finished batch
+     *         merges are forgotten after a while.
+     */
+    Optional<CodebookBatchMergeMonitor> getBatchMergeMonitor(Project aProject);
+
+    /**
+     * Cancels the running batch merge of the given project. The documents which have already been
+     * merged keep their merged codebooks.
+     *
+     * @return whether a running batch merge was cancelled.
+     */
+    boolean cancelBatchMerge(Project aProject);
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation.merge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+import de.uhh.lt.codeanno.api.merge.CodebookCasMergeService;
+import de.uhh.lt.codeanno.api.merge.CodebookDiff;
+import de.uhh.lt.codeanno.api.merge.CodebookDiffResult;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+@Component(CodebookBatchMergeService.SERVICE_NAME)
+public class CodebookBatchMergeServiceImpl
+    implements CodebookBatchMergeService, DisposableBean
+{
+    // Finished batch merges are kept for a while so the UI can report their results
+    static final Duration FINISHED_JOB_RETENTION = Duration.ofHours(1);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DocumentService documentService;
+    private final CurationDocumentService curationDocumentService;
+    private final CodebookSchemaService codebookSchemaService;
+    private final CodebookCasMergeService codebookCasMergeService;
+
+    // Drives the batch merges - each batch merge only waits for its documents here
+    private final ExecutorService jobExecutor;
+    // Merges the documents of all running batch merges
+    private final ExecutorService documentExecutor;
+
+    // The running or last batch merge of each project - finished batch merges are evicted once
+    // their retention has passed
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CodebookBatchMergeServiceImpl(DocumentService aDocumentService,
+            CurationDocumentService aCurationDocumentService,
+            CodebookSchemaService aCodebookSchemaService,
+            CodebookCasMergeService aCodebookCasMergeService)
+    {
+        documentService = aDocumentService;
+        curationDocumentService = aCurationDocumentService;
+        codebookSchemaService = aCodebookSchemaService;
+        codebookCasMergeService = aCodebookCasMergeService;
+
+        jobExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+                .namingPattern("codebook-batch-merge-%d").daemon(true).build());
+        // Leave half of the cores to the annotators and curators
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        documentExecutor = Executors.newFixedThreadPool(workers, new BasicThreadFactory.Builder()
+                .namingPattern("codebook-batch-merge-worker-%d").daemon(true).build());
+    }
+
+    @Override
+    public void destroy()
+    {
+        jobExecutor.shutdownNow();
+        documentExecutor.shutdownNow();
+    }
+
+    @Override
+    public CodebookBatchMergeMonitor startBatchMerge(Project aProject, String aUsername)
+    {
+        evictFinishedJobs(System.currentTimeMillis());
+
+        return jobs.compute(aProject.getId(), (id, job) -> {
+            if (job != null && !job.monitor.getState().isDone()) {
+                return job;
+            }
+
+            Job newJob = new Job(new CodebookBatchMergeMonitor(aProject.getId(), aUsername));
+            newJob.driver = jobExecutor.submit(() -> run(aProject, newJob));
+            return newJob;
+        }).monitor;
+    }
+
+    @Override
+    public Optional<CodebookBatchMergeMonitor> getBatchMergeMonitor(Project aProject)
+    {
+        evictFinishedJobs(System.currentTimeMillis());
+
+        return Optional.ofNullable(jobs.get(aProject.getId())).map(job -> job.monitor);
+    }
+
+    @Override
+    public boolean cancelBatchMerge(Project aProject)
+    {
+        Job job = jobs.get(aProject.getId());
+        if (job == null || job.driver == null || job.monitor.getState().isDone()) {
+            return false;
+        }
+
+        boolean cancelled = job.driver.cancel(true);
+        // A batch merge which did not start yet will never update its monitor itself
+        if (cancelled && job.monitor.getState() == CodebookBatchMergeMonitor.State.NOT_STARTED) {
+            job.monitor.setState(CodebookBatchMergeMonitor.State.CANCELLED);
+            job.finish();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Drops the batch merges which finished more than {@link #FINISHED_JOB_RETENTION} before the
+     * given time.
+     */
+    void evictFinishedJobs(long aNow)
+    {
+        long cutoff = aNow - FINISHED_JOB_RETENTION.toMillis();
+        jobs.values().removeIf(job -> job.finishTime != 0 && job.finishTime < cutoff);
+    }
+
+    private void run(Project aProject, Job aJob)
+    {
+        CodebookBatchMergeMonitor monitor = aJob.monitor;
+        monitor.setState(CodebookBatchMergeMonitor.State.RUNNING);
+
+        List<Future<?>> documentTasks = new ArrayList<>();
+        try {
+            List<SourceDocument> documents = curationDocumentService
+                    .listCuratableSourceDocuments(aProject).stream()
+                    .filter(doc -> !CURATION_FINISHED.equals(doc.getState()))
+                    .collect(Collectors.toList());
+            monitor.setTotalDocuments(documents.size());
+
+            // Resolve the codebooks once for all documents
+            List<Codebook> codebooks = codebookSchemaService.listCodebook(aProject);
+            Map<String, Codebook> type2code = codebooks.stream()
+                    .collect(Collectors.toMap(Codebook::getName, Function.identity()));
+            List<String> codebookNames = new ArrayList<>();
+            List<String> featureNames = new ArrayList<>();
+            for (Codebook codebook : codebooks) {
+                // there is only 1 dummy feature at the moment!
+                List<CodebookFeature> features = codebookSchemaService
+                        .listCodebookFeature(codebook);
+                codebookNames.add(codebook.getName());
+                featureNames.add(features.isEmpty() ? null : features.get(0).getName());
+            }
+
+            for (SourceDocument document : documents) {
+                documentTasks.add(documentExecutor.submit(() -> mergeDocument(document,
+                        codebookNames, featureNames, type2code, monitor)));
+            }
+
+            for (Future<?> task : documentTasks) {
+                task.get();
+            }
+
+            monitor.addMessage(LogMessage.info(this,
+                    "Merged %d codebooks with agreement into %d of %d documents",
+                    monitor.getMergedCodebooks(), monitor.getMergedDocuments(),
+                    documents.size()));
+            if (monitor.getSkippedDocuments() > 0) {
+                monitor.addMessage(LogMessage.info(this,
+                        "Skipped %d documents which are already being curated",
+                        monitor.getSkippedDocuments()));
+            }
+            monitor.setState(CodebookBatchMergeMonitor.State.COMPLETED);
+        }
+        catch (InterruptedException | CancellationException e) {
+            documentTasks.forEach(task -> task.cancel(true));
+            monitor.setState(CodebookBatchMergeMonitor.State.CANCELLED);
+        }
+        catch (Throwable e) {
+            documentTasks.forEach(task -> task.cancel(true));
+            monitor.addMessage(LogMessage.error(this, "Unexpected error during batch merge: %s",
+                    ExceptionUtils.getRootCauseMessage(e)));
+            monitor.setState(CodebookBatchMergeMonitor.State.FAILED);
+            log.error("Unexpected error during batch merge of project [{}]({})",
+                    aProject.getName(), aProject.getId(), e);
+        }
+        finally {
+            aJob.finish();
+        }
+    }
+
+    /**
+     * Merges the agreeing codebooks into a new curation CAS of the document. Documents which
+     * already have a curation CAS are skipped - the curator may have deleted annotations from it
+     * on purpose and merging would bring them back.
+     */
+    private void mergeDocument(SourceDocument aDocument, List<String> aCodebooks,
+            List<String> aFeatures, Map<String, Codebook> aType2code,
+            CodebookBatchMergeMonitor aMonitor)
+    {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        try (CasStorageSession session = CasStorageSession.open()) {
+            if (curationDocumentService.getCurationCasTimestamp(aDocument).isPresent()) {
+                aMonitor.documentSkipped();
+                return;
+            }
+
+            List<AnnotationDocument> finishedDocuments = documentService
+                    .listAnnotationDocuments(aDocument).stream()
+                    .filter(ad -> FINISHED.equals(ad.getState())).collect(Collectors.toList());
+            if (finishedDocuments.isEmpty()) {
+                aMonitor.documentProcessed(0);
+                return;
+            }
+
+            Map<String, CAS> userCases = codebookCasMergeService
+                    .listCASesForCuration(finishedDocuments);
+            CodebookDiffResult diff = CodebookDiff.doFastCodebookDiff(aCodebooks, aFeatures,
+                    userCases);
+
+            CAS curationCas = codebookCasMergeService
+                    .createEmptyCurationCas(finishedDocuments.get(0));
+
+            // Only codebooks on which all finished annotators agree are merged
+            int merged = codebookCasMergeService.mergeAgreeingCodebooks(diff, aType2code,
+                    aDocument, CURATION_USER, curationCas, false);
+
+            curationDocumentService.writeCurationCas(curationCas, aDocument, true);
+
+            aMonitor.documentProcessed(merged);
+        }
+        catch (Exception e) {
+            aMonitor.addMessage(LogMessage.error(this, "Unable to merge document [%s]: %s",
+                    aDocument.getName(), ExceptionUtils.getRootCauseMessage(e)));
+            log.error("Unable to merge document [{}]({})", aDocument.getName(), aDocument.getId(),
+                    e);
+            aMonitor.documentProcessed(0);
+        }
+    }
+
+    private static class Job
+    {
+        private final CodebookBatchMergeMonitor monitor;
+        private volatile Future<?> driver;
+        private volatile long finishTime;
+
+        Job(CodebookBatchMergeMonitor aMonitor)
+        {
+            monitor = aMonitor;
+        }
+
+        void finish()
+        {
+            finishTime = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2021
+ * Language Technology (LT) Universität Hamburg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uhh.lt.codeanno.ui.curation.merge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.CasUtil.getType;
+import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.uhh.lt.codeanno.api.merge.CodebookCasMergeServiceImpl;
+import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
+import de.uhh.lt.codeanno.model.Codebook;
+import de.uhh.lt.codeanno.model.CodebookFeature;
+
+public class CodebookBatchMergeServiceImplTest
+{
+    private static final String FEATURE = "code";
+
+    private @Mock DocumentService documentService;
+    private @Mock CurationDocumentService curationDocumentService;
+    private @Mock CodebookSchemaService codebookSchemaService;
+
+    private Project project;
+    private TypeSystemDescription tsd;
+    private Map<SourceDocument, CAS> writtenCurationCases;
+    private CodebookBatchMergeServiceImpl sut;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        tsd = createTypeSystemDescription();
+        List<Codebook> codebooks = asList(codebook("codebook.Agree"),
+                codebook("codebook.Disagree"), codebook("codebook.Curated"));
+        when(codebookSchemaService.listCodebook(project)).thenReturn(codebooks);
+
+        writtenCurationCases = new ConcurrentHashMap<>();
+        doAnswer(invocation -> writtenCurationCases.put(invocation.getArgument(1),
+                invocation.getArgument(0))).when(curationDocumentService)
+                        .writeCurationCas(any(), any(), anyBoolean());
+
+        CodebookCasMergeServiceImpl codebookCasMergeService = new CodebookCasMergeServiceImpl(
+                codebookSchemaService, documentService, curationDocumentService, null, null,
+                null);
+        sut = new CodebookBatchMergeServiceImpl(documentService, curationDocumentService,
+                codebookSchemaService, codebookCasMergeService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatAgreeingCodebooksAreMergedIntoAllUncuratedDocuments() throws Exception
+    {
+        // Already curated - the curator may have deleted annotations on purpose, so the
+        // document must not be touched
+        SourceDocument curatedDocument = document(1l, "curated");
+        when(curationDocumentService.getCurationCasTimestamp(curatedDocument))
+                .thenReturn(Optional.of(1l));
+
+        // Not curated yet - gets a new curation CAS
+        SourceDocument newDocument = document(2l, "new");
+        when(curationDocumentService.getCurationCasTimestamp(newDocument))
+                .thenReturn(Optional.empty());
+
+        // Curation finished - must not be touched at all
+        SourceDocument finishedDocument = document(3l, "finished");
+        finishedDocument.setState(CURATION_FINISHED);
+
+        when(curationDocumentService.listCuratableSourceDocuments(project))
+                .thenReturn(asList(curatedDocument, newDocument, finishedDocument));
+
+        CodebookBatchMergeMonitor monitor = sut.startBatchMerge(project, "curator");
+        awaitDone(monitor);
+
+        assertThat(monitor.getState()).isEqualTo(CodebookBatchMergeMonitor.State.COMPLETED);
+        assertThat(monitor.getMessages()).hasSize(2);
+        assertThat(monitor.getProcessedDocuments()).isEqualTo(2);
+        assertThat(monitor.getSkippedDocuments()).isEqualTo(1);
+        assertThat(monitor.getMergedDocuments()).isEqualTo(1);
+        assertThat(monitor.getMergedCodebooks()).isEqualTo(2);
+
+        assertThat(writtenCurationCases).doesNotContainKey(curatedDocument);
+        verify(curationDocumentService, never()).readCurationCas(curatedDocument);
+
+        CAS created = writtenCurationCases.get(newDocument);
+        assertThat(tags(created, "codebook.Agree")).containsExactly("yes");
+        assertThat(tags(created, "codebook.Disagree")).isEmpty();
+        assertThat(tags(created, "codebook.Curated")).containsExactly("yes");
+
+        assertThat(writtenCurationCases).doesNotContainKey(finishedDocument);
+        verify(documentService, never()).listAnnotationDocuments(finishedDocument);
+    }
+
+    @Test
+    public void thatFinishedBatchMergeIsEvictedAfterRetention() throws Exception
+    {
+        when(curationDocumentService.listCuratableSourceDocuments(project))
+                .thenReturn(asList(document(1l, "new")));
+        when(curationDocumentService.getCurationCasTimestamp(any()))
+                .thenReturn(Optional.empty());
+
+        CodebookBatchMergeMonitor monitor = sut.startBatchMerge(project, "curator");
+        awaitDone(monitor);
+
+        // The result stays available to the UI for a while
+        assertThat(sut.getBatchMergeMonitor(project)).contains(monitor);
+
+        sut.evictFinishedJobs(System.currentTimeMillis()
+                + CodebookBatchMergeServiceImpl.FINISHED_JOB_RETENTION.toMillis() + 1);
+
+        assertThat(sut.getBatchMergeMonitor(project)).isEmpty();
+    }
+
+    private SourceDocument document(long aId, String aName) throws Exception
+    {
+        SourceDocument document = new SourceDocument(aName, project, "text");
+        document.setId(aId);
+
+        List<AnnotationDocument> annotationDocuments = new ArrayList<>();
+        for (String user : asList("user1", "user2")) {
+            AnnotationDocument annotationDocument = new AnnotationDocument(aName, project, user,
+                    document);
+            annotationDocument.setState(FINISHED);
+            annotationDocuments.add(annotationDocument);
+
+            // Every read returns a new CAS since the documents are merged in parallel
+            when(documentService.readAnnotationCas(document, user, AUTO_CAS_UPGRADE,
+                    SHARED_READ_ONLY_ACCESS)).thenAnswer(invocation -> createUserCas(user));
+            when(documentService.readAnnotationCas(document, user, AUTO_CAS_UPGRADE,
+                    UNMANAGED_ACCESS)).thenAnswer(invocation -> createUserCas(user));
+        }
+        when(documentService.listAnnotationDocuments(document)).thenReturn(annotationDocuments);
+
+        return document;
+    }
+
+    private CAS createUserCas(String aUser) throws Exception
+    {
+        CAS cas = createCas();
+        annotate(cas, "codebook.Agree", "yes");
+        annotate(cas, "codebook.Disagree", aUser);
+        annotate(cas, "codebook.Curated", "yes");
+        return cas;
+    }
+
+    private Codebook codebook(String aName)
+    {
+        Codebook codebook = new Codebook(aName, aName, project, false);
+        CodebookFeature feature = new CodebookFeature(project, codebook, FEATURE, FEATURE,
+                CAS.TYPE_NAME_STRING);
+        when(codebookSchemaService.listCodebookFeature(codebook)).thenReturn(asList(feature));
+
+        TypeDescription td = tsd.addType(aName, "", CAS.TYPE_NAME_ANNOTATION);
+        td.addFeature(FEATURE, "", CAS.TYPE_NAME_STRING);
+        return codebook;
+    }
+
+    private CAS createCas() throws Exception
+    {
+        CAS cas = CasFactory.createCas(tsd);
+        cas.setDocumentText("This is a test .");
+        return cas;
+    }
+
+    private static void awaitDone(CodebookBatchMergeMonitor aMonitor) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!aMonitor.getState().isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void annotate(CAS aCas, String aCodebook, String aTag)
+    {
+        Type type = getType(aCas, aCodebook);
+        AnnotationFS fs = aCas.createAnnotation(type, 0, 0);
+        fs.setFeatureValueFromString(type.getFeatureByBaseName(FEATURE), aTag);
+        aCas.addFsToIndexes(fs);
+    }
+
+    private static List<String> tags(CAS aCas, String aCodebook)
+    {
+        Type type = getType(aCas, aCodebook);
+        return selectCovered(aCas, type, 0, 0).stream()
+                .map(fs -> fs.getFeatureValueAsString(type.getFeatureByBaseName(FEATURE)))
+                .collect(Collectors.toList());
+    }
+}
@@ -35,6 +35,7 @@ import com.github.benmanes.caffeine.cache.LoadingCache;
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.layer.LayerSupportRegistry;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VDocument;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.RequestTimings;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
@@ -83,19 +84,21 @@ public class PreRendererImpl
         List<AnnotationFeature> allFeatures = allFeaturesCache.get(project);
 
         // Render (custom) layers
-        for (AnnotationLayer layer : aLayers) {
-            List<AnnotationFeature> layerSupportedFeatures = supportedFeatures.stream() //
-                    .filter(feature -> feature.getLayer().equals(layer)) //
-                    .collect(toList());
-            List<AnnotationFeature> layerAllFeatures = allFeatures.stream() //
-                    .filter(feature -> feature.getLayer().equals(layer)) //
-                    .collect(toList());
-            // We need to pass in *all* the annotation features here because we also to that in
-            // other places where we create renderers - and the set of features must always be
-            // the same because otherwise the IDs of armed slots would be inconsistent
-            Renderer renderer = layerSupportRegistry.getLayerSupport(layer) //
-                    .createRenderer(layer, () -> layerAllFeatures);
-            renderer.render(aCas, layerSupportedFeatures, aResponse, windowBegin, windowEnd);
+        try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.RENDER)) {
+            for (AnnotationLayer layer : aLayers) {
+                List<AnnotationFeature> layerSupportedFeatures = supportedFeatures.stream() //
+                        .filter(feature -> feature.getLayer().equals(layer)) //
+                        .collect(toList());
+                List<AnnotationFeature> layerAllFeatures = allFeatures.stream() //
+                        .filter(feature -> feature.getLayer().equals(layer)) //
+                        .collect(toList());
+                // We need to pass in *all* the annotation features here because we also to that
+                // in other places where we create renderers - and the set of features must always
+                // be the same because otherwise the IDs of armed slots would be inconsistent
+                Renderer renderer = layerSupportRegistry.getLayerSupport(layer) //
+                        .createRenderer(layer, () -> layerAllFeatures);
+                renderer.render(aCas, layerSupportedFeatures, aResponse, windowBegin, windowEnd);
+            }
         }
     }
 
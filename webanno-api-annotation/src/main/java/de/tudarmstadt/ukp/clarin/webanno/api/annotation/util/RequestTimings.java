@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the time spent in the major processing phases (e.g. reading, upgrading, rendering,
+ * writing CASes) of the current request. A collector is bound to the current thread while it is
+ * open. Code that wants to contribute a phase uses {@link #start(String)} or
+ * {@link #record(String, long, TimeUnit)} - if no collector is open, these calls do nothing.
+ * <p>
+ * Phases may be entered repeatedly during a request (e.g. reading the CASes of several users);
+ * the time and the number of invocations are summed up per phase. Phases may also overlap, e.g.
+ * reading a CAS includes upgrading it, so the phases do not have to add up to the total.
+ */
+public final class RequestTimings
+    implements AutoCloseable
+{
+    public static final String HEADER = "Server-Timing";
+
+    public static final String READ = "read";
+    public static final String UPGRADE = "upgrade";
+    public static final String RENDER = "render";
+    public static final String DIFF = "diff";
+    public static final String MERGE = "merge";
+    public static final String WRITE = "write";
+
+    private static final ThreadLocal<RequestTimings> activeTimings = new ThreadLocal<>();
+
+    private static final Measurement NO_MEASUREMENT = () -> {
+        // Nothing to record
+    };
+
+    private final RequestTimings previousTimings;
+    private final long openedAt = System.nanoTime();
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+    private RequestTimings(RequestTimings aPreviousTimings)
+    {
+        previousTimings = aPreviousTimings;
+    }
+
+    /**
+     * Opens a new collector and binds it to the current thread. A collector that is already bound
+     * to the thread is restored when the new collector is closed.
+     * 
+     * @return the new collector.
+     */
+    public static RequestTimings open()
+    {
+        RequestTimings timings = new RequestTimings(activeTimings.get());
+        activeTimings.set(timings);
+        return timings;
+    }
+
+    /**
+     * @return the collector bound to the current thread, if any.
+     */
+    public static Optional<RequestTimings> get()
+    {
+        return Optional.ofNullable(activeTimings.get());
+    }
+
+    /**
+     * Starts measuring the given phase. The measurement ends when the returned object is closed.
+     * 
+     * @param aPhase
+     *            the phase name - must be a valid token as per the {@code Server-Timing} header
+     *            syntax, i.e. no spaces, commas or semicolons.
+     * @return the measurement.
+     */
+    public static Measurement start(String aPhase)
+    {
+        RequestTimings timings = activeTimings.get();
+        if (timings == null) {
+            return NO_MEASUREMENT;
+        }
+
+        long start = System.nanoTime();
+        return () -> timings.add(aPhase, System.nanoTime() - start);
+    }
+
+    /**
+     * Records a phase which has been measured by the caller.
+     */
+    public static void record(String aPhase, long aDuration, TimeUnit aUnit)
+    {
+        RequestTimings timings = activeTimings.get();
+        if (timings != null) {
+            timings.add(aPhase, aUnit.toNanos(aDuration));
+        }
+    }
+
+    private void add(String aPhase, long aDurationNanos)
+    {
+        Phase phase = phases.computeIfAbsent(aPhase, Phase::new);
+        phase.count++;
+        phase.nanos += aDurationNanos;
+    }
+
+    public boolean isEmpty()
+    {
+        return phases.isEmpty();
+    }
+
+    public List<Phase> getPhases()
+    {
+        return new ArrayList<>(phases.values());
+    }
+
+    /**
+     * @return the time since the collector was opened in milliseconds.
+     */
+    public double getTotalMillis()
+    {
+        return toMillis(System.nanoTime() - openedAt);
+    }
+
+    /**
+     * @return the collected phases as values of the {@code Server-Timing} header followed by the
+     *         total time.
+     */
+    public List<String> toServerTimingHeaderValues()
+    {
+        List<String> values = new ArrayList<>();
+        for (Phase phase : phases.values()) {
+            values.add(String.format(Locale.ROOT, "%s;desc=\"%dx\";dur=%.1f", phase.name,
+                    phase.count, phase.getMillis()));
+        }
+        values.add(String.format(Locale.ROOT, "total;dur=%.1f", getTotalMillis()));
+        return values;
+    }
+
+    @Override
+    public void close()
+    {
+        if (activeTimings.get() == this) {
+            if (previousTimings != null) {
+                activeTimings.set(previousTimings);
+            }
+            else {
+                activeTimings.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : phases.values()) {
+            sb.append(String.format(Locale.ROOT, "%s=%.1fms(%d) ", phase.name, phase.getMillis(),
+                    phase.count));
+        }
+        sb.append(String.format(Locale.ROOT, "total=%.1fms", getTotalMillis()));
+        return sb.toString();
+    }
+
+    private static double toMillis(long aNanos)
+    {
+        return aNanos / 1_000_000.0;
+    }
+
+    /**
+     * A running measurement of a phase.
+     */
+    @FunctionalInterface
+    public interface Measurement
+        extends AutoCloseable
+    {
+        @Override
+        void close();
+    }
+
+    public static final class Phase
+    {
+        private final String name;
+        private int count;
+        private long nanos;
+
+        private Phase(String aName)
+        {
+            name = aName;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        public double getMillis()
+        {
+            return toMillis(nanos);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import org.junit.Test;
+
+public class RequestTimingsTest
+{
+    @Test
+    public void thatPhasesAreOnlyRecordedWhileOpen()
+    {
+        try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.READ)) {
+            // Nothing is open
+        }
+        RequestTimings.record(RequestTimings.WRITE, 5, MILLISECONDS);
+
+        try (RequestTimings timings = RequestTimings.open()) {
+            try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.READ)) {
+                // Measured
+            }
+            try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.READ)) {
+                // Measured
+            }
+            RequestTimings.record(RequestTimings.WRITE, 5, MILLISECONDS);
+
+            assertThat(timings.getPhases()) //
+                    .extracting(RequestTimings.Phase::getName, RequestTimings.Phase::getCount)
+                    .containsExactly( //
+                            tuple(RequestTimings.READ, 2), //
+                            tuple(RequestTimings.WRITE, 1));
+            assertThat(timings.toServerTimingHeaderValues()) //
+                    .hasSize(3) //
+                    .contains("write;desc=\"1x\";dur=5.0");
+        }
+
+        assertThat(RequestTimings.get()).isEmpty();
+    }
+}
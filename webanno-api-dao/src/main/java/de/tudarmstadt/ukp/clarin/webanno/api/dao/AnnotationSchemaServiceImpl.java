@@ -36,15 +36,20 @@ import static org.apache.uima.cas.impl.Serialization.serializeWithCompression;
 import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
 import static org.apache.uima.util.CasCreationUtils.mergeTypeSystems;
 import static org.hibernate.annotations.QueryHints.CACHEABLE;
+import static org.springframework.transaction.event.TransactionPhase.AFTER_COMMIT;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -73,9 +78,14 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 
@@ -93,6 +103,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.LinkWithRoleModel;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.TypeSystemAnalysis;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.TypeSystemAnalysis.RelationDetails;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagCreatedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagDeletedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagUpdatedEvent;
@@ -110,6 +121,8 @@ import de.tudarmstadt.ukp.clarin.webanno.model.TagSet;
 import de.tudarmstadt.ukp.clarin.webanno.support.logging.Logging;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.uhh.lt.codeanno.api.event.CodebookConfigurationChangedEvent;
+import de.uhh.lt.codeanno.api.event.CodebookSchemaChangedEvent;
 import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
 import de.uhh.lt.codeanno.model.Codebook;
 
@@ -120,6 +133,12 @@ import de.uhh.lt.codeanno.model.Codebook;
 public class AnnotationSchemaServiceImpl
     implements AnnotationSchemaService
 {
+    // Buffers holding the compressed contents of a CAS during an upgrade. Only a few buffers are
+    // kept for re-use, no matter how many threads upgrade CASes. Buffers which grew beyond the
+    // retention limit while upgrading a particularly large CAS are not kept.
+    private static final int UPGRADE_BUFFER_POOL_SIZE = 4;
+    private static final int UPGRADE_BUFFER_RETENTION_LIMIT = 16 * 1024 * 1024;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private @PersistenceContext EntityManager entityManager;
@@ -131,6 +150,21 @@ public class AnnotationSchemaServiceImpl
     private final LoadingCache<TagSet, List<ImmutableTag>> immutableTagsCache;
     private final TypeSystemDescription builtInTypes;
 
+    // The merged project type systems are cached under a schema version which changes every time
+    // a type system is (re)built. The type systems of CASes known to be compatible with a version
+    // are remembered so that checking whether a CAS needs to be upgraded is a simple lookup.
+    private final boolean projectTypeSystemCacheEnabled;
+    private final AtomicLong schemaVersionCounter = new AtomicLong();
+    private final Cache<Long, ProjectTypeSystem> projectTypeSystemCache;
+    private final Cache<TypeSystem, Long> compatibleTypeSystems;
+
+    // Empty CASes serialized with the target type system of an upgrade. Since the project type
+    // systems are cached, we can key the templates by the identity of the type system description
+    private final Cache<TypeSystemDescription, CASCompleteSerializer> casTemplateCache;
+
+    private final BlockingQueue<UpgradeBuffer> upgradeBuffers = new ArrayBlockingQueue<>(
+            UPGRADE_BUFFER_POOL_SIZE);
+
     @Autowired
     public AnnotationSchemaServiceImpl(LayerSupportRegistry aLayerSupportRegistry,
             FeatureSupportRegistry aFeatureSupportRegistry,
@@ -145,6 +179,18 @@ public class AnnotationSchemaServiceImpl
         immutableTagsCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
                 .maximumSize(10 * 1024).build(this::loadImmutableTags);
 
+        // Without an event publisher (i.e. when not running in Spring), we do not receive the
+        // events that tell us when the schema changed, so we must not cache the type systems.
+        // Entries also expire after some time in case the schema is changed in some other way
+        // (e.g. directly in the database).
+        projectTypeSystemCacheEnabled = aApplicationEventPublisher != null;
+        projectTypeSystemCache = Caffeine.newBuilder().expireAfterWrite(5, MINUTES)
+                .maximumSize(1024).build();
+        // Type system instances are shared by all CASes using them, so we remember them by
+        // identity and forget them once they are no longer used by any CAS
+        compatibleTypeSystems = Caffeine.newBuilder().weakKeys().build();
+        casTemplateCache = Caffeine.newBuilder().weakKeys().maximumSize(256).build();
+
         try {
             builtInTypes = createTypeSystemDescription();
         }
@@ -272,6 +318,8 @@ public class AnnotationSchemaServiceImpl
             log.info("Created layer [{}]({}) in project [{}]({})", aLayer.getName(), aLayer.getId(),
                     project.getName(), project.getId());
         }
+
+        invalidateProjectTypeSystem(aLayer.getProject());
     }
 
     @Override
@@ -291,6 +339,8 @@ public class AnnotationSchemaServiceImpl
             log.info("Created feature [{}]({}) in project [{}]({})", aFeature.getName(),
                     aFeature.getId(), project.getName(), project.getId());
         }
+
+        invalidateProjectTypeSystem(aFeature.getProject());
     }
 
     @Override
@@ -838,6 +888,8 @@ public class AnnotationSchemaServiceImpl
             log.info("Removed feature [{}]({}) from project [{}]({})", aFeature.getName(),
                     aFeature.getId(), project.getName(), project.getId());
         }
+
+        invalidateProjectTypeSystem(aFeature.getProject());
     }
 
     @Override
@@ -868,6 +920,8 @@ public class AnnotationSchemaServiceImpl
             log.info("Removed layer [{}]({}) from project [{}]({})", aLayer.getName(),
                     aLayer.getId(), project.getName(), project.getId());
         }
+
+        invalidateProjectTypeSystem(aLayer.getProject());
     }
 
     @Override
@@ -1063,27 +1117,108 @@ public class AnnotationSchemaServiceImpl
         return getFullProjectTypeSystem(aProject, true);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned type system may be shared with other callers and must not be modified.
+     */
     @Override
     public TypeSystemDescription getFullProjectTypeSystem(Project aProject,
             boolean aIncludeInternalTypes)
         throws ResourceInitializationException
     {
-        List<TypeSystemDescription> typeSystems = new ArrayList<>();
+        ProjectTypeSystem projectTypeSystem = getProjectTypeSystem(aProject);
+        return aIncludeInternalTypes ? projectTypeSystem.full : projectTypeSystem.forExport;
+    }
 
-        // Types detected by uimaFIT
-        typeSystems.add(builtInTypes);
+    private ProjectTypeSystem getProjectTypeSystem(Project aProject)
+        throws ResourceInitializationException
+    {
+        if (!projectTypeSystemCacheEnabled || aProject.getId() == null) {
+            return buildProjectTypeSystem(aProject);
+        }
 
-        if (aIncludeInternalTypes) {
-            // Types internally used by WebAnno (which we intentionally exclude from being detected
-            // by uimaFIT because we want to have an easy way to create a type system excluding
-            // these types when we export files from the project
-            typeSystems.add(CasMetadataUtils.getInternalTypeSystem());
+        // Building the type system inside the cache ensures that an invalidation waits for a
+        // concurrent build to complete instead of letting it store an outdated type system
+        try {
+            return projectTypeSystemCache.get(aProject.getId(), id -> {
+                try {
+                    return buildProjectTypeSystem(aProject);
+                }
+                catch (ResourceInitializationException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
         }
+        catch (IllegalStateException e) {
+            if (e.getCause() instanceof ResourceInitializationException) {
+                throw (ResourceInitializationException) e.getCause();
+            }
+            throw e;
+        }
+    }
 
+    private ProjectTypeSystem buildProjectTypeSystem(Project aProject)
+        throws ResourceInitializationException
+    {
         // Types declared within the project
-        typeSystems.add(getCustomProjectTypes(aProject));
+        TypeSystemDescription customTypes = getCustomProjectTypes(aProject);
+
+        // Types detected by uimaFIT and the types declared in the project. Types internally used
+        // by WebAnno are intentionally excluded from being detected by uimaFIT because we want
+        // to have an easy way to create a type system excluding these types when we export files
+        // from the project
+        TypeSystemDescription forExport = mergeTypeSystems(asList(builtInTypes, customTypes));
+        TypeSystemDescription full = mergeTypeSystems(
+                asList(builtInTypes, CasMetadataUtils.getInternalTypeSystem(), customTypes));
+
+        return new ProjectTypeSystem(schemaVersionCounter.incrementAndGet(), full, forExport);
+    }
+
+    /**
+     * Drops the cached type system of the given project. If called as part of a transaction, the
+     * type system is dropped again once the transaction has been committed - until then, other
+     * threads still see the old schema and may have put a type system built from it back into
+     * the cache.
+     */
+    private void invalidateProjectTypeSystem(Project aProject)
+    {
+        if (aProject == null || aProject.getId() == null) {
+            return;
+        }
+
+        long projectId = aProject.getId();
+        projectTypeSystemCache.invalidate(projectId);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronization()
+                    {
+                        @Override
+                        public void afterCommit()
+                        {
+                            projectTypeSystemCache.invalidate(projectId);
+                        }
+                    });
+        }
+    }
+
+    @EventListener
+    public void beforeLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        invalidateProjectTypeSystem(aEvent.getProject());
+    }
+
+    @TransactionalEventListener(phase = AFTER_COMMIT, fallbackExecution = true)
+    public void onCodebookConfigurationChanged(CodebookConfigurationChangedEvent aEvent)
+    {
+        invalidateProjectTypeSystem(aEvent.getProject());
+    }
 
-        return mergeTypeSystems(typeSystems);
+    @TransactionalEventListener(phase = AFTER_COMMIT, fallbackExecution = true)
+    public void onCodebookSchemaChanged(CodebookSchemaChangedEvent aEvent)
+    {
+        invalidateProjectTypeSystem(aEvent.getProject());
     }
 
     @Override
@@ -1140,8 +1275,9 @@ public class AnnotationSchemaServiceImpl
     @Override
     public void upgradeCas(CAS aCas, Project aProject) throws UIMAException, IOException
     {
-        TypeSystemDescription ts = getFullProjectTypeSystem(aProject);
-        upgradeCas(aCas, ts);
+        ProjectTypeSystem projectTypeSystem = getProjectTypeSystem(aProject);
+        upgradeCas(aCas, projectTypeSystem.full);
+        compatibleTypeSystems.put(aCas.getTypeSystem(), projectTypeSystem.version);
     }
 
     @Override
@@ -1162,7 +1298,7 @@ public class AnnotationSchemaServiceImpl
     public boolean upgradeCasIfRequired(Iterable<CAS> aCasIter, Project aProject)
         throws UIMAException, IOException
     {
-        TypeSystemDescription ts = getFullProjectTypeSystem(aProject);
+        ProjectTypeSystem projectTypeSystem = getProjectTypeSystem(aProject);
 
         // Check if the current CAS already contains the required type system
         boolean upgradePerformed = false;
@@ -1175,8 +1311,9 @@ public class AnnotationSchemaServiceImpl
             // eventually figure out that no upgrade is required.
             CasStorageSession.get().assertWritingPermitted(cas);
 
-            if (isUpgradeRequired(cas, ts)) {
-                upgradeCas(cas, ts);
+            if (isUpgradeRequired(cas, projectTypeSystem)) {
+                upgradeCas(cas, projectTypeSystem.full);
+                compatibleTypeSystems.put(cas.getTypeSystem(), projectTypeSystem.version);
                 upgradePerformed = true;
             }
         }
@@ -1225,26 +1362,68 @@ public class AnnotationSchemaServiceImpl
         // Save source CAS type system (do this early since we might do an in-place upgrade)
         TypeSystem sourceTypeSystem = aSourceCas.getTypeSystem();
 
-        // Save source CAS contents
-        ByteArrayOutputStream serializedCasContents = new ByteArrayOutputStream();
-        CAS realSourceCas = getRealCas(aSourceCas);
-        // UIMA-6162 Workaround: synchronize CAS during de/serialization
-        synchronized (((CASImpl) realSourceCas).getBaseCAS()) {
-            serializeWithCompression(realSourceCas, serializedCasContents, sourceTypeSystem);
+        // Save source CAS contents - the buffer is taken from a small pool, so bulk upgrades do
+        // not allocate a new buffer (and its copies) for every CAS
+        UpgradeBuffer buffer = upgradeBuffers.poll();
+        if (buffer == null) {
+            buffer = new UpgradeBuffer();
         }
+        try {
+            CAS realSourceCas = getRealCas(aSourceCas);
+            // UIMA-6162 Workaround: synchronize CAS during de/serialization
+            synchronized (((CASImpl) realSourceCas).getBaseCAS()) {
+                serializeWithCompression(realSourceCas, buffer, sourceTypeSystem);
+            }
+
+            // Re-initialize the target CAS with new type system
+            CAS realTargetCas = getRealCas(aTargetCas);
+            // UIMA-6162 Workaround: synchronize CAS during de/serialization
+            synchronized (((CASImpl) realTargetCas).getBaseCAS()) {
+                deserializeCASComplete(getCasTemplate(aTargetTypeSystem),
+                        (CASImpl) realTargetCas);
+
+                // Leniently load the source CAS contents into the target CAS
+                CasIOUtils.load(buffer.toInputStream(), realTargetCas, sourceTypeSystem);
+            }
+        }
+        finally {
+            // If the pool is already full, the buffer is simply dropped
+            if (buffer.capacity() <= UPGRADE_BUFFER_RETENTION_LIMIT) {
+                buffer.reset();
+                upgradeBuffers.offer(buffer);
+            }
+        }
+    }
 
-        // Re-initialize the target CAS with new type system
-        CAS realTargetCas = getRealCas(aTargetCas);
-        // UIMA-6162 Workaround: synchronize CAS during de/serialization
-        synchronized (((CASImpl) realTargetCas).getBaseCAS()) {
-            CAS tempCas = CasFactory.createCas(aTargetTypeSystem);
-            CASCompleteSerializer serializer = serializeCASComplete((CASImpl) tempCas);
-            deserializeCASComplete(serializer, (CASImpl) realTargetCas);
+    private CASCompleteSerializer getCasTemplate(TypeSystemDescription aTypeSystem)
+        throws ResourceInitializationException
+    {
+        CASCompleteSerializer template = casTemplateCache.getIfPresent(aTypeSystem);
+        if (template == null) {
+            template = serializeCASComplete((CASImpl) CasFactory.createCas(aTypeSystem));
+            casTemplateCache.put(aTypeSystem, template);
+        }
+        return template;
+    }
+
+    /**
+     * Check if the current CAS already contains the required type system. The structural check is
+     * only performed if the type system of the CAS has not yet been found to be compatible with
+     * the current version of the project type system.
+     */
+    private boolean isUpgradeRequired(CAS aCas, ProjectTypeSystem aProjectTypeSystem)
+    {
+        TypeSystem ts = aCas.getTypeSystem();
+        Long compatibleVersion = compatibleTypeSystems.getIfPresent(ts);
+        if (compatibleVersion != null && compatibleVersion == aProjectTypeSystem.version) {
+            return false;
+        }
 
-            // Leniently load the source CAS contents into the target CAS
-            CasIOUtils.load(new ByteArrayInputStream(serializedCasContents.toByteArray()),
-                    getRealCas(aTargetCas), sourceTypeSystem);
+        boolean upgradeRequired = isUpgradeRequired(aCas, aProjectTypeSystem.full);
+        if (!upgradeRequired) {
+            compatibleTypeSystems.put(ts, aProjectTypeSystem.version);
         }
+        return upgradeRequired;
     }
 
     /**
@@ -1513,4 +1692,41 @@ public class AnnotationSchemaServiceImpl
         }
         return result;
     }
+
+    private static class ProjectTypeSystem
+    {
+        private final long version;
+        private final TypeSystemDescription full;
+        private final TypeSystemDescription forExport;
+
+        public ProjectTypeSystem(long aVersion, TypeSystemDescription aFull,
+                TypeSystemDescription aForExport)
+        {
+            version = aVersion;
+            full = aFull;
+            forExport = aForExport;
+        }
+    }
+
+    /**
+     * Byte buffer which can be read back without copying its contents.
+     */
+    private static class UpgradeBuffer
+        extends ByteArrayOutputStream
+    {
+        public UpgradeBuffer()
+        {
+            super(64 * 1024);
+        }
+
+        public int capacity()
+        {
+            return buf.length;
+        }
+
+        public InputStream toInputStream()
+        {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
 }
@@ -25,6 +25,7 @@ import org.springframework.stereotype.Component;
 public class BackupProperties
 {
     private long interval;
+    private int checkpointInterval = 10;
     private final KeepOptions keep = new KeepOptions();
 
     public void setInterval(long aInterval)
@@ -37,6 +38,16 @@ public class BackupProperties
         return interval;
     }
 
+    public int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int aCheckpointInterval)
+    {
+        checkpointInterval = aCheckpointInterval;
+    }
+
     public KeepOptions getKeep()
     {
         return keep;
@@ -18,20 +18,38 @@
 package de.tudarmstadt.ukp.clarin.webanno.api.dao;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
-import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Arrays.asList;
 import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.SerialFormat;
-import org.apache.uima.cas.impl.CASCompleteSerializer;
 import org.apache.uima.cas.impl.CASImpl;
 import org.apache.uima.util.CasIOUtils;
 import org.apache.uima.util.TypeSystemUtil;
@@ -39,52 +57,190 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.BinaryCasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageDurability;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.SerializedCasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasStorageMetrics;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 
 public final class CasPersistenceUtils
 {
     private final static Logger LOG = LoggerFactory.getLogger(CasPersistenceUtils.class);
 
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final List<CasStorageFormat> FORMATS = Collections.unmodifiableList(asList(
+            new SerializedCasStorageFormat(), BinaryCasStorageFormat.compressed(),
+            BinaryCasStorageFormat.binary()));
+
     private CasPersistenceUtils()
     {
         // No instances
     }
 
+    public static List<CasStorageFormat> getFormats()
+    {
+        return FORMATS;
+    }
+
+    public static CasStorageFormat getFormat(String aId)
+    {
+        return FORMATS.stream() //
+                .filter(f -> f.getId().equals(aId)) //
+                .findFirst() //
+                .orElseThrow(() -> new IllegalArgumentException(
+                        "Unknown CAS storage format [" + aId + "]"));
+    }
+
+    /**
+     * Determines the format of the given CAS file by looking at its first bytes.
+     * 
+     * @return the format or nothing if the format is not known or the file is empty.
+     */
+    public static Optional<CasStorageFormat> detectFormat(File aFile) throws IOException
+    {
+        try (InputStream is = new FileInputStream(aFile)) {
+            byte[] header = new byte[CasStorageFormat.HEADER_LENGTH];
+            int len = is.readNBytes(header, 0, header.length);
+            return detectFormat(header, len);
+        }
+    }
+
+    private static Optional<CasStorageFormat> detectFormat(byte[] aHeader, int aLength)
+    {
+        return FORMATS.stream().filter(f -> f.accepts(aHeader, aLength)).findFirst();
+    }
+
     public static void writeSerializedCas(CAS aCas, File aFile) throws IOException
+    {
+        writeSerializedCas(aCas, aFile, getFormat(SerializedCasStorageFormat.ID), true,
+                CasStorageDurability.FILE);
+    }
+
+    /**
+     * Writes the CAS to a temporary file next to the target file and then atomically moves it
+     * over the target file. Thus, the target file is either left untouched or contains the
+     * complete new data.
+     * 
+     * @param aCas
+     *            the CAS to write.
+     * @param aFile
+     *            the target file.
+     * @param aFormat
+     *            the storage format.
+     * @param aVerify
+     *            whether to read back the data into a fresh CAS before replacing the target file.
+     *            This guards against writing a CAS which cannot be read any more (UIMA-6162).
+     * @param aDurability
+     *            whether to force the data to disk before/after replacing the target file.
+     * @return the CRC32 checksum of the data that was written. It can be used to
+     *         {@link #verifySerializedCas verify} the file later.
+     */
+    public static long writeSerializedCas(CAS aCas, File aFile, CasStorageFormat aFormat,
+            boolean aVerify, CasStorageDurability aDurability)
+        throws IOException
     {
         FileUtils.forceMkdir(aFile.getParentFile());
 
-        CASCompleteSerializer serializer = null;
+        File tempFile = new File(aFile.getPath() + TEMP_SUFFIX);
+        CRC32 checksum = new CRC32();
+        long start = System.nanoTime();
 
         CAS realCas = getRealCas(aCas);
         // UIMA-6162 Workaround: synchronize CAS during de/serialization
         synchronized (((CASImpl) realCas).getBaseCAS()) {
             try {
-                serializer = serializeCASComplete((CASImpl) getRealCas(aCas));
-
-                // BEGIN SAFEGUARD --------------
-                // Safeguard that we do NOT write a CAS which can afterwards not be read and thus
-                // would render the document broken within the project
-                // Reason we do this: https://issues.apache.org/jira/browse/UIMA-6162
-                CAS dummy = WebAnnoCasUtil.createCas();
-                deserializeCASComplete(serializer, (CASImpl) getRealCas(dummy));
-                // END SAFEGUARD --------------
+                try (FileChannel channel = FileChannel.open(tempFile.toPath(), CREATE, WRITE,
+                        TRUNCATE_EXISTING)) {
+                    OutputStream os = new BufferedOutputStream(new CheckedOutputStream(
+                            Channels.newOutputStream(channel), checksum));
+                    aFormat.write(realCas, os);
+                    os.flush();
+
+                    if (aDurability != CasStorageDurability.NONE) {
+                        channel.force(true);
+                    }
+                }
+
+                if (aVerify) {
+                    verifySerializedCas(tempFile, checksum.getValue());
+                }
             }
             catch (Exception e) {
+                FileUtils.deleteQuietly(tempFile);
                 if (LOG.isDebugEnabled()) {
-                    preserveForDebugging(aFile, aCas, serializer);
+                    preserveForDebugging(aFile, aCas);
                 }
-                throw new IOException(e);
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
             }
+        }
 
-            try (ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(aFile))) {
-                os.writeObject(serializer);
-            }
+        long size = tempFile.length();
+        move(tempFile.toPath(), aFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+
+        if (aDurability == CasStorageDurability.DIRECTORY) {
+            forceDirectory(aFile.getParentFile());
+        }
+
+        CasStorageMetrics.recordSerialization(aFormat.getId(), System.nanoTime() - start, size);
+
+        return checksum.getValue();
+    }
+
+    private static void forceDirectory(File aDirectory)
+    {
+        // Opening a directory as a channel works on Linux and macOS, but not on Windows (which
+        // does not need it)
+        try (FileChannel channel = FileChannel.open(aDirectory.toPath(), READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            LOG.debug("Unable to force directory [{}] to disk: {}", aDirectory, e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the given file still has the given checksum and that it can be read into a
+     * fresh CAS.
+     * 
+     * @throws IOException
+     *             if the verification fails.
+     */
+    public static void verifySerializedCas(File aFile, long aChecksum) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        try (InputStream is = new CheckedInputStream(new FileInputStream(aFile), checksum)) {
+            is.transferTo(OutputStream.nullOutputStream());
         }
+
+        if (checksum.getValue() != aChecksum) {
+            throw new IOException("Checksum of [" + aFile + "] does not match: expected ["
+                    + aChecksum + "] but was [" + checksum.getValue() + "]");
+        }
+
+        try {
+            readSerializedCas(WebAnnoCasUtil.createCas(), aFile);
+        }
+        catch (UIMAException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Moves a copy of a CAS file which failed verification aside so it can be inspected later.
+     * 
+     * @return the quarantined copy.
+     */
+    public static File quarantine(File aFile) throws IOException
+    {
+        File quarantined = new File(
+                aFile.getPath() + ".borked-" + System.currentTimeMillis() + ".ser");
+        FileUtils.copyFile(aFile, quarantined);
+        return quarantined;
     }
 
-    private static void preserveForDebugging(File aFile, CAS aCas,
-            CASCompleteSerializer aSerializer)
+    private static void preserveForDebugging(File aFile, CAS aCas)
     {
         long ts = System.currentTimeMillis();
 
@@ -106,7 +262,7 @@ public final class CasPersistenceUtils
 
         try (ObjectOutputStream os = new ObjectOutputStream(
                 new FileOutputStream(new File(aFile.getPath() + ".borked-" + ts + ".ser")))) {
-            os.writeObject(aSerializer);
+            os.writeObject(serializeCASComplete((CASImpl) getRealCas(aCas)));
         }
         catch (Exception e2) {
             LOG.error("Debug serialization failed: {}", e2.getMessage(), e2);
@@ -118,9 +274,21 @@ public final class CasPersistenceUtils
         CAS realCas = getRealCas(aCas);
         // UIMA-6162 Workaround: synchronize CAS during de/serialization
         synchronized (((CASImpl) realCas).getBaseCAS()) {
-            try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(aFile))) {
-                CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
-                deserializeCASComplete(serializer, (CASImpl) realCas);
+            try (InputStream is = new BufferedInputStream(new FileInputStream(aFile))) {
+                long start = System.nanoTime();
+
+                byte[] header = new byte[CasStorageFormat.HEADER_LENGTH];
+                is.mark(header.length);
+                int len = is.readNBytes(header, 0, header.length);
+                is.reset();
+
+                CasStorageFormat format = detectFormat(header, len)
+                        .orElseThrow(() -> new IOException(
+                                "Unable to determine storage format of [" + aFile + "]"));
+                format.read(realCas, is);
+
+                CasStorageMetrics.recordDeserialization(format.getId(),
+                        System.nanoTime() - start);
 
                 // Workaround for UIMA adding back deleted DocumentAnnotations
                 // https://issues.apache.org/jira/browse/UIMA-6199
@@ -132,9 +300,6 @@ public final class CasPersistenceUtils
                             .forEach(aCas::removeFsFromIndexes);
                 }
             }
-            catch (ClassNotFoundException e) {
-                throw new IOException(e);
-            }
         }
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageDurability;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.SerializedCasStorageFormat;
+
+@Component
+@ConfigurationProperties("cas-storage")
+public class CasStorageProperties
+{
+    /**
+     * Format in which CASes are written. Files are always read in the format they have been
+     * written in, so the format can be changed at any time.
+     */
+    private String format = SerializedCasStorageFormat.ID;
+
+    /**
+     * Whether to rewrite CAS files which are not yet in the configured format in the background
+     * after startup.
+     */
+    private boolean migrateOnStartup = false;
+
+    private CasStorageDurability durability = CasStorageDurability.FILE;
+
+    private final VerificationOptions verification = new VerificationOptions();
+
+    private final WriteBehindOptions writeBehind = new WriteBehindOptions();
+
+    private final CacheOptions cache = new CacheOptions();
+
+    public String getFormat()
+    {
+        return format;
+    }
+
+    public void setFormat(String aFormat)
+    {
+        format = aFormat;
+    }
+
+    public boolean isMigrateOnStartup()
+    {
+        return migrateOnStartup;
+    }
+
+    public void setMigrateOnStartup(boolean aMigrateOnStartup)
+    {
+        migrateOnStartup = aMigrateOnStartup;
+    }
+
+    public CasStorageDurability getDurability()
+    {
+        return durability;
+    }
+
+    public void setDurability(CasStorageDurability aDurability)
+    {
+        durability = aDurability;
+    }
+
+    public VerificationOptions getVerification()
+    {
+        return verification;
+    }
+
+    public WriteBehindOptions getWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    public CacheOptions getCache()
+    {
+        return cache;
+    }
+
+    public static enum VerificationMode
+    {
+        /**
+         * Read back every CAS before it replaces the previous version. A CAS which cannot be read
+         * back is never written, but the user waits for the verification on every save.
+         */
+        INLINE,
+
+        /**
+         * Verify written CASes on a background thread. Files failing verification are quarantined
+         * and the next write of the same CAS is verified inline.
+         */
+        ASYNC;
+    }
+
+    public static class VerificationOptions
+    {
+        private VerificationMode mode = VerificationMode.INLINE;
+
+        /**
+         * Fraction of the writes to verify in {@link VerificationMode#ASYNC} mode.
+         */
+        private double sampleRate = 1.0;
+
+        public VerificationMode getMode()
+        {
+            return mode;
+        }
+
+        public void setMode(VerificationMode aMode)
+        {
+            mode = aMode;
+        }
+
+        public double getSampleRate()
+        {
+            return sampleRate;
+        }
+
+        public void setSampleRate(double aSampleRate)
+        {
+            sampleRate = aSampleRate;
+        }
+    }
+
+    public static class WriteBehindOptions
+    {
+        /**
+         * Whether writes of a CAS held by a session are deferred until the session releases the
+         * CAS and then performed on a background thread.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Maximum time in seconds a write may be deferred. Writing the CAS again after that time
+         * writes it immediately. Deferred writes which reached this age are also checked for
+         * periodically and are performed once the CAS is not in use.
+         */
+        private long maxAge = 30;
+
+        /**
+         * Maximum number of writes of the same CAS coalesced into a single deferred write.
+         */
+        private int maxCoalesced = 50;
+
+        /**
+         * Maximum number of CASes with deferred writes. Beyond that, writes are performed
+         * immediately.
+         */
+        private int maxPending = 1_000;
+
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        public void setEnabled(boolean aEnabled)
+        {
+            enabled = aEnabled;
+        }
+
+        public long getMaxAge()
+        {
+            return maxAge;
+        }
+
+        public void setMaxAge(long aMaxAge)
+        {
+            maxAge = aMaxAge;
+        }
+
+        public int getMaxCoalesced()
+        {
+            return maxCoalesced;
+        }
+
+        public void setMaxCoalesced(int aMaxCoalesced)
+        {
+            maxCoalesced = aMaxCoalesced;
+        }
+
+        public int getMaxPending()
+        {
+            return maxPending;
+        }
+
+        public void setMaxPending(int aMaxPending)
+        {
+            maxPending = aMaxPending;
+        }
+    }
+
+    public static class CacheOptions
+    {
+        /**
+         * Time in seconds after which CASes which have not been accessed are dropped from memory.
+         */
+        private long idleEvictionTime = 300;
+
+        /**
+         * Time in seconds to wait for exclusive access to a CAS before giving up.
+         */
+        private long borrowTimeout = 180;
+
+        /**
+         * Estimated heap the shared read-only CASes may occupy. If not set, a quarter of the
+         * maximum heap is used.
+         */
+        private DataSize sharedMaxHeap;
+
+        public long getIdleEvictionTime()
+        {
+            return idleEvictionTime;
+        }
+
+        public void setIdleEvictionTime(long aIdleEvictionTime)
+        {
+            idleEvictionTime = aIdleEvictionTime;
+        }
+
+        public long getBorrowTimeout()
+        {
+            return borrowTimeout;
+        }
+
+        public void setBorrowTimeout(long aBorrowTimeout)
+        {
+            borrowTimeout = aBorrowTimeout;
+        }
+
+        public DataSize getSharedMaxHeap()
+        {
+            return sharedMaxHeap;
+        }
+
+        public void setSharedMaxHeap(DataSize aSharedMaxHeap)
+        {
+            sharedMaxHeap = aSharedMaxHeap;
+        }
+    }
+}
@@ -30,30 +30,33 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHA
 import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
 import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_NON_INITIALIZING_ACCESS;
 import static de.tudarmstadt.ukp.clarin.webanno.api.dao.CasMetadataUtils.failOnConcurrentModification;
+import static de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageProperties.VerificationMode.ASYNC;
 import static de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageServiceImpl.RepairAndUpgradeFlags.ISOLATED_SESSION;
 import static java.lang.System.currentTimeMillis;
-import static java.nio.file.Files.move;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Collections.newSetFromMap;
 import static java.util.Collections.synchronizedSet;
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.lang3.ArrayUtils.contains;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.pool2.EvictionPolicy;
+import org.apache.commons.pool2.impl.DefaultEvictionPolicy;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 import org.apache.uima.UIMAException;
@@ -63,6 +66,7 @@ import org.apache.uima.cas.impl.CASImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.stereotype.Component;
@@ -78,43 +82,63 @@ import de.tudarmstadt.ukp.clarin.webanno.api.CasProvider;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.RequestTimings;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasSessionException;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasStorageServiceAction;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasStorageServiceLoader;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageProperties.CacheOptions;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageProperties.WriteBehindOptions;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHistoryStore;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHistoryStore.HistoryEntry;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHolder;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageFormat;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasKey;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasVerifier;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasWriteBehindQueue;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasWriteBehindQueue.PendingWrite;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.PooledCasHolderFactory;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.SessionManagedCas;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasStorageMetrics;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.diag.CasDoctor;
 import de.tudarmstadt.ukp.clarin.webanno.diag.CasDoctorException;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.support.logging.Logging;
-import de.tudarmstadt.ukp.clarin.webanno.support.wicket.WicketUtil;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.search.Search;
 
 @Component(CasStorageService.SERVICE_NAME)
 public class CasStorageServiceImpl
-    implements CasStorageService
+    implements CasStorageService, MeterBinder, DisposableBean
 {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private final long EVICT_IDLE_CASES_AFTER_MINUTES = 5;
-    private final long SHARED_CAS_CACHE_SIZE = 10_000;
-    private final long CAS_BORROW_WAIT_TIMEOUT_MINUTES = 3;
+    private static final String SHARED_CACHE_NAME = "casStorageShared";
+
+    private final long BACKGROUND_BORROW_WAIT_MILLIS = 100;
 
     private final CasDoctor casDoctor;
     private final AnnotationSchemaService schemaService;
     private final RepositoryProperties repositoryProperties;
+    private final CasStorageProperties casStorageProperties;
     private final BackupProperties backupProperties;
+    private final CasStorageFormat storageFormat;
+    private final CasVerifier verifier;
+    private final CasWriteBehindQueue writeBehind;
 
     private final GenericKeyedObjectPool<CasKey, CasHolder> exclusiveAccessPool;
     private final Set<CasHolder> exclusiveAccessHolders = synchronizedSet(
             newSetFromMap(new WeakHashMap<>()));
     private final Cache<CasKey, CasHolder> sharedAccessCache;
+    private final Map<MeterRegistry, List<Meter>> boundMeters = new ConcurrentHashMap<>();
 
     public static enum RepairAndUpgradeFlags
     {
@@ -134,12 +158,34 @@ public class CasStorageServiceImpl
     public CasStorageServiceImpl(@Autowired(required = false) CasDoctor aCasDoctor,
             @Autowired(required = false) AnnotationSchemaService aSchemaService,
             @Autowired RepositoryProperties aRepositoryProperties,
+            @Autowired CasStorageProperties aCasStorageProperties,
             @Autowired BackupProperties aBackupProperties)
     {
         casDoctor = aCasDoctor;
         schemaService = aSchemaService;
         repositoryProperties = aRepositoryProperties;
+        casStorageProperties = aCasStorageProperties;
         backupProperties = aBackupProperties;
+        storageFormat = CasPersistenceUtils.getFormat(casStorageProperties.getFormat());
+
+        if (ASYNC.equals(casStorageProperties.getVerification().getMode())) {
+            verifier = new CasVerifier(casStorageProperties.getVerification().getSampleRate());
+        }
+        else {
+            verifier = null;
+        }
+
+        WriteBehindOptions writeBehindOptions = casStorageProperties.getWriteBehind();
+        if (writeBehindOptions.isEnabled()) {
+            writeBehind = new CasWriteBehindQueue(SECONDS.toMillis(writeBehindOptions.getMaxAge()),
+                    writeBehindOptions.getMaxCoalesced(), writeBehindOptions.getMaxPending(),
+                    this::flushInBackground);
+        }
+        else {
+            writeBehind = null;
+        }
+
+        CacheOptions cacheOptions = casStorageProperties.getCache();
 
         GenericKeyedObjectPoolConfig<CasHolder> config = new GenericKeyedObjectPoolConfig<>();
         // Since we want the pool to control exclusive access to a particular CAS, we only ever
@@ -147,10 +193,12 @@ public class CasStorageServiceImpl
         config.setMaxTotalPerKey(1);
         // Setting this to 0 because we do not want any CAS to stick around in memory indefinitely
         config.setMinIdlePerKey(0);
-        // Run an evictor thread every 5 minutes
-        config.setTimeBetweenEvictionRunsMillis(MINUTES.toMillis(EVICT_IDLE_CASES_AFTER_MINUTES));
-        // Allow the evictor to drop idle CASes from the pool after 5 minutes (i.e. on each run)
-        config.setMinEvictableIdleTimeMillis(MINUTES.toMillis(EVICT_IDLE_CASES_AFTER_MINUTES));
+        // Run an evictor thread every idle eviction period
+        config.setTimeBetweenEvictionRunsMillis(
+                SECONDS.toMillis(cacheOptions.getIdleEvictionTime()));
+        // Allow the evictor to drop idle CASes from the pool after the idle eviction period (i.e.
+        // on each run)
+        config.setMinEvictableIdleTimeMillis(SECONDS.toMillis(cacheOptions.getIdleEvictionTime()));
         // Allow the evictor to drop all idle CASes on every eviction run
         config.setNumTestsPerEvictionRun(-1);
         // Allow viewing the pool in JMX
@@ -162,28 +210,116 @@ public class CasStorageServiceImpl
         // is returned
         config.setTestOnReturn(true);
         config.setTestOnBorrow(true);
-        config.setMaxWaitMillis(MINUTES.toMillis(CAS_BORROW_WAIT_TIMEOUT_MINUTES));
+        config.setMaxWaitMillis(SECONDS.toMillis(cacheOptions.getBorrowTimeout()));
         // We do not have to set maxTotal because the default is already to have no limit (-1)
         exclusiveAccessPool = new GenericKeyedObjectPool<>(new PooledCasHolderFactory(), config);
-
+        if (writeBehind != null) {
+            // Never evict a CAS which still has a deferred write - the write would be lost
+            EvictionPolicy<CasHolder> defaultPolicy = new DefaultEvictionPolicy<>();
+            exclusiveAccessPool.setEvictionPolicy((evictionConfig, pooledHolder,
+                    idleCount) -> !writeBehind.isPending(pooledHolder.getObject().getKey())
+                            && defaultPolicy.evict(evictionConfig, pooledHolder, idleCount));
+        }
+
+        // The shared cache is bounded by the estimated heap used by the CASes rather than by
+        // their number since a single long document may take as much memory as thousands of
+        // short ones. Caffeine weights are ints, so we weigh in kilobytes.
+        long sharedCacheMaxHeap = cacheOptions.getSharedMaxHeap() != null
+                ? cacheOptions.getSharedMaxHeap().toBytes()
+                : Runtime.getRuntime().maxMemory() / 4;
         sharedAccessCache = Caffeine.newBuilder()
-                .expireAfterAccess(EVICT_IDLE_CASES_AFTER_MINUTES, MINUTES)
-                .maximumSize(SHARED_CAS_CACHE_SIZE).recordStats().build();
+                .expireAfterAccess(cacheOptions.getIdleEvictionTime(), SECONDS)
+                .maximumWeight(Math.max(sharedCacheMaxHeap / 1024, 1))
+                .weigher((CasKey key, CasHolder holder) -> (int) Math
+                        .min(Math.max(holder.estimateHeapSize() / 1024, 1), Integer.MAX_VALUE))
+                .recordStats().build();
 
         if (casDoctor == null) {
             log.info("CAS doctor not available - unable to check/repair CASes");
         }
 
+        log.info("CAS storage format: {}  verification: {}  write-behind: {}",
+                storageFormat.getId(), casStorageProperties.getVerification().getMode(),
+                writeBehindOptions.isEnabled());
+
+        log.info("CAS cache - idle-eviction-time: {}sec  borrow-timeout: {}sec  "
+                + "shared-max-heap: {}MB", cacheOptions.getIdleEvictionTime(),
+                cacheOptions.getBorrowTimeout(), sharedCacheMaxHeap / (1024 * 1024));
+
         if (backupProperties.getInterval() > 0) {
-            log.info("CAS backups enabled - interval: {}sec  max-backups: {}  max-age: {}sec",
+            log.info(
+                    "CAS backups enabled - interval: {}sec  max-backups: {}  max-age: {}sec  "
+                            + "checkpoint-interval: {}",
                     backupProperties.getInterval(), backupProperties.getKeep().getNumber(),
-                    backupProperties.getKeep().getTime());
+                    backupProperties.getKeep().getTime(),
+                    backupProperties.getCheckpointInterval());
         }
         else {
             log.info("CAS backups disabled");
         }
     }
 
+    /**
+     * Registers the gauges of the CAS pools with the given registry. Spring Boot calls this for
+     * the registries it manages. The gauges are removed again when the service is destroyed since
+     * they hold on to the pools.
+     */
+    @Override
+    public void bindTo(MeterRegistry aRegistry)
+    {
+        String prefix = CasStorageMetrics.PREFIX;
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge
+                .builder(prefix + ".exclusive.holders", exclusiveAccessHolders, Set::size) //
+                .description("CASes currently known to be under exclusive access") //
+                .register(aRegistry));
+        meters.add(Gauge.builder(prefix + ".exclusive.active", exclusiveAccessPool,
+                GenericKeyedObjectPool::getNumActive) //
+                .description("CASes currently borrowed from the exclusive access pool") //
+                .register(aRegistry));
+        meters.add(Gauge.builder(prefix + ".exclusive.idle", exclusiveAccessPool,
+                GenericKeyedObjectPool::getNumIdle) //
+                .description("CASes currently idle in the exclusive access pool") //
+                .register(aRegistry));
+        meters.add(Gauge.builder(prefix + ".exclusive.waiters", exclusiveAccessPool,
+                GenericKeyedObjectPool::getNumWaiters) //
+                .description("Threads waiting for exclusive access to a CAS") //
+                .register(aRegistry));
+        if (writeBehind != null) {
+            meters.add(Gauge.builder(prefix + ".writebehind.pending", writeBehind,
+                    q -> q.getPendingKeys().size()) //
+                    .description("CASes with a deferred write") //
+                    .register(aRegistry));
+        }
+        CaffeineCacheMetrics.monitor(aRegistry, sharedAccessCache, SHARED_CACHE_NAME);
+        meters.addAll(Search.in(aRegistry).tag("cache", SHARED_CACHE_NAME).meters());
+
+        boundMeters.merge(aRegistry, meters, ListUtils::union);
+    }
+
+    @Override
+    public void destroy()
+    {
+        boundMeters.forEach((registry, meters) -> meters.forEach(registry::remove));
+        boundMeters.clear();
+
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+
+            // Perform the writes the background thread did not get to
+            for (CasKey key : writeBehind.getPendingKeys()) {
+                flushInBackground(key);
+                if (writeBehind.isPending(key)) {
+                    log.error("Unable to perform deferred write of {} on shutdown", key);
+                }
+            }
+        }
+
+        if (verifier != null) {
+            verifier.shutdown();
+        }
+    }
+
     @Override
     public void writeCas(SourceDocument aDocument, CAS aCas, String aUserName)
         throws IOException, CasSessionException
@@ -218,7 +354,9 @@ public class CasStorageServiceImpl
                         + mCas.get().getSourceDocumentId() + "]");
             }
 
-            realWriteCas(aDocument, aUserName, aCas);
+            if (!deferWrite(aDocument, aUserName, aCas)) {
+                realWriteCas(aDocument, aUserName, aCas);
+            }
         }
         else {
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUserName)) {
@@ -251,12 +389,144 @@ public class CasStorageServiceImpl
         session.getManagedState(aCas).ifPresent(SessionManagedCas::incrementWriteCount);
     }
 
+    /**
+     * Defers writing the given CAS if write-behind is enabled. The checks which may reject the CAS
+     * are still performed immediately so that problems are reported to the user.
+     * 
+     * @return {@code true} if the write has been deferred.
+     */
+    private boolean deferWrite(SourceDocument aDocument, String aUserName, CAS aCas)
+        throws IOException
+    {
+        if (writeBehind == null) {
+            return false;
+        }
+
+        // The initial write of a CAS is never deferred so that the file exists right away
+        File currentVersion = getCasFile(aDocument, aUserName);
+        if (!currentVersion.exists()) {
+            return false;
+        }
+
+        // Deferred writes are performed using the CAS from the exclusive access pool, so we can
+        // only defer writing that CAS and not e.g. a CAS added to the session for a special purpose
+        CasKey key = new CasKey(aDocument, aUserName);
+        if (!isExclusiveAccessPoolCas(key, aCas)) {
+            return false;
+        }
+
+        analyze(aDocument.getProject(), aDocument.getName(), aDocument.getId(), aUserName, aCas);
+
+        // Deferred writes do not touch the file, so the check holds until the write is performed.
+        // It is repeated when the write is eventually performed.
+        failOnConcurrentModification(aCas, currentVersion, aDocument, aUserName);
+
+        return writeBehind.defer(key, aDocument, aUserName, aCas);
+    }
+
+    private boolean isExclusiveAccessPoolCas(CasKey aKey, CAS aCas)
+    {
+        // Must synchronize manually when iterating over the synchronized set
+        synchronized (exclusiveAccessHolders) {
+            for (CasHolder holder : exclusiveAccessHolders) {
+                if (Objects.equals(holder.getKey(), aKey) && holder.isCasSet()
+                        && holder.getCas() == aCas) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Performs the deferred write for the given key (if any). The caller must hold exclusive
+     * access to the CAS.
+     * 
+     * @param aKey
+     *            the key.
+     * @param aCas
+     *            the CAS currently associated with the key or {@code null} if the CAS is not in
+     *            memory.
+     */
+    private void flushPendingWrite(CasKey aKey, CAS aCas) throws IOException
+    {
+        if (writeBehind == null) {
+            return;
+        }
+
+        PendingWrite write = writeBehind.remove(aKey);
+        if (write == null) {
+            return;
+        }
+
+        if (write.getCas() != aCas) {
+            log.error("Dropping {} deferred write(s) of {} because the CAS is no longer available",
+                    write.getCount(), aKey);
+            return;
+        }
+
+        try {
+            realWriteCas(write.getDocument(), write.getUser(), aCas);
+        }
+        catch (IOException | RuntimeException e) {
+            writeBehind.restore(aKey, write);
+            throw e;
+        }
+
+        sharedAccessCache.invalidate(aKey);
+
+        log.trace("Performed deferred write of {} ({} writes coalesced)", aKey, write.getCount());
+    }
+
+    /**
+     * Performs the deferred write for the given key on the calling thread by briefly borrowing the
+     * CAS. If the CAS is currently borrowed, the write is left to the borrower.
+     */
+    private void flushInBackground(CasKey aKey)
+    {
+        if (!writeBehind.isPending(aKey)) {
+            return;
+        }
+
+        CasHolder holder;
+        try {
+            holder = exclusiveAccessPool.borrowObject(aKey, BACKGROUND_BORROW_WAIT_MILLIS);
+        }
+        catch (NoSuchElementException e) {
+            // Whoever holds the CAS performs the write when acquiring exclusive access or hands
+            // it back to us when releasing the CAS
+            return;
+        }
+        catch (Exception e) {
+            log.error("Unable to borrow CAS {} to perform deferred write", aKey, e);
+            writeBehind.scheduleRetry(aKey);
+            return;
+        }
+
+        try (CasStorageSession session = CasStorageSession.openNested(true)) {
+            CAS cas = null;
+            if (holder.isCasSet()) {
+                cas = holder.getCas();
+                transferCasOwnershipToCurrentThread(cas);
+            }
+            flushPendingWrite(aKey, cas);
+        }
+        catch (Exception e) {
+            log.error("Unable to perform deferred write of {}", aKey, e);
+            writeBehind.scheduleRetry(aKey);
+        }
+        finally {
+            exclusiveAccessPool.returnObject(aKey, holder);
+        }
+    }
+
     /*
      * For testing
      */
-    void writeSerializedCas(CAS aCas, File aFile) throws IOException
+    long writeSerializedCas(CAS aCas, File aFile, boolean aVerify) throws IOException
     {
-        CasPersistenceUtils.writeSerializedCas(aCas, aFile);
+        return CasPersistenceUtils.writeSerializedCas(aCas, aFile, storageFormat, aVerify,
+                casStorageProperties.getDurability());
     }
 
     private void realWriteCas(SourceDocument aDocument, String aUserName, CAS aCas)
@@ -272,25 +542,35 @@ public class CasStorageServiceImpl
 
         File annotationFolder = getAnnotationFolder(aDocument);
         File currentVersion = new File(annotationFolder, aUserName + ".ser");
-        File oldVersion = new File(annotationFolder, aUserName + ".ser.old");
 
         // Check if there was a concurrent change to the file on disk
+        long previousLength = -1;
         if (currentVersion.exists()) {
             failOnConcurrentModification(aCas, currentVersion, aDocument, aUserName);
+            previousLength = currentVersion.length();
         }
 
-        // Save current version
+        // Save current version - the CAS is written to a temporary file which then atomically
+        // replaces "<username>.ser" or CURATION_USER.ser. If anything goes wrong, the previous
+        // version remains in place untouched.
         try {
-            // Make a backup of the current version of the file before overwriting
-            if (currentVersion.exists()) {
-                move(currentVersion.toPath(), oldVersion.toPath());
-            }
-
-            // Now write the new version to "<username>.ser" or CURATION_USER.ser
             long start = currentTimeMillis();
             setDocumentId(aCas, aUserName);
-            writeSerializedCas(aCas, currentVersion);
+            // In async mode, the CAS is verified inline anyway if the previous verification
+            // failed - we do not want to risk overwriting the quarantined file with another one
+            // that cannot be read
+            CasKey key = new CasKey(aDocument, aUserName);
+            boolean verifyInline = verifier == null || verifier.checkAndClearFailed(key);
+            long checksum = writeSerializedCas(aCas, currentVersion, verifyInline);
+            if (!verifyInline) {
+                verifier.submit(key, currentVersion, checksum);
+            }
+            else if (verifier != null) {
+                verifier.written(key);
+            }
             long duration = currentTimeMillis() - start;
+            CasStorageMetrics.recordWrite(aDocument.getProject().getId(), duration,
+                    currentVersion.length());
 
             try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                     String.valueOf(aDocument.getProject().getId()))) {
@@ -301,44 +581,19 @@ public class CasStorageServiceImpl
             }
         }
         catch (Exception e) {
-            log.error("There was an error while trying to write the CAS to [" + currentVersion
-                    + "] - additional messages follow.");
-            // If this is the first version, there is no old version, so do not restore anything
-            if (!oldVersion.exists()) {
-                log.warn("There is no old version to restore - leaving the current version which "
-                        + "may be corrupt: [{}]", currentVersion);
-                // Now abort anyway
-                throw e;
-            }
-
-            log.error("Restoring previous annotations for user [{}] on document [{}]({}) in " //
-                    + "project [{}]({}) due exception when trying to write new "
-                    + "annotations: [{}]", aUserName, aDocument.getName(), aDocument.getId(),
-                    aDocument.getProject().getName(), aDocument.getProject().getId(), oldVersion);
-            try {
-                move(oldVersion.toPath(), currentVersion.toPath(), REPLACE_EXISTING);
-            }
-            catch (Exception ex) {
-                log.error("Unable to restore previous annotations: [{}]", oldVersion, ex);
-            }
-
-            // Now abort anyway
+            log.error("There was an error while trying to write the CAS to [{}] - the previous "
+                    + "version (if any) has been left untouched", currentVersion);
             throw e;
         }
 
-        if (oldVersion.exists() && (currentVersion.length() < oldVersion.length())) {
+        if (previousLength >= 0 && (currentVersion.length() < previousLength)) {
             log.debug(
                     "Annotations truncated for user [{}] on document [{}]({}) in project "
                             + "[{}]({}): {} -> {} bytes ({} bytes removed)",
                     aUserName, aDocument.getName(), aDocument.getId(),
                     aDocument.getProject().getName(), aDocument.getProject().getId(),
-                    oldVersion.length(), currentVersion.length(),
-                    currentVersion.length() - oldVersion.length());
-        }
-
-        // If the saving was successful, we delete the old version
-        if (oldVersion.exists()) {
-            FileUtils.forceDelete(oldVersion);
+                    previousLength, currentVersion.length(),
+                    currentVersion.length() - previousLength);
         }
 
         // Update the timestamp in the CAS in case we attempt to save it a second time. This
@@ -349,7 +604,7 @@ public class CasStorageServiceImpl
 
         manageHistory(currentVersion, aDocument, aUserName);
 
-        WicketUtil.serverTiming("realWriteCas", currentTimeMillis() - t0);
+        RequestTimings.record(RequestTimings.WRITE, currentTimeMillis() - t0, MILLISECONDS);
     }
 
     private void manageHistory(File aCurrentVersion, SourceDocument aDocument, String aUserName)
@@ -359,97 +614,33 @@ public class CasStorageServiceImpl
             return;
         }
 
-        File annotationFolder = getAnnotationFolder(aDocument);
+        CasHistoryStore history = new CasHistoryStore(getAnnotationFolder(aDocument), aUserName);
 
         // Determine the reference point in time based on the current version
         long now = aCurrentVersion.lastModified();
 
-        // Get all history files for the current user
-        File[] history = annotationFolder.listFiles(new FileFilter()
-        {
-            private final Matcher matcher = Pattern
-                    .compile(Pattern.quote(aUserName) + "\\.ser\\.[0-9]+\\.bak").matcher("");
-
-            @Override
-            public boolean accept(File aFile)
-            {
-                // Check if the filename matches the pattern given above.
-                return matcher.reset(aFile.getName()).matches();
-            }
-        });
-
-        // Sort the files (oldest one first)
-        Arrays.sort(history, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
-
-        // Check if we need to make a new history file
-        boolean historyFileCreated = false;
-        File historyFile = new File(annotationFolder, aUserName + ".ser." + now + ".bak");
-        if (history.length == 0) {
-            // If there is no history yet but we should keep history, then we create a
-            // history file in any case.
-            FileUtils.copyFile(aCurrentVersion, historyFile);
-            historyFileCreated = true;
-        }
-        else {
-            // Check if the newest history file is significantly older than the current one
-            File latestHistory = history[history.length - 1];
-            if (latestHistory.lastModified() + (backupProperties.getInterval() * 1000) < now) {
-                FileUtils.copyFile(aCurrentVersion, historyFile);
-                historyFileCreated = true;
-            }
-        }
-
-        // No history file created, then we can stop here
-        if (!historyFileCreated) {
+        // Check if we need to make a new history entry. If there is no history yet but we should
+        // keep history, then we create one in any case.
+        Optional<HistoryEntry> latest = history.getLatest();
+        if (latest.isPresent() && latest.get().getTimestamp()
+                + (backupProperties.getInterval() * 1000) >= now) {
             return;
         }
 
-        // Prune history based on number of backup
-        // The new version is not in the history, so we keep that in any case. That
-        // means we need to keep one less.
-        int toKeep = Math.max(backupProperties.getKeep().getNumber() - 1, 0);
-        if ((backupProperties.getKeep().getNumber() > 0) && (toKeep < history.length)) {
-            // Copy the oldest files to a new array
-            File[] toRemove = new File[history.length - toKeep];
-            System.arraycopy(history, 0, toRemove, 0, toRemove.length);
-
-            // Restrict the history to what is left
-            File[] newHistory = new File[toKeep];
-            if (toKeep > 0) {
-                System.arraycopy(history, toRemove.length, newHistory, 0, newHistory.length);
-            }
-            history = newHistory;
-
-            // Remove these old files
-            for (File file : toRemove) {
-                FileUtils.forceDelete(file);
-
-                try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
-                        String.valueOf(aDocument.getProject().getId()))) {
-                    log.debug(
-                            "Removed surplus history file [{}] of user [{}] for "
-                                    + "document [{}]({}) in project [{}]({})",
-                            file.getName(), aUserName, aDocument.getName(), aDocument.getId(),
-                            aDocument.getProject().getName(), aDocument.getProject().getId());
-                }
-            }
-        }
+        history.add(aCurrentVersion, now, backupProperties.getCheckpointInterval());
 
-        // Prune history based on time
-        if (backupProperties.getKeep().getTime() > 0) {
-            for (File file : history) {
-                if ((file.lastModified() + (backupProperties.getKeep().getTime() * 1000)) < now) {
-                    FileUtils.forceDelete(file);
+        // Prune history based on number of backups and on time
+        List<HistoryEntry> removed = history.prune(backupProperties.getKeep().getNumber(),
+                backupProperties.getKeep().getTime() * 1000, now);
 
-                    try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
-                            String.valueOf(aDocument.getProject().getId()))) {
-                        log.debug(
-                                "Removed outdated history file [{}] of user [{}] for "
-                                        + "document [{}]({}) in project [{}]({})",
-                                file.getName(), aUserName, aDocument.getName(), aDocument.getId(),
-                                aDocument.getProject().getName(), aDocument.getProject().getId());
-                    }
-                }
+        try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
+                String.valueOf(aDocument.getProject().getId()))) {
+            for (HistoryEntry entry : removed) {
+                log.debug(
+                        "Removed history file [{}] of user [{}] for document [{}]({}) in "
+                                + "project [{}]({})",
+                        entry.getFilename(), aUserName, aDocument.getName(), aDocument.getId(),
+                        aDocument.getProject().getName(), aDocument.getProject().getId());
             }
         }
     }
@@ -510,6 +701,9 @@ public class CasStorageServiceImpl
                 // If the CAS has not been loaded into the exclusive access pool, then we need to
                 // load it
                 if (!holder.isCasSet()) {
+                    // A deferred write can only be performed as long as the CAS is in memory
+                    flushPendingWrite(key, null);
+
                     CasKey finalKey = key;
                     CasHolder finalHolder = holder;
 
@@ -634,7 +828,9 @@ public class CasStorageServiceImpl
     private CasHolder borrowCas(CasKey aKey)
     {
         try {
+            long start = System.nanoTime();
             CasHolder holder = exclusiveAccessPool.borrowObject(aKey);
+            CasStorageMetrics.recordBorrow(aKey.getProjectId(), System.nanoTime() - start);
             // Add the holder to the set of known holder. Because this set it using weak
             // references, and because we use the set only to inform holders when they become
             // invalid we do never have to explicitly remove the holder from the set
@@ -658,8 +854,30 @@ public class CasStorageServiceImpl
         try {
             log.trace("Returning borrowed CAS [{}] for [{}]@[{}]({})", cas.hashCode(),
                     aKey.getUserId(), aKey.getDocumentName(), aKey.getDocumentId());
+
+            boolean writePending = writeBehind != null && writeBehind.isPending(aKey);
+            if (writePending && aHolder.isDeleted()) {
+                writeBehind.remove(aKey);
+                writePending = false;
+            }
+            else if (writePending && aHolder.isTypeSystemOutdated()) {
+                // The CAS is dropped from the pool on return, so the write cannot wait
+                writePending = false;
+                try {
+                    flushPendingWrite(aKey, aHolder.getCas());
+                }
+                catch (Exception e) {
+                    log.error("Unable to perform deferred write of {} - changes are lost", aKey,
+                            e);
+                }
+            }
+
             exclusiveAccessPool.returnObject(aKey, aHolder);
             logExclusiveAccessHolders();
+
+            if (writePending) {
+                writeBehind.scheduleFlush(aKey);
+            }
         }
         catch (Exception e) {
             log.error("Unable to return CAS [{}] for [{}]@[{}]({}) to exclusive access pool",
@@ -673,7 +891,8 @@ public class CasStorageServiceImpl
         throws IOException
     {
         try (CasStorageSession session = CasStorageSession
-                .openNested(contains(aFlags, ISOLATED_SESSION))) {
+                .openNested(contains(aFlags, ISOLATED_SESSION));
+                RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.UPGRADE)) {
             session.add(aDocument.getId(), aUsername, EXCLUSIVE_WRITE_ACCESS, aCas);
 
             try {
@@ -727,7 +946,9 @@ public class CasStorageServiceImpl
                     aDocument.getName(), aDocument.getId(), aUsername,
                     aDocument.getProject().getName(), aDocument.getProject().getId());
 
-            cas = readUnmanagedCas(aDocument, aUsername);
+            try (RequestTimings.Measurement timing = RequestTimings.start(RequestTimings.READ)) {
+                cas = readUnmanagedCas(aDocument, aUsername);
+            }
             repairAndUpgradeCasIfRequired(aDocument, aUsername, cas, aUpgradeMode,
                     ISOLATED_SESSION);
             source = "disk";
@@ -749,6 +970,7 @@ public class CasStorageServiceImpl
         CasMetadataUtils.addOrUpdateCasMetadata(cas, casFile, aDocument, aUsername);
 
         long duration = currentTimeMillis() - start;
+        CasStorageMetrics.recordRead(aDocument.getProject().getId(), source, duration);
         log.debug("Loaded CAS [{}] [{},{}] from {} in {}ms", cas.hashCode(), aDocument.getId(),
                 aUsername, source, duration);
 
@@ -758,6 +980,8 @@ public class CasStorageServiceImpl
     private CAS readUnmanagedCas(SourceDocument aDocument, String aUser) throws IOException
     {
         File casFile = getCasFile(aDocument.getProject().getId(), aDocument.getId(), aUser);
+        // Versions before the atomic write path moved the current version to ".ser.old" while
+        // writing - such a file may still be left over from an interrupted write
         File oldCasFile = new File(casFile.getPath() + ".old");
 
         String msgOldExists = "";
@@ -807,7 +1031,12 @@ public class CasStorageServiceImpl
     public boolean deleteCas(SourceDocument aDocument, String aUsername)
         throws IOException, CasSessionException
     {
-        try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername)) {
+        try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername, false)) {
+            // There is no point in performing a deferred write if the CAS is deleted anyway
+            if (writeBehind != null) {
+                writeBehind.remove(access.getKey());
+            }
+
             boolean fileWasDeleted = new File(getAnnotationFolder(aDocument), aUsername + ".ser")
                     .delete();
 
@@ -994,6 +1223,56 @@ public class CasStorageServiceImpl
         }
     }
 
+    @Override
+    public boolean migrateCasStorageFormat(SourceDocument aDocument, String aUser)
+        throws IOException
+    {
+        Validate.notNull(aDocument, "Source document must be specified");
+        Validate.notBlank(aUser, "User must be specified");
+
+        try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUser)) {
+            File casFile = getCasFile(aDocument, aUser);
+            if (!casFile.exists()) {
+                return false;
+            }
+
+            Optional<CasStorageFormat> currentFormat = CasPersistenceUtils.detectFormat(casFile);
+            if (currentFormat.isPresent()
+                    && currentFormat.get().getId().equals(storageFormat.getId())) {
+                return false;
+            }
+
+            CAS cas = readUnmanagedCas(aDocument, aUser);
+
+            // The migration does not change the annotations, so we keep the timestamp of the file.
+            // Otherwise, users currently having the document open would get a concurrent
+            // modification error on their next save.
+            long lastModified = casFile.lastModified();
+            writeSerializedCas(cas, casFile, true);
+            casFile.setLastModified(lastModified);
+            if (verifier != null) {
+                verifier.written(access.getKey());
+            }
+
+            // Drop cached copies so they get re-loaded from the migrated file
+            sharedAccessCache.invalidate(access.getKey());
+
+            log.debug("Migrated annotations for user [{}] on document [{}]({}) in project [{}]({}) "
+                    + "from [{}] to [{}]", aUser, aDocument.getName(), aDocument.getId(),
+                    aDocument.getProject().getName(), aDocument.getProject().getId(),
+                    currentFormat.map(CasStorageFormat::getId).orElse("unknown"),
+                    storageFormat.getId());
+
+            return true;
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public boolean existsCas(SourceDocument aDocument, String aUser) throws IOException
     {
@@ -1022,8 +1301,19 @@ public class CasStorageServiceImpl
         private long documentId;
         private String username;
 
-        public WithExclusiveAccess(SourceDocument aDocument, String aUser)
-            throws CasSessionException
+        public WithExclusiveAccess(SourceDocument aDocument, String aUser) throws IOException
+        {
+            this(aDocument, aUser, true);
+        }
+
+        /**
+         * @param aFlushPendingWrite
+         *            whether to perform a deferred write of the CAS (if any) once exclusive access
+         *            has been obtained. Anybody accessing the CAS file must do this.
+         */
+        public WithExclusiveAccess(SourceDocument aDocument, String aUser,
+                boolean aFlushPendingWrite)
+            throws IOException
         {
             key = new CasKey(aDocument, aUser);
             documentName = aDocument.getName();
@@ -1048,6 +1338,16 @@ public class CasStorageServiceImpl
             else {
                 holder = null;
             }
+
+            if (aFlushPendingWrite && writeBehind != null && writeBehind.isPending(key)) {
+                try {
+                    flushPendingWrite(key, isCasSet() ? getCas() : null);
+                }
+                catch (IOException | RuntimeException e) {
+                    close();
+                    throw e;
+                }
+            }
         }
 
         public CasKey getKey()
@@ -1216,6 +1516,15 @@ public class CasStorageServiceImpl
     @Transactional
     public void beforeLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
     {
+        // Perform deferred writes of CASes from the project before they are marked as outdated
+        // because outdated CASes are dropped when they are next borrowed. CASes currently
+        // borrowed are written when they are returned.
+        if (writeBehind != null) {
+            writeBehind.getPendingKeys().stream()
+                    .filter(key -> Objects.equals(key.getProjectId(), aEvent.getProject().getId()))
+                    .forEach(this::flushInBackground);
+        }
+
         // Tell the known CAS holders for the given project that their type system is outdated
         // so they can be refreshed when next returned or borrowed
         logExclusiveAccessHolders();
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static org.apache.uima.cas.SerialFormat.BINARY_TSI;
+import static org.apache.uima.cas.SerialFormat.COMPRESSED_FILTERED_TSI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.SerialFormat;
+import org.apache.uima.util.CasIOUtils;
+import org.apache.uima.util.CasLoadMode;
+
+/**
+ * Stores the CAS in one of the UIMA binary formats with the type system and index definitions
+ * embedded in compact binary form. This is much faster to write and read than the
+ * {@link SerializedCasStorageFormat} and - in the case of the compressed variant (form 6) - also
+ * needs considerably less disk space.
+ * <p>
+ * The type system is embedded in every file instead of being shared per project because the CASes
+ * of a project are upgraded lazily and may thus be based on different versions of the project
+ * type system at any given time.
+ */
+public class BinaryCasStorageFormat
+    implements CasStorageFormat
+{
+    public static final String ID_BINARY = "binary";
+    public static final String ID_COMPRESSED = "compressed";
+
+    // All UIMA binary serialization formats start with "UIMA" (or "AMIU" if little-endian)
+    private static final byte[] MAGIC = { 'U', 'I', 'M', 'A' };
+    private static final byte[] MAGIC_LE = { 'A', 'M', 'I', 'U' };
+
+    private final String id;
+    private final SerialFormat format;
+
+    private BinaryCasStorageFormat(String aId, SerialFormat aFormat)
+    {
+        id = aId;
+        format = aFormat;
+    }
+
+    /**
+     * @return uncompressed binary format (form 0) - fastest to read and write.
+     */
+    public static BinaryCasStorageFormat binary()
+    {
+        return new BinaryCasStorageFormat(ID_BINARY, BINARY_TSI);
+    }
+
+    /**
+     * @return compressed binary format (form 6) - smallest on disk.
+     */
+    public static BinaryCasStorageFormat compressed()
+    {
+        return new BinaryCasStorageFormat(ID_COMPRESSED, COMPRESSED_FILTERED_TSI);
+    }
+
+    @Override
+    public String getId()
+    {
+        return id;
+    }
+
+    @Override
+    public boolean accepts(byte[] aHeader, int aLength)
+    {
+        return aLength >= MAGIC.length
+                && (startsWith(aHeader, MAGIC) || startsWith(aHeader, MAGIC_LE));
+    }
+
+    private static boolean startsWith(byte[] aHeader, byte[] aMagic)
+    {
+        for (int i = 0; i < aMagic.length; i++) {
+            if (aHeader[i] != aMagic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void write(CAS aCas, OutputStream aOutputStream) throws IOException
+    {
+        CasIOUtils.save(aCas, aOutputStream, format);
+    }
+
+    @Override
+    public void read(CAS aCas, InputStream aInputStream) throws IOException
+    {
+        // The binary variants are all detected by CasIOUtils itself, so a file written as
+        // "binary" can still be read after the installation switched to "compressed" and vice
+        // versa. REINIT replaces the type system of the CAS with the embedded one.
+        CasIOUtils.load(aInputStream, null, aCas, CasLoadMode.REINIT);
+    }
+}
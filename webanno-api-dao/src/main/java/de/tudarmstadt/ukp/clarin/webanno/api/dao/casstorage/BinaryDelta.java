@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Simple block-matching binary delta encoding. The base is split into fixed-size blocks which are
+ * looked up in the target using a rolling hash. Matches are extended in both directions and
+ * emitted as copy instructions, everything else is emitted as literal data.
+ * <p>
+ * A delta records the length of the base it was computed against as well as length and checksum
+ * of the target so that applying it to the wrong base is detected.
+ */
+public final class BinaryDelta
+{
+    private static final int MAGIC = 0x43444c31; // "CDL1"
+
+    private static final int BLOCK_SIZE = 32;
+    private static final int PRIME = 31;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_INSERT = 2;
+
+    private BinaryDelta()
+    {
+        // No instances
+    }
+
+    public static byte[] encode(byte[] aBase, byte[] aTarget)
+    {
+        // Index the blocks of the base - if multiple blocks have the same hash, the first one wins
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK_SIZE <= aBase.length; i += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(aBase, i), i);
+        }
+
+        int highFactor = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            highFactor *= PRIME;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(aTarget.length / 4 + 64);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(MAGIC);
+            writeVarInt(out, aBase.length);
+            writeVarInt(out, aTarget.length);
+            out.writeLong(checksum(aTarget));
+
+            int literalStart = 0;
+            int pos = 0;
+            int h = aTarget.length >= BLOCK_SIZE ? hash(aTarget, 0) : 0;
+            while (pos + BLOCK_SIZE <= aTarget.length) {
+                Integer candidate = blocks.get(h);
+                if (candidate != null && regionEquals(aBase, candidate, aTarget, pos)) {
+                    // Extend the match backwards into the pending literal data ...
+                    int baseStart = candidate;
+                    int targetStart = pos;
+                    while (targetStart > literalStart && baseStart > 0
+                            && aBase[baseStart - 1] == aTarget[targetStart - 1]) {
+                        baseStart--;
+                        targetStart--;
+                    }
+
+                    // ... and forwards as far as possible
+                    int baseEnd = candidate + BLOCK_SIZE;
+                    int targetEnd = pos + BLOCK_SIZE;
+                    while (baseEnd < aBase.length && targetEnd < aTarget.length
+                            && aBase[baseEnd] == aTarget[targetEnd]) {
+                        baseEnd++;
+                        targetEnd++;
+                    }
+
+                    writeInsert(out, aTarget, literalStart, targetStart);
+                    out.writeByte(OP_COPY);
+                    writeVarInt(out, baseStart);
+                    writeVarInt(out, targetEnd - targetStart);
+
+                    pos = targetEnd;
+                    literalStart = targetEnd;
+                    if (pos + BLOCK_SIZE <= aTarget.length) {
+                        h = hash(aTarget, pos);
+                    }
+                    continue;
+                }
+
+                // Roll the hash one byte forward
+                if (pos + BLOCK_SIZE < aTarget.length) {
+                    h = (h - (aTarget[pos] & 0xff) * highFactor) * PRIME
+                            + (aTarget[pos + BLOCK_SIZE] & 0xff);
+                }
+                pos++;
+            }
+
+            writeInsert(out, aTarget, literalStart, aTarget.length);
+            out.writeByte(OP_END);
+        }
+        catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+
+        return bos.toByteArray();
+    }
+
+    public static byte[] apply(byte[] aBase, byte[] aDelta) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(aDelta))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a delta");
+            }
+
+            int baseLength = readVarInt(in);
+            if (baseLength != aBase.length) {
+                throw new IOException("Delta was computed against a base of " + baseLength
+                        + " bytes but base has " + aBase.length + " bytes");
+            }
+
+            byte[] target = new byte[readVarInt(in)];
+            long expectedChecksum = in.readLong();
+
+            int pos = 0;
+            byte op;
+            while ((op = in.readByte()) != OP_END) {
+                switch (op) {
+                case OP_COPY: {
+                    int offset = readVarInt(in);
+                    int length = readVarInt(in);
+                    System.arraycopy(aBase, offset, target, pos, length);
+                    pos += length;
+                    break;
+                }
+                case OP_INSERT: {
+                    int length = readVarInt(in);
+                    in.readFully(target, pos, length);
+                    pos += length;
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown delta operation [" + op + "]");
+                }
+            }
+
+            if (pos != target.length || checksum(target) != expectedChecksum) {
+                throw new IOException("Applying delta did not reproduce the expected data");
+            }
+
+            return target;
+        }
+        catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt delta", e);
+        }
+    }
+
+    private static void writeInsert(DataOutputStream aOut, byte[] aData, int aStart, int aEnd)
+        throws IOException
+    {
+        if (aEnd > aStart) {
+            aOut.writeByte(OP_INSERT);
+            writeVarInt(aOut, aEnd - aStart);
+            aOut.write(aData, aStart, aEnd - aStart);
+        }
+    }
+
+    private static int hash(byte[] aData, int aOffset)
+    {
+        int h = 0;
+        for (int i = aOffset; i < aOffset + BLOCK_SIZE; i++) {
+            h = h * PRIME + (aData[i] & 0xff);
+        }
+        return h;
+    }
+
+    private static boolean regionEquals(byte[] aBase, int aBaseOffset, byte[] aTarget,
+            int aTargetOffset)
+    {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (aBase[aBaseOffset + i] != aTarget[aTargetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long checksum(byte[] aData)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(aData, 0, aData.length);
+        return crc.getValue();
+    }
+
+    private static void writeVarInt(DataOutputStream aOut, int aValue) throws IOException
+    {
+        int value = aValue;
+        while ((value & ~0x7f) != 0) {
+            aOut.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        aOut.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream aIn) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Malformed variable-length integer");
+            }
+            b = aIn.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * History of a single user's CAS file within an annotation folder. Snapshots are either full
+ * checkpoints ({@code <user>.ser.<timestamp>.bak}, same naming as the full copies created by
+ * earlier versions) or binary deltas against the previous snapshot
+ * ({@code <user>.ser.<timestamp>.delta}). The snapshots are listed in an index file
+ * ({@code <user>.ser.history}) so that neither the folder needs to be listed nor the file
+ * timestamps need to be checked to decide on creating or pruning snapshots.
+ * <p>
+ * If there is no index file yet, it is built from existing full copies in the folder.
+ * <p>
+ * This class is not thread-safe. Callers must ensure that the history of a user's CAS is only
+ * updated while holding exclusive access to that CAS.
+ */
+public class CasHistoryStore
+{
+    private static final String INDEX_SUFFIX = ".ser.history";
+    private static final String CHECKPOINT_SUFFIX = ".bak";
+    private static final String DELTA_SUFFIX = ".delta";
+
+    private static final String TYPE_CHECKPOINT = "C";
+    private static final String TYPE_DELTA = "D";
+
+    private final File folder;
+    private final String user;
+    private final File indexFile;
+
+    private List<HistoryEntry> entries;
+
+    public CasHistoryStore(File aFolder, String aUser)
+    {
+        folder = aFolder;
+        user = aUser;
+        indexFile = new File(folder, user + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return the snapshots in the history, oldest first.
+     */
+    public List<HistoryEntry> getEntries() throws IOException
+    {
+        return Collections.unmodifiableList(load());
+    }
+
+    public Optional<HistoryEntry> getLatest() throws IOException
+    {
+        List<HistoryEntry> history = load();
+        return history.isEmpty() ? Optional.empty()
+                : Optional.of(history.get(history.size() - 1));
+    }
+
+    /**
+     * Adds a snapshot of the given file to the history. The snapshot is stored as a delta against
+     * the previous snapshot unless a full checkpoint is due or the delta would not be smaller
+     * than the file itself.
+     * 
+     * @param aCurrentVersion
+     *            the file to take a snapshot of.
+     * @param aTimestamp
+     *            the timestamp of the snapshot.
+     * @param aCheckpointInterval
+     *            number of snapshots after which a full checkpoint is written. Values of 1 or
+     *            less mean that every snapshot is a checkpoint.
+     * @return the new entry.
+     */
+    public HistoryEntry add(File aCurrentVersion, long aTimestamp, int aCheckpointInterval)
+        throws IOException
+    {
+        List<HistoryEntry> history = load();
+
+        byte[] current = Files.readAllBytes(aCurrentVersion.toPath());
+
+        byte[] delta = null;
+        if (!history.isEmpty()
+                && chainLength(history, history.size() - 1) + 1 < aCheckpointInterval) {
+            delta = BinaryDelta.encode(read(history.size() - 1), current);
+            if (delta.length >= current.length) {
+                delta = null;
+            }
+        }
+
+        HistoryEntry entry;
+        if (delta != null) {
+            entry = new HistoryEntry(aTimestamp, false, user + ".ser." + aTimestamp + DELTA_SUFFIX);
+            Files.write(getFile(entry).toPath(), delta);
+        }
+        else {
+            entry = new HistoryEntry(aTimestamp, true,
+                    user + ".ser." + aTimestamp + CHECKPOINT_SUFFIX);
+            Files.write(getFile(entry).toPath(), current);
+        }
+
+        history.add(entry);
+        writeIndex();
+
+        return entry;
+    }
+
+    /**
+     * Removes old snapshots from the history. If the oldest remaining snapshot is a delta, it is
+     * turned into a full checkpoint first.
+     * 
+     * @param aKeepNumber
+     *            maximum number of snapshots to keep (no limit if 0 or less).
+     * @param aKeepTime
+     *            maximum age of snapshots in milliseconds (no limit if 0 or less).
+     * @param aNow
+     *            the reference point in time for the age.
+     * @return the removed entries.
+     */
+    public List<HistoryEntry> prune(int aKeepNumber, long aKeepTime, long aNow)
+        throws IOException
+    {
+        List<HistoryEntry> history = load();
+
+        // Determine how many of the oldest entries need to go. Since deltas depend on their
+        // predecessors, we always cut off at a position and never remove entries from the middle.
+        int cut = 0;
+        if (aKeepNumber > 0) {
+            cut = Math.max(history.size() - aKeepNumber, 0);
+        }
+        if (aKeepTime > 0) {
+            for (int i = 0; i < history.size(); i++) {
+                if (history.get(i).getTimestamp() + aKeepTime < aNow) {
+                    cut = Math.max(cut, i + 1);
+                }
+            }
+        }
+
+        if (cut == 0) {
+            return Collections.emptyList();
+        }
+
+        // Turn the new oldest entry into a checkpoint if necessary
+        if (cut < history.size() && !history.get(cut).isCheckpoint()) {
+            HistoryEntry delta = history.get(cut);
+            HistoryEntry checkpoint = new HistoryEntry(delta.getTimestamp(), true,
+                    user + ".ser." + delta.getTimestamp() + CHECKPOINT_SUFFIX);
+            Files.write(getFile(checkpoint).toPath(), read(cut));
+            history.set(cut, checkpoint);
+            writeIndex();
+            Files.deleteIfExists(getFile(delta).toPath());
+        }
+
+        List<HistoryEntry> removed = new ArrayList<>(history.subList(0, cut));
+        history.subList(0, cut).clear();
+        writeIndex();
+
+        for (HistoryEntry entry : removed) {
+            Files.deleteIfExists(getFile(entry).toPath());
+        }
+
+        return removed;
+    }
+
+    /**
+     * Restores the data of the given snapshot.
+     * 
+     * @param aEntry
+     *            a snapshot from this history.
+     * @return the contents of the CAS file at the time the snapshot was taken.
+     */
+    public byte[] read(HistoryEntry aEntry) throws IOException
+    {
+        int index = load().indexOf(aEntry);
+        if (index < 0) {
+            throw new IllegalArgumentException(
+                    "Entry [" + aEntry.getFilename() + "] is not part of the history");
+        }
+        return read(index);
+    }
+
+    public File getFile(HistoryEntry aEntry)
+    {
+        return new File(folder, aEntry.getFilename());
+    }
+
+    private byte[] read(int aIndex) throws IOException
+    {
+        List<HistoryEntry> history = load();
+        int start = aIndex - chainLength(history, aIndex);
+
+        byte[] data = readFile(history.get(start));
+        for (int i = start + 1; i <= aIndex; i++) {
+            data = BinaryDelta.apply(data, readFile(history.get(i)));
+        }
+        return data;
+    }
+
+    private byte[] readFile(HistoryEntry aEntry) throws IOException
+    {
+        File file = getFile(aEntry);
+        if (!file.exists()) {
+            throw new FileNotFoundException("History file [" + file + "] listed in ["
+                    + indexFile + "] does not exist");
+        }
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * @return the number of deltas between the given entry and the checkpoint it is based on.
+     */
+    private static int chainLength(List<HistoryEntry> aHistory, int aIndex) throws IOException
+    {
+        int i = aIndex;
+        while (!aHistory.get(i).isCheckpoint()) {
+            i--;
+            if (i < 0) {
+                throw new IOException("History does not start with a checkpoint");
+            }
+        }
+        return aIndex - i;
+    }
+
+    private List<HistoryEntry> load() throws IOException
+    {
+        if (entries != null) {
+            return entries;
+        }
+
+        entries = new ArrayList<>();
+
+        if (indexFile.exists()) {
+            for (String line : Files.readAllLines(indexFile.toPath(), UTF_8)) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3) {
+                    throw new IOException("Malformed line in [" + indexFile + "]: " + line);
+                }
+                entries.add(new HistoryEntry(Long.parseLong(fields[0]),
+                        TYPE_CHECKPOINT.equals(fields[1]), fields[2]));
+            }
+            return entries;
+        }
+
+        // No index yet - pick up any full copies created before the index was introduced
+        Matcher matcher = Pattern
+                .compile(Pattern.quote(user) + "\\.ser\\.[0-9]+\\" + CHECKPOINT_SUFFIX)
+                .matcher("");
+        File[] legacy = folder.listFiles(file -> matcher.reset(file.getName()).matches());
+        if (legacy != null && legacy.length > 0) {
+            Arrays.sort(legacy, Comparator.comparingLong(File::lastModified));
+            for (File file : legacy) {
+                entries.add(new HistoryEntry(file.lastModified(), true, file.getName()));
+            }
+            writeIndex();
+        }
+
+        return entries;
+    }
+
+    private void writeIndex() throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        for (HistoryEntry entry : entries) {
+            lines.add(entry.getTimestamp() + "\t"
+                    + (entry.isCheckpoint() ? TYPE_CHECKPOINT : TYPE_DELTA) + "\t"
+                    + entry.getFilename());
+        }
+
+        File temp = new File(indexFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, UTF_8);
+        Files.move(temp.toPath(), indexFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    public static final class HistoryEntry
+    {
+        private final long timestamp;
+        private final boolean checkpoint;
+        private final String filename;
+
+        private HistoryEntry(long aTimestamp, boolean aCheckpoint, String aFilename)
+        {
+            timestamp = aTimestamp;
+            checkpoint = aCheckpoint;
+            filename = aFilename;
+        }
+
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        public boolean isCheckpoint()
+        {
+            return checkpoint;
+        }
+
+        public String getFilename()
+        {
+            return filename;
+        }
+    }
+}
@@ -17,11 +17,15 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
 
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
 import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 
+import java.util.Iterator;
+
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASImpl;
 
 /**
  * Object representing the attempt to load a CAS, either containing a CAS or an exception if the
@@ -29,6 +33,10 @@ import org.apache.uima.cas.CAS;
  */
 public class CasHolder
 {
+    // Rough average including the feature values and the index entries of a feature structure
+    private static final long ESTIMATED_BYTES_PER_FS = 100;
+    private static final long BYTES_PER_CHAR = 2;
+
     private final CasKey key;
 
     private CAS cas;
@@ -111,6 +119,34 @@ public class CasHolder
         return deleted;
     }
 
+    /**
+     * Estimates the heap used by the CAS in this holder from the length of the text in its views
+     * and the number of feature structures it contains. The number of feature structures is taken
+     * from the highest ID assigned so far, which is cheap to obtain but includes feature
+     * structures which may already have been garbage collected.
+     * 
+     * @return the estimated size in bytes or {@code 0} if no CAS is set.
+     */
+    public long estimateHeapSize()
+    {
+        if (cas == null) {
+            return 0;
+        }
+
+        CASImpl realCas = (CASImpl) getRealCas(cas);
+
+        long textLength = 0;
+        Iterator<CAS> viewIterator = realCas.getViewIterator();
+        while (viewIterator.hasNext()) {
+            String text = viewIterator.next().getDocumentText();
+            if (text != null) {
+                textLength += text.length();
+            }
+        }
+
+        return textLength * BYTES_PER_CHAR + realCas.getLastUsedFsId() * ESTIMATED_BYTES_PER_FS;
+    }
+
     public static CasHolder of(CasKey aKey, SupplierThrowingException<CAS> aSupplier)
     {
         try {
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+/**
+ * How much effort is spent to make sure that a written CAS survives a crash of the machine (not
+ * only of the application). Higher levels cost more time on every save, in particular on network
+ * file systems.
+ */
+public enum CasStorageDurability
+{
+    /**
+     * Leave it to the operating system when the data is flushed to disk. After a crash, a CAS may
+     * revert to an older version or - depending on the file system - be empty.
+     */
+    NONE,
+
+    /**
+     * Flush the data of the file to disk before it replaces the previous version. After a crash,
+     * a CAS is either the old or the new version.
+     */
+    FILE,
+
+    /**
+     * Like {@link #FILE}, but also flush the directory after the file has been replaced so the new
+     * version is guaranteed to be visible after a crash. Not supported on all platforms.
+     */
+    DIRECTORY;
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.uima.cas.CAS;
+
+/**
+ * A binary format in which CASes are persisted in the CAS storage. Formats are recognized on read
+ * by the first few bytes of the persisted file, so files in different formats can coexist in the
+ * same storage.
+ * <p>
+ * <b>Note:</b> implementations are not responsible for synchronizing on the CAS. The caller takes
+ * care of that (UIMA-6162).
+ */
+public interface CasStorageFormat
+{
+    /**
+     * The number of bytes which are passed to {@link #accepts(byte[], int)}.
+     */
+    int HEADER_LENGTH = 4;
+
+    /**
+     * @return the ID of the format as used in the {@code cas-storage.format} property.
+     */
+    String getId();
+
+    /**
+     * @param aHeader
+     *            the first bytes of a persisted CAS.
+     * @param aLength
+     *            the number of valid bytes in the header.
+     * @return whether the data can be read using this format.
+     */
+    boolean accepts(byte[] aHeader, int aLength);
+
+    void write(CAS aCas, OutputStream aOutputStream) throws IOException;
+
+    /**
+     * Loads the data into the given CAS. The type system of the CAS is replaced by the one stored
+     * in the data.
+     */
+    void read(CAS aCas, InputStream aInputStream) throws IOException;
+}
@@ -36,6 +36,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasSessionException;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.WriteAccessNotPermittedException;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasStorageMetrics;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 
 public class CasStorageSession
@@ -53,6 +54,7 @@ public class CasStorageSession
     private boolean isolated = false;
     private boolean closed = false;
     private StackTraceElement[] creatorStack;
+    private final long openedAt = System.nanoTime();
 
     private final Map<Long, Map<String, SessionManagedCas>> managedCases = new LinkedHashMap<>();
 
@@ -171,6 +173,9 @@ public class CasStorageSession
             }
         }));
 
+        CasStorageMetrics.recordSession(previousSession != null, System.nanoTime() - openedAt,
+                managedCases.values().stream().mapToInt(Map::size).sum());
+
         LOGGER.trace("CAS storage session [{}]: closed", hashCode());
     }
 
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasPersistenceUtils;
+
+/**
+ * Verifies written CAS files on a background thread. A file is verified by checking that its
+ * checksum still matches the checksum computed during writing and that it can be read into a fresh
+ * CAS. Files failing verification are quarantined (copied aside) and their key is remembered so
+ * that the next write of the CAS can be verified inline.
+ */
+public class CasVerifier
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CasVerifier.class);
+
+    private static final int MAX_PENDING_VERIFICATIONS = 1_000;
+
+    private final double sampleRate;
+    private final ThreadPoolExecutor executor;
+    private final Set<CasKey> failedKeys = ConcurrentHashMap.newKeySet();
+
+    // Counts the writes of the CASes which have pending verifications. A verification whose
+    // generation is no longer the current one has been superseded by a newer version of the file.
+    // The file timestamp cannot tell this reliably - it may have a coarse resolution and the
+    // storage format migration deliberately keeps it when rewriting a file.
+    private final Map<CasKey, Generation> generations = new ConcurrentHashMap<>();
+
+    public CasVerifier(double aSampleRate)
+    {
+        sampleRate = aSampleRate;
+        executor = new ThreadPoolExecutor(1, 1, 0L, MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_VERIFICATIONS),
+                new BasicThreadFactory.Builder().namingPattern("cas-verifier-%d").daemon(true)
+                        .build(),
+                // If the verifier cannot keep up, we skip verifications rather than slowing down
+                // the writers
+                (task, exec) -> {
+                    ((Verification) task).skip();
+                    LOG.debug("Verification queue full - skipping verification");
+                });
+    }
+
+    /**
+     * Schedules the given file for verification (subject to sampling).
+     * 
+     * @param aKey
+     *            the key of the CAS stored in the file.
+     * @param aFile
+     *            the file.
+     * @param aChecksum
+     *            the checksum computed while writing the file.
+     */
+    public void submit(CasKey aKey, File aFile, long aChecksum)
+    {
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            written(aKey);
+            return;
+        }
+
+        long generation = recordWrite(aKey, true);
+        executor.execute(new Verification(aKey, aFile, aChecksum, generation));
+    }
+
+    /**
+     * Records that the given CAS has been written without scheduling a verification, e.g. because
+     * it has been verified inline. Pending verifications of the previous version then know that
+     * their file has been replaced.
+     */
+    public void written(CasKey aKey)
+    {
+        recordWrite(aKey, false);
+    }
+
+    private long recordWrite(CasKey aKey, boolean aPending)
+    {
+        long[] generation = new long[1];
+        generations.compute(aKey, (key, gen) -> {
+            if (gen == null) {
+                // Without pending verifications, nobody cares about the generation
+                if (!aPending) {
+                    return null;
+                }
+                gen = new Generation();
+            }
+            gen.current++;
+            if (aPending) {
+                gen.pending++;
+            }
+            generation[0] = gen.current;
+            return gen;
+        });
+        return generation[0];
+    }
+
+    private void release(CasKey aKey)
+    {
+        generations.computeIfPresent(aKey, (key, gen) -> {
+            gen.pending--;
+            return gen.pending == 0 ? null : gen;
+        });
+    }
+
+    private boolean isSuperseded(CasKey aKey, long aGeneration)
+    {
+        Generation gen = generations.get(aKey);
+        return gen != null && gen.current != aGeneration;
+    }
+
+    /**
+     * @return whether a previous asynchronous verification of the given CAS failed. The flag is
+     *         cleared by calling this method.
+     */
+    public boolean checkAndClearFailed(CasKey aKey)
+    {
+        return failedKeys.remove(aKey);
+    }
+
+    private void verify(CasKey aKey, File aFile, long aChecksum, long aGeneration)
+    {
+        try {
+            CasPersistenceUtils.verifySerializedCas(aFile, aChecksum);
+            LOG.trace("Verified [{}]", aFile);
+        }
+        catch (Exception e) {
+            // If the file has been replaced by a newer version in the meantime, the failure is
+            // expected (different checksum) - the newer version is verified on its own
+            if (!aFile.exists() || isSuperseded(aKey, aGeneration)) {
+                LOG.trace("Skipped verification of superseded [{}]", aFile);
+                return;
+            }
+
+            failedKeys.add(aKey);
+
+            try {
+                File quarantined = CasPersistenceUtils.quarantine(aFile);
+                LOG.error("Verification of annotations for user [{}] on document [{}]({}) in "
+                        + "project [{}]({}) failed - quarantined copy: [{}]", aKey.getUserId(),
+                        aKey.getDocumentName(), aKey.getDocumentId(), aKey.getProjectName(),
+                        aKey.getProjectId(), quarantined, e);
+            }
+            catch (Exception e2) {
+                LOG.error("Verification of [{}] failed and file could not be quarantined", aFile,
+                        e);
+            }
+        }
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class Generation
+    {
+        private volatile long current;
+        private int pending;
+    }
+
+    private class Verification
+        implements Runnable
+    {
+        private final CasKey key;
+        private final File file;
+        private final long checksum;
+        private final long generation;
+
+        Verification(CasKey aKey, File aFile, long aChecksum, long aGeneration)
+        {
+            key = aKey;
+            file = aFile;
+            checksum = aChecksum;
+            generation = aGeneration;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                verify(key, file, checksum, generation);
+            }
+            finally {
+                release(key);
+            }
+        }
+
+        void skip()
+        {
+            release(key);
+        }
+    }
+}
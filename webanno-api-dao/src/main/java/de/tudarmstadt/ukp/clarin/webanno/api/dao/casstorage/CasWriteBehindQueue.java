@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Keeps track of CAS writes which have been deferred. There is at most one pending write per
+ * {@link CasKey} - further writes of the same CAS are coalesced into it. A pending write is
+ * performed:
+ * <ul>
+ * <li>on a background thread once the session holding the CAS has released it;</li>
+ * <li>immediately when the CAS is written again after the pending write has reached the maximum
+ * age or the maximum number of coalesced writes;</li>
+ * <li>by anybody who acquires exclusive access to the CAS before the background thread does;</li>
+ * <li>on a background thread which periodically looks for pending writes that have reached the
+ * maximum age, e.g. because a previous background attempt failed or found the CAS in use.</li>
+ * </ul>
+ * The queue itself never touches the CAS - writing is done by the handler passed in the
+ * constructor, which must obtain exclusive access to the CAS first.
+ */
+public class CasWriteBehindQueue
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CasWriteBehindQueue.class);
+
+    private final long maxAge;
+    private final int maxCoalesced;
+    private final int maxPending;
+    private final Consumer<CasKey> flushHandler;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Map<CasKey, PendingWrite> pending = new HashMap<>();
+
+    /**
+     * @param aMaxAge
+     *            maximum time in milliseconds a write may be deferred.
+     * @param aMaxCoalesced
+     *            maximum number of writes coalesced into a single pending write.
+     * @param aMaxPending
+     *            maximum number of pending writes.
+     * @param aFlushHandler
+     *            called on the background thread to perform the pending write for a key.
+     */
+    public CasWriteBehindQueue(long aMaxAge, int aMaxCoalesced, int aMaxPending,
+            Consumer<CasKey> aFlushHandler)
+    {
+        maxAge = aMaxAge;
+        maxCoalesced = aMaxCoalesced;
+        maxPending = aMaxPending;
+        flushHandler = aFlushHandler;
+        executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+                .namingPattern("cas-write-behind-%d").daemon(true).build());
+        // Writes still pending on shutdown are performed by the caller of shutdown()
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        long tick = Math.max(1, maxAge / 2);
+        executor.scheduleWithFixedDelay(this::flushExpired, tick, tick, MILLISECONDS);
+    }
+
+    /**
+     * Records a write of the given CAS. The caller must hold exclusive access to the CAS.
+     * 
+     * @return {@code true} if the write has been deferred, {@code false} if the caller must write
+     *         the CAS immediately. In the latter case, any write pending for the key has been
+     *         removed since it is covered by the immediate write.
+     */
+    public synchronized boolean defer(CasKey aKey, SourceDocument aDocument, String aUser,
+            CAS aCas)
+    {
+        PendingWrite write = pending.get(aKey);
+
+        if (write == null) {
+            if (pending.size() >= maxPending) {
+                return false;
+            }
+
+            pending.put(aKey, new PendingWrite(aDocument, aUser, aCas));
+            return true;
+        }
+
+        if (write.cas != aCas || write.failed || write.count >= maxCoalesced
+                || currentTimeMillis() - write.created >= maxAge) {
+            pending.remove(aKey);
+            return false;
+        }
+
+        write.count++;
+        return true;
+    }
+
+    /**
+     * Removes the pending write for the given key (if any). The caller must hold exclusive access
+     * to the CAS and perform the write or re-add it using {@link #restore} if the write fails.
+     */
+    public synchronized PendingWrite remove(CasKey aKey)
+    {
+        return pending.remove(aKey);
+    }
+
+    /**
+     * Re-adds a write which could not be performed. The next write of the CAS is then performed
+     * immediately so the problem is reported to the user.
+     */
+    public synchronized void restore(CasKey aKey, PendingWrite aWrite)
+    {
+        aWrite.failed = true;
+        pending.putIfAbsent(aKey, aWrite);
+    }
+
+    public synchronized boolean isPending(CasKey aKey)
+    {
+        return pending.containsKey(aKey);
+    }
+
+    public synchronized Set<CasKey> getPendingKeys()
+    {
+        return new HashSet<>(pending.keySet());
+    }
+
+    /**
+     * @return the keys of the pending writes which have reached the maximum age at the given time.
+     */
+    synchronized Set<CasKey> getExpiredKeys(long aNow)
+    {
+        Set<CasKey> expired = new HashSet<>();
+        pending.forEach((key, write) -> {
+            if (aNow - write.created >= maxAge) {
+                expired.add(key);
+            }
+        });
+        return expired;
+    }
+
+    /**
+     * Performs the pending writes which have reached the maximum age. Called periodically on the
+     * background thread.
+     */
+    void flushExpired()
+    {
+        for (CasKey key : getExpiredKeys(currentTimeMillis())) {
+            try {
+                flushHandler.accept(key);
+            }
+            catch (RuntimeException e) {
+                // An exception would cancel the periodic check
+                LOG.error("Unable to perform expired deferred write of {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * Schedules the pending write for the given key to be performed on the background thread.
+     */
+    public void scheduleFlush(CasKey aKey)
+    {
+        schedule(aKey, 0);
+    }
+
+    /**
+     * Schedules another attempt to perform the pending write for the given key after the maximum
+     * age has passed.
+     */
+    public void scheduleRetry(CasKey aKey)
+    {
+        schedule(aKey, maxAge);
+    }
+
+    private void schedule(CasKey aKey, long aDelay)
+    {
+        try {
+            executor.schedule(() -> flushHandler.accept(aKey), aDelay, MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            LOG.debug("Write-behind queue is shut down - not scheduling write of {}", aKey);
+        }
+    }
+
+    /**
+     * Stops the background thread after it has completed the write currently in progress (if any).
+     * Writes still pending afterwards must be performed by the caller.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, SECONDS)) {
+                LOG.warn("Timed out waiting for write-behind queue to complete");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static final class PendingWrite
+    {
+        private final SourceDocument document;
+        private final String user;
+        private final CAS cas;
+        private final long created = currentTimeMillis();
+        private int count = 1;
+        private boolean failed;
+
+        private PendingWrite(SourceDocument aDocument, String aUser, CAS aCas)
+        {
+            document = aDocument;
+            user = aUser;
+            cas = aCas;
+        }
+
+        public SourceDocument getDocument()
+        {
+            return document;
+        }
+
+        public String getUser()
+        {
+            return user;
+        }
+
+        public CAS getCas()
+        {
+            return cas;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+    }
+}
@@ -18,18 +18,31 @@
 package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.RequestTimings;
+
+/**
+ * Opens a {@link CasStorageSession} and a {@link RequestTimings} collector for each request. The
+ * collected timings are sent to the client as {@code Server-Timing} headers and are logged at
+ * debug level. Phases that end only after the response has been committed are not included in the
+ * headers, but they are included in the log.
+ */
 @Component
 public class OpenCasStorageSessionForRequestFilter
     implements Filter
@@ -46,8 +59,22 @@ public class OpenCasStorageSessionForRequestFilter
     public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
         throws IOException, ServletException
     {
-        try (CasStorageSession session = CasStorageSession.open()) {
-            chain.doFilter(req, resp);
+        try (CasStorageSession session = CasStorageSession.open();
+                RequestTimings timings = RequestTimings.open()) {
+            if (resp instanceof HttpServletResponse) {
+                ServerTimingResponseWrapper wrapper = new ServerTimingResponseWrapper(
+                        (HttpServletResponse) resp, timings);
+                chain.doFilter(req, wrapper);
+                wrapper.addServerTimingHeaders();
+            }
+            else {
+                chain.doFilter(req, resp);
+            }
+
+            if (log.isDebugEnabled() && !timings.isEmpty()) {
+                log.debug("Request timings [{}]: {}", req instanceof HttpServletRequest
+                        ? ((HttpServletRequest) req).getRequestURI() : "-", timings);
+            }
         }
         catch (IOException | ServletException e) {
             throw e;
@@ -62,4 +89,77 @@ public class OpenCasStorageSessionForRequestFilter
     {
         // Do nothing
     }
+
+    /**
+     * Headers can only be added as long as the response has not been committed, so we add the
+     * timings right before the body is accessed or the response is otherwise completed.
+     */
+    private static class ServerTimingResponseWrapper
+        extends HttpServletResponseWrapper
+    {
+        private final RequestTimings timings;
+        private boolean headersAdded = false;
+
+        public ServerTimingResponseWrapper(HttpServletResponse aResponse, RequestTimings aTimings)
+        {
+            super(aResponse);
+            timings = aTimings;
+        }
+
+        private void addServerTimingHeaders()
+        {
+            if (headersAdded || isCommitted()) {
+                return;
+            }
+
+            headersAdded = true;
+
+            if (!timings.isEmpty()) {
+                timings.toServerTimingHeaderValues()
+                        .forEach(value -> addHeader(RequestTimings.HEADER, value));
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            addServerTimingHeaders();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            addServerTimingHeaders();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            addServerTimingHeaders();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendRedirect(String aLocation) throws IOException
+        {
+            addServerTimingHeaders();
+            super.sendRedirect(aLocation);
+        }
+
+        @Override
+        public void sendError(int aStatus) throws IOException
+        {
+            addServerTimingHeaders();
+            super.sendError(aStatus);
+        }
+
+        @Override
+        public void sendError(int aStatus, String aMessage) throws IOException
+        {
+            addServerTimingHeaders();
+            super.sendError(aStatus, aMessage);
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+
+import de.uhh.lt.codeanno.api.export.CasPersistenceUtils;
+
+/**
+ * The legacy storage format which Java-serializes a {@link CASCompleteSerializer}, i.e. the CAS
+ * data along with its full type system and index definitions.
+ */
+public class SerializedCasStorageFormat
+    implements CasStorageFormat
+{
+    public static final String ID = "serialized";
+
+    @Override
+    public String getId()
+    {
+        return ID;
+    }
+
+    @Override
+    public boolean accepts(byte[] aHeader, int aLength)
+    {
+        return CasPersistenceUtils.isJavaSerialized(aHeader, aLength);
+    }
+
+    @Override
+    public void write(CAS aCas, OutputStream aOutputStream) throws IOException
+    {
+        // Checking that the written data can be read again (UIMA-6162) is the responsibility of
+        // the caller - cf. CasPersistenceUtils.writeSerializedCas
+        CASCompleteSerializer serializer = serializeCASComplete((CASImpl) aCas);
+        ObjectOutputStream os = new ObjectOutputStream(aOutputStream);
+        os.writeObject(serializer);
+        os.flush();
+    }
+
+    @Override
+    public void read(CAS aCas, InputStream aInputStream) throws IOException
+    {
+        try {
+            ObjectInputStream is = new ObjectInputStream(aInputStream);
+            CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
+            deserializeCASComplete(serializer, (CASImpl) aCas);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
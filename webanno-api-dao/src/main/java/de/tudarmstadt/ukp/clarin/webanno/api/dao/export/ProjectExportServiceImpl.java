@@ -20,12 +20,15 @@ package de.tudarmstadt.ukp.clarin.webanno.api.dao.export;
 import static de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskState.NOT_STARTED;
 import static de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskState.RUNNING;
 import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.apache.commons.lang3.time.DurationFormatUtils.formatDurationWords;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -45,6 +48,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.collections4.SetUtils;
 import org.apache.commons.io.FileUtils;
@@ -73,7 +77,6 @@ import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.exporters.ProjectLogExpo
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.exporters.SourceDocumentExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportException;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
-import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskHandle;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
@@ -87,7 +90,7 @@ import de.uhh.lt.codeanno.api.export.CodebookAnnotationExporter;
 
 @Component
 public class ProjectExportServiceImpl
-    implements ProjectExportService, DisposableBean
+    implements StreamingProjectExportService, DisposableBean
 {
     public static final String EXPORTED_PROJECT = "exportedproject";
     // this is hacky.. But to register a new "real" format, we would net to get the webanno-api
@@ -174,7 +177,10 @@ public class ProjectExportServiceImpl
             // Target file
             File projectZipFile = new File(exportTempDir.getAbsolutePath() + ".zip");
 
-            ExportedProject exProjekt = exportProject(aRequest, aMonitor, exportTempDir);
+            final File stage = exportTempDir;
+            ExportedProject exProjekt = exportProject(aRequest, aMonitor,
+                (exporter, exProject) -> exporter.exportData(aRequest, aMonitor, exProject,
+                        stage));
 
             // all metadata and project settings data from the database as JSON file
             File projectSettings = File.createTempFile(EXPORTED_PROJECT, ".json");
@@ -208,8 +214,58 @@ public class ProjectExportServiceImpl
         }
     }
 
+    @Override
+    @Transactional
+    public void exportProject(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            OutputStream aOut)
+        throws ProjectExportException, IOException
+    {
+        ZipOutputStream zip = new ZipOutputStream(aOut);
+
+        ExportedProject exProject = exportProject(aRequest, aMonitor, (exporter, exProj) -> {
+            if (exporter instanceof StreamingProjectExporter) {
+                ((StreamingProjectExporter) exporter).exportData(aRequest, aMonitor, exProj, zip);
+            }
+            else {
+                // Exporters which can only write to a folder are staged one at a time so that
+                // at most the data of a single exporter is ever held on disk
+                exportStaged(aRequest, aMonitor, exporter, exProj, zip);
+            }
+        });
+
+        // all metadata and project settings data from the database as JSON file
+        zip.putNextEntry(new ZipEntry(EXPORTED_PROJECT + ".json"));
+        zip.write(JSONUtil.toPrettyJsonString(exProject).getBytes(UTF_8));
+        zip.closeEntry();
+
+        // Do not close the stream - it belongs to the caller
+        zip.finish();
+        zip.flush();
+    }
+
+    private void exportStaged(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ProjectExporter aExporter, ExportedProject aExProject, ZipOutputStream aZip)
+        throws Exception
+    {
+        File stage = Files.createTempDirectory("webanno-project-export").toFile();
+        try {
+            aExporter.exportData(aRequest, aMonitor, aExProject, stage);
+            StreamingProjectExporter.writeFolder(aZip, "", stage);
+        }
+        finally {
+            try {
+                FileUtils.forceDelete(stage);
+            }
+            catch (IOException e) {
+                aMonitor.addMessage(LogMessage.error(this,
+                        "Unable to delete temporary export directory [%s]", stage));
+                log.error("Unable to delete temporary export directory [{}]", stage);
+            }
+        }
+    }
+
     private ExportedProject exportProject(ProjectExportRequest aRequest,
-            ProjectExportTaskMonitor aMonitor, File aStage)
+            ProjectExportTaskMonitor aMonitor, ExporterInvocation aInvocation)
         throws ProjectExportException, IOException
     {
         Deque<ProjectExporter> deque = new LinkedList<>(exporters);
@@ -238,7 +294,7 @@ public class ProjectExportServiceImpl
                                     || initializer instanceof AggregatedAnnotationExporter
                                     || initializer instanceof CodebookAnnotationExporter)) {
                         log.debug("Applying project exporter: {}", initializer);
-                        initializer.exportData(aRequest, aMonitor, exProject, aStage);
+                        aInvocation.export(initializer, exProject);
                     }
                     initsSeen.add(initializer.getClass());
                     initsDeferred.clear();
@@ -478,6 +534,12 @@ public class ProjectExportServiceImpl
         }
     }
 
+    @FunctionalInterface
+    private interface ExporterInvocation
+    {
+        void export(ProjectExporter aExporter, ExportedProject aExProject) throws Exception;
+    }
+
     private static class TaskInfo
     {
         private final Future<?> future;
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportException;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportService;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
+
+/**
+ * A {@link ProjectExportService} which can write the project archive directly to a stream, e.g.
+ * the HTTP response, without building it in a temporary file first.
+ */
+public interface StreamingProjectExportService
+    extends ProjectExportService
+{
+    /**
+     * Exports the project as a ZIP archive into the given stream. The archive has the same layout
+     * as the one produced by
+     * {@link #exportProject(ProjectExportRequest, ProjectExportTaskMonitor)}. The stream is not
+     * closed.
+     *
+     * @param aRequest
+     *            the export request.
+     * @param aMonitor
+     *            the monitor to report progress and messages to.
+     * @param aOut
+     *            the stream to write the archive to.
+     * @throws ProjectExportException
+     *             if an exporter fails.
+     * @throws IOException
+     *             if the archive cannot be written.
+     */
+    void exportProject(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            OutputStream aOut)
+        throws ProjectExportException, IOException;
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
+import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
+
+/**
+ * A {@link ProjectExporter} which can write its files directly into the project archive instead
+ * of staging them in a folder first. The entries must be named exactly like the files would be
+ * named relative to the staging folder.
+ */
+public interface StreamingProjectExporter
+    extends ProjectExporter
+{
+    void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws Exception;
+
+    /**
+     * Writes the given file to the archive.
+     *
+     * @param aZip
+     *            the archive.
+     * @param aEntryName
+     *            the path of the file relative to the staging folder. Leading and duplicate
+     *            slashes are removed.
+     * @param aFile
+     *            the file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static void writeEntry(ZipOutputStream aZip, String aEntryName, File aFile)
+        throws IOException
+    {
+        aZip.putNextEntry(new ZipEntry(normalizeEntryName(aEntryName)));
+        Files.copy(aFile.toPath(), aZip);
+        aZip.closeEntry();
+    }
+
+    /**
+     * Writes all files in the given folder and its sub-folders to the archive.
+     *
+     * @param aZip
+     *            the archive.
+     * @param aPath
+     *            the path of the folder relative to the staging folder.
+     * @param aFolder
+     *            the folder.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static void writeFolder(ZipOutputStream aZip, String aPath, File aFolder) throws IOException
+    {
+        File[] files = aFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                writeFolder(aZip, aPath + "/" + file.getName(), file);
+            }
+            else {
+                writeEntry(aZip, aPath + "/" + file.getName(), file);
+            }
+        }
+    }
+
+    static String normalizeEntryName(String aEntryName)
+    {
+        String name = aEntryName.replaceAll("/{2,}", "/");
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+}
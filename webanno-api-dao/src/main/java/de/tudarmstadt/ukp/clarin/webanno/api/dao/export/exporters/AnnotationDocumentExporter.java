@@ -36,25 +36,35 @@ import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 import static org.apache.commons.io.FileUtils.copyFileToDirectory;
-import static org.apache.commons.io.FileUtils.forceDelete;
-import static org.apache.commons.io.FileUtils.forceMkdir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.UIMAException;
@@ -63,13 +73,12 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ImportExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.ProjectExportProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
@@ -82,13 +91,12 @@ import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
-import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
 import de.tudarmstadt.ukp.clarin.webanno.tsv.WebAnnoTsv3FormatSupport;
 
 @Component
 public class AnnotationDocumentExporter
-    implements ProjectExporter
+    implements StreamingProjectExporter
 {
     private static final String ANNOTATION_ORIGINAL_FOLDER = "/annotation/";
     private static final String ANNOTATION_AS_SERIALISED_CAS = "annotation_ser";
@@ -100,15 +108,18 @@ public class AnnotationDocumentExporter
     private final UserDao userRepository;
     private final ImportExportService importExportService;
     private final RepositoryProperties repositoryProperties;
+    private final ProjectExportProperties properties;
 
     @Autowired
     public AnnotationDocumentExporter(DocumentService aDocumentService, UserDao aUserRepository,
-            ImportExportService aImportExportService, RepositoryProperties aRepositoryProperties)
+            ImportExportService aImportExportService, RepositoryProperties aRepositoryProperties,
+            ProjectExportProperties aProperties)
     {
         documentService = aDocumentService;
         userRepository = aUserRepository;
         importExportService = aImportExportService;
         repositoryProperties = aRepositoryProperties;
+        properties = aProperties;
     }
 
     @Override
@@ -129,7 +140,19 @@ public class AnnotationDocumentExporter
         throws UIMAException, ClassNotFoundException, IOException
     {
         exportAnnotationDocuments(aMonitor, aRequest.getProject(), aExProject);
-        exportAnnotationDocumentContents(aRequest, aMonitor, aExProject, aStage);
+        exportAnnotationDocumentContents(aRequest, aMonitor,
+            (path, file) -> copyFileToDirectory(file, new File(aStage, path)));
+    }
+
+    @Override
+    public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws UIMAException, ClassNotFoundException, IOException
+    {
+        exportAnnotationDocuments(aMonitor, aRequest.getProject(), aExProject);
+        exportAnnotationDocumentContents(aRequest, aMonitor,
+            (path, file) -> StreamingProjectExporter.writeEntry(aZip,
+                    path + "/" + file.getName(), file));
     }
 
     private void exportAnnotationDocuments(ProjectExportTaskMonitor aMonitor, Project aProject,
@@ -154,17 +177,17 @@ public class AnnotationDocumentExporter
     }
 
     private void exportAnnotationDocumentContents(ProjectExportRequest aRequest,
-            ProjectExportTaskMonitor aMonitor, ExportedProject aExProject, File aStage)
+            ProjectExportTaskMonitor aMonitor, EntryWriter aWriter)
         throws UIMAException, ClassNotFoundException, IOException
     {
         Project project = aRequest.getProject();
 
         // The export process may store project-related information in this context to ensure it
-        // is looked up only once during the bulk operation and the DB is not hit too often.
-        Map<Pair<Project, String>, Object> bulkOperationContext = new HashMap<>();
+        // is looked up only once during the bulk operation and the DB is not hit too often. It is
+        // shared by all workers, so it must be thread-safe.
+        Map<Pair<Project, String>, Object> bulkOperationContext = new ConcurrentHashMap<>();
 
         List<SourceDocument> documents = documentService.listSourceDocuments(project);
-        int i = 1;
         int initProgress = aMonitor.getProgress();
 
         // Create a map containing the annotation documents for each source document. Doing this
@@ -174,131 +197,224 @@ public class AnnotationDocumentExporter
                 .listAnnotationDocuments(project).stream()
                 .collect(groupingBy(doc -> doc.getDocument(), toList()));
 
-        // Cache user lookups to avoid constantly hitting the database
-        LoadingCache<String, User> usersCache = Caffeine.newBuilder()
-                .build(key -> userRepository.get(key));
-
-        for (SourceDocument srcDoc : documents) {
-            try (CasStorageSession session = CasStorageSession.openNested()) {
-                //
-                // Export initial CASes
-                //
-
-                // The initial CAS must always be exported to ensure that the converted source
-                // document will *always* have the state it had at the time of the initial import.
-                // We we do have a reliably initial CAS and instead lazily convert whenever an
-                // annotator starts annotating, then we could end up with two annotators having two
-                // different versions of their CAS e.g. if there was a code change in the reader
-                // component that affects its output.
-
-                // If the initial CAS does not exist yet, it must be created before export.
-                if (!documentService.existsInitialCas(srcDoc)) {
-                    documentService.createOrReadInitialCas(srcDoc);
+        // Look up the users once here so the workers do not need to hit the database
+        Set<String> existingUsers = srcToAnnIdx.values().stream() //
+                .flatMap(List::stream) //
+                .map(AnnotationDocument::getUser) //
+                .distinct() //
+                .filter(user -> userRepository.get(user) != null) //
+                .collect(toSet());
+
+        int threads = Math.min(properties.getEffectiveThreads(), documents.size());
+
+        // Serial mode - convert and write each document in the calling thread
+        if (threads <= 1) {
+            int i = 1;
+            for (SourceDocument srcDoc : documents) {
+                DocumentExport export;
+                try (CasStorageSession session = CasStorageSession.openNested()) {
+                    export = exportDocument(aRequest, srcDoc, srcToAnnIdx, existingUsers,
+                            bulkOperationContext);
                 }
+                export.writeTo(aWriter, aMonitor);
 
-                File targetDir = new File(aStage, ANNOTATION_CAS_FOLDER + srcDoc.getName());
-                forceMkdir(targetDir);
-
-                File initialCasFile = documentService.getCasFile(srcDoc, INITIAL_CAS_PSEUDO_USER);
-
-                copyFileToDirectory(initialCasFile, targetDir);
+                aMonitor.setProgress(
+                        initProgress + (int) ceil(((double) i) / documents.size() * 80.0));
+                i++;
+            }
+            return;
+        }
 
-                log.info("Exported annotation document content for user [" + INITIAL_CAS_PSEUDO_USER
-                        + "] for source document [" + srcDoc.getId() + "] in project ["
-                        + project.getName() + "] with id [" + project.getId() + "]");
+        // Parallel mode - the documents are converted by a pool of workers, but the results are
+        // written in document order by the calling thread. This keeps the order of the entries in
+        // the archive deterministic and the progress accurate. The number of documents in flight
+        // is bounded so that the temporary files of converted but not yet written documents do
+        // not pile up if writing is slower than converting.
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new BasicThreadFactory.Builder().namingPattern("annotation-export-%d")
+                        .daemon(true).build());
+        Deque<Future<DocumentExport>> pending = new ArrayDeque<>();
+        UnwrittenExports unwritten = new UnwrittenExports();
+        try {
+            Iterator<SourceDocument> docIterator = documents.iterator();
+            int i = 1;
+            while (docIterator.hasNext() || !pending.isEmpty()) {
+                while (docIterator.hasNext() && pending.size() < threads * 2) {
+                    SourceDocument srcDoc = docIterator.next();
+                    pending.add(executor.submit(() -> {
+                        // Workers do not inherit the session of the calling thread
+                        try (CasStorageSession session = CasStorageSession.open()) {
+                            return unwritten.add(exportDocument(aRequest, srcDoc, srcToAnnIdx,
+                                    existingUsers, bulkOperationContext));
+                        }
+                    }));
+                }
 
-                //
-                // Export per-user annotation document
-                //
+                DocumentExport export = awaitDocumentExport(pending.poll());
+                unwritten.remove(export);
+                export.writeTo(aWriter, aMonitor);
 
-                // Determine which format to use for export
-                String formatId = FORMAT_AUTO.equals(aRequest.getFormat()) ? srcDoc.getFormat()
-                        : aRequest.getFormat();
+                aMonitor.setProgress(
+                        initProgress + (int) ceil(((double) i) / documents.size() * 80.0));
+                i++;
+            }
+        }
+        finally {
+            pending.forEach(future -> future.cancel(true));
+            executor.shutdownNow();
 
-                FormatSupport format = importExportService.getWritableFormatById(formatId)
-                        .orElseGet(() -> {
-                            FormatSupport fallbackFormat = new WebAnnoTsv3FormatSupport();
-                            aMonitor.addMessage(LogMessage.warn(this,
-                                    "Annotation: [%s] No writer "
-                                            + "found for original format [%s] - exporting as [%s] "
-                                            + "instead.",
-                                    srcDoc.getName(), formatId, fallbackFormat.getName()));
-                            return fallbackFormat;
-                        });
+            // If the export failed or was cancelled, clean up the results which have not been
+            // written yet. Workers which are still running clean up once they are done.
+            unwritten.discardAll();
+        }
+    }
 
-                // Codebooks are exported separately
-                if (format.isDocumentLevel()) {
-                    format = new WebAnnoTsv3FormatSupport();
-                }
-                // Export annotations from regular users
-                for (AnnotationDocument annDoc : srcToAnnIdx.computeIfAbsent(srcDoc,
-                        key -> emptyList())) {
-
-                    // copy annotation document only for existing users and the state of the
-                    // annotation document is not NEW/IGNORE
-                    if (usersCache.get(annDoc.getUser()) != null
-                            && !annDoc.getState().equals(AnnotationDocumentState.NEW)
-                            && !annDoc.getState().equals(AnnotationDocumentState.IGNORE)) {
-                        File annSerDir = new File(aStage.getAbsolutePath() + ANNOTATION_CAS_FOLDER
-                                + srcDoc.getName());
-                        File annDocDir = new File(aStage.getAbsolutePath()
-                                + ANNOTATION_ORIGINAL_FOLDER + srcDoc.getName());
-
-                        forceMkdir(annSerDir);
-                        forceMkdir(annDocDir);
-
-                        File annSerFile = documentService.getCasFile(srcDoc, annDoc.getUser());
-
-                        File annFile = null;
-                        if (annSerFile.exists()) {
-                            annFile = importExportService.exportAnnotationDocument(srcDoc,
-                                    annDoc.getUser(), format, annDoc.getUser(), ANNOTATION, false,
-                                    bulkOperationContext);
-                        }
+    private DocumentExport awaitDocumentExport(Future<DocumentExport> aFuture)
+        throws UIMAException, ClassNotFoundException, IOException
+    {
+        try {
+            return aFuture.get();
+        }
+        catch (InterruptedException e) {
+            // Export cancellation interrupts the exporting thread - report it as an IOException
+            // so it is passed on as-is to the project export UI panel
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Annotation export was interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UIMAException) {
+                throw (UIMAException) cause;
+            }
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-                        if (annSerFile.exists()) {
-                            copyFileToDirectory(annSerFile, annSerDir);
-                            copyFileToDirectory(annFile, annDocDir);
-                            forceDelete(annFile);
-                        }
+    /**
+     * Converts the annotations of all users for the given document. The resulting files are not
+     * written to the export yet. This allows running the conversion for several documents in
+     * parallel.
+     */
+    private DocumentExport exportDocument(ProjectExportRequest aRequest, SourceDocument aSrcDoc,
+            Map<SourceDocument, List<AnnotationDocument>> aSrcToAnnIdx, Set<String> aExistingUsers,
+            Map<Pair<Project, String>, Object> aBulkOperationContext)
+        throws UIMAException, ClassNotFoundException, IOException
+    {
+        Project project = aRequest.getProject();
+        DocumentExport export = new DocumentExport();
+
+        try {
+            //
+            // Export initial CASes
+            //
+
+            // The initial CAS must always be exported to ensure that the converted source
+            // document will *always* have the state it had at the time of the initial import.
+            // We we do have a reliably initial CAS and instead lazily convert whenever an
+            // annotator starts annotating, then we could end up with two annotators having two
+            // different versions of their CAS e.g. if there was a code change in the reader
+            // component that affects its output.
+
+            // If the initial CAS does not exist yet, it must be created before export.
+            if (!documentService.existsInitialCas(aSrcDoc)) {
+                documentService.createOrReadInitialCas(aSrcDoc);
+            }
 
-                        log.info("Exported annotation document content for user ["
-                                + annDoc.getUser() + "] for source document [" + srcDoc.getId()
-                                + "] in project [" + project.getName() + "] with id ["
-                                + project.getId() + "]");
+            String annSerDir = ANNOTATION_CAS_FOLDER + aSrcDoc.getName();
+            String annDocDir = ANNOTATION_ORIGINAL_FOLDER + aSrcDoc.getName();
+
+            File initialCasFile = documentService.getCasFile(aSrcDoc, INITIAL_CAS_PSEUDO_USER);
+            export.add(annSerDir, initialCasFile, false);
+
+            log.info("Exported annotation document content for user [" + INITIAL_CAS_PSEUDO_USER
+                    + "] for source document [" + aSrcDoc.getId() + "] in project ["
+                    + project.getName() + "] with id [" + project.getId() + "]");
+
+            //
+            // Export per-user annotation document
+            //
+
+            // Determine which format to use for export
+            String formatId = FORMAT_AUTO.equals(aRequest.getFormat()) ? aSrcDoc.getFormat()
+                    : aRequest.getFormat();
+
+            FormatSupport format = importExportService.getWritableFormatById(formatId)
+                    .orElseGet(() -> {
+                        FormatSupport fallbackFormat = new WebAnnoTsv3FormatSupport();
+                        export.messages.add(LogMessage.warn(this,
+                                "Annotation: [%s] No writer "
+                                        + "found for original format [%s] - exporting as [%s] "
+                                        + "instead.",
+                                aSrcDoc.getName(), formatId, fallbackFormat.getName()));
+                        return fallbackFormat;
+                    });
+
+            // Codebooks are exported separately
+            if (format.isDocumentLevel()) {
+                format = new WebAnnoTsv3FormatSupport();
+            }
+            // Export annotations from regular users
+            for (AnnotationDocument annDoc : aSrcToAnnIdx.getOrDefault(aSrcDoc, emptyList())) {
+
+                // copy annotation document only for existing users and the state of the
+                // annotation document is not NEW/IGNORE
+                if (aExistingUsers.contains(annDoc.getUser())
+                        && !annDoc.getState().equals(AnnotationDocumentState.NEW)
+                        && !annDoc.getState().equals(AnnotationDocumentState.IGNORE)) {
+                    File annSerFile = documentService.getCasFile(aSrcDoc, annDoc.getUser());
+
+                    if (annSerFile.exists()) {
+                        File annFile = importExportService.exportAnnotationDocument(aSrcDoc,
+                                annDoc.getUser(), format, annDoc.getUser(), ANNOTATION, false,
+                                aBulkOperationContext);
+                        export.add(annSerDir, annSerFile, false);
+                        export.add(annDocDir, annFile, true);
                     }
+
+                    log.info("Exported annotation document content for user ["
+                            + annDoc.getUser() + "] for source document [" + aSrcDoc.getId()
+                            + "] in project [" + project.getName() + "] with id ["
+                            + project.getId() + "]");
                 }
+            }
 
-                // Special handling for the virtual CORRECTION_USER data used in automation and
-                // correction type projects.
-                if (PROJECT_TYPE_AUTOMATION.equals(project.getMode())
-                        || PROJECT_TYPE_CORRECTION.equals(project.getMode())) {
-                    File corrSerFile = documentService.getCasFile(srcDoc, CORRECTION_USER);
-                    if (corrSerFile.exists()) {
-                        // Copy CAS - this is used when importing the project again
-                        // Util WebAnno 3.4.x, the CORRECTION_USER CAS was exported to 'curation'
-                        // and 'curation_ser'.
-                        // Since WebAnno 3.5.x, the CORRECTION_USER CAS is exported to 'annotation'
-                        // and 'annotation_ser'.
-                        File curationSerDir = new File(
-                                aStage + ANNOTATION_AS_SERIALISED_CAS + srcDoc.getName());
-                        forceMkdir(curationSerDir);
-                        copyFileToDirectory(corrSerFile, curationSerDir);
-
-                        // Copy secondary export format for convenience - not used during import
-                        File curationDir = new File(
-                                aStage + ANNOTATION_ORIGINAL_FOLDER + srcDoc.getName());
-                        forceMkdir(curationDir);
-                        File corrFile = importExportService.exportAnnotationDocument(srcDoc,
-                                CORRECTION_USER, format, CORRECTION_USER, CORRECTION);
-                        copyFileToDirectory(corrFile, curationDir);
-                        forceDelete(corrFile);
-                    }
+            // Special handling for the virtual CORRECTION_USER data used in automation and
+            // correction type projects.
+            if (PROJECT_TYPE_AUTOMATION.equals(project.getMode())
+                    || PROJECT_TYPE_CORRECTION.equals(project.getMode())) {
+                File corrSerFile = documentService.getCasFile(aSrcDoc, CORRECTION_USER);
+                if (corrSerFile.exists()) {
+                    // Copy CAS - this is used when importing the project again
+                    // Util WebAnno 3.4.x, the CORRECTION_USER CAS was exported to 'curation'
+                    // and 'curation_ser'.
+                    // Since WebAnno 3.5.x, the CORRECTION_USER CAS is exported to 'annotation'
+                    // and 'annotation_ser'.
+                    export.add(annSerDir, corrSerFile, false);
+
+                    // Copy secondary export format for convenience - not used during import
+                    File corrFile = importExportService.exportAnnotationDocument(aSrcDoc,
+                            CORRECTION_USER, format, CORRECTION_USER, CORRECTION);
+                    export.add(annDocDir, corrFile, true);
                 }
             }
 
-            aMonitor.setProgress(initProgress + (int) ceil(((double) i) / documents.size() * 80.0));
-            i++;
+            return export;
+        }
+        catch (Exception e) {
+            export.discard();
+            throw e;
         }
     }
 
@@ -416,4 +532,94 @@ public class AnnotationDocumentExporter
                     aProject.getName(), aProject.getId());
         }
     }
+
+    @FunctionalInterface
+    private interface EntryWriter
+    {
+        void write(String aPath, File aFile) throws IOException;
+    }
+
+    /**
+     * The files exported for a single source document and the messages produced while doing so.
+     */
+    private static class DocumentExport
+    {
+        private final List<ExportEntry> entries = new ArrayList<>();
+        private final List<LogMessage> messages = new ArrayList<>();
+
+        void add(String aPath, File aFile, boolean aTemporary)
+        {
+            entries.add(new ExportEntry(aPath, aFile, aTemporary));
+        }
+
+        void writeTo(EntryWriter aWriter, ProjectExportTaskMonitor aMonitor) throws IOException
+        {
+            try {
+                messages.forEach(aMonitor::addMessage);
+                for (ExportEntry entry : entries) {
+                    aWriter.write(entry.path, entry.file);
+                }
+            }
+            finally {
+                discard();
+            }
+        }
+
+        void discard()
+        {
+            for (ExportEntry entry : entries) {
+                if (entry.temporary) {
+                    FileUtils.deleteQuietly(entry.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * The results of the workers which have not been written yet. The result of a worker which
+     * finishes after the export has been aborted is discarded right away - the future through
+     * which it would have been returned has been cancelled.
+     */
+    private static class UnwrittenExports
+    {
+        private final Set<DocumentExport> exports = new HashSet<>();
+        private boolean discarded = false;
+
+        synchronized DocumentExport add(DocumentExport aExport)
+        {
+            if (discarded) {
+                aExport.discard();
+            }
+            else {
+                exports.add(aExport);
+            }
+            return aExport;
+        }
+
+        synchronized void remove(DocumentExport aExport)
+        {
+            exports.remove(aExport);
+        }
+
+        synchronized void discardAll()
+        {
+            discarded = true;
+            exports.forEach(DocumentExport::discard);
+            exports.clear();
+        }
+    }
+
+    private static class ExportEntry
+    {
+        private final String path;
+        private final File file;
+        private final boolean temporary;
+
+        ExportEntry(String aPath, File aFile, boolean aTemporary)
+        {
+            path = aPath;
+            file = aFile;
+            temporary = aTemporary;
+        }
+    }
 }
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -34,9 +35,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
-import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
@@ -44,7 +45,7 @@ import de.tudarmstadt.ukp.clarin.webanno.support.ZipUtils;
 
 @Component
 public class GuildelinesExporter
-    implements ProjectExporter
+    implements StreamingProjectExporter
 {
     public static final String GUIDELINE = "guideline";
     private static final String GUIDELINES_FOLDER = "/" + GUIDELINE;
@@ -72,6 +73,22 @@ public class GuildelinesExporter
         }
     }
 
+    @Override
+    public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws Exception
+    {
+        File annotationGuidlines = projectService.getGuidelinesFolder(aRequest.getProject());
+
+        if (annotationGuidlines.exists()) {
+            for (File annotationGuideline : annotationGuidlines.listFiles()) {
+                StreamingProjectExporter.writeEntry(aZip,
+                        GUIDELINES_FOLDER + "/" + annotationGuideline.getName(),
+                        annotationGuideline);
+            }
+        }
+    }
+
     /**
      * Copy guidelines from the exported project
      * 
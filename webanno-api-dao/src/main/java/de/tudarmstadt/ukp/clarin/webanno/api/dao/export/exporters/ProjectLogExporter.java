@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -30,9 +31,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
-import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
@@ -40,7 +41,7 @@ import de.tudarmstadt.ukp.clarin.webanno.support.ZipUtils;
 
 @Component
 public class ProjectLogExporter
-    implements ProjectExporter
+    implements StreamingProjectExporter
 {
     private static final String LOG = ProjectService.LOG_FOLDER;
     private static final String LOG_FOLDER = "/" + LOG;
@@ -62,6 +63,18 @@ public class ProjectLogExporter
         }
     }
 
+    @Override
+    public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws IOException
+    {
+        File logFile = projectService.getProjectLogFile(aRequest.getProject());
+        if (logFile.exists()) {
+            StreamingProjectExporter.writeEntry(aZip, LOG_FOLDER + "/" + logFile.getName(),
+                    logFile);
+        }
+    }
+
     /**
      * copy project log files from the exported project
      * 
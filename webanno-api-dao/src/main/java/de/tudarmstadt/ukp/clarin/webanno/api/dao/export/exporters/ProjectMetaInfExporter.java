@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -31,9 +32,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
-import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
@@ -41,7 +42,7 @@ import de.tudarmstadt.ukp.clarin.webanno.support.ZipUtils;
 
 @Component
 public class ProjectMetaInfExporter
-    implements ProjectExporter
+    implements StreamingProjectExporter
 {
     private static final String META_INF_FOLDER = "META-INF";
     private static final String META_INF = "/" + META_INF_FOLDER;
@@ -63,6 +64,17 @@ public class ProjectMetaInfExporter
         }
     }
 
+    @Override
+    public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws IOException
+    {
+        File metaInf = projectService.getMetaInfFolder(aRequest.getProject());
+        if (metaInf.exists()) {
+            StreamingProjectExporter.writeFolder(aZip, META_INF, metaInf);
+        }
+    }
+
     /**
      * Copy project META_INF from the exported project
      * 
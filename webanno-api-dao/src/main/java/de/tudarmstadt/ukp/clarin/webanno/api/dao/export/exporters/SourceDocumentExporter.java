@@ -37,6 +37,7 @@ import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -49,6 +50,7 @@ import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExporter;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportException;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
@@ -62,7 +64,7 @@ import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
 
 @Component
 public class SourceDocumentExporter
-    implements ProjectExporter
+    implements StreamingProjectExporter
 {
     private static final String SOURCE_FOLDER = "source";
 
@@ -77,7 +79,21 @@ public class SourceDocumentExporter
         throws IOException, ProjectExportException
     {
         exportSourceDocuments(aRequest.getProject(), aExProject);
-        exportSourceDocumentContents(aRequest, aMonitor, aExProject, aStage);
+
+        File sourceDocumentDir = new File(aStage, SOURCE_FOLDER);
+        FileUtils.forceMkdir(sourceDocumentDir);
+        exportSourceDocumentContents(aRequest, aMonitor,
+                file -> FileUtils.copyFileToDirectory(file, sourceDocumentDir));
+    }
+
+    @Override
+    public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+            ExportedProject aExProject, ZipOutputStream aZip)
+        throws IOException, ProjectExportException
+    {
+        exportSourceDocuments(aRequest.getProject(), aExProject);
+        exportSourceDocumentContents(aRequest, aMonitor, file -> StreamingProjectExporter
+                .writeEntry(aZip, SOURCE_FOLDER + "/" + file.getName(), file));
     }
 
     private void exportSourceDocuments(Project aProject, ExportedProject exProject)
@@ -103,19 +119,21 @@ public class SourceDocumentExporter
     }
 
     private void exportSourceDocumentContents(ProjectExportRequest aRequest,
-            ProjectExportTaskMonitor aMonitor, ExportedProject aExProject, File aStage)
+            ProjectExportTaskMonitor aMonitor, SourceFileWriter aWriter)
         throws IOException, ProjectExportException
     {
         Project project = aRequest.getProject();
-        File sourceDocumentDir = new File(aStage, SOURCE_FOLDER);
-        FileUtils.forceMkdir(sourceDocumentDir);
         // Get all the source documents from the project
         List<SourceDocument> documents = documentService.listSourceDocuments(project);
         int i = 1;
         for (SourceDocument sourceDocument : documents) {
             try {
-                FileUtils.copyFileToDirectory(documentService.getSourceDocumentFile(sourceDocument),
-                        sourceDocumentDir);
+                File sourceFile = documentService.getSourceDocumentFile(sourceDocument);
+                if (!sourceFile.exists()) {
+                    throw new FileNotFoundException(
+                            "Source file [" + sourceFile + "] does not exist");
+                }
+                aWriter.write(sourceFile);
                 aMonitor.setProgress((int) Math.ceil(((double) i) / documents.size() * 10.0));
                 i++;
                 log.info("Exported content for source document [" + sourceDocument.getId()
@@ -232,4 +250,10 @@ public class SourceDocumentExporter
             }
         }
     }
+
+    @FunctionalInterface
+    private interface SourceFileWriter
+    {
+        void write(File aSourceFile) throws IOException;
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of the CAS storage layer. The meters are registered with the Micrometer global registry
+ * so that they are also available from code which is not managed by Spring. Spring Boot adds the
+ * registries it configures (e.g. JMX, Prometheus) to the global registry. If no registry is
+ * configured, recording is a no-op. The gauges of the CAS pools are not registered here but bound
+ * to the registries managed by Spring, see
+ * {@link de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageServiceImpl#bindTo}.
+ */
+public final class CasStorageMetrics
+{
+    public static final String PREFIX = "cas.storage";
+
+    public static final String TAG_PROJECT = "project";
+    public static final String TAG_FORMAT = "format";
+    public static final String TAG_SOURCE = "source";
+    public static final String TAG_NESTED = "nested";
+
+    private CasStorageMetrics()
+    {
+        // No instances
+    }
+
+    public static MeterRegistry registry()
+    {
+        return Metrics.globalRegistry;
+    }
+
+    /**
+     * Records reading a CAS into memory (including repairs and upgrades).
+     * 
+     * @param aSource
+     *            where the CAS came from ({@code disk} or {@code importer}).
+     */
+    public static void recordRead(long aProjectId, String aSource, long aDurationMillis)
+    {
+        Timer.builder(PREFIX + ".read") //
+                .description("Time to load a CAS into memory") //
+                .tag(TAG_PROJECT, String.valueOf(aProjectId)) //
+                .tag(TAG_SOURCE, aSource) //
+                .register(registry()) //
+                .record(aDurationMillis, MILLISECONDS);
+    }
+
+    /**
+     * Records writing a CAS to storage (including checks and history management).
+     */
+    public static void recordWrite(long aProjectId, long aDurationMillis, long aBytes)
+    {
+        Timer.builder(PREFIX + ".write") //
+                .description("Time to write a CAS to storage") //
+                .tag(TAG_PROJECT, String.valueOf(aProjectId)) //
+                .register(registry()) //
+                .record(aDurationMillis, MILLISECONDS);
+
+        DistributionSummary.builder(PREFIX + ".write.size") //
+                .description("Size of written CAS files") //
+                .baseUnit("bytes") //
+                .tag(TAG_PROJECT, String.valueOf(aProjectId)) //
+                .register(registry()) //
+                .record(aBytes);
+    }
+
+    /**
+     * Records waiting for exclusive access to a CAS.
+     */
+    public static void recordBorrow(long aProjectId, long aDurationNanos)
+    {
+        Timer.builder(PREFIX + ".exclusive.borrow") //
+                .description("Time waiting for exclusive access to a CAS") //
+                .tag(TAG_PROJECT, String.valueOf(aProjectId)) //
+                .register(registry()) //
+                .record(aDurationNanos, NANOSECONDS);
+    }
+
+    public static void recordSerialization(String aFormat, long aDurationNanos, long aBytes)
+    {
+        Timer.builder(PREFIX + ".serialize") //
+                .description("Time to serialize a CAS to a file") //
+                .tag(TAG_FORMAT, aFormat) //
+                .register(registry()) //
+                .record(aDurationNanos, NANOSECONDS);
+
+        DistributionSummary.builder(PREFIX + ".serialize.size") //
+                .description("Size of serialized CASes") //
+                .baseUnit("bytes") //
+                .tag(TAG_FORMAT, aFormat) //
+                .register(registry()) //
+                .record(aBytes);
+    }
+
+    public static void recordDeserialization(String aFormat, long aDurationNanos)
+    {
+        Timer.builder(PREFIX + ".deserialize") //
+                .description("Time to deserialize a CAS from a file") //
+                .tag(TAG_FORMAT, aFormat) //
+                .register(registry()) //
+                .record(aDurationNanos, NANOSECONDS);
+    }
+
+    public static void recordSession(boolean aNested, long aDurationNanos, int aCasCount)
+    {
+        Timer.builder(PREFIX + ".session") //
+                .description("Lifetime of CAS storage sessions") //
+                .tag(TAG_NESTED, String.valueOf(aNested)) //
+                .register(registry()) //
+                .record(aDurationNanos, NANOSECONDS);
+
+        DistributionSummary.builder(PREFIX + ".session.cases") //
+                .description("Number of CASes managed by a CAS storage session") //
+                .tag(TAG_NESTED, String.valueOf(aNested)) //
+                .register(registry()) //
+                .record(aCasCount);
+    }
+}
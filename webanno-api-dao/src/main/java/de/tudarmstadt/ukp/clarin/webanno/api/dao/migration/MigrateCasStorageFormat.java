@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.migration;
+
+import static org.apache.commons.lang3.StringUtils.removeEnd;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Rewrites all CAS files which are not yet stored in the configured CAS storage format. This runs
+ * in the background after startup if {@code cas-storage.migrate-on-startup} is enabled. Files
+ * which are not migrated remain readable, so the migration can safely be interrupted and resumed
+ * on the next startup.
+ */
+@Component
+public class MigrateCasStorageFormat
+    implements DisposableBean
+{
+    private static final String CAS_FILE_SUFFIX = ".ser";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // Daemon thread so that a long migration does not keep the JVM from shutting down
+    private final ExecutorService executor = Executors
+            .newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                    .namingPattern("cas-storage-migration-%d").daemon(true).build());
+
+    private @Autowired CasStorageProperties casStorageProperties;
+    private @Autowired ProjectService projectService;
+    private @Autowired DocumentService documentService;
+    private @Autowired CasStorageService casStorageService;
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent aEvent)
+    {
+        if (!casStorageProperties.isMigrateOnStartup()) {
+            executor.shutdown();
+            return;
+        }
+
+        executor.submit(this::doMigration);
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+    private void doMigration()
+    {
+        long start = System.currentTimeMillis();
+        int migrated = 0;
+        int failed = 0;
+
+        try (CasStorageSession session = CasStorageSession.open()) {
+            for (Project project : projectService.listProjects()) {
+                for (SourceDocument doc : documentService.listSourceDocuments(project)) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        log.info("CAS storage format migration interrupted");
+                        return;
+                    }
+
+                    File[] casFiles = casStorageService.getAnnotationFolder(doc)
+                            .listFiles((dir, name) -> isCasFile(name));
+                    if (casFiles == null) {
+                        continue;
+                    }
+
+                    for (File casFile : casFiles) {
+                        String user = removeEnd(casFile.getName(), CAS_FILE_SUFFIX);
+                        try {
+                            if (casStorageService.migrateCasStorageFormat(doc, user)) {
+                                migrated++;
+                            }
+                        }
+                        catch (Exception e) {
+                            failed++;
+                            log.error("Unable to migrate annotations for user [{}] on document "
+                                    + "[{}]({}) in project [{}]({})", user, doc.getName(),
+                                    doc.getId(), project.getName(), project.getId(), e);
+                        }
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            log.error("CAS storage format migration aborted", e);
+        }
+        finally {
+            // The migration runs only once, so the thread is not needed any longer
+            executor.shutdown();
+        }
+
+        log.info("Migration [{}] migrated {} CASes to [{}] ({} failed) in {}ms",
+                getClass().getSimpleName(), migrated, casStorageProperties.getFormat(), failed,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return whether the file is the CAS of a user, i.e. {@code <user>.ser}. The folder also
+     *         holds files which end in the same suffix but must not be migrated, e.g. the
+     *         {@code <user>.ser.borked-<timestamp>.ser} copies kept when a CAS failed to
+     *         serialize.
+     */
+    static boolean isCasFile(String aFileName)
+    {
+        return aFileName.endsWith(CAS_FILE_SUFFIX)
+                && !removeEnd(aFileName, CAS_FILE_SUFFIX).contains(CAS_FILE_SUFFIX + ".");
+    }
+}
@@ -18,8 +18,11 @@
 package de.tudarmstadt.ukp.clarin.webanno.api.dao;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.impl.CASImpl;
@@ -32,6 +35,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageDurability;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.SerializedCasStorageFormat;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 
 public class CasPersistenceUtilsTest
@@ -67,4 +73,53 @@ public class CasPersistenceUtilsTest
                 .extracting(fs -> fs.getType().getName())
                 .containsExactly(DocumentMetaData.class.getName());
     }
+
+    @Test
+    public void thatAllStorageFormatsCanBeReadTransparently() throws Exception
+    {
+        for (CasStorageFormat format : CasPersistenceUtils.getFormats()) {
+            CAS cas = CasFactory.createText("This is a test", "en");
+            DocumentMetaData.create(cas).setDocumentId("doc");
+
+            File file = testFolder.newFile();
+
+            CasPersistenceUtils.writeSerializedCas(cas, file, format, true,
+                    CasStorageDurability.NONE);
+
+            assertThat(CasPersistenceUtils.detectFormat(file)).as(format.getId())
+                    .contains(format);
+
+            CAS cas2 = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+
+            CasPersistenceUtils.readSerializedCas(cas2, file);
+
+            assertThat(cas2.getDocumentText()).as(format.getId()).isEqualTo("This is a test");
+            assertThat(cas2.getDocumentLanguage()).as(format.getId()).isEqualTo("en");
+            assertThat(DocumentMetaData.get(cas2).getDocumentId()).as(format.getId())
+                    .isEqualTo("doc");
+        }
+    }
+
+    @Test
+    public void thatVerificationDetectsModifiedFile() throws Exception
+    {
+        CAS cas = CasFactory.createText("This is a test", "en");
+
+        File file = testFolder.newFile();
+
+        long checksum = CasPersistenceUtils.writeSerializedCas(cas, file,
+                CasPersistenceUtils.getFormat(SerializedCasStorageFormat.ID), false,
+                CasStorageDurability.NONE);
+
+        assertThat(new File(file.getPath() + ".tmp")).doesNotExist();
+        CasPersistenceUtils.verifySerializedCas(file, checksum);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() / 2);
+        }
+
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> CasPersistenceUtils.verifySerializedCas(file, checksum))
+                .withMessageContaining("Checksum");
+    }
 }
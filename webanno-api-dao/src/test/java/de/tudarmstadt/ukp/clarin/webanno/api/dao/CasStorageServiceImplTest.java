@@ -52,6 +52,7 @@ import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.factory.CasFactory;
 import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
@@ -66,10 +67,13 @@ import de.tudarmstadt.ukp.clarin.webanno.api.CasProvider;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasSessionException;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasStorageMetrics;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.type.CASMetadata;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class CasStorageServiceImplTest
 {
@@ -108,7 +112,8 @@ public class CasStorageServiceImplTest
         repositoryProperties = new RepositoryProperties();
         repositoryProperties.setPath(testFolder.newFolder());
 
-        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties,
+                new CasStorageProperties(), backupProperties);
     }
 
     @Test
@@ -289,6 +294,67 @@ public class CasStorageServiceImplTest
         }
     }
 
+    @Test
+    public void testWriteBehindDefersWriteUntilCasIsReleased() throws Exception
+    {
+        CasStorageProperties casStorageProperties = new CasStorageProperties();
+        casStorageProperties.getWriteBehind().setEnabled(true);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, casStorageProperties,
+                backupProperties);
+
+        try {
+            // Setup fixture
+            SourceDocument doc = makeSourceDocument(7l, 7l, "test");
+            String user = "test";
+            File casFile = sut.getCasFile(doc, user);
+
+            try (CasStorageSession session = openNested(true)) {
+                createCasFile(doc, user, "This is a test");
+            }
+            long casFileSize = casFile.length();
+            long casFileLastModified = casFile.lastModified();
+
+            // Actual test
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+                cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, 4));
+                sut.writeCas(doc, cas, user);
+                cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 5, 7));
+                sut.writeCas(doc, cas, user);
+
+                assertThat(casFile).as("Writes are deferred while the CAS is held")
+                        .hasSize(casFileSize);
+                assertThat(casFile.lastModified()).isEqualTo(casFileLastModified);
+            }
+
+            // Reading the CAS from storage after it has been released performs the deferred write
+            // unless the background thread was faster
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, UNMANAGED_ACCESS);
+                assertThat(CasUtil.select(cas, cas.getAnnotationType()))
+                        .extracting(AnnotationFS::getEnd).contains(4, 7);
+            }
+        }
+        finally {
+            sut.destroy();
+        }
+    }
+
+    @Test
+    public void testGaugesAreRemovedOnDestroy() throws Exception
+    {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        sut.bindTo(registry);
+
+        assertThat(registry.find(CasStorageMetrics.PREFIX + ".exclusive.active").gauge())
+                .isNotNull();
+        assertThat(registry.find("cache.size").gauge()).isNotNull();
+
+        sut.destroy();
+
+        assertThat(registry.getMeters()).isEmpty();
+    }
+
     @Test
     public void testHighConcurrencyIncludingDeletion() throws Exception
     {
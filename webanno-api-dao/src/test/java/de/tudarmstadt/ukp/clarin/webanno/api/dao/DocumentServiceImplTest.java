@@ -112,7 +112,7 @@ public class DocumentServiceImplTest
         repositoryProperties.setPath(testFolder.newFolder());
 
         storageService = new CasStorageServiceImpl(null, null, repositoryProperties,
-                backupProperties);
+                new CasStorageProperties(), backupProperties);
 
         sut = spy(new DocumentServiceImpl(repositoryProperties, storageService, importExportService,
                 projectService, applicationEventPublisher, entityManager));
@@ -91,7 +91,7 @@ codebookService = new CodebookSchemaServiceImpl();
         repositoryProperties.setPath(testFolder.newFolder());
 
         storageService = new CasStorageServiceImpl(null, null, repositoryProperties,
-                backupProperties);
+                new CasStorageProperties(), backupProperties);
 
         sut = new ImportExportServiceImpl(repositoryProperties, asList(new XmiFormatSupport()),
                 storageService, schemaService, codebookImportExportService, codebookService);
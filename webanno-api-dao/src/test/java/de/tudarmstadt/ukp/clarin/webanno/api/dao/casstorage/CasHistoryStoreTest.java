@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHistoryStore.HistoryEntry;
+
+public class CasHistoryStoreTest
+{
+    public @Rule TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void thatDeltaSnapshotsCanBeRestored() throws Exception
+    {
+        File folder = testFolder.newFolder();
+        File current = new File(folder, "user.ser");
+
+        List<byte[]> versions = new ArrayList<>();
+        byte[] data = randomData(new Random(0), 64 * 1024);
+        for (int i = 0; i < 7; i++) {
+            data = modify(new Random(i), data);
+            versions.add(data);
+            Files.write(current.toPath(), data);
+            new CasHistoryStore(folder, "user").add(current, 1000 + i, 3);
+        }
+
+        CasHistoryStore history = new CasHistoryStore(folder, "user");
+        List<HistoryEntry> entries = history.getEntries();
+        assertThat(entries).extracting(HistoryEntry::isCheckpoint)
+                .containsExactly(true, false, false, true, false, false, true);
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(history.read(entries.get(i))).isEqualTo(versions.get(i));
+        }
+        assertThat(history.getFile(entries.get(1)).length()).isLessThan(1024);
+    }
+
+    @Test
+    public void thatPruningKeepsRemainingSnapshotsReadable() throws Exception
+    {
+        File folder = testFolder.newFolder();
+        File current = new File(folder, "user.ser");
+
+        List<byte[]> versions = new ArrayList<>();
+        byte[] data = randomData(new Random(0), 16 * 1024);
+        CasHistoryStore history = new CasHistoryStore(folder, "user");
+        for (int i = 0; i < 5; i++) {
+            data = modify(new Random(i), data);
+            versions.add(data);
+            Files.write(current.toPath(), data);
+            history.add(current, 1000 + i, 10);
+        }
+
+        List<HistoryEntry> removed = history.prune(3, 0, 1004);
+
+        assertThat(removed).hasSize(2);
+        assertThat(removed).allSatisfy(e -> assertThat(history.getFile(e)).doesNotExist());
+
+        CasHistoryStore reloaded = new CasHistoryStore(folder, "user");
+        List<HistoryEntry> entries = reloaded.getEntries();
+        assertThat(entries).extracting(HistoryEntry::getTimestamp).containsExactly(1002L, 1003L,
+                1004L);
+        assertThat(entries.get(0).isCheckpoint()).isTrue();
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(reloaded.read(entries.get(i))).isEqualTo(versions.get(i + 2));
+        }
+    }
+
+    @Test
+    public void thatExistingBackupsArePickedUp() throws Exception
+    {
+        File folder = testFolder.newFolder();
+        File legacy = new File(folder, "user.ser.1000.bak");
+        Files.write(legacy.toPath(), new byte[] { 1, 2, 3 });
+
+        CasHistoryStore history = new CasHistoryStore(folder, "user");
+
+        assertThat(history.getEntries()).extracting(HistoryEntry::getFilename)
+                .containsExactly(legacy.getName());
+        assertThat(history.read(history.getEntries().get(0))).containsExactly(1, 2, 3);
+    }
+
+    private static byte[] randomData(Random aRandom, int aLength)
+    {
+        byte[] data = new byte[aLength];
+        aRandom.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] modify(Random aRandom, byte[] aData)
+    {
+        int pos = aRandom.nextInt(aData.length);
+        byte[] insert = randomData(aRandom, 100);
+        byte[] result = new byte[aData.length + insert.length];
+        System.arraycopy(aData, 0, result, 0, pos);
+        System.arraycopy(insert, 0, result, pos, insert.length);
+        System.arraycopy(aData, pos, result, pos + insert.length, aData.length - pos);
+        return result;
+    }
+}
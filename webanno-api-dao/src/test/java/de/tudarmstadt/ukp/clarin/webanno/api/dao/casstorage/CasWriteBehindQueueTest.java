@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class CasWriteBehindQueueTest
+{
+    private final CasKey key = new CasKey(1l, 1l, "user");
+
+    @Test
+    public void thatExpiredWriteIsFlushedWithoutFurtherWrites() throws Exception
+    {
+        CountDownLatch flushed = new CountDownLatch(1);
+        CasWriteBehindQueue sut = new CasWriteBehindQueue(50, 10, 10, aKey -> {
+            assertThat(aKey).isEqualTo(key);
+            flushed.countDown();
+        });
+
+        try {
+            assertThat(sut.defer(key, null, "user", null)).isTrue();
+
+            assertThat(flushed.await(10, SECONDS)).as("Expired write flushed in time").isTrue();
+        }
+        finally {
+            sut.shutdown();
+        }
+    }
+
+    @Test
+    public void thatWriteIsOnlyFlushedOnceExpired() throws Exception
+    {
+        Set<CasKey> flushed = ConcurrentHashMap.newKeySet();
+        CasWriteBehindQueue sut = new CasWriteBehindQueue(60_000, 10, 10, flushed::add);
+
+        try {
+            sut.defer(key, null, "user", null);
+
+            sut.flushExpired();
+
+            assertThat(flushed).isEmpty();
+            assertThat(sut.getExpiredKeys(currentTimeMillis())).isEmpty();
+            assertThat(sut.getExpiredKeys(currentTimeMillis() + 60_000)).containsExactly(key);
+        }
+        finally {
+            sut.shutdown();
+        }
+    }
+}
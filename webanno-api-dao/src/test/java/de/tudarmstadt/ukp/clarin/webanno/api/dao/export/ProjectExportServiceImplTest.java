@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.export;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.dao.export.ProjectExportServiceImpl.COPY_PROJECT_FORMAT;
+import static de.tudarmstadt.ukp.clarin.webanno.api.dao.export.ProjectExportServiceImpl.EXPORTED_PROJECT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExporter;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
+import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.support.ZipUtils;
+
+public class ProjectExportServiceImplTest
+{
+    public @Rule TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Project project;
+    private ProjectExportServiceImpl sut;
+
+    @Before
+    public void setup()
+    {
+        project = new Project("project");
+        project.setId(1l);
+
+        sut = new ProjectExportServiceImpl(null,
+                asList(new StagedOnlyExporter(), new StreamedExporter()), null);
+        sut.init();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatStreamedArchiveHasSameLayoutAsStagedArchive() throws Exception
+    {
+        ProjectExportRequest request = new ProjectExportRequest(project, COPY_PROJECT_FORMAT,
+                true);
+
+        File staged = sut.exportProject(request, new ProjectExportTaskMonitor());
+        File streamed = tempFolder.newFile("streamed.zip");
+        try (OutputStream out = new FileOutputStream(streamed)) {
+            sut.exportProject(request, new ProjectExportTaskMonitor(), out);
+        }
+
+        try (ZipFile stagedZip = new ZipFile(staged);
+                ZipFile streamedZip = new ZipFile(streamed)) {
+            Map<String, String> stagedEntries = readEntries(stagedZip);
+
+            assertThat(stagedEntries).containsOnlyKeys("staged/a.txt", "staged/nested/b.txt",
+                    "streamed/c.txt", EXPORTED_PROJECT + ".json");
+            assertThat(readEntries(streamedZip)).isEqualTo(stagedEntries);
+
+            ExportedProject stagedProject = ProjectExportServiceImpl
+                    .loadExportedProject(stagedZip);
+            ExportedProject streamedProject = ProjectExportServiceImpl
+                    .loadExportedProject(streamedZip);
+            assertThat(streamedProject.getName()).isEqualTo(stagedProject.getName());
+            assertThat(streamedProject.getDescription())
+                    .isEqualTo(stagedProject.getDescription()).isEqualTo("staged streamed");
+        }
+        finally {
+            FileUtils.forceDelete(staged);
+        }
+    }
+
+    /**
+     * @return the files in the archive by their normalized names. The project JSON is written
+     *         differently in both modes, so only its presence is recorded.
+     */
+    private static Map<String, String> readEntries(ZipFile aZip) throws Exception
+    {
+        Map<String, String> entries = new TreeMap<>();
+        for (Enumeration<? extends ZipEntry> e = aZip.entries(); e.hasMoreElements();) {
+            ZipEntry entry = e.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            String name = ZipUtils.normalizeEntryName(entry);
+            entries.put(name, name.equals(EXPORTED_PROJECT + ".json") ? ""
+                    : IOUtils.toString(aZip.getInputStream(entry), UTF_8));
+        }
+        return entries;
+    }
+
+    private static class StagedOnlyExporter
+        implements ProjectExporter
+    {
+        @Override
+        public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+                ExportedProject aExProject, File aStage)
+            throws Exception
+        {
+            aExProject.setDescription("staged");
+            FileUtils.writeStringToFile(new File(aStage, "staged/a.txt"), "a", UTF_8);
+            FileUtils.writeStringToFile(new File(aStage, "staged/nested/b.txt"), "b", UTF_8);
+        }
+
+        @Override
+        public void importData(ProjectImportRequest aRequest, Project aProject,
+                ExportedProject aExProject, ZipFile aZip)
+        {
+            // Not needed for the test
+        }
+    }
+
+    private static class StreamedExporter
+        implements StreamingProjectExporter
+    {
+        @Override
+        public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+                ExportedProject aExProject, File aStage)
+            throws Exception
+        {
+            aExProject.setDescription(aExProject.getDescription() + " streamed");
+            FileUtils.writeStringToFile(new File(aStage, "streamed/c.txt"), "c", UTF_8);
+        }
+
+        @Override
+        public void exportData(ProjectExportRequest aRequest, ProjectExportTaskMonitor aMonitor,
+                ExportedProject aExProject, ZipOutputStream aZip)
+            throws Exception
+        {
+            aExProject.setDescription(aExProject.getDescription() + " streamed");
+            aZip.putNextEntry(new ZipEntry("streamed/c.txt"));
+            aZip.write("c".getBytes(UTF_8));
+            aZip.closeEntry();
+        }
+
+        @Override
+        public void importData(ProjectImportRequest aRequest, Project aProject,
+                ExportedProject aExProject, ZipFile aZip)
+        {
+            // Not needed for the test
+        }
+
+        @Override
+        public List<Class<? extends ProjectExporter>> getExportDependencies()
+        {
+            return asList(StagedOnlyExporter.class);
+        }
+    }
+}
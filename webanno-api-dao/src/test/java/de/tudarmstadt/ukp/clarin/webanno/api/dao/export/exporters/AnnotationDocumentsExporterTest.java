@@ -21,17 +21,33 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CORRECTION_USER
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.INITIAL_CAS_PSEUDO_USER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PROJECT_TYPE_ANNOTATION;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PROJECT_TYPE_CORRECTION;
+import static de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest.FORMAT_AUTO;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.IN_PROGRESS;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.apache.commons.io.FilenameUtils.removeExtension;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Before;
@@ -46,14 +62,21 @@ import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ImportExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.BackupProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageServiceImpl;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.ImportExportServiceImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.ProjectExportProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.ProjectExportServiceImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedProject;
 import de.tudarmstadt.ukp.clarin.webanno.export.model.ExportedSourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.clarin.webanno.xmi.XmiFormatSupport;
 import de.uhh.lt.codeanno.api.export.CodebookImportExportService;
 import de.uhh.lt.codeanno.api.service.CodebookSchemaService;
@@ -72,6 +95,11 @@ public class AnnotationDocumentsExporterTest
 
     private @Mock CodebookImportExportService codebookImportExportService;
     private @Mock CodebookSchemaService codebookService;
+
+    private @Mock UserDao userRepository;
+    private @Mock ImportExportService mockImportExportService;
+    private File conversionFolder;
+
     private Project project;
     private File workFolder;
     private long nextDocId = 1;
@@ -95,13 +123,13 @@ public class AnnotationDocumentsExporterTest
         repositoryProperties.setPath(workFolder);
 
         casStorageService = new CasStorageServiceImpl(null, schemaService, repositoryProperties,
-                backupProperties);
+                new CasStorageProperties(), backupProperties);
 
         importExportSerivce = new ImportExportServiceImpl(repositoryProperties,
                 asList(new XmiFormatSupport()), casStorageService, schemaService,
                 codebookImportExportService, codebookService);
         sut = new AnnotationDocumentExporter(documentService, null, importExportSerivce,
-                repositoryProperties);
+                repositoryProperties, new ProjectExportProperties());
     }
 
     @Test
@@ -154,6 +182,114 @@ public class AnnotationDocumentsExporterTest
                 .containsExactlyInAnyOrder(INITIAL_CAS_PSEUDO_USER, "admin");
     }
 
+    @Test
+    public void thatParallelExportWritesEntriesInSameOrderAsSerialExport() throws Exception
+    {
+        project.setMode(PROJECT_TYPE_ANNOTATION);
+        setupDocumentsForExport(8, null);
+
+        List<String> serialEntries = runExportAndListEntries(1);
+
+        assertThat(serialEntries).hasSize(8 * 3);
+        // The later documents finish converting first, but the entries must still be written
+        // in document order - no matter how the workers are scheduled
+        for (int i = 0; i < 5; i++) {
+            assertThat(runExportAndListEntries(4)).isEqualTo(serialEntries);
+        }
+        assertThat(conversionFolder.list()).isEmpty();
+    }
+
+    @Test
+    public void thatFailingWorkerLeavesNoTemporaryFiles() throws Exception
+    {
+        project.setMode(PROJECT_TYPE_ANNOTATION);
+        setupDocumentsForExport(8, "doc3.txt");
+
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> runExportAndListEntries(4))
+                .withMessageContaining("doc3.txt");
+
+        // Workers which were still converting when the export failed clean up once they are done
+        long deadline = currentTimeMillis() + 10_000;
+        while (conversionFolder.list().length > 0 && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(conversionFolder.list()).isEmpty();
+    }
+
+    /**
+     * Sets up documents which are each annotated by a single user. The converted annotations are
+     * written to the {@link #conversionFolder}, the later documents being converted faster than
+     * the earlier ones.
+     */
+    private void setupDocumentsForExport(int aCount, String aFailingDocument) throws Exception
+    {
+        conversionFolder = tempFolder.newFolder();
+
+        List<SourceDocument> docs = new ArrayList<>();
+        List<AnnotationDocument> annDocs = new ArrayList<>();
+        for (int i = 1; i <= aCount; i++) {
+            SourceDocument doc = new SourceDocument("doc" + i + ".txt", project, "xmi");
+            doc.setId(nextDocId++);
+            docs.add(doc);
+
+            AnnotationDocument annDoc = new AnnotationDocument(doc.getName(), project, "user",
+                    doc);
+            annDoc.setState(IN_PROGRESS);
+            annDocs.add(annDoc);
+
+            for (String user : asList(INITIAL_CAS_PSEUDO_USER, "user")) {
+                File casFile = new File(workFolder, doc.getName() + "/" + user + ".ser");
+                FileUtils.writeStringToFile(casFile, user, UTF_8);
+                when(documentService.getCasFile(doc, user)).thenReturn(casFile);
+            }
+        }
+
+        when(documentService.listSourceDocuments(project)).thenReturn(docs);
+        when(documentService.listAnnotationDocuments(project)).thenReturn(annDocs);
+        when(documentService.existsInitialCas(any())).thenReturn(true);
+        when(userRepository.get("user")).thenReturn(new User("user"));
+        when(mockImportExportService.getWritableFormatById("xmi"))
+                .thenReturn(Optional.of(new XmiFormatSupport()));
+        when(mockImportExportService.exportAnnotationDocument(any(), anyString(), any(),
+                anyString(), any(), anyBoolean(), any())).then(invocation -> {
+                    SourceDocument doc = invocation.getArgument(0);
+                    if (doc.getName().equals(aFailingDocument)) {
+                        throw new IOException("Unable to convert " + doc.getName());
+                    }
+
+                    Thread.sleep((aCount - docs.indexOf(doc)) * 10);
+
+                    File file = new File(conversionFolder, doc.getName() + ".xmi");
+                    FileUtils.writeStringToFile(file, doc.getName(), UTF_8);
+                    return file;
+                });
+    }
+
+    private List<String> runExportAndListEntries(int aThreads) throws Exception
+    {
+        ProjectExportProperties properties = new ProjectExportProperties();
+        properties.setThreads(aThreads);
+        AnnotationDocumentExporter exporter = new AnnotationDocumentExporter(documentService,
+                userRepository, mockImportExportService, repositoryProperties, properties);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buffer)) {
+            exporter.exportData(new ProjectExportRequest(project, FORMAT_AUTO, true),
+                    new ProjectExportTaskMonitor(), new ExportedProject(), zip);
+        }
+
+        List<String> entries = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(
+                new ByteArrayInputStream(buffer.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.add(entry.getName());
+            }
+        }
+        return entries;
+    }
+
     private List<Pair<SourceDocument, String>> runImportAndFetchDocuments(ZipFile aZipFile)
         throws Exception
     {
@@ -177,4 +177,18 @@ public interface CasStorageService
     void forceActionOnCas(SourceDocument aDocument, String aUser, CasStorageServiceLoader aLoader,
             CasStorageServiceAction aAction, boolean aSave)
         throws IOException;
+
+    /**
+     * Rewrites the given CAS in the configured storage format if it is stored in a different
+     * format. The contents and the timestamp of the CAS remain unchanged.
+     * 
+     * @param aDocument
+     *            the document to migrate the CAS for.
+     * @param aUser
+     *            the user to migrate the CAS for.
+     * @return whether the CAS was migrated.
+     * @throws IOException
+     *             if the CAS could not be loaded or saved.
+     */
+    boolean migrateCasStorageFormat(SourceDocument aDocument, String aUser) throws IOException;
 }
@@ -19,6 +19,7 @@ package de.uhh.lt.codeanno.webapp.remoteapi.aero;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectSentences;
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectTokens;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.OK;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
@@ -28,7 +29,6 @@ import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
 
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -61,7 +61,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -74,6 +74,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
@@ -82,8 +83,9 @@ import de.tudarmstadt.ukp.clarin.webanno.api.ImportExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectType;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.export.StreamingProjectExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportRequest;
-import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportService;
+import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportException;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectExportTaskMonitor;
 import de.tudarmstadt.ukp.clarin.webanno.api.export.ProjectImportRequest;
 import de.tudarmstadt.ukp.clarin.webanno.api.format.FormatSupport;
@@ -161,7 +163,7 @@ public class AeroRemoteApiController
     private @Autowired ImportExportService importExportService;
     private @Autowired AnnotationSchemaService annotationService;
     private @Autowired UserDao userRepository;
-    private @Autowired ProjectExportService exportService;
+    private @Autowired StreamingProjectExportService exportService;
 
     private static <T extends AnnotationFS> void assertCompatibleOffsets(Collection<T> aExpected,
             Collection<T> aActual)
@@ -547,11 +549,16 @@ public class AeroRemoteApiController
         return ResponseEntity.ok(new RResponse<>(new RProject(importedProject)));
     }
 
-    @ApiOperation(value = "Export a project to a ZIP file")
+    @ApiOperation(value = "Export a project to a ZIP file", notes = "The archive is streamed "
+            + "while it is being built. If the export fails after the first bytes have been "
+            + "sent, the response still has the status 200 but the archive is truncated. "
+            + "Clients should verify that the archive can be read. An export which takes longer "
+            + "than the asynchronous request timeout (spring.mvc.async.request-timeout) is "
+            + "aborted in the same way.")
     @RequestMapping(value = ("/" + PROJECTS + "/{" + PARAM_PROJECT_ID + "}/"
             + EXPORT), method = RequestMethod.GET, produces = { "application/zip",
                     APPLICATION_JSON_UTF8_VALUE })
-    public ResponseEntity<InputStreamResource> projectExport(
+    public ResponseEntity<StreamingResponseBody> projectExport(
             @PathVariable(PARAM_PROJECT_ID) long aProjectId,
             @RequestParam(value = PARAM_FORMAT) Optional<String> aFormat)
         throws Exception
@@ -573,25 +580,25 @@ public class AeroRemoteApiController
         ProjectExportRequest request = new ProjectExportRequest(project,
                 aFormat.orElse(WebAnnoTsv3FormatSupport.ID), true);
         ProjectExportTaskMonitor monitor = new ProjectExportTaskMonitor();
-        File exportedFile = exportService.exportProject(request, monitor);
-
-        // Turn the file into a resource and auto-delete the file when the resource closes the
-        // stream.
-        InputStreamResource result = new InputStreamResource(new FileInputStream(exportedFile)
-        {
-            @Override
-            public void close() throws IOException
-            {
-                super.close();
-                FileUtils.forceDelete(exportedFile);
+
+        // Write the archive directly into the response instead of building it in a temporary
+        // file first. The size is not known in advance, so there is no content length. Once the
+        // first bytes have been sent, a failure can only abort the response.
+        StreamingResponseBody result = out -> {
+            try {
+                exportService.exportProject(request, monitor, out);
             }
-        });
+            catch (ProjectExportException e) {
+                LOG.error("Unable to export project [{}]({})", project.getName(),
+                        project.getId(), e);
+                throw new IOException(e);
+            }
+        };
 
         HttpHeaders httpHeaders = new HttpHeaders();
         httpHeaders.setContentType(MediaType.valueOf("application/zip"));
-        httpHeaders.setContentLength(exportedFile.length());
-        httpHeaders.set("Content-Disposition",
-                "attachment; filename=\"" + exportedFile.getName() + "\"");
+        httpHeaders.setContentDisposition(ContentDisposition.builder("attachment")
+                .filename(project.getName() + ".zip", UTF_8).build());
 
         return new ResponseEntity<>(result, httpHeaders, HttpStatus.OK);
     }